@@ -1,5 +1,7 @@
 package apps;
 
+import java.io.*;
+
 import rmi.*;
 
 import naming.NamingServer;
@@ -7,9 +9,15 @@ import naming.NamingServer;
 /** Naming server application.
 
     <p>
-    The naming server application does not take any arguments. It starts a
-    naming server listening on the default client and registration ports for
-    clients and storage servers, respectively.
+    The naming server application starts a naming server listening on the
+    default client and registration ports for clients and storage servers,
+    respectively.
+
+    <p>
+    The application takes one optional argument: a directory in which the
+    naming server keeps the journal of its namespace. When it is given, the
+    namespace survives restarts of the naming server; otherwise, it is kept in
+    memory only.
  */
 public class NamingServerApp extends ServerApplication
 {
@@ -32,17 +40,23 @@ public class NamingServerApp extends ServerApplication
     /** Starts the naming server.
 
         @param arguments Command line arguments.
-        @throws BadUsageException If there are any command line arguments.
+        @throws BadUsageException If there is more than one command line
+                                  argument.
+        @throws IOException If the journal cannot be created or read.
         @throws RMIException If the naming server cannot be started.
      */
     @Override
     protected void startServer(String[] arguments)
-        throws BadUsageException, RMIException
+        throws BadUsageException, IOException, RMIException
     {
-        if(arguments.length != 0)
-            throw new BadUsageException("naming server expects no arguments");
+        if(arguments.length > 1)
+            throw new BadUsageException("arguments: [journal-directory]");
+
+        if(arguments.length == 0)
+            server = new StoppingNamingServer();
+        else
+            server = new StoppingNamingServer(new File(arguments[0]));
 
-        server = new StoppingNamingServer();
         server.start();
     }
 
@@ -56,6 +70,17 @@ public class NamingServerApp extends ServerApplication
     /** Application naming server. */
     private class StoppingNamingServer extends NamingServer
     {
+        /** Creates a naming server with an in-memory namespace. */
+        StoppingNamingServer()
+        {
+        }
+
+        /** Creates a naming server with a persistent namespace. */
+        StoppingNamingServer(File journal) throws IOException
+        {
+            super(journal);
+        }
+
         /** Schedules a timeout before attempting to stop the server
             gracefully. */
         @Override
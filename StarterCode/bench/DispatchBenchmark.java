@@ -0,0 +1,132 @@
+package bench;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import common.*;
+import rmi.*;
+import storage.*;
+import test.TemporaryDirectory;
+
+/** Compares the skeleton dispatch modes under many concurrent
+    <code>Storage.read</code> callers.
+
+    <p>
+    A storage server object is exported through a <code>Skeleton</code> in
+    each of the modes listed in {@link DispatchMode}. For each mode, the given
+    number of client threads repeatedly read random 64 KB regions of a 16 MB
+    file through a stub for a fixed amount of time. The benchmark prints the
+    call throughput, the mean latency and the number of calls rejected by
+    the skeleton.
+
+    <p>
+    Arguments, all optional: the number of callers (default 256) and the
+    duration of each run in seconds (default 10).
+ */
+public class DispatchBenchmark
+{
+    /** Size of the file read by the callers. */
+    private static final int    FILE_SIZE = 16 * 1024 * 1024;
+    /** Size of each read request. */
+    private static final int    READ_SIZE = 64 * 1024;
+
+    /** Benchmark entry point.
+
+        @param arguments Optional caller count and run duration in seconds.
+     */
+    public static void main(String[] arguments) throws Exception
+    {
+        int                 callers =
+            arguments.length > 0 ? Integer.parseInt(arguments[0]) : 256;
+        int                 seconds =
+            arguments.length > 1 ? Integer.parseInt(arguments[1]) : 10;
+
+        TemporaryDirectory  directory = new TemporaryDirectory();
+        Path                file = new Path("/data");
+
+        try
+        {
+            byte[]          content = new byte[FILE_SIZE];
+            new Random(1).nextBytes(content);
+
+            try(FileOutputStream output =
+                    new FileOutputStream(file.toFile(directory.root())))
+            {
+                output.write(content);
+            }
+
+            StorageServer   server = new StorageServer(directory.root());
+
+            System.out.println("callers: " + callers + ", duration: " +
+                               seconds + " s, read size: " + READ_SIZE);
+
+            for(DispatchMode mode : DispatchMode.values())
+                run(mode, server, file, callers, seconds);
+        }
+        finally
+        {
+            directory.remove();
+        }
+    }
+
+    /** Runs the benchmark for one dispatch mode. */
+    private static void run(DispatchMode mode, StorageServer server, Path file,
+                            int callers, int seconds) throws Exception
+    {
+        Skeleton<Storage>   skeleton =
+            new Skeleton<Storage>(Storage.class, server);
+        skeleton.setDispatchMode(mode);
+        skeleton.start();
+
+        Storage             stub = Stub.create(Storage.class, skeleton);
+        AtomicLong          calls = new AtomicLong();
+        AtomicLong          failures = new AtomicLong();
+        AtomicLong          latency = new AtomicLong();
+        long                deadline =
+            System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+
+        Thread[]            threads = new Thread[callers];
+
+        for(int index = 0; index < callers; ++index)
+        {
+            threads[index] = new Thread(() ->
+            {
+                Random      random = new Random();
+
+                while(System.nanoTime() < deadline)
+                {
+                    long    offset = random.nextInt(FILE_SIZE - READ_SIZE);
+                    long    start = System.nanoTime();
+
+                    try
+                    {
+                        stub.read(file, offset, READ_SIZE);
+                        latency.addAndGet(System.nanoTime() - start);
+                        calls.incrementAndGet();
+                    }
+                    catch(Throwable t)
+                    {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            threads[index].start();
+        }
+
+        for(Thread thread : threads)
+            thread.join();
+
+        skeleton.stop();
+
+        long                completed = calls.get();
+        double              mean_ms = completed == 0 ? 0 :
+            latency.get() / (double)completed / 1e6;
+
+        System.out.printf("%-16s %10.0f calls/s %8.2f ms mean %8d failed " +
+                          "%8d rejected%n", mode,
+                          completed / (double)seconds, mean_ms,
+                          failures.get(), skeleton.getRejectedCalls());
+    }
+}
@@ -0,0 +1,114 @@
+package bench;
+
+import java.lang.invoke.*;
+import java.lang.reflect.*;
+
+import common.*;
+import rmi.*;
+
+/** Compares the ways in which a skeleton can invoke a remote method once the
+    call has been decoded.
+
+    <p>
+    Three paths are measured on the same server object, with the same decoded
+    argument array:
+    <ul>
+    <li><em>lookup + reflect</em>: the method is looked up by name and
+        parameter types with <code>getMethod</code>, then called with
+        <code>Method.invoke</code>. This is what the skeleton used to do for
+        every call.</li>
+    <li><em>reflect</em>: a <code>Method</code> looked up in advance is called
+        with <code>Method.invoke</code>.</li>
+    <li><em>method handle</em>: a <code>MethodHandle</code> bound to the
+        server and adapted to take the argument array, as built by the
+        skeleton's dispatch table, is called with <code>invokeExact</code>.
+        </li>
+    </ul>
+
+    <p>
+    This is a simple timing loop rather than a JMH harness, so the figures
+    are indicative; each path is warmed up before it is measured. The optional
+    argument is the number of measured iterations (default 20 million).
+ */
+public class InvocationBenchmark
+{
+    /** Remote interface used by the benchmark. */
+    public interface Lookup
+    {
+        /** Returns a value computed from the arguments. */
+        public long find(Path path, long offset, int length)
+            throws RMIException;
+    }
+
+    /** Trivial server object, so that the invocation cost dominates. */
+    private static class LookupServer implements Lookup
+    {
+        @Override
+        public long find(Path path, long offset, int length)
+        {
+            return offset + length;
+        }
+    }
+
+    /** Consumes results so that calls are not optimized away. */
+    private static long     sink;
+
+    /** Benchmark entry point.
+
+        @param arguments Optional number of measured iterations.
+     */
+    public static void main(String[] arguments) throws Throwable
+    {
+        int                 iterations =
+            arguments.length > 0 ? Integer.parseInt(arguments[0]) : 20000000;
+
+        Lookup              server = new LookupServer();
+        Object[]            args = new Object[] {new Path("/a/b"), 4096L, 512};
+        Method              method =
+            Lookup.class.getMethod("find", Path.class, long.class, int.class);
+        MethodHandle        handle = MethodHandles.publicLookup()
+            .unreflect(method)
+            .bindTo(server)
+            .asSpreader(Object[].class, method.getParameterCount())
+            .asType(MethodType.methodType(Object.class, Object[].class));
+        Class<?>[]          types = method.getParameterTypes();
+
+        for(int round = 0; round < 2; ++round)
+        {
+            boolean         report = round == 1;
+            int             count = report ? iterations : iterations / 4;
+
+            long            start = System.nanoTime();
+            for(int index = 0; index < count; ++index)
+            {
+                Method      found = Lookup.class.getMethod("find", types);
+                sink += (Long)found.invoke(server, args);
+            }
+            print(report, "lookup + reflect", start, count);
+
+            start = System.nanoTime();
+            for(int index = 0; index < count; ++index)
+                sink += (Long)method.invoke(server, args);
+            print(report, "reflect", start, count);
+
+            start = System.nanoTime();
+            for(int index = 0; index < count; ++index)
+                sink += (Long)(Object)handle.invokeExact(args);
+            print(report, "method handle", start, count);
+        }
+
+        if(sink == 42)
+            System.out.println();
+    }
+
+    /** Prints the time per call of one measured loop. */
+    private static void print(boolean report, String name, long start,
+                              int count)
+    {
+        if(report)
+        {
+            System.out.printf("%-18s %8.1f ns/call%n", name,
+                              (System.nanoTime() - start) / (double)count);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package bench;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import common.*;
+import naming.*;
+import rmi.*;
+import storage.*;
+
+/** Measures naming server metadata operations as the namespace grows.
+
+    <p>
+    The benchmark calls a <code>NamingServer</code> object directly, without
+    RMI, so that only the cost of the namespace itself is measured. Files are
+    laid out three levels deep, 1000 files per directory, as
+    <code>/a<i>i</i>/b<i>j</i>/f<i>k</i></code>, and are all hosted by a
+    storage server that ignores commands. The namespace is grown to each of the
+    given sizes in turn; at each size, the benchmark prints the mean time of
+    <code>isDirectory</code> and <code>getStorage</code> on random existing
+    paths, of <code>list</code> on a random directory of 1000 files, and of
+    creating and deleting a file in a random directory. It also prints the
+    heap occupied by the namespace, per file and per million files, which can
+    be used to size the heap of a naming server.
+
+    <p>
+    Arguments, all optional: a comma-separated list of namespace sizes in
+    files (default <code>1000,10000,100000,1000000,10000000</code>) and the
+    number of timed operations of each kind (default 100000). The largest
+    default size needs a heap of about 4 GB, for example
+    <code>java -Xmx4g bench.NamespaceBenchmark</code>.
+ */
+public class NamespaceBenchmark
+{
+    /** Number of files per directory. */
+    private static final int    FANOUT = 1000;
+
+    /** Benchmark entry point.
+
+        @param arguments Optional namespace sizes and operation count.
+     */
+    public static void main(String[] arguments) throws Exception
+    {
+        String              sizes = arguments.length > 0 ? arguments[0] :
+            "1000,10000,100000,1000000,10000000";
+        int                 operations =
+            arguments.length > 1 ? Integer.parseInt(arguments[1]) : 100000;
+
+        long                baseline = usedHeap();
+        NamingServer        server = new NamingServer();
+        NullStorage         storage = new NullStorage();
+        server.register(storage, storage, new Path[0]);
+
+        int                 files = 0;
+
+        System.out.printf("%10s %12s %12s %12s %13s %10s %12s%n", "files",
+                          "isDirectory", "getStorage", "list", "create+delete",
+                          "heap/file", "MB/M files");
+
+        for(String size : sizes.split(","))
+        {
+            int             target = Integer.parseInt(size);
+
+            // Grow the namespace to the target size.
+            for(; files < target; ++files)
+            {
+                if(files % FANOUT == 0)
+                {
+                    if(files % (FANOUT * FANOUT) == 0)
+                        server.createDirectory(top(files));
+                    server.createDirectory(directory(files));
+                }
+
+                server.createFile(file(files));
+            }
+
+            long            heap = usedHeap() - baseline;
+
+            Random          random = new Random(target);
+            Path[]          sample_files = new Path[operations];
+            Path[]          sample_directories = new Path[operations];
+
+            for(int index = 0; index < operations; ++index)
+            {
+                int         chosen = random.nextInt(files);
+                sample_files[index] = file(chosen);
+                sample_directories[index] = directory(chosen);
+            }
+
+            long            start = System.nanoTime();
+            for(Path path : sample_directories)
+                server.isDirectory(path);
+            long            is_directory = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for(Path path : sample_files)
+                server.getStorage(path);
+            long            get_storage = System.nanoTime() - start;
+
+            int             lists = Math.max(1, operations / 100);
+            start = System.nanoTime();
+            for(int index = 0; index < lists; ++index)
+                server.list(sample_directories[index]);
+            long            list = System.nanoTime() - start;
+
+            Path[]          fresh = new Path[operations];
+            for(int index = 0; index < operations; ++index)
+                fresh[index] = new Path(sample_directories[index], "new");
+
+            start = System.nanoTime();
+            for(Path path : fresh)
+            {
+                server.createFile(path);
+                server.delete(path);
+            }
+            long            create_delete = System.nanoTime() - start;
+
+            System.out.printf("%10d %9.0f ns %9.0f ns %9.0f ns %10.0f ns " +
+                              "%8.0f B %12.0f%n",
+                              files, is_directory / (double)operations,
+                              get_storage / (double)operations,
+                              list / (double)lists,
+                              create_delete / (double)operations,
+                              heap / (double)files,
+                              heap / (double)files * 1000000 / (1024 * 1024));
+        }
+    }
+
+    /** Returns the heap in use after a full collection, in bytes. */
+    private static long usedHeap()
+    {
+        Runtime             runtime = Runtime.getRuntime();
+
+        for(int collection = 0; collection < 3; ++collection)
+            System.gc();
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /** Returns the top-level directory holding file number
+        <code>index</code>. */
+    private static Path top(int index)
+    {
+        return new Path("/a" + index / (FANOUT * FANOUT));
+    }
+
+    /** Returns the directory holding file number <code>index</code>. */
+    private static Path directory(int index)
+    {
+        return new Path(top(index), "b" + (index / FANOUT) % FANOUT);
+    }
+
+    /** Returns the path of file number <code>index</code>. */
+    private static Path file(int index)
+    {
+        return new Path(directory(index), "f" + index % FANOUT);
+    }
+
+    /** Storage server that accepts every command and stores nothing. */
+    private static class NullStorage implements Storage, Command
+    {
+        @Override
+        public long size(Path file)
+        {
+            return 0;
+        }
+
+        @Override
+        public byte[] read(Path file, long offset, int length)
+        {
+            return new byte[length];
+        }
+
+        @Override
+        public void write(Path file, long offset, byte[] data)
+        {
+        }
+
+        @Override
+        public boolean create(Path file)
+        {
+            return true;
+        }
+
+        @Override
+        public boolean delete(Path path)
+        {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package bench;
+
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import common.*;
+import rmi.*;
+import storage.*;
+import test.TemporaryDirectory;
+
+/** Compares the skeleton transports with many mostly idle connections.
+
+    <p>
+    For each transport listed in {@link Transport} and each connection count,
+    a storage server object is exported through a <code>Skeleton</code> and the
+    given number of idle client connections are opened to it. With these
+    connections held open, a small number of callers repeatedly read 4 KB
+    regions of a file through a stub for a fixed amount of time. The benchmark
+    prints the number of live threads and the heap in use while the idle
+    connections are open, and the call throughput and mean latency of the
+    active callers.
+
+    <p>
+    Arguments, all optional: a comma-separated list of idle connection counts
+    (default <code>1000,10000</code>), the number of active callers (default
+    32) and the duration of each run in seconds (default 10). Every connection
+    uses a file descriptor at each end, so 10,000 connections need a
+    descriptor limit of more than 20,000.
+ */
+public class TransportBenchmark
+{
+    /** Size of the file read by the callers. */
+    private static final int    FILE_SIZE = 1024 * 1024;
+    /** Size of each read request. */
+    private static final int    READ_SIZE = 4 * 1024;
+
+    /** Benchmark entry point.
+
+        @param arguments Optional connection counts, caller count and run
+                         duration in seconds.
+     */
+    public static void main(String[] arguments) throws Exception
+    {
+        String              counts =
+            arguments.length > 0 ? arguments[0] : "1000,10000";
+        int                 callers =
+            arguments.length > 1 ? Integer.parseInt(arguments[1]) : 32;
+        int                 seconds =
+            arguments.length > 2 ? Integer.parseInt(arguments[2]) : 10;
+
+        TemporaryDirectory  directory = new TemporaryDirectory();
+        Path                file = new Path("/data");
+
+        try
+        {
+            byte[]          content = new byte[FILE_SIZE];
+            new Random(1).nextBytes(content);
+
+            try(FileOutputStream output =
+                    new FileOutputStream(file.toFile(directory.root())))
+            {
+                output.write(content);
+            }
+
+            StorageServer   server = new StorageServer(directory.root());
+
+            System.out.println("callers: " + callers + ", duration: " +
+                               seconds + " s, read size: " + READ_SIZE);
+
+            for(String count : counts.split(","))
+            {
+                for(Transport transport : Transport.values())
+                {
+                    run(transport, server, file, Integer.parseInt(count),
+                        callers, seconds);
+                }
+            }
+        }
+        finally
+        {
+            directory.remove();
+        }
+    }
+
+    /** Runs the benchmark for one transport and connection count. */
+    private static void run(Transport transport, StorageServer server,
+                            Path file, int connections, int callers,
+                            int seconds) throws Exception
+    {
+        ThreadMXBean        thread_bean = ManagementFactory.getThreadMXBean();
+        int                 baseline = thread_bean.getThreadCount();
+
+        Skeleton<Storage>   skeleton =
+            new Skeleton<Storage>(Storage.class, server);
+        skeleton.setTransport(transport);
+        skeleton.start();
+
+        // Open the idle connections and wait until the skeleton has accepted
+        // all of them.
+        List<Socket>        idle = new ArrayList<>();
+        InetSocketAddress   address = new InetSocketAddress(
+            InetAddress.getLoopbackAddress(), skeleton.getAddress().getPort());
+
+        try
+        {
+            for(int index = 0; index < connections; ++index)
+                idle.add(new Socket(address.getAddress(), address.getPort()));
+
+            long            wait_until = System.nanoTime() +
+                                         TimeUnit.SECONDS.toNanos(30);
+            while(skeleton.getOpenConnections() < connections &&
+                  System.nanoTime() < wait_until)
+            {
+                Thread.sleep(10);
+            }
+
+            System.gc();
+            int             threads = thread_bean.getThreadCount();
+            MemoryUsage     heap =
+                ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+
+            // Measure the active callers.
+            Storage         stub = Stub.create(Storage.class, address);
+            AtomicLong      calls = new AtomicLong();
+            AtomicLong      failures = new AtomicLong();
+            AtomicLong      latency = new AtomicLong();
+            long            deadline =
+                System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+
+            Thread[]        workers = new Thread[callers];
+
+            for(int index = 0; index < callers; ++index)
+            {
+                workers[index] = new Thread(() ->
+                {
+                    Random  random = new Random();
+
+                    while(System.nanoTime() < deadline)
+                    {
+                        long    offset =
+                            random.nextInt(FILE_SIZE - READ_SIZE);
+                        long    start = System.nanoTime();
+
+                        try
+                        {
+                            stub.read(file, offset, READ_SIZE);
+                            latency.addAndGet(System.nanoTime() - start);
+                            calls.incrementAndGet();
+                        }
+                        catch(Throwable t)
+                        {
+                            failures.incrementAndGet();
+                        }
+                    }
+                });
+                workers[index].start();
+            }
+
+            for(Thread worker : workers)
+                worker.join();
+
+            long            completed = calls.get();
+            double          mean_ms = completed == 0 ? 0 :
+                latency.get() / (double)completed / 1e6;
+
+            System.out.printf("%-9s %6d idle %6d open %6d threads " +
+                              "%6d MB heap %10.0f calls/s %8.2f ms mean " +
+                              "%6d failed%n", transport, connections,
+                              skeleton.getOpenConnections(), threads,
+                              heap.getUsed() >> 20,
+                              completed / (double)seconds, mean_ms,
+                              failures.get());
+        }
+        finally
+        {
+            for(Socket socket : idle)
+                socket.close();
+
+            skeleton.stop();
+
+            // Let the threads of this run exit before the next run starts,
+            // so that they do not compete with it for processors.
+            long            wait_until = System.nanoTime() +
+                                         TimeUnit.SECONDS.toNanos(30);
+            while(thread_bean.getThreadCount() > baseline + callers &&
+                  System.nanoTime() < wait_until)
+            {
+                Thread.sleep(10);
+            }
+        }
+    }
+}
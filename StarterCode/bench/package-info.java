@@ -0,0 +1,11 @@
+/** Performance benchmarks.
+
+    <p>
+    Each class in this package is a stand-alone program with a
+    <code>main</code> method that measures one aspect of the filesystem and
+    prints its results to standard output. Benchmarks are not run as part of
+    the test targets. They are run by hand, for example as
+    <code>java bench.DispatchBenchmark</code>, from the directory containing
+    the compiled classes.
+ */
+package bench;
@@ -2,6 +2,8 @@ package client;
 
 import java.io.*;
 import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
 
 import rmi.*;
 import common.*;
@@ -12,22 +14,59 @@ import storage.*;
 
     <p>
     Read calls on a <code>DFSInputStream</code> are directed to a storage server
-    hosting the given file. Each read call corresponds to one network request.
+    hosting a replica of the given file, chosen at random when the stream is
+    created, so that the readers of a replicated file are spread over its
+    replicas. Each read call corresponds to one network request.
     If this behavior is not desirable, the <code>DFSInputStream</code> should be
     wrapped in a <code>BufferedInputStream</code> or other class providing
     buffered input.
 
+    <p>
+    Reads longer than <code>PIPELINE_CHUNK_SIZE</code> are split into chunks,
+    and up to <code>PIPELINE_DEPTH</code> chunk requests are kept in flight at
+    once. The requests are sent through an asynchronous stub and share the
+    multiplexed RMI connection to the storage server, so a large read needs
+    neither a socket nor a thread per chunk.
+
+    <p>
+    Reads of at least <code>DATA_CHANNEL_THRESHOLD</code> bytes are instead
+    streamed over the storage server's bulk data channel, if the server has one
+    (see <code>Storage.dataAddress</code>). The file data is then written
+    directly into the caller's buffer.
+
+    <p>
+    If the naming server is accessed through a <code>MetadataCache</code>,
+    the replicas are taken from the cache. They are looked up again if the
+    chosen storage server cannot be reached or does not have the file, and
+    dropped from the cache if a later read fails.
+
     <p>
     <code>DFSInputStream</code> does not support marks.
  */
 public class DFSInputStream extends InputStream
 {
+    /** Size of the chunks into which large reads are split. */
+    public static final int PIPELINE_CHUNK_SIZE = 1024 * 1024;
+    /** Maximum number of chunk requests in flight for one read. */
+    public static final int PIPELINE_DEPTH = 8;
+    /** Reads of at least this many bytes use the storage server's bulk data
+        channel, when it has one. */
+    public static final int DATA_CHANNEL_THRESHOLD = 4 * 1024 * 1024;
+
     /** Path to the file. */
     private final Path      path;
-    /** Storage server hosting the file. */
+    /** Storage server hosting the replica of the file that is read. */
     private final Storage   storage_server;
+    /** Asynchronous stub for the same storage server, used to pipeline large
+        reads. Created when first needed. */
+    private AsyncStorage    async_storage_server;
     /** Naming server used to find the storage server hosting the file. */
     private final Service   naming_server;
+    /** Address of the storage server's bulk data channel, or
+        <code>null</code> if it has none or it cannot be reached. */
+    private InetSocketAddress   data_address;
+    /** Indicates that <code>data_address</code> has been retrieved. */
+    private boolean         data_address_known = false;
 
     /** Current read offset in the file. */
     private long            offset = 0;
@@ -53,26 +92,29 @@ public class DFSInputStream extends InputStream
     public DFSInputStream(Service naming_server, Path file)
         throws FileNotFoundException, IOException
     {
-        // Retrieve a stub for the storage server hosting the file.
-        try
-        {
-            storage_server = naming_server.getStorage(file);
-        }
-        catch(RMIException e)
-        {
-            throw new IOException("could not contact naming server", e);
-        }
+        // Retrieve a stub for a storage server hosting a replica of the file,
+        // and the length of the file from that server. If the stub was cached
+        // by a MetadataCache, it may be stale: the cached metadata is then
+        // dropped and the file is looked up again.
+        Storage     server = replica(naming_server, file);
+        long        size;
 
-        // Retrieve the length of the file from the storage server.
         try
         {
-            length = storage_server.size(file);
+            size = size(server, file);
         }
-        catch(RMIException e)
+        catch(IOException e)
         {
-            throw new IOException("could not contact storage server", e);
+            if(!(naming_server instanceof MetadataCache))
+                throw e;
+
+            ((MetadataCache)naming_server).invalidate(file);
+            server = replica(naming_server, file);
+            size = size(server, file);
         }
 
+        storage_server = server;
+        length = size;
         path = file;
         this.naming_server = naming_server;
     }
@@ -140,6 +182,45 @@ public class DFSInputStream extends InputStream
         this(NamingStubs.service(hostname), new Path(filename));
     }
 
+    /** Returns a stub for a storage server hosting a replica of a file,
+        chosen at random. */
+    private static Storage replica(Service naming_server, Path file)
+        throws FileNotFoundException, IOException
+    {
+        try
+        {
+            Storage[]   replicas = naming_server.getReplicas(file);
+            return replicas[ThreadLocalRandom.current().nextInt(replicas.length)];
+        }
+        catch(RMIException e)
+        {
+            throw new IOException("could not contact naming server", e);
+        }
+    }
+
+    /** Retrieves the length of a file from a storage server hosting it. */
+    private static long size(Storage storage_server, Path file)
+        throws FileNotFoundException, IOException
+    {
+        try
+        {
+            return storage_server.size(file);
+        }
+        catch(RMIException e)
+        {
+            throw new IOException("could not contact storage server", e);
+        }
+    }
+
+    /** Drops the metadata of the file cached by the naming server stub, if it
+        is a <code>MetadataCache</code>, after an error on the storage server
+        that may be due to the metadata being stale. */
+    private void invalidate()
+    {
+        if(naming_server instanceof MetadataCache)
+            ((MetadataCache)naming_server).invalidate(path);
+    }
+
     /** Closes the input stream.
 
         <p>
@@ -218,6 +299,22 @@ public class DFSInputStream extends InputStream
         if(read_length > (length - offset))
             read_length = (int)(length - offset);
 
+        // Bulk reads are streamed over the data channel, if there is one.
+        if(read_length >= DATA_CHANNEL_THRESHOLD &&
+           readDataChannel(buffer, buffer_offset, read_length))
+        {
+            offset += read_length;
+            return read_length;
+        }
+
+        // Large reads are pipelined in chunks.
+        if(read_length > PIPELINE_CHUNK_SIZE)
+        {
+            readPipelined(buffer, buffer_offset, read_length);
+            offset += read_length;
+            return read_length;
+        }
+
         // Read bytes from file and advance the stream offset if the request
         // succeeds.
         byte[]      result;
@@ -229,22 +326,158 @@ public class DFSInputStream extends InputStream
         }
         catch(FileNotFoundException e)
         {
+            invalidate();
             throw new IOException("file missing on storage server", e);
         }
         catch(RMIException e)
         {
+            invalidate();
             throw new IOException("unable to contact storage server", e);
         }
 
         // Copy bytes from the buffer that was received over the network into
         // the buffer provided by the caller.
-        for(int index = 0; index < read_length; ++index)
-            buffer[buffer_offset + index] = result[index];
+        System.arraycopy(result, 0, buffer, buffer_offset, read_length);
 
         // Return the number of bytes read.
         return read_length;
     }
 
+    /** Reads a range of the file starting at the current stream offset as a
+        sequence of chunk requests, keeping up to <code>PIPELINE_DEPTH</code>
+        of them in flight.
+
+        <p>
+        The stream offset is not advanced by this method.
+
+        @param buffer Buffer to receive the bytes read.
+        @param buffer_offset Offset into the buffer at which the bytes are to be
+                             written.
+        @param read_length Number of bytes to read. The range must lie within
+                           the file.
+        @throws IOException If the storage server cannot be contacted, or if a
+                            read error occurs on the storage server.
+     */
+    private void readPipelined(byte[] buffer, int buffer_offset,
+                               int read_length) throws IOException
+    {
+        if(async_storage_server == null)
+            async_storage_server = AsyncStub.of(AsyncStorage.class,
+                                                storage_server);
+
+        ArrayDeque<Future<byte[]>>  window = new ArrayDeque<>();
+        int                         requested = 0;
+        int                         received = 0;
+
+        try
+        {
+            while(received < read_length)
+            {
+                // Keep the window full while there are chunks to request.
+                while(requested < read_length &&
+                      window.size() < PIPELINE_DEPTH)
+                {
+                    long    chunk_offset = offset + requested;
+                    int     chunk_length =
+                        Math.min(PIPELINE_CHUNK_SIZE, read_length - requested);
+
+                    window.add(async_storage_server.read(path, chunk_offset,
+                                                         chunk_length));
+                    requested += chunk_length;
+                }
+
+                // Chunks are copied in the order in which they were requested.
+                byte[]  chunk = window.poll().get();
+                System.arraycopy(chunk, 0, buffer, buffer_offset + received,
+                                 chunk.length);
+                received += chunk.length;
+            }
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted during read");
+        }
+        catch(ExecutionException e)
+        {
+            Throwable   cause = e.getCause();
+
+            if(cause instanceof FileNotFoundException ||
+               cause instanceof RMIException)
+                invalidate();
+            if(cause instanceof FileNotFoundException)
+                throw new IOException("file missing on storage server", cause);
+            if(cause instanceof RMIException)
+                throw new IOException("unable to contact storage server", cause);
+            if(cause instanceof IOException)
+                throw (IOException)cause;
+            if(cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            throw new IOException("read failed on storage server", cause);
+        }
+        finally
+        {
+            for(Future<byte[]> pending : window)
+                pending.cancel(false);
+        }
+    }
+
+    /** Reads a range of the file starting at the current stream offset over
+        the storage server's bulk data channel.
+
+        <p>
+        The stream offset is not advanced by this method. If the storage server
+        has no data channel, or the channel cannot be reached, nothing is read
+        and later reads use RMI only.
+
+        @param buffer Buffer to receive the bytes read.
+        @param buffer_offset Offset into the buffer at which the bytes are to be
+                             written.
+        @param read_length Number of bytes to read. The range must lie within
+                           the file.
+        @return <code>true</code> if the bytes were read, <code>false</code>
+                if the data channel is not available.
+        @throws IOException If the storage server cannot be contacted, or if a
+                            read error occurs on the storage server.
+     */
+    private boolean readDataChannel(byte[] buffer, int buffer_offset,
+                                    int read_length) throws IOException
+    {
+        if(!data_address_known)
+        {
+            try
+            {
+                data_address = storage_server.dataAddress();
+            }
+            catch(RMIException e)
+            {
+                throw new IOException("unable to contact storage server", e);
+            }
+
+            data_address_known = true;
+        }
+
+        if(data_address == null)
+            return false;
+
+        try
+        {
+            DataChannel.read(data_address, path, offset, buffer, buffer_offset,
+                             read_length);
+            return true;
+        }
+        catch(ConnectException e)
+        {
+            data_address = null;
+            return false;
+        }
+        catch(FileNotFoundException e)
+        {
+            invalidate();
+            throw new IOException("file missing on storage server", e);
+        }
+    }
+
     /** Reads a single byte from the input stream.
 
         @return The value of the byte read, as an integer between <code>0</code>
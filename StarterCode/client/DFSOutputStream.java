@@ -2,6 +2,7 @@ package client;
 
 import java.io.*;
 import java.net.*;
+import java.util.*;
 
 import rmi.*;
 import common.*;
@@ -11,25 +12,57 @@ import storage.*;
 /** Output stream directed to a file in the distributed filesystem.
 
     <p>
-    Write calls on a <code>DFSOutputStream</code> are directed to a storage
-    server hosting the given file. Each call corresponds to one network request.
-    If this is not desirable, the <code>DFSOutputStream</code> should be wrapped
-    in a <code>BufferedOutputStream</code> object.
+    Write calls on a <code>DFSOutputStream</code> are directed to every
+    storage server hosting a replica of the given file, the primary replica
+    first. Each call corresponds to one network request per replica. If this
+    is not desirable, the <code>DFSOutputStream</code> should be wrapped in a
+    <code>BufferedOutputStream</code> object.
 
     <p>
     Creating a <code>DFSOutputStream</code> for a file does not cause the file
     to be created or truncated. The file must exist, and the existing file data
     is left in place. Writes to the stream cause file data to be overwritten,
     starting from the beginning of the file.
+
+    <p>
+    Writes of at least <code>DATA_CHANNEL_THRESHOLD</code> bytes are streamed
+    over the storage server's bulk data channel, if the server has one (see
+    <code>Storage.dataAddress</code>), directly from the caller's buffer.
+    The replicas the file has when the stream is created are written to. Each
+    write carries the version of the file each replica had then (see
+    <code>Storage.version</code>): while the naming server copies the file to
+    another storage server, and once it has, writes fail with an
+    <code>IOException</code>, and a new stream must be created to write to the
+    current replicas.
+
+    <p>
+    If the naming server is accessed through a <code>MetadataCache</code>,
+    the replicas are looked up again rather than taken from the cache, and the
+    fresh result replaces the cached one.
  */
 public class DFSOutputStream extends OutputStream
 {
+    /** Writes of at least this many bytes use the storage server's bulk data
+        channel, when it has one. */
+    public static final int DATA_CHANNEL_THRESHOLD = 4 * 1024 * 1024;
+
     /** Path to the file. */
     private final Path      path;
-    /** Storage server hosting the file. */
-    private final Storage   storage_server;
-    /** Naming server used to find the storage server hosting the file. */
+    /** Number of times the replicas are looked up when they change while
+        the stream is created. */
+    private static final int LOOKUP_ATTEMPTS = 3;
+
+    /** Storage servers hosting the replicas of the file, primary first. */
+    private final Storage[] storage_servers;
+    /** Version of the file on each storage server, passed with writes. */
+    private final long[]    versions;
+    /** Naming server used to find the storage servers hosting the file. */
     private final Service   naming_server;
+    /** Address of the bulk data channel of each storage server, or
+        <code>null</code> if it has none or it cannot be reached. */
+    private final InetSocketAddress[]   data_addresses;
+    /** Indicates that <code>data_addresses</code> have been retrieved. */
+    private boolean         data_address_known = false;
 
     /** Current write offset in the file. */
     private long            offset = 0;
@@ -53,18 +86,63 @@ public class DFSOutputStream extends OutputStream
     public DFSOutputStream(Service naming_server, Path file)
         throws FileNotFoundException, IOException
     {
-        // Retrieve a stub for the storage server hosting the file.
+        path = file;
+        this.naming_server = naming_server;
+
+        // Retrieve stubs for the storage servers hosting the replicas, and
+        // the version of the file on each. If the replicas change while the
+        // versions are read, the versions may be those given after the
+        // change, with which writes missing the new replica would be
+        // accepted, so they are read again.
+        Storage[]   replicas = replicas();
+        long[]      read;
+
+        for(int attempt = 1; ; ++attempt)
+        {
+            read = new long[replicas.length];
+
+            try
+            {
+                for(int replica = 0; replica < replicas.length; ++replica)
+                    read[replica] = replicas[replica].version(file);
+            }
+            catch(RMIException e)
+            {
+                throw new IOException("unable to contact storage server", e);
+            }
+
+            Storage[]   current = replicas();
+
+            if(Arrays.equals(current, replicas))
+                break;
+
+            if(attempt == LOOKUP_ATTEMPTS)
+                throw new IOException("replicas of the file keep changing");
+
+            replicas = current;
+        }
+
+        storage_servers = replicas;
+        versions = read;
+        data_addresses = new InetSocketAddress[storage_servers.length];
+    }
+
+    /** Looks up the storage servers hosting the replicas of the file. The
+        replicas cached by a <code>MetadataCache</code> may be out of date by
+        up to a lease, and a write missing a replica is lost, so they are not
+        taken from the cache. */
+    private Storage[] replicas() throws FileNotFoundException, IOException
+    {
+        invalidate();
+
         try
         {
-            storage_server = naming_server.getStorage(file);
+            return naming_server.getReplicas(path);
         }
         catch(RMIException e)
         {
             throw new IOException("could not contact naming server", e);
         }
-
-        path = file;
-        this.naming_server = naming_server;
     }
 
     /** Creates a <code>DFSOutputStream</code> for a file listed by the given
@@ -130,6 +208,15 @@ public class DFSOutputStream extends OutputStream
         this(NamingStubs.service(hostname), new Path(filename));
     }
 
+    /** Drops the metadata of the file cached by the naming server stub, if it
+        is a <code>MetadataCache</code>, after an error on a storage server
+        that may be due to the metadata being stale. */
+    private void invalidate()
+    {
+        if(naming_server instanceof MetadataCache)
+            ((MetadataCache)naming_server).invalidate(path);
+    }
+
     /** Closes the output stream.
 
         <p>
@@ -152,7 +239,9 @@ public class DFSOutputStream extends OutputStream
                              written.
         @param write_length Number of bytes to be written.
         @throws IOException If the stream is closed, if the storage server
-                            cannot be contacted, or if a write error occurs on
+                            cannot be contacted, if the file is being or has
+                            been copied to another storage server since the
+                            stream was created, or if a write error occurs on
                             the storage server.
         @throws NullPointerException If <code>buffer</code> is
                                      <code>null</code>.
@@ -191,6 +280,24 @@ public class DFSOutputStream extends OutputStream
         if(write_length == 0)
             return;
 
+        // Bulk writes are streamed over the data channel of each replica
+        // that has one; the others are written with RMI.
+        boolean[]   written = new boolean[storage_servers.length];
+        boolean     all_written = true;
+
+        for(int replica = 0; replica < storage_servers.length; ++replica)
+        {
+            written[replica] = write_length >= DATA_CHANNEL_THRESHOLD &&
+                writeDataChannel(replica, buffer, buffer_offset, write_length);
+            all_written &= written[replica];
+        }
+
+        if(all_written)
+        {
+            offset += write_length;
+            return;
+        }
+
         // Create the data buffer that will be sent over the network. If the
         // buffer offset is zero and all the bytes in the user-provided buffer
         // are to be written, the user-provided buffer will be serialized
@@ -209,23 +316,89 @@ public class DFSOutputStream extends OutputStream
                 data[index] = buffer[buffer_offset + index];
         }
 
-        // Send the write request to the server. If the write request succeds,
-        // advance the stream offset.
+        // Send the write request to each remaining server. If the write
+        // requests succeed, advance the stream offset.
         try
         {
-            storage_server.write(path, offset, data);
+            for(int replica = 0; replica < storage_servers.length; ++replica)
+            {
+                if(!written[replica])
+                    storage_servers[replica].write(path, offset, data,
+                                                   versions[replica]);
+            }
+
             offset += write_length;
         }
         catch(FileNotFoundException e)
         {
+            invalidate();
             throw new IOException("file missing on storage server", e);
         }
         catch(RMIException e)
         {
+            invalidate();
             throw new IOException("unable to contact storage server", e);
         }
     }
 
+    /** Writes bytes at the current stream offset over the bulk data channel
+        of the storage server hosting a replica.
+
+        <p>
+        The stream offset is not advanced by this method. If the storage server
+        has no data channel, or the channel cannot be reached, nothing is
+        written and later writes to the replica use RMI only.
+
+        @param replica Index of the replica in <code>storage_servers</code>.
+        @param buffer Buffer containing bytes to be written.
+        @param buffer_offset Offset into the buffer from which bytes are to be
+                             written.
+        @param write_length Number of bytes to be written.
+        @return <code>true</code> if the bytes were written,
+                <code>false</code> if the data channel is not available.
+        @throws IOException If the storage server cannot be contacted, or if a
+                            write error occurs on the storage server.
+     */
+    private boolean writeDataChannel(int replica, byte[] buffer,
+                                     int buffer_offset, int write_length)
+        throws IOException
+    {
+        if(!data_address_known)
+        {
+            try
+            {
+                for(int index = 0; index < storage_servers.length; ++index)
+                    data_addresses[index] = storage_servers[index].dataAddress();
+            }
+            catch(RMIException e)
+            {
+                throw new IOException("unable to contact storage server", e);
+            }
+
+            data_address_known = true;
+        }
+
+        if(data_addresses[replica] == null)
+            return false;
+
+        try
+        {
+            DataChannel.write(data_addresses[replica], path, offset, buffer,
+                              buffer_offset, write_length, versions[replica]);
+            return true;
+        }
+        catch(ConnectException e)
+        {
+            data_addresses[replica] = null;
+            return false;
+        }
+        catch(FileNotFoundException e)
+        {
+            invalidate();
+            throw new IOException("file missing on storage server", e);
+        }
+    }
+
     /** Writes a single byte to the output stream.
 
         @param b Value of the byte to be written. The argument is taken modulo
@@ -0,0 +1,535 @@
+package client;
+
+import java.io.*;
+import java.util.*;
+
+import rmi.*;
+import common.*;
+import naming.*;
+import storage.*;
+
+/** Client-side cache of naming server metadata.
+
+    <p>
+    A <code>MetadataCache</code> is a <code>Service</code> that forwards calls
+    to the naming server and keeps the results of the lookups - whether a path
+    is a directory, the listing of a directory, and the storage servers
+    hosting a file - so that repeated lookups of the same paths do not contact
+    the naming server. It may be used wherever a naming server stub is, for
+    example to create <code>DFSInputStream</code> objects.
+
+    <p>
+    Cached metadata is used under a lease granted by the naming server (see
+    <code>Service.lease</code>). When the lease runs out, the next lookup
+    renews it, and the metadata of the objects the naming server reports as
+    changed since the previous lease is dropped. Changes made by other clients
+    are therefore seen at most a lease late; changes made through the cache
+    drop the metadata they affect at once. Lookups that fail are not cached.
+
+    <p>
+    Cached storage server stubs may also be stale if a storage server fails
+    between lease renewals. <code>DFSInputStream</code> drops the cached
+    metadata of a file and looks it up again when the storage server it was
+    given fails, and <code>DFSOutputStream</code> always looks up the current
+    replicas of the file it writes.
+ */
+public class MetadataCache implements Service
+{
+    /** Default maximum number of cached paths. */
+    public static final int DEFAULT_CAPACITY = 65536;
+
+    /** Naming server whose metadata is cached. */
+    private final Service   naming_server;
+    /** Maximum number of cached paths, after which the cache is cleared. */
+    private final int       capacity;
+    /** Number of paths in the cached tree. */
+    private int             size = 0;
+    /** Cached metadata of the root directory, and through it of every cached
+        path. */
+    private Entry           root = new Entry();
+
+    /** Held by the thread renewing the lease. */
+    private final Object    renewal = new Object();
+    /** Version of the current lease, or <code>-1</code> if none has been
+        granted. */
+    private long            version = -1;
+    /** Time, as given by <code>System.nanoTime</code>, at which the current
+        lease runs out. */
+    private long            expiry;
+    /** Number of leases granted. A lookup whose result was retrieved under a
+        previous lease is not cached, since the changes reported with the
+        current lease may not have been applied to it. */
+    private long            epoch = 0;
+
+    /** Creates a cache of the metadata of the given naming server.
+
+        @param naming_server Stub for the naming server.
+     */
+    public MetadataCache(Service naming_server)
+    {
+        this(naming_server, DEFAULT_CAPACITY);
+    }
+
+    /** Creates a cache of the metadata of the given naming server.
+
+        @param naming_server Stub for the naming server.
+        @param capacity Maximum number of cached paths. The whole cache is
+                        cleared when it is exceeded.
+        @throws IllegalArgumentException If <code>capacity</code> is not
+                                         positive.
+     */
+    public MetadataCache(Service naming_server, int capacity)
+    {
+        if(naming_server == null)
+            throw new NullPointerException("naming server stub is null");
+
+        if(capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive");
+
+        this.naming_server = naming_server;
+        this.capacity = capacity;
+    }
+
+    /** Creates a cache of the metadata of a naming server.
+
+        <p>
+        The naming server is contacted on the default client interface port.
+
+        @param hostname Address of the naming server.
+     */
+    public MetadataCache(String hostname)
+    {
+        this(NamingStubs.service(hostname));
+    }
+
+    /** Drops the cached metadata of an object and of the objects below it,
+        and the listings of the directories above it.
+
+        @param path Path to the object.
+     */
+    public synchronized void invalidate(Path path)
+    {
+        Entry       entry = root;
+
+        for(String component : path)
+        {
+            entry.listing = null;
+            entry = entry.children.get(component);
+
+            if(entry == null)
+                return;
+        }
+
+        if(path.isRoot())
+        {
+            clear();
+            return;
+        }
+
+        entry.parent.children.remove(path.last());
+        size -= entry.count();
+    }
+
+    /** Drops all cached metadata. */
+    public synchronized void clear()
+    {
+        root = new Entry();
+        size = 0;
+    }
+
+    @Override
+    public boolean isDirectory(Path path)
+        throws RMIException, FileNotFoundException
+    {
+        long        renewed = renew();
+
+        synchronized(this)
+        {
+            Entry   entry = lookup(path, false);
+
+            if(entry != null && entry.directory != null)
+                return entry.directory;
+        }
+
+        boolean     directory = naming_server.isDirectory(path);
+
+        synchronized(this)
+        {
+            if(renewed == epoch)
+                lookup(path, true).directory = directory;
+        }
+
+        return directory;
+    }
+
+    @Override
+    public String[] list(Path directory)
+        throws RMIException, FileNotFoundException
+    {
+        long        renewed = renew();
+
+        synchronized(this)
+        {
+            Entry   entry = lookup(directory, false);
+
+            if(entry != null && entry.listing != null)
+                return entry.listing.clone();
+        }
+
+        String[]    listing = naming_server.list(directory);
+
+        synchronized(this)
+        {
+            if(renewed == epoch)
+            {
+                Entry   entry = lookup(directory, true);
+                entry.listing = listing.clone();
+                entry.directory = true;
+            }
+        }
+
+        return listing;
+    }
+
+    /** Lists a page of the contents of a directory. Pages are not cached. */
+    @Override
+    public String[] listPage(Path directory, String startAfter, int limit)
+        throws RMIException, FileNotFoundException
+    {
+        return naming_server.listPage(directory, startAfter, limit);
+    }
+
+    @Override
+    public Storage getStorage(Path file)
+        throws RMIException, FileNotFoundException
+    {
+        long        renewed = renew();
+
+        synchronized(this)
+        {
+            Entry   entry = lookup(file, false);
+
+            if(entry != null && entry.replicas != null)
+                return entry.replicas[0];
+            if(entry != null && entry.storage != null)
+                return entry.storage;
+        }
+
+        Storage     storage = naming_server.getStorage(file);
+
+        synchronized(this)
+        {
+            if(renewed == epoch)
+                asFile(lookup(file, true)).storage = storage;
+        }
+
+        return storage;
+    }
+
+    @Override
+    public Storage[] getReplicas(Path file)
+        throws RMIException, FileNotFoundException
+    {
+        long        renewed = renew();
+
+        synchronized(this)
+        {
+            Entry   entry = lookup(file, false);
+
+            if(entry != null && entry.replicas != null)
+                return entry.replicas.clone();
+        }
+
+        Storage[]   replicas = naming_server.getReplicas(file);
+
+        synchronized(this)
+        {
+            if(renewed == epoch)
+                asFile(lookup(file, true)).replicas = replicas.clone();
+        }
+
+        return replicas;
+    }
+
+    /** Returns stubs for the storage servers hosting several files.
+
+        <p>
+        Files whose storage server is cached are not looked up again; the
+        others are looked up in one call to the naming server. The stubs are
+        therefore not necessarily taken from the same view of the directory
+        tree.
+     */
+    @Override
+    public Storage[] getStorages(Path[] files) throws RMIException
+    {
+        long        renewed = renew();
+        Storage[]   storages = new Storage[files.length];
+        List<Path>  missing = new ArrayList<>();
+        List<Integer>   indices = new ArrayList<>();
+
+        synchronized(this)
+        {
+            for(int index = 0; index < files.length; ++index)
+            {
+                Entry   entry = lookup(files[index], false);
+
+                if(entry != null && entry.replicas != null)
+                    storages[index] = entry.replicas[0];
+                else if(entry != null && entry.storage != null)
+                    storages[index] = entry.storage;
+                else
+                {
+                    missing.add(files[index]);
+                    indices.add(index);
+                }
+            }
+        }
+
+        if(missing.isEmpty())
+            return storages;
+
+        Storage[]   found =
+            naming_server.getStorages(missing.toArray(new Path[0]));
+
+        synchronized(this)
+        {
+            for(int index = 0; index < found.length; ++index)
+            {
+                storages[indices.get(index)] = found[index];
+
+                if(found[index] != null && renewed == epoch)
+                    asFile(lookup(missing.get(index), true)).storage =
+                        found[index];
+            }
+        }
+
+        return storages;
+    }
+
+    @Override
+    public boolean createFile(Path file)
+        throws RMIException, FileNotFoundException
+    {
+        try
+        {
+            return naming_server.createFile(file);
+        }
+        finally
+        {
+            invalidate(file);
+        }
+    }
+
+    @Override
+    public boolean createDirectory(Path directory)
+        throws RMIException, FileNotFoundException
+    {
+        try
+        {
+            return naming_server.createDirectory(directory);
+        }
+        finally
+        {
+            invalidate(directory);
+        }
+    }
+
+    @Override
+    public boolean delete(Path path) throws RMIException, FileNotFoundException
+    {
+        try
+        {
+            return naming_server.delete(path);
+        }
+        finally
+        {
+            invalidate(path);
+        }
+    }
+
+    @Override
+    public void setReplication(Path path, int factor)
+        throws RMIException, FileNotFoundException
+    {
+        try
+        {
+            naming_server.setReplication(path, factor);
+        }
+        finally
+        {
+            invalidate(path);
+        }
+    }
+
+    @Override
+    public Outcome[] createFiles(Path[] files) throws RMIException
+    {
+        try
+        {
+            return naming_server.createFiles(files);
+        }
+        finally
+        {
+            invalidateAll(files);
+        }
+    }
+
+    @Override
+    public Outcome[] createDirectories(Path[] directories)
+        throws RMIException
+    {
+        try
+        {
+            return naming_server.createDirectories(directories);
+        }
+        finally
+        {
+            invalidateAll(directories);
+        }
+    }
+
+    @Override
+    public Outcome[] deletePaths(Path[] paths) throws RMIException
+    {
+        try
+        {
+            return naming_server.deletePaths(paths);
+        }
+        finally
+        {
+            invalidateAll(paths);
+        }
+    }
+
+    /** Requests a lease from the naming server. The lease is not used by the
+        cache. */
+    @Override
+    public Lease lease(long version) throws RMIException
+    {
+        return naming_server.lease(version);
+    }
+
+    /** Renews the lease on the cached metadata if it has run out, and drops
+        the metadata of the objects changed since the previous lease.
+
+        @return The number of the lease under which metadata may be cached.
+        @throws RMIException If the naming server cannot be contacted.
+     */
+    private long renew() throws RMIException
+    {
+        synchronized(renewal)
+        {
+            long    requested = System.nanoTime();
+
+            synchronized(this)
+            {
+                if(version >= 0 && requested - expiry < 0)
+                    return epoch;
+            }
+
+            Lease   lease = naming_server.lease(version);
+
+            synchronized(this)
+            {
+                if(lease.getChanged() == null)
+                    clear();
+                else
+                {
+                    for(Path path : lease.getChanged())
+                        invalidate(path);
+                }
+
+                version = lease.getVersion();
+                expiry = requested + lease.getDuration() * 1000000L;
+                return ++epoch;
+            }
+        }
+    }
+
+    /** Drops the cached metadata of several objects. */
+    private synchronized void invalidateAll(Path[] paths)
+    {
+        if(paths == null)
+            return;
+
+        for(Path path : paths)
+        {
+            if(path != null)
+                invalidate(path);
+        }
+    }
+
+    /** Returns the cached entry of a path.
+
+        @param path The path.
+        @param create If <code>true</code>, the entry and those of the
+                      directories above it are created if they are missing.
+        @return The entry, or <code>null</code> if it is missing and
+                <code>create</code> is <code>false</code>.
+     */
+    private Entry lookup(Path path, boolean create)
+    {
+        if(create && size >= capacity)
+            clear();
+
+        Entry       entry = root;
+
+        for(String component : path)
+        {
+            Entry   child = entry.children.get(component);
+
+            if(child == null)
+            {
+                if(!create)
+                    return null;
+
+                child = new Entry();
+                child.parent = entry;
+                entry.children.put(component, child);
+                ++size;
+            }
+
+            entry = child;
+        }
+
+        return entry;
+    }
+
+    /** Marks an entry as that of a file and returns it. */
+    private static Entry asFile(Entry entry)
+    {
+        entry.directory = false;
+        return entry;
+    }
+
+    /** Cached metadata of a path. Each field is <code>null</code> if it is
+        not cached. */
+    private static class Entry
+    {
+        /** Entry of the parent directory, or <code>null</code> for the
+            root. */
+        Entry                   parent;
+        /** Entries of the cached paths directly below this one. */
+        final Map<String, Entry>    children = new HashMap<>();
+        /** Whether the path is a directory. */
+        Boolean                 directory;
+        /** Listing of the directory. */
+        String[]                listing;
+        /** Storage servers hosting the replicas of the file, primary
+            first. */
+        Storage[]               replicas;
+        /** Storage server hosting the file. */
+        Storage                 storage;
+
+        /** Returns the number of entries in the subtree of this one. */
+        int count()
+        {
+            int     count = 1;
+
+            for(Entry child : children.values())
+                count += child.count();
+
+            return count;
+        }
+    }
+}
@@ -8,5 +8,10 @@
     be accessed as regular Java streams. For example, a file can be read by a
     <code>BufferedReader</code> or a <code>Scanner</code> by constructing those
     from a <code>DFSInputStream</code>.
+
+    <p>
+    Clients that look up the same paths repeatedly may access the naming
+    server through a <code>MetadataCache</code>, which keeps the results of
+    lookups under leases granted by the naming server.
  */
 package client;
@@ -0,0 +1,68 @@
+package naming;
+
+import java.util.concurrent.*;
+
+import common.*;
+import storage.Storage;
+
+/** Asynchronous view of the naming server client service interface.
+
+    <p>
+    Each method sends the corresponding call of {@link Service} and returns
+    immediately; the returned future completes with the result of the call, or
+    exceptionally with the exception that the <code>Service</code> method would
+    have thrown. This allows a client to have many metadata requests - for
+    example, <code>getStorage</code> for every file of a directory - in flight
+    at once without a thread for each.
+
+    <p>
+    Objects implementing this interface are created with
+    <code>NamingStubs.asyncService</code>, or from an existing stub with
+    <code>rmi.AsyncStub.of</code>.
+ */
+public interface AsyncService
+{
+    /** Asynchronous form of {@link Service#isDirectory(Path)}. */
+    public CompletableFuture<Boolean> isDirectory(Path path);
+
+    /** Asynchronous form of {@link Service#list(Path)}. */
+    public CompletableFuture<String[]> list(Path directory);
+
+    /** Asynchronous form of
+        {@link Service#listPage(Path, String, int)}. */
+    public CompletableFuture<String[]> listPage(Path directory,
+                                                String startAfter, int limit);
+
+    /** Asynchronous form of {@link Service#createFile(Path)}. */
+    public CompletableFuture<Boolean> createFile(Path file);
+
+    /** Asynchronous form of {@link Service#createDirectory(Path)}. */
+    public CompletableFuture<Boolean> createDirectory(Path directory);
+
+    /** Asynchronous form of {@link Service#delete(Path)}. */
+    public CompletableFuture<Boolean> delete(Path path);
+
+    /** Asynchronous form of {@link Service#getStorage(Path)}. */
+    public CompletableFuture<Storage> getStorage(Path file);
+
+    /** Asynchronous form of {@link Service#getReplicas(Path)}. */
+    public CompletableFuture<Storage[]> getReplicas(Path file);
+
+    /** Asynchronous form of {@link Service#setReplication(Path, int)}. */
+    public CompletableFuture<Void> setReplication(Path path, int factor);
+
+    /** Asynchronous form of {@link Service#createFiles(Path[])}. */
+    public CompletableFuture<Outcome[]> createFiles(Path[] files);
+
+    /** Asynchronous form of {@link Service#createDirectories(Path[])}. */
+    public CompletableFuture<Outcome[]> createDirectories(Path[] directories);
+
+    /** Asynchronous form of {@link Service#deletePaths(Path[])}. */
+    public CompletableFuture<Outcome[]> deletePaths(Path[] paths);
+
+    /** Asynchronous form of {@link Service#getStorages(Path[])}. */
+    public CompletableFuture<Storage[]> getStorages(Path[] files);
+
+    /** Asynchronous form of {@link Service#lease(long)}. */
+    public CompletableFuture<Lease> lease(long version);
+}
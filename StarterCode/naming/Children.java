@@ -0,0 +1,156 @@
+package naming;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Operations on the children of a directory, kept as an immutable map from
+ * names to nodes.
+ *
+ * <p>
+ * The map is a treap: a binary search tree ordered by name, which is also a
+ * heap ordered by a priority derived from each name's hash. Its depth is
+ * logarithmic in its size with high probability. The nodes of the map are the
+ * children themselves, linked through their <code>left</code> and
+ * <code>right</code> fields. Adding or removing a child copies only the nodes
+ * on the way to it, and leaves every earlier version of the map intact, so
+ * readers holding an old version are never disturbed.
+ *
+ * <p>
+ * A map is given by its root node; the empty map is <code>null</code>.
+ * Iteration is in order of names.
+ */
+final class Children {
+
+    /** Mixed into name hashes, so that priorities cannot be chosen by clients
+     picking names. */
+    private static final int SEED = ThreadLocalRandom.current().nextInt() | 1;
+
+    private Children() {
+    }
+
+    /** Returns the child with the given name, in UTF-8, or
+     <code>null</code>. */
+    static Directory_tree get(Directory_tree map, byte[] name) {
+        while (map != null) {
+            int order = map.compareName(name);
+            if (order == 0)
+                return map;
+            map = order > 0 ? map.left : map.right;
+        }
+        return null;
+    }
+
+    /** Returns a map with <code>child</code> added, replacing any child of the
+     same name. The links of <code>child</code> are ignored. */
+    static Directory_tree put(Directory_tree map, Directory_tree child) {
+        if (map == null)
+            return child.link(null, null);
+
+        int order = map.compareName(child.nameBytes());
+        if (order == 0)
+            return child.link(map.left, map.right);
+
+        if (order > 0) {
+            Directory_tree left = put(map.left, child);
+            if (priority(left) > priority(map))
+                return left.link(left.left, map.link(left.right, map.right));
+            return map.link(left, map.right);
+        }
+
+        Directory_tree right = put(map.right, child);
+        if (priority(right) > priority(map))
+            return right.link(map.link(map.left, right.left), right.right);
+        return map.link(map.left, right);
+    }
+
+    /** Returns a map without the child of the given name, in UTF-8. */
+    static Directory_tree remove(Directory_tree map, byte[] name) {
+        if (map == null)
+            return null;
+
+        int order = map.compareName(name);
+        if (order == 0)
+            return merge(map.left, map.right);
+        if (order > 0) {
+            Directory_tree left = remove(map.left, name);
+            return left == map.left ? map : map.link(left, map.right);
+        }
+        Directory_tree right = remove(map.right, name);
+        return right == map.right ? map : map.link(map.left, right);
+    }
+
+    /** Joins two maps, all names of <code>a</code> preceding those of
+     <code>b</code>. */
+    private static Directory_tree merge(Directory_tree a, Directory_tree b) {
+        if (a == null)
+            return b;
+        if (b == null)
+            return a;
+        if (priority(a) > priority(b))
+            return a.link(a.left, merge(a.right, b));
+        return b.link(merge(a, b.left), b.right);
+    }
+
+    private static int priority(Directory_tree node) {
+        int hash = node.nameHash() * SEED;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Returns the children of a map in order of names, starting after a given
+     * name.
+     *
+     * @param map The map.
+     * @param after Name, in UTF-8, that the children returned follow; it need
+     *              not be in the map. If <code>null</code>, all children are
+     *              returned.
+     */
+    static Iterable<Directory_tree> values(Directory_tree map, byte[] after) {
+        return () -> new Iterator<Directory_tree>() {
+            private final ArrayDeque<Directory_tree> path = start(map, after);
+
+            @Override
+            public boolean hasNext() {
+                return !path.isEmpty();
+            }
+
+            @Override
+            public Directory_tree next() {
+                if (path.isEmpty())
+                    throw new NoSuchElementException();
+                Directory_tree next = path.pop();
+                descend(path, next.right);
+                return next;
+            }
+        };
+    }
+
+    /** Returns the nodes from which an in-order walk of the names following
+     <code>after</code> resumes: the nodes on the way to <code>after</code>
+     whose names follow it. */
+    private static ArrayDeque<Directory_tree> start(Directory_tree map, byte[] after) {
+        ArrayDeque<Directory_tree> path = new ArrayDeque<>();
+        if (after == null)
+            return descend(path, map);
+
+        while (map != null) {
+            if (map.compareName(after) > 0) {
+                path.push(map);
+                map = map.left;
+            } else {
+                map = map.right;
+            }
+        }
+        return path;
+    }
+
+    /** Pushes the leftmost path of a map. */
+    private static ArrayDeque<Directory_tree> descend(ArrayDeque<Directory_tree> path, Directory_tree map) {
+        for (; map != null; map = map.left)
+            path.push(map);
+        return path;
+    }
+}
@@ -2,64 +2,342 @@ package naming;
 
 import common.Path;
 
-import storage.Command;
-import storage.Storage;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.UnaryOperator;
 
+/**
+ * A node of the naming server's directory tree.
+ *
+ * <p>
+ * There is one node per path component. A directory node holds the children
+ * of the directory, in a map ordered by name; a file node holds the identifier
+ * of the storage server hosting the file. Looking a path up therefore costs
+ * one map access per component, and listing a directory costs one step per
+ * child, whatever the size of the rest of the tree.
+ *
+ * <p>
+ * Nodes are immutable. A change to the tree creates new versions of the nodes
+ * from the root down to the changed node and shares every other node with the
+ * previous version, so a published tree can be read without locks. Writers
+ * coordinate through the read/write locks of directories, taken through
+ * <code>PathLock</code>; a directory's lock is carried over to each of its
+ * versions.
+ *
+ * <p>
+ * Nodes are laid out to keep large namespaces small. A node is also the entry
+ * of its parent's map of children (see <code>Children</code>), so a file with a
+ * single replica costs a single object besides its name; only replicated files
+ * carry an array of servers. Names are kept as UTF-8 bytes, which are
+ * shared by all versions of a node, and servers are referred to by the small
+ * integer identifiers that the naming server also uses in its journal, rather
+ * than by stubs.
+ */
+abstract class Directory_tree {
 
-class Node {
+    /** Name, in UTF-8. */
+    private final byte[] name;
+    /** Links of the node in its parent's map of children. */
+    final Directory_tree left;
+    final Directory_tree right;
+    /** Number of nodes in the part of the map rooted at this node. */
+    final int weight;
 
-    Path p;
-    String filename;
-    boolean directory;
+    private Directory_tree(byte[] name, Directory_tree left, Directory_tree right) {
+        this.name = name;
+        this.left = left;
+        this.right = right;
+        this.weight = 1 + weight(left) + weight(right);
+    }
 
-    public Node(Path p, String filename) {
-        this.p = p;
-        this.filename = filename;
-        this.directory = false;
+    static int weight(Directory_tree node) {
+        return node == null ? 0 : node.weight;
     }
 
-    public Path getP() {
-        return p;
+    /** Creates the root directory of an empty tree. */
+    static Directory_tree root() {
+        return directory("");
     }
 
-    public String getFilename() {
-        return filename;
+    /** Creates an empty directory node. */
+    static Directory_tree directory(String name) {
+        return new DirectoryNode(encode(name), null, null, null, new ReentrantReadWriteLock());
     }
 
-    public boolean isDirectory() {
-        return directory;
+    /** Creates a file node. */
+    static Directory_tree file(String name, int server) {
+        return new FileNode(encode(name), null, null, server);
     }
 
-    public void setDirectory(boolean directory) {
-        this.directory = directory;
+    /** Creates a file node with the given replicas, the first of which is the
+     primary. There must be at least one. */
+    static Directory_tree file(String name, int[] servers) {
+        if (servers.length == 1)
+            return file(name, servers[0]);
+        return new ReplicatedFileNode(encode(name), null, null, servers.clone());
+    }
+
+    static byte[] encode(String name) {
+        return name.getBytes(StandardCharsets.UTF_8);
+    }
+
+    String getName() {
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    byte[] nameBytes() {
+        return name;
+    }
+
+    int nameHash() {
+        return Arrays.hashCode(name);
+    }
+
+    /** Compares the name of this node with a name in UTF-8. Names are ordered
+     by code points. */
+    int compareName(byte[] other) {
+        return Arrays.compareUnsigned(name, other);
+    }
+
+    /** Returns the lock of a directory node, or <code>null</code> for a
+     file. */
+    abstract ReentrantReadWriteLock lock();
+
+    boolean isDirectory() {
+        return lock() != null;
     }
-}
-public class Directory_tree extends Node{
 
-    private Command commandStub;
-    private Storage storageStub;
+    /** Returns the identifier of the storage server hosting a file, or of
+     its primary replica, or -1 for a directory. */
+    abstract int server();
 
-    public Command getCommandStub() {
-        return commandStub;
+    /** Returns the identifiers of the storage servers hosting the replicas of
+     a file, primary first, or an empty array for a directory. */
+    abstract int[] servers();
+
+    /** Returns <code>true</code> if this node is a file with a replica on the
+     given server. */
+    boolean hostedBy(int server) {
+        for (int replica : servers()) {
+            if (replica == server)
+                return true;
+        }
+        return false;
     }
 
-    public Storage getStorageStub() {
-        return storageStub;
+    /** Returns the root of a directory's map of children, or
+     <code>null</code> if there are none or the node is a file. */
+    abstract Directory_tree childMap();
+
+    /** Returns a version of this node with the given links in its parent's
+     map. */
+    abstract Directory_tree link(Directory_tree left, Directory_tree right);
+
+    /** Returns the child with the given name, or <code>null</code> if there is
+     none or this node is a file. */
+    Directory_tree child(String component) {
+        return Children.get(childMap(), encode(component));
     }
 
-    public Directory_tree(){
-        super(new Path(),"/");
-        this.directory = false;
+    /** Returns the number of children of a directory node. */
+    int size() {
+        return weight(childMap());
     }
-    public Directory_tree(Path p,String component,Command c,Storage s,boolean d) {
-        super(p,component);
-        this.commandStub = c;
-        this.storageStub = s;
-        directory = d;
+
+    /** Returns the children of a directory node, in order of names. */
+    Iterable<Directory_tree> children() {
+        return Children.values(childMap(), null);
     }
 
+    /** Returns the children of a directory node whose names follow the given
+     name, or all children if the name is <code>null</code>, in order of
+     names. */
+    Iterable<Directory_tree> childrenAfter(String component) {
+        return Children.values(childMap(), component == null ? null : encode(component));
+    }
 
+    /** Returns a version of this directory node with the given child added,
+     replacing any child of the same name. */
+    Directory_tree withChild(Directory_tree child) {
+        return withChildren(Children.put(childMap(), child));
+    }
 
+    /** Returns a version of this directory node without the named child. */
+    Directory_tree withoutChild(String component) {
+        return withChildren(Children.remove(childMap(), encode(component)));
+    }
 
+    private Directory_tree withChildren(Directory_tree children) {
+        return new DirectoryNode(name, left, right, children, lock());
+    }
 
+    /**
+     * Returns a version of this tree in which the node at the given path is
+     * replaced by a new version. Only the nodes on the path are copied.
+     *
+     * @param path Components of the path, relative to this node. The path
+     *             must exist.
+     * @param change Computes the new version of the node at the path.
+     */
+    Directory_tree update(List<String> path, UnaryOperator<Directory_tree> change) {
+        return update(path, 0, change);
+    }
+
+    private Directory_tree update(List<String> path, int index, UnaryOperator<Directory_tree> change) {
+        if (index == path.size())
+            return change.apply(this);
+        return withChild(child(path.get(index)).update(path, index + 1, change));
+    }
+
+    /**
+     * Finds the node of a path below this node.
+     *
+     * @param path The path, relative to this node.
+     * @return The node, or <code>null</code> if the path does not exist.
+     */
+    Directory_tree lookup(Path path) {
+        Directory_tree node = this;
+        for (String component : path) {
+            if (component.isEmpty())
+                continue;
+            node = node.child(component);
+            if (node == null)
+                return null;
+        }
+        return node;
+    }
+
+    /** Finds the node of a path given by its components, or returns
+     <code>null</code> if the path does not exist. */
+    Directory_tree lookup(List<String> path) {
+        Directory_tree node = this;
+        for (int i = 0; i < path.size() && node != null; i++)
+            node = node.child(path.get(i));
+        return node;
+    }
+
+    /** Adds the identifiers of the storage servers hosting the files of this
+     subtree to <code>servers</code>. */
+    void collectServers(Set<Integer> servers) {
+        if (!isDirectory()) {
+            for (int replica : servers())
+                servers.add(replica);
+            return;
+        }
+        for (Directory_tree child : children())
+            child.collectServers(servers);
+    }
+
+    private static final class FileNode extends Directory_tree {
+
+        private final int server;
+
+        FileNode(byte[] name, Directory_tree left, Directory_tree right, int server) {
+            super(name, left, right);
+            this.server = server;
+        }
+
+        @Override
+        ReentrantReadWriteLock lock() {
+            return null;
+        }
+
+        @Override
+        int server() {
+            return server;
+        }
+
+        @Override
+        int[] servers() {
+            return new int[]{server};
+        }
+
+        @Override
+        Directory_tree childMap() {
+            return null;
+        }
+
+        @Override
+        Directory_tree link(Directory_tree left, Directory_tree right) {
+            return new FileNode(nameBytes(), left, right, server);
+        }
+    }
+
+    private static final class ReplicatedFileNode extends Directory_tree {
+
+        /** Never modified, and shared by all versions of the node. */
+        private final int[] servers;
+
+        ReplicatedFileNode(byte[] name, Directory_tree left, Directory_tree right, int[] servers) {
+            super(name, left, right);
+            this.servers = servers;
+        }
+
+        @Override
+        ReentrantReadWriteLock lock() {
+            return null;
+        }
+
+        @Override
+        int server() {
+            return servers[0];
+        }
+
+        @Override
+        int[] servers() {
+            return servers.clone();
+        }
+
+        @Override
+        Directory_tree childMap() {
+            return null;
+        }
+
+        @Override
+        Directory_tree link(Directory_tree left, Directory_tree right) {
+            return new ReplicatedFileNode(nameBytes(), left, right, servers);
+        }
+    }
+
+    private static final class DirectoryNode extends Directory_tree {
+
+        private final Directory_tree children;
+        /** Shared by all versions of the directory. */
+        private final ReentrantReadWriteLock lock;
+
+        DirectoryNode(byte[] name, Directory_tree left, Directory_tree right,
+                      Directory_tree children, ReentrantReadWriteLock lock) {
+            super(name, left, right);
+            this.children = children;
+            this.lock = lock;
+        }
+
+        @Override
+        ReentrantReadWriteLock lock() {
+            return lock;
+        }
+
+        @Override
+        int server() {
+            return -1;
+        }
+
+        @Override
+        int[] servers() {
+            return new int[0];
+        }
+
+        @Override
+        Directory_tree childMap() {
+            return children;
+        }
+
+        @Override
+        Directory_tree link(Directory_tree left, Directory_tree right) {
+            return new DirectoryNode(nameBytes(), left, right, children, lock);
+        }
+    }
 }
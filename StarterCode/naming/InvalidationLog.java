@@ -0,0 +1,53 @@
+package naming;
+
+import common.Path;
+
+import java.util.Collection;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Bounded log of the paths of the latest changes to the namespace, from which
+ * the naming server grants leases.
+ *
+ * <p>
+ * Each change recorded raises the version by one. The log keeps the paths of
+ * the last <code>capacity</code> changes in a ring; a client whose version is
+ * older than that must drop everything it has cached. Versions start at a
+ * random number, so that versions given by a previous instance of the naming
+ * server are not taken for its own.
+ */
+final class InvalidationLog {
+
+    private final Path[] ring;
+    private long version = ThreadLocalRandom.current().nextLong(1L << 62);
+
+    InvalidationLog(int capacity) {
+        ring = new Path[capacity];
+    }
+
+    synchronized void record(Path path) {
+        ring[(int) (version++ % ring.length)] = path;
+    }
+
+    synchronized void record(Collection<Path> paths) {
+        for (Path path : paths)
+            record(path);
+    }
+
+    /**
+     * Returns a lease listing the paths changed after a version.
+     *
+     * @param since The version of the client's cache, or a negative number if
+     *              it has none.
+     * @param duration Duration of the lease, in milliseconds.
+     */
+    synchronized Lease since(long since, long duration) {
+        if (since < 0 || since > version || version - since > ring.length)
+            return new Lease(version, since < 0 ? new Path[0] : null, duration);
+
+        Path[] changed = new Path[(int) (version - since)];
+        for (int i = 0; i < changed.length; i++)
+            changed[i] = ring[(int) ((since + i) % ring.length)];
+        return new Lease(version, changed, duration);
+    }
+}
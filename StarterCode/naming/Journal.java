@@ -0,0 +1,804 @@
+package naming;
+
+import common.Path;
+
+import storage.Command;
+import storage.Storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of the naming server's namespace, with checkpoint
+ * images.
+ *
+ * <p>
+ * The journal directory holds numbered <em>generations</em>. The image of
+ * generation <i>n</i>, <code>image.</code><i>n</i>, is a snapshot of the
+ * namespace and of the table of storage servers; the edits file of generation
+ * <i>n</i>, <code>edits.</code><i>n</i>, records every change made after that
+ * snapshot was taken. Both also cover the replication factors set on paths,
+ * the names of storage servers, and the tombstones of paths deleted while
+ * their servers could not delete them. On startup, the latest image is loaded and
+ * the edits of its generation and of any later ones are replayed, so recovery
+ * takes time proportional to the image and to the edits since the last
+ * checkpoint.
+ *
+ * <p>
+ * The edits of each change are appended to an in-memory buffer before the
+ * change is applied to the tree. The writer then waits, with
+ * <code>sync</code>, for its edits to reach the disk. The first waiting writer
+ * writes and forces everything buffered so far, while the writers arriving in
+ * the meantime wait for the next batch, so a single <code>force</code> makes
+ * the changes of many writers durable.
+ * Edits are appended in an order consistent with the path locks, so a change
+ * is never durable before a change it depends on.
+ *
+ * <p>
+ * After <code>CHECKPOINT_EDITS</code> edits, a background thread starts a new
+ * generation and writes the image of the namespace at that point. Writers are
+ * held off only while the generation is switched; the image is written from an
+ * immutable version of the tree. Files of older generations are deleted once
+ * the image is on disk.
+ *
+ * <p>
+ * Every edit is framed by its length and CRC. Replay of an edits file stops
+ * at the first incomplete or damaged edit, which can only be the last one
+ * written before a crash.
+ */
+class Journal {
+
+    static final byte SERVER = 1;
+    static final byte FILE = 2;
+    static final byte DIRECTORY = 3;
+    static final byte DELETE = 4;
+    static final byte REPLICAS = 5;
+    static final byte REPLICATION = 6;
+    static final byte NAME = 7;
+    static final byte TOMBSTONE = 8;
+    static final byte CLEARED = 9;
+
+    /** Number of edits after which a checkpoint is taken. */
+    static final int CHECKPOINT_EDITS = 100000;
+
+    private static final int IMAGE_MAGIC = 0x4e534934;
+    /** Set, in an image, in the value following the name of a replicated
+     file; the rest of the value is then the number of replicas, whose
+     servers follow. */
+    private static final int REPLICATED = 1 << 30;
+    private static final String IMAGE = "image.";
+    private static final String EDITS = "edits.";
+
+    /** Receives the contents of the journal during recovery. */
+    interface Replay {
+        /** Restores a storage server under its identifier, replacing the stubs
+         of any server restored under it before. */
+        void server(int id, Storage storage, Command command);
+
+        /** Restores the name of a storage server. */
+        void name(int id, String name);
+
+        /** Restores the tree of a checkpoint image. */
+        void tree(Directory_tree root);
+
+        /** Replays the addition of a file, with its missing parents, or a
+         change of the servers hosting its replicas. */
+        void file(Path file, int[] servers);
+
+        /** Replays the setting of the replication factor of a file or
+         subtree. */
+        void replication(Path path, int factor);
+
+        /** Replays the addition of a directory, with its missing parents. */
+        void directory(Path directory);
+
+        /** Replays the deletion of a file or directory. */
+        void delete(Path path);
+
+        /** Replays the recording of a path that a storage server must delete
+         when it is next heard from. */
+        void tombstone(int id, Path path);
+
+        /** Replays the removal of a tombstone. */
+        void cleared(int id, Path path);
+    }
+
+    /** A consistent view of the namespace, to be written as an image. */
+    static final class Snapshot {
+        final Directory_tree root;
+        /** Registered servers, indexed by identifier. */
+        final List<Storage> storage;
+        final List<Command> commands;
+        /** Replication factors set on paths. */
+        final Map<Path, Integer> replication;
+        /** Names of the servers, or <code>null</code> for servers without
+         one. */
+        final List<String> names;
+        /** Tombstones, by server identifier. */
+        final Map<Integer, Set<Path>> tombstones;
+
+        Snapshot(Directory_tree root, List<Storage> storage, List<Command> commands,
+                 Map<Path, Integer> replication, List<String> names,
+                 Map<Integer, Set<Path>> tombstones) {
+            this.root = root;
+            this.storage = storage;
+            this.commands = commands;
+            this.replication = replication;
+            this.names = names;
+            this.tombstones = tombstones;
+        }
+    }
+
+    /**
+     * Edits describing one change, in journal format.
+     */
+    static final class Edits {
+        /** Edits that record nothing, for a naming server without a
+         journal. */
+        static final Edits NONE = new Edits(false);
+
+        private final boolean recording;
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(record);
+        private int count;
+
+        Edits() {
+            this(true);
+        }
+
+        private Edits(boolean recording) {
+            this.recording = recording;
+        }
+
+        Edits server(int id, Storage storage, Command command) {
+            if (!recording)
+                return this;
+            try {
+                out.writeByte(SERVER);
+                out.writeInt(id);
+                writeStubs(out, storage, command);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return end();
+        }
+
+        Edits file(Path file, int server) {
+            if (!recording)
+                return this;
+            try {
+                out.writeByte(FILE);
+                out.writeUTF(file.toString());
+                out.writeInt(server);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return end();
+        }
+
+        Edits file(Path file, int[] servers) {
+            if (servers.length == 1)
+                return file(file, servers[0]);
+            if (!recording)
+                return this;
+            try {
+                out.writeByte(REPLICAS);
+                out.writeUTF(file.toString());
+                out.writeInt(servers.length);
+                for (int server : servers)
+                    out.writeInt(server);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return end();
+        }
+
+        Edits replication(Path path, int factor) {
+            if (!recording)
+                return this;
+            try {
+                out.writeByte(REPLICATION);
+                out.writeUTF(path.toString());
+                out.writeInt(factor);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return end();
+        }
+
+        Edits name(int id, String name) {
+            if (!recording)
+                return this;
+            try {
+                out.writeByte(NAME);
+                out.writeInt(id);
+                out.writeUTF(name);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return end();
+        }
+
+        Edits tombstone(int id, Path path) {
+            return server(TOMBSTONE, id, path);
+        }
+
+        Edits cleared(int id, Path path) {
+            return server(CLEARED, id, path);
+        }
+
+        Edits directory(Path directory) {
+            return path(DIRECTORY, directory);
+        }
+
+        Edits delete(Path path) {
+            return path(DELETE, path);
+        }
+
+        private Edits path(byte type, Path path) {
+            if (!recording)
+                return this;
+            try {
+                out.writeByte(type);
+                out.writeUTF(path.toString());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return end();
+        }
+
+        private Edits server(byte type, int id, Path path) {
+            if (!recording)
+                return this;
+            try {
+                out.writeByte(type);
+                out.writeInt(id);
+                out.writeUTF(path.toString());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return end();
+        }
+
+        /** Frames the record just written. */
+        private Edits end() {
+            byte[] payload = record.toByteArray();
+            record.reset();
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+
+            ByteBuffer header = ByteBuffer.allocate(8);
+            header.putInt(payload.length).putInt((int) crc.getValue());
+            bytes.write(header.array(), 0, 8);
+            bytes.write(payload, 0, payload.length);
+            count++;
+            return this;
+        }
+    }
+
+    private final File directory;
+    private final Supplier<Snapshot> snapshots;
+    /** Held shared while a change is applied and logged, and exclusively while
+     the generation is switched, so that an image and the following edits
+     exactly complement each other. */
+    private final ReentrantReadWriteLock generationLock = new ReentrantReadWriteLock();
+
+    // The following fields are guarded by the journal object itself.
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long appended;
+    private long durable;
+    private boolean flushing;
+    private IOException failure;
+    private FileChannel edits;
+    private long generation;
+    private int editsSinceCheckpoint;
+    private Thread checkpointer;
+
+    /**
+     * Opens the journal in a directory, creating the directory if necessary.
+     * <code>recover</code> must be called before any change is logged.
+     *
+     * @param directory The journal directory.
+     * @param snapshots Supplies a consistent view of the namespace for
+     *                  checkpoints. It is called with writers held off.
+     * @throws IOException If the directory cannot be created.
+     */
+    Journal(File directory, Supplier<Snapshot> snapshots) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create journal directory " + directory);
+        this.directory = directory;
+        this.snapshots = snapshots;
+    }
+
+    /**
+     * Replays the latest image and the edits that follow it, then starts a new
+     * generation of edits.
+     *
+     * @param replay Receives the recovered namespace.
+     * @return The number of edits replayed.
+     * @throws IOException If the image cannot be read, or the new edits file
+     *                     cannot be created.
+     */
+    synchronized long recover(Replay replay) throws IOException {
+        TreeMap<Long, File> images = generations(IMAGE);
+        TreeMap<Long, File> editFiles = generations(EDITS);
+
+        long first = 0;
+        if (!images.isEmpty()) {
+            first = images.lastKey();
+            readImage(images.lastEntry().getValue(), replay);
+        }
+
+        long replayed = 0;
+        long last = first;
+        for (Map.Entry<Long, File> entry : editFiles.tailMap(first, true).entrySet()) {
+            replayed += readEdits(entry.getValue(), replay);
+            last = entry.getKey();
+        }
+        if (!editFiles.isEmpty())
+            last = Math.max(last, editFiles.lastKey());
+
+        generation = editFiles.isEmpty() && images.isEmpty() ? 0 : last + 1;
+        edits = open(generation);
+        editsSinceCheckpoint = (int) Math.min(replayed, Integer.MAX_VALUE);
+        return replayed;
+    }
+
+    /**
+     * Appends the edits of a change to the journal, then applies the change.
+     * The edits are not durable until <code>sync</code> returns for the
+     * sequence number returned.
+     *
+     * <p>
+     * The change must not fail: its edits are in the journal already.
+     *
+     * @param edits Edits describing the change.
+     * @param change Applies the change to the namespace.
+     * @return Sequence number of the edits.
+     * @throws UncheckedIOException If the journal has failed or is closed.
+     */
+    long log(Edits edits, Runnable change) {
+        generationLock.readLock().lock();
+        try {
+            long sequence;
+            synchronized (this) {
+                if (failure != null)
+                    throw new UncheckedIOException("Edit journal failed", failure);
+
+                if (edits.count > 0) {
+                    edits.bytes.writeTo(pending);
+                    appended++;
+                    editsSinceCheckpoint += edits.count;
+                    if (editsSinceCheckpoint >= CHECKPOINT_EDITS && checkpointer == null) {
+                        checkpointer = new Thread(this::checkpoint, "naming-checkpoint");
+                        checkpointer.setDaemon(true);
+                        checkpointer.start();
+                    }
+                }
+                sequence = appended;
+            }
+
+            change.run();
+            return sequence;
+        } catch (IOException e) {
+            // writing to a ByteArrayOutputStream
+            throw new UncheckedIOException(e);
+        } finally {
+            generationLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Waits until the edits with the given sequence number, and all earlier
+     * edits, are on disk.
+     *
+     * @throws IOException If the edits cannot be written. The journal then
+     *                     refuses further changes.
+     */
+    void sync(long sequence) throws IOException {
+        byte[] batch;
+        long last;
+        FileChannel channel;
+
+        synchronized (this) {
+            while (true) {
+                if (failure != null)
+                    throw new IOException("Edit journal failed", failure);
+                if (durable >= sequence)
+                    return;
+                if (!flushing)
+                    break;
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for the edit journal");
+                }
+            }
+
+            flushing = true;
+            batch = pending.toByteArray();
+            pending.reset();
+            last = appended;
+            channel = edits;
+        }
+
+        IOException error = null;
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(batch);
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            channel.force(false);
+        } catch (IOException e) {
+            error = e;
+        }
+
+        synchronized (this) {
+            flushing = false;
+            if (error == null)
+                durable = last;
+            else if (failure == null)
+                failure = error;
+            notifyAll();
+        }
+        if (error != null)
+            throw error;
+    }
+
+    /** Writes the buffered edits and closes the journal. Changes logged
+     afterwards are rejected. */
+    void close() {
+        Thread running;
+        synchronized (this) {
+            if (failure == null)
+                failure = new IOException("Edit journal closed");
+            running = checkpointer;
+        }
+        if (running != null) {
+            try {
+                running.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        flush();
+        synchronized (this) {
+            try {
+                if (edits != null)
+                    edits.close();
+            } catch (IOException ignored) { }
+        }
+    }
+
+    /** Writes and forces every buffered edit, unless the journal has failed.
+     Used when no more edits can be appended. */
+    private void flush() {
+        byte[] batch;
+        synchronized (this) {
+            while (flushing) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            flushing = true;
+            batch = pending.toByteArray();
+            pending.reset();
+        }
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(batch);
+            while (buffer.hasRemaining())
+                edits.write(buffer);
+            edits.force(false);
+        } catch (IOException ignored) {
+            // nobody is left to report to: writers still waiting for these
+            // edits have been told that the journal is closed
+        } finally {
+            synchronized (this) {
+                flushing = false;
+                notifyAll();
+            }
+        }
+    }
+
+    private synchronized long appendedSequence() {
+        return appended;
+    }
+
+    /** Starts a new generation and writes its image. Runs on the checkpoint
+     thread. */
+    private void checkpoint() {
+        try {
+            Snapshot snapshot;
+            long image;
+
+            generationLock.writeLock().lock();
+            try {
+                sync(appendedSequence());
+                snapshot = snapshots.get();
+                synchronized (this) {
+                    edits.close();
+                    image = ++generation;
+                    edits = open(image);
+                    editsSinceCheckpoint = 0;
+                }
+            } finally {
+                generationLock.writeLock().unlock();
+            }
+
+            writeImage(image, snapshot);
+            for (File file : generations(IMAGE).headMap(image).values())
+                delete(file);
+            for (File file : generations(EDITS).headMap(image).values())
+                delete(file);
+        } catch (IOException e) {
+            synchronized (this) {
+                if (failure == null)
+                    failure = e;
+            }
+        } finally {
+            synchronized (this) {
+                checkpointer = null;
+            }
+        }
+    }
+
+    private void writeImage(long image, Snapshot snapshot) throws IOException {
+        File temporary = new File(directory, IMAGE + image + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temporary)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024));
+            out.writeInt(IMAGE_MAGIC);
+            out.writeInt(snapshot.commands.size());
+            for (int id = 0; id < snapshot.commands.size(); id++)
+                writeStubs(out, snapshot.storage.get(id), snapshot.commands.get(id));
+            writeNode(out, snapshot.root);
+            out.writeInt(snapshot.replication.size());
+            for (Map.Entry<Path, Integer> entry : snapshot.replication.entrySet()) {
+                out.writeUTF(entry.getKey().toString());
+                out.writeInt(entry.getValue());
+            }
+            for (int id = 0; id < snapshot.names.size(); id++) {
+                String name = snapshot.names.get(id);
+                out.writeBoolean(name != null);
+                if (name != null)
+                    out.writeUTF(name);
+            }
+            int tombstones = 0;
+            for (Set<Path> paths : snapshot.tombstones.values())
+                tombstones += paths.size();
+            out.writeInt(tombstones);
+            for (Map.Entry<Integer, Set<Path>> entry : snapshot.tombstones.entrySet()) {
+                for (Path path : entry.getValue()) {
+                    out.writeInt(entry.getKey());
+                    out.writeUTF(path.toString());
+                }
+            }
+            out.flush();
+            file.getChannel().force(true);
+        }
+
+        java.nio.file.Files.move(temporary.toPath(), new File(directory, IMAGE + image).toPath(),
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Writes a subtree in depth-first order: a directory's name and number of
+     children, followed by its children, or a file's name and server, or
+     number of replicas followed by their servers. */
+    private static void writeNode(DataOutputStream out, Directory_tree node) throws IOException {
+        out.writeUTF(node.getName());
+        if (!node.isDirectory()) {
+            int[] servers = node.servers();
+            if (servers.length == 1) {
+                out.writeInt(servers[0]);
+                return;
+            }
+            out.writeInt(REPLICATED | servers.length);
+            for (int server : servers)
+                out.writeInt(server);
+            return;
+        }
+
+        out.writeInt(-1 - node.size());
+        for (Directory_tree child : node.children())
+            writeNode(out, child);
+    }
+
+    private void readImage(File image, Replay replay) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(image), 64 * 1024))) {
+            if (in.readInt() != IMAGE_MAGIC)
+                throw new StreamCorruptedException("Not a namespace image: " + image);
+
+            int servers = in.readInt();
+            for (int id = 0; id < servers; id++) {
+                Object[] stubs = readStubs(in);
+                replay.server(id, (Storage) stubs[0], (Command) stubs[1]);
+            }
+
+            replay.tree(readNode(in));
+            for (int count = in.readInt(); count > 0; count--)
+                replay.replication(new Path(in.readUTF()), in.readInt());
+            for (int id = 0; id < servers; id++) {
+                if (in.readBoolean())
+                    replay.name(id, in.readUTF());
+            }
+            for (int count = in.readInt(); count > 0; count--)
+                replay.tombstone(in.readInt(), new Path(in.readUTF()));
+        }
+    }
+
+    private static Directory_tree readNode(DataInputStream in) throws IOException {
+        String name = in.readUTF();
+        int value = in.readInt();
+        if (value >= 0 && (value & REPLICATED) == 0)
+            return Directory_tree.file(name, value);
+        if (value >= 0)
+            return Directory_tree.file(name, readServers(in, value & ~REPLICATED));
+
+        Directory_tree directory = Directory_tree.directory(name);
+        for (int count = -1 - value; count > 0; count--)
+            directory = directory.withChild(readNode(in));
+        return directory;
+    }
+
+    private static int[] readServers(DataInputStream in, int count) throws IOException {
+        if (count < 1)
+            throw new StreamCorruptedException("File without replicas in journal");
+        int[] servers = new int[count];
+        for (int i = 0; i < count; i++)
+            servers[i] = in.readInt();
+        return servers;
+    }
+
+    /** Replays the valid edits of a file and returns their number. */
+    private static long readEdits(File file, Replay replay) throws IOException {
+        long count = 0;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+            while (true) {
+                byte[] payload;
+                try {
+                    int length = in.readInt();
+                    int checksum = in.readInt();
+                    if (length < 1)
+                        break;
+                    payload = new byte[length];
+                    in.readFully(payload);
+
+                    CRC32 crc = new CRC32();
+                    crc.update(payload);
+                    if ((int) crc.getValue() != checksum)
+                        break;
+                } catch (EOFException e) {
+                    break;
+                }
+
+                DataInputStream edit = new DataInputStream(new ByteArrayInputStream(payload));
+                byte type = edit.readByte();
+                switch (type) {
+                    case SERVER:
+                        int id = edit.readInt();
+                        Object[] stubs = readStubs(edit);
+                        replay.server(id, (Storage) stubs[0], (Command) stubs[1]);
+                        break;
+                    case FILE:
+                        Path path = new Path(edit.readUTF());
+                        replay.file(path, new int[]{edit.readInt()});
+                        break;
+                    case REPLICAS:
+                        Path replicated = new Path(edit.readUTF());
+                        replay.file(replicated, readServers(edit, edit.readInt()));
+                        break;
+                    case REPLICATION:
+                        Path subtree = new Path(edit.readUTF());
+                        replay.replication(subtree, edit.readInt());
+                        break;
+                    case NAME:
+                        int named = edit.readInt();
+                        replay.name(named, edit.readUTF());
+                        break;
+                    case DIRECTORY:
+                        replay.directory(new Path(edit.readUTF()));
+                        break;
+                    case DELETE:
+                        replay.delete(new Path(edit.readUTF()));
+                        break;
+                    case TOMBSTONE:
+                        int tombstoned = edit.readInt();
+                        replay.tombstone(tombstoned, new Path(edit.readUTF()));
+                        break;
+                    case CLEARED:
+                        int cleared = edit.readInt();
+                        replay.cleared(cleared, new Path(edit.readUTF()));
+                        break;
+                    default:
+                        throw new StreamCorruptedException("Unknown edit type " + type + " in " + file);
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void writeStubs(DataOutputStream out, Storage storage, Command command)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream objects = new ObjectOutputStream(bytes)) {
+            objects.writeObject(storage);
+            objects.writeObject(command);
+        }
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+    }
+
+    private static Object[] readStubs(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        try (ObjectInputStream objects = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return new Object[]{objects.readObject(), objects.readObject()};
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new StreamCorruptedException("Invalid storage server stubs: " + e);
+        }
+    }
+
+    /** Returns the files of the directory with the given prefix, by
+     generation. */
+    private TreeMap<Long, File> generations(String prefix) {
+        TreeMap<Long, File> files = new TreeMap<>();
+        File[] entries = directory.listFiles();
+        if (entries == null)
+            return files;
+
+        for (File file : entries) {
+            String name = file.getName();
+            if (!name.startsWith(prefix))
+                continue;
+            try {
+                files.put(Long.parseLong(name.substring(prefix.length())), file);
+            } catch (NumberFormatException e) {
+                // a temporary image, or another file
+            }
+        }
+        return files;
+    }
+
+    private FileChannel open(long generation) throws IOException {
+        return FileChannel.open(new File(directory, EDITS + generation).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static void delete(File file) {
+        if (!file.delete())
+            file.deleteOnExit();
+    }
+}
@@ -0,0 +1,58 @@
+package naming;
+
+import common.Path;
+
+import java.io.Serializable;
+
+/**
+ * Lease on the metadata a client has cached, granted by the naming server
+ * with <code>Service.lease</code>.
+ *
+ * <p>
+ * The naming server numbers the changes to its namespace - objects created or
+ * deleted, and files whose replicas change - with versions. A lease carries
+ * the latest version and the paths of the objects changed after the version
+ * the client gave, if the naming server still remembers them. The client may
+ * then keep using the metadata it read before the lease was requested, except
+ * for the changed objects, the objects below them and the listings of the
+ * directories above them, for the duration of the lease.
+ */
+public final class Lease implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long version;
+    private final Path[] changed;
+    private final long duration;
+
+    Lease(long version, Path[] changed, long duration) {
+        this.version = version;
+        this.changed = changed;
+        this.duration = duration;
+    }
+
+    /** Returns the version of the namespace when the lease was granted. */
+    public long getVersion() {
+        return version;
+    }
+
+    /** Returns the paths of the objects changed since the version given when
+     the lease was requested, or <code>null</code> if the naming server no
+     longer remembers all of them, in which case all cached metadata must be
+     dropped. A path may be listed more than once. */
+    public Path[] getChanged() {
+        return changed;
+    }
+
+    /** Returns the time, in milliseconds, for which cached metadata may be
+     used, counted from when the lease was requested. */
+    public long getDuration() {
+        return duration;
+    }
+
+    @Override
+    public String toString() {
+        return "Lease[version=" + version + ", changed="
+                + (changed == null ? "all" : String.valueOf(changed.length)) + ", duration=" + duration + "]";
+    }
+}
@@ -1,17 +1,27 @@
 package naming;
 
 import common.Path;
+import rmi.MethodSnapshot;
 import rmi.RMIException;
 import rmi.Skeleton;
 import storage.Command;
+import storage.LoadReport;
 import storage.Storage;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
 import java.util.*;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
 
 /**
  * Naming server.
@@ -36,15 +46,149 @@ import java.util.stream.Stream;
  * specifying the remote network address. To make this possible, the client and
  * registration interfaces are available at well-known ports defined in
  * <code>NamingStubs</code>.
+ *
+ * <p>
+ * A naming server created with a journal directory records every change to
+ * the namespace and to the set of registered storage servers in a write-ahead
+ * journal (see <code>Journal</code>), and recovers them when it is created
+ * again with the same directory. A change is durable when the call that made
+ * it returns. Storage servers known from the journal may register again after
+ * a restart; the files they report that the naming server already attributes
+ * to them are kept rather than returned as duplicates.
+ *
+ * <p>
+ * Storage servers that keep a manifest of their files report the changes to
+ * their files with their heartbeats, under a name that the naming server
+ * records in the journal. A restarted storage server reconnects under its name
+ * with the changes since its last report: the naming server takes its new
+ * stubs and keeps the files it knows it to host, so the server's inventory is
+ * not sent again.
+ *
+ * <p>
+ * Registered storage servers send periodic heartbeats carrying their capacity
+ * and load. The naming server keeps the latest of each in a table of server
+ * health, returned by <code>health</code>, and chooses the server of each new
+ * file among those that are up with its <code>PlacementPolicy</code>.
+ *
+ * <p>
+ * A file may have replicas on several storage servers, as many as the
+ * replication factor set on it or on its nearest ancestor with
+ * <code>setReplication</code>. New files are created on every replica, and
+ * replicas of existing files are copied from one storage server to another,
+ * in the background, by the workers that repair the files of dead servers.
+ * The replicas of a file refuse writes to it from before its copy until the
+ * new replica is published, and writes from clients that looked the file up
+ * before afterwards (see <code>Command.fence</code>), so that the copy misses
+ * none.
+ *
+ * <p>
+ * A storage server that has sent heartbeats and then stays silent for
+ * <code>DEAD_HEARTBEATS</code> heartbeat intervals is dead: no new files are
+ * placed on it, and lookups only return replicas on servers that are not
+ * dead. While the naming server is started, a monitor notices servers dying
+ * and queues their files for repair. Repair workers copy each file from a
+ * surviving replica to a new server and replace the dead replica with it,
+ * files with the fewest surviving replicas first, with at most
+ * <code>TRANSFERS_PER_SERVER</code> copies to or from any server at a time,
+ * with writes fenced as during any copy. A file whose replicas are all dead
+ * becomes available again when one of its servers is heard from. Copies left
+ * on a dead server after its replica is replaced are not removed. An object
+ * deleted while a server hosting files of it is dead, or fails to delete
+ * them, leaves a tombstone for that server: when the server registers or
+ * reconnects again, the files under the tombstone are returned among those
+ * it must delete, rather than added back to the tree.
+ *
+ * <p>
+ * A rebalancer also runs while the naming server is started. When the
+ * fraction of capacity used on the fullest live storage server exceeds that
+ * on the emptiest by more than <code>REBALANCE_THRESHOLD</code>, it moves
+ * files from the one to the other: each file is copied between the storage
+ * servers, its replica is switched to the new server in a single journaled
+ * change, and the old copy is deleted. Writes to the file are refused during
+ * the move as during a repair, so that none is lost. Moves are paced to stay
+ * within the bandwidth set with <code>setRebalanceBandwidth</code>.
+ *
+ * <p>
+ * Every change published to the tree is also recorded, by path, in a bounded
+ * invalidation log, as are storage servers dying, reviving or reconnecting
+ * with new stubs, which change the replicas returned for any file. Clients
+ * caching metadata hold leases of <code>LEASE_DURATION</code> on it, renewed
+ * with <code>lease</code>, which returns the paths changed since the client's
+ * last lease.
  */
+// path locks are held by try-with-resources statements that never refer to
+// them
+@SuppressWarnings("try")
 public class NamingServer implements Service, Registration {
 
+    /** Number of heartbeat intervals after which a silent storage server is
+     considered late. */
+    public static final int MISSED_HEARTBEATS = 3;
+    /** Number of heartbeat intervals after which a silent storage server is
+     considered dead. */
+    public static final int DEAD_HEARTBEATS = 6;
+    /** Number of repair and rebalancing copies a storage server takes part in
+     at a time, as source or destination. */
+    public static final int TRANSFERS_PER_SERVER = 2;
+    /** Difference between the fractions of capacity used on the fullest and
+     the emptiest storage servers above which files are moved between
+     them. */
+    public static final double REBALANCE_THRESHOLD = 0.1;
+    /** Default bandwidth of the rebalancer, in bytes per second. */
+    public static final long DEFAULT_REBALANCE_BANDWIDTH = 16 << 20;
+    /** Duration, in milliseconds, of the leases granted on cached
+     metadata. */
+    public static final long LEASE_DURATION = 5000;
+
+    /** Interval, in milliseconds, at which the monitor checks for dead
+     servers and requeues repairs to be retried. */
+    private static final long MONITOR_INTERVAL = 1000;
+    private static final int REPAIR_THREADS = 4;
+    /** Number of times a repair that cannot proceed is retried before it is
+     given up. */
+    private static final int REPAIR_ATTEMPTS = 5;
+    /** Interval, in milliseconds, between the rebalancer's checks for
+     skew. */
+    private static final long REBALANCE_INTERVAL = 10000;
+    /** Maximum number of files of a server considered for moves in one
+     round of rebalancing. */
+    private static final int REBALANCE_CANDIDATES = 1024;
+    /** Number of changes whose paths are kept for leases. */
+    private static final int INVALIDATION_LOG = 65536;
+
     Skeleton<Registration> registrationSkeleton;
     Skeleton<Service> serviceSkeleton;
-    HashSet<Command> RegisteredServer = new HashSet<>();
-    ArrayList<Directory_tree> allNodes = new ArrayList<>();
-    List<File> listOffiles = new ArrayList<>();
-    Hashtable<Storage,Command> stubs = new Hashtable<>();
+    // latest version of the directory tree; replaced by writers holding the
+    // path locks of the directories they change
+    private final AtomicReference<Directory_tree> tree = new AtomicReference<>(Directory_tree.root());
+    // registered storage servers, indexed by identifier; replaced as a whole
+    // under registrationLock
+    private volatile List<Server> servers = Collections.emptyList();
+    private final Object registrationLock = new Object();
+    // servers recovered from the journal that have not registered again;
+    // guarded by registrationLock
+    private final Set<Command> recovered = new HashSet<>();
+    // replication factors set on files and subtrees; an entry is changed
+    // under the lock that covers its path, as for the tree
+    private final Map<Path, Integer> replication = new ConcurrentHashMap<>();
+    // paths deleted from the namespace while a storage server hosting files
+    // of them was dead or failed to delete them, by server; the server is
+    // told to delete them when it is next heard from
+    private final Map<Integer, Set<Path>> tombstones = new ConcurrentHashMap<>();
+    // journal of changes, or null if the namespace is not persistent
+    private Journal journal;
+    private volatile PlacementPolicy placement = PlacementPolicy.randomTwoChoices();
+    // slots for the copies each storage server takes part in, by server
+    private final Map<Integer, Semaphore> transfers = new ConcurrentHashMap<>();
+    // re-replication of the files of dead servers, and of files whose
+    // factor was raised, while started
+    private volatile Repairs repairs;
+    // moves of files from full servers to empty ones, while started
+    private volatile Rebalancer rebalancer;
+    private volatile long rebalanceBandwidth = DEFAULT_REBALANCE_BANDWIDTH;
+    // paths of the latest changes to the namespace, from which leases are
+    // granted
+    private final InvalidationLog invalidations = new InvalidationLog(INVALIDATION_LOG);
 
     /**
      * Creates the naming server object.
@@ -62,6 +206,23 @@ public class NamingServer implements Service, Registration {
 
     }
 
+    /**
+     * Creates a naming server object with a persistent namespace.
+     *
+     * <p>
+     * The namespace and the registered storage servers are recovered from the
+     * journal in the given directory, which is created if it does not exist.
+     * The naming server is not started.
+     *
+     * @param journalDirectory Directory of the journal.
+     * @throws IOException If the journal cannot be created or read.
+     */
+    public NamingServer(File journalDirectory) throws IOException {
+        this();
+        journal = new Journal(journalDirectory, this::snapshot);
+        journal.recover(new Recovery());
+    }
+
     /**
      * Starts the naming server.
      *
@@ -82,6 +243,10 @@ public class NamingServer implements Service, Registration {
             throw new RMIException("Error while starting Registration ans Service skeletons in void start method");
         }
 
+        repairs = new Repairs();
+        repairs.start();
+        rebalancer = new Rebalancer();
+        rebalancer.start();
 
     }
 
@@ -98,9 +263,63 @@ public class NamingServer implements Service, Registration {
     public void stop() {
         this.serviceSkeleton.stop();
         this.registrationSkeleton.stop();
+        if (repairs != null)
+            repairs.stop();
+        if (rebalancer != null)
+            rebalancer.interrupt();
+        if (journal != null)
+            journal.close();
         stopped(null);
     }
 
+    /**
+     * Sets the policy choosing the storage server of each new file. The
+     * default policy is <code>PlacementPolicy.randomTwoChoices</code>.
+     *
+     * @param policy The placement policy.
+     */
+    public void setPlacementPolicy(PlacementPolicy policy) {
+        if (policy == null)
+            throw new NullPointerException("Null placement policy");
+        placement = policy;
+    }
+
+    /**
+     * Sets the bandwidth the rebalancer may use to move files between storage
+     * servers. The default is <code>DEFAULT_REBALANCE_BANDWIDTH</code>.
+     *
+     * @param bytesPerSecond Bandwidth, in bytes per second, or zero to stop
+     *                       moving files.
+     * @throws IllegalArgumentException If the bandwidth is negative.
+     */
+    public void setRebalanceBandwidth(long bytesPerSecond) {
+        if (bytesPerSecond < 0)
+            throw new IllegalArgumentException("Negative rebalance bandwidth: " + bytesPerSecond);
+        rebalanceBandwidth = bytesPerSecond;
+    }
+
+    /**
+     * Returns the table of storage server health, one entry per server known
+     * to the naming server, in order of registration.
+     */
+    public List<ServerHealth> health() {
+        long now = System.nanoTime();
+        List<ServerHealth> table = new ArrayList<>();
+        for (Server server : servers)
+            table.add(server.health(now));
+        return table;
+    }
+
+    /**
+     * Returns the call metrics of the client service and registration
+     * interfaces, one entry per method that has been called.
+     */
+    public List<MethodSnapshot> metrics() {
+        List<MethodSnapshot> snapshots = new ArrayList<>(serviceSkeleton.getMetrics().snapshot());
+        snapshots.addAll(registrationSkeleton.getMetrics().snapshot());
+        return snapshots;
+    }
+
     /**
      * Indicates that the server has completely shut down.
      *
@@ -121,162 +340,862 @@ public class NamingServer implements Service, Registration {
         if (path == null)
             throw new NullPointerException("Null path provided");
 
-        if (path.isRoot())
-            return true;
+        return find(tree.get(), path).isDirectory();
+    }
 
-        for (Directory_tree dT:allNodes) {
+    @Override
+    public String[] list(Path directory) throws FileNotFoundException {
 
-            //if list contains the same path
-            if (dT.getP().toString().equals(path.toString()))
-                return dT.isDirectory();
-            String a = dT.getP().toString().replaceAll("\\\\","/");
+        if (directory == null)
+            throw new NullPointerException("Null path provided");
 
-            //if path is a substring of any list of paths then it is a directory
-            if (a.contains(path+"/")){
-                return true;
-            }
-        }
-        throw new FileNotFoundException("File not found");
+        Directory_tree node = findDirectory(tree.get(), directory);
+        String[] names = new String[node.size()];
+        int i = 0;
+        for (Directory_tree child : node.children())
+            names[i++] = child.getName();
+        return names;
     }
 
     @Override
-    public String[] list(Path directory) throws FileNotFoundException {
+    public String[] listPage(Path directory, String startAfter, int limit)
+            throws FileNotFoundException {
 
-        Set<String> list = new HashSet<>();
+        if (directory == null)
+            throw new NullPointerException("Null path provided");
 
-        if (!isDirectory(directory))
-            throw new FileNotFoundException("File not found");
+        if (limit <= 0)
+            throw new IllegalArgumentException("Page limit must be positive: " + limit);
 
-        if (directory.toString() == null){
-            throw new NullPointerException("Null path provided");
+        Directory_tree node = findDirectory(tree.get(), directory);
+        List<String> names = new ArrayList<>(Math.min(limit, node.size()));
+        for (Directory_tree child : node.childrenAfter(startAfter)) {
+            if (names.size() == limit)
+                break;
+            names.add(child.getName());
         }
+        return names.toArray(new String[0]);
+    }
+
+    @Override
+    public boolean createFile(Path file)
+            throws RMIException, FileNotFoundException {
+
+        if (file == null)
+            throw new NullPointerException("file path is null");
 
-        if (isDirectory(directory)) {
+        if (file.isRoot())
+            return false;
 
-           Stream<Directory_tree> s = allNodes.stream().filter(p -> p.getP().toString().startsWith(directory.toString()));
+        long sequence;
+        try (PathLock lock = PathLock.exclusive(tree, file.parent())) {
+            if (tree.get().lookup(file) != null)
+                return false;
 
-            for (Directory_tree dt:s.collect(Collectors.toList())) {
-                if (directory.isRoot()){
-                    list.add(dt.getP().toString().replaceFirst(directory.toString(),"").split("^*/")[0]);
-                }else {
-                    list.add(dt.getP().toString().replaceFirst(directory.toString()+"/","").split("/")[0]);
+            // the file is created on every replica; a server that cannot be
+            // reached is left out, unless all of them fail
+            List<Server> chosen = place(servers, replicationOf(file), new HashSet<>());
+            int[] replicas = new int[chosen.size()];
+            int created = 0;
+            RMIException failure = null;
+            for (Server server : chosen) {
+                try {
+                    server.command.create(file);
+                    replicas[created++] = server.id;
+                } catch (RMIException e) {
+                    server.unplaced();
+                    failure = e;
                 }
             }
+            if (created == 0)
+                throw failure;
+
+            //adding new file in directory tree
+            int[] hosts = Arrays.copyOf(replicas, created);
+            Directory_tree node = Directory_tree.file(file.last(), hosts);
+            sequence = apply(edits().file(file, hosts),
+                    () -> publish(file, parent -> parent.withChild(node)));
         }
 
-        return list.toArray(new String[0]);
+        sync(sequence);
+        return true;
     }
 
     @Override
-    public boolean createFile(Path file)
-            throws RMIException, FileNotFoundException {
+    public boolean createDirectory(Path directory) throws FileNotFoundException {
 
-        if (file.isRoot())
+        if (directory == null)
+            throw new NullPointerException("directory path is null");
+
+        if (directory.isRoot())
             return false;
 
-        if (file==null)
-            throw new NullPointerException("file path is null");
+        long sequence;
+        try (PathLock lock = PathLock.exclusive(tree, directory.parent())) {
+            if (tree.get().lookup(directory) != null)
+                return false;
 
-        if (!isDirectory(file.parent())){
-            throw new FileNotFoundException("parent directory is not exist");
+            Directory_tree node = Directory_tree.directory(directory.last());
+            sequence = apply(edits().directory(directory),
+                    () -> publish(directory, parent -> parent.withChild(node)));
         }
 
-        for (Directory_tree dT:allNodes) {
-            if (dT.getP().toString().equals(file.toString())){
-                return false;
-            }
-            String a = dT.getP().toString().replaceAll("\\\\","/");
-            if (a.contains(file+"/")){
-                return false;
+        sync(sequence);
+        return true;
+    }
+
+    @Override
+    public boolean delete(Path path) throws RMIException, FileNotFoundException {
+
+        if (path == null)
+            throw new NullPointerException("Null is provided");
+
+        if (path.isRoot())
+            return false;
+
+        long sequence;
+        // the parent's exclusive lock also keeps other writers out of the
+        // subtree
+        try (PathLock lock = PathLock.exclusive(tree, path.parent())) {
+            Directory_tree node = find(tree.get(), path);
+
+            // every live storage server hosting a file of the subtree deletes
+            // its copy; the others get a tombstone, so that the object does
+            // not come back when they register again
+            List<Server> registered = servers;
+            long now = System.nanoTime();
+            Set<Integer> hosts = new TreeSet<>();
+            node.collectServers(hosts);
+            List<Integer> failed = new ArrayList<>();
+            for (int host : hosts) {
+                if (registered.get(host).dead(now) || !deleted(registered.get(host), path))
+                    failed.add(host);
             }
+
+            Journal.Edits edits = edits().delete(path);
+            for (int host : failed)
+                edits.tombstone(host, path);
+            sequence = apply(edits, () -> {
+                forgetReplication(path);
+                for (int host : failed)
+                    bury(host, path);
+                publish(path, parent -> parent.withoutChild(path.last()));
+            });
         }
 
+        sync(sequence);
+        return true;
+    }
 
-        Storage tempStorage = stubs.keys().nextElement();
-        Command tempCommand = stubs.get(tempStorage);
+    /** Asks a storage server to delete an object, and returns
+     <code>true</code> if it did. */
+    private static boolean deleted(Server server, Path path) {
+        try {
+            return server.command.delete(path);
+        } catch (RMIException e) {
+            return false;
+        }
+    }
 
-        //adding new file in directory tree
-        allNodes.add(new Directory_tree(new Path(file.toString()),file.last(),tempCommand,tempStorage,false));
+    @Override
+    public Storage getStorage(Path file) throws FileNotFoundException {
 
-        //creating file in server storage file
-        tempCommand.create(new Path(file.toString()));
+        if (file == null)
+            throw new NullPointerException("Null is provided");
 
-        //adding file in to list
-        listOffiles.add(new File(file.toString()));
+        Directory_tree node = find(tree.get(), file);
+        if (node.isDirectory())
+            throw new FileNotFoundException("Not a file: " + file);
 
-        return true;
+        List<Server> live = live(node, servers, System.nanoTime());
+        if (live.isEmpty())
+            throw new FileNotFoundException("No live replica of file: " + file);
+        return live.get(0).storage;
     }
 
     @Override
-    public boolean createDirectory(Path directory) throws FileNotFoundException {
+    public Storage[] getReplicas(Path file) throws FileNotFoundException {
 
+        if (file == null)
+            throw new NullPointerException("Null is provided");
 
-        if (directory.isRoot())
-            return false;
+        Directory_tree node = find(tree.get(), file);
+        if (node.isDirectory())
+            throw new FileNotFoundException("Not a file: " + file);
+
+        List<Server> live = live(node, servers, System.nanoTime());
+        if (live.isEmpty())
+            throw new FileNotFoundException("No live replica of file: " + file);
+
+        Storage[] replicas = new Storage[live.size()];
+        for (int i = 0; i < replicas.length; i++)
+            replicas[i] = live.get(i).storage;
+        return replicas;
+    }
 
-        if (!isDirectory(directory.parent())){
-            throw new FileNotFoundException("parent directory is not exist");
+    @Override
+    public void setReplication(Path path, int factor) throws FileNotFoundException {
+
+        if (path == null)
+            throw new NullPointerException("Null is provided");
+
+        if (factor < 1)
+            throw new IllegalArgumentException("Replication factor must be positive: " + factor);
+
+        long sequence;
+        // files with fewer replicas than the factor, copied once the factor
+        // is published
+        List<Path> missing = new ArrayList<>();
+        // the parent's exclusive lock also keeps other writers out of the
+        // subtree while its extra replicas are deleted
+        try (PathLock lock = PathLock.exclusive(tree, path.isRoot() ? path : path.parent())) {
+            Directory_tree node = find(tree.get(), path);
+            Journal.Edits edits = edits().replication(path, factor);
+            List<Change> changes = new ArrayList<>();
+            replicate(path, node, factor, servers, edits, changes, missing);
+
+            sequence = apply(edits, () -> {
+                setReplicationFactor(path, factor);
+                publish(changes);
+            });
         }
 
-        for (Directory_tree dT:allNodes) {
-            if (Arrays.asList(dT.getP().toString().split("/")).containsAll(Arrays.asList(directory.toString().split("/")))){
-                    return false;
-            }
+        sync(sequence);
+        Repairs running = repairs;
+        if (running != null) {
+            for (Path file : missing)
+                running.submit(file);
         }
+    }
 
-            Storage tempStorage = stubs.keys().nextElement();
-            Command tempCommand = stubs.get(tempStorage);
+    @Override
+    public Outcome[] createFiles(Path[] files) throws RMIException {
 
-            //adding new directory in directory tree
-            allNodes.add(new Directory_tree(new Path(directory.toString()),directory.last(),tempCommand,tempStorage,true));
+        if (files == null)
+            throw new NullPointerException("Null is provided");
 
-            //adding directory in list
-            listOffiles.add(new File(directory+"/"));
+        Outcome[] outcomes = new Outcome[files.length];
+        long sequence;
+        try (PathLock lock = PathLock.changing(tree, Arrays.asList(files))) {
+            Directory_tree root = tree.get();
+            List<Server> registered = servers;
+            Set<Path> planned = new HashSet<>();
+            // servers of the replicas of each file to be created
+            int[][] replicas = new int[files.length][];
+            // indices of the files to be created, by storage server
+            Map<Integer, List<Integer>> hosted = new TreeMap<>();
+
+            for (int i = 0; i < files.length; i++) {
+                Path file = files[i];
+                if (file.isRoot() || planned.contains(file) || root.lookup(file) != null) {
+                    outcomes[i] = Outcome.EXISTS;
+                    continue;
+                }
 
-        return true;
+                Directory_tree parent = root.lookup(file.parent());
+                if (parent == null || !parent.isDirectory()) {
+                    outcomes[i] = Outcome.NOT_FOUND;
+                    continue;
+                }
+
+                planned.add(file);
+                List<Server> chosen = place(registered, replicationOf(file), new HashSet<>());
+                replicas[i] = new int[chosen.size()];
+                for (int r = 0; r < chosen.size(); r++) {
+                    replicas[i][r] = chosen.get(r).id;
+                    hosted.computeIfAbsent(chosen.get(r).id, id -> new ArrayList<>()).add(i);
+                }
+            }
+
+            // one command per storage server; replicas on a server that
+            // cannot be reached or fails to create them are left out, and a
+            // file is not created if none of its servers created it
+            // servers that did not create each file, by index of the file
+            Map<Integer, Set<Integer>> failed = new HashMap<>();
+            for (Map.Entry<Integer, List<Integer>> group : hosted.entrySet()) {
+                int id = group.getKey();
+                List<Integer> indices = group.getValue();
+                boolean[] created;
+                try {
+                    created = registered.get(id).command.createMany(select(files, indices));
+                } catch (RMIException e) {
+                    created = null;
+                }
+                for (int j = 0; j < indices.size(); j++) {
+                    if (!succeeded(created, j)) {
+                        failed.computeIfAbsent(indices.get(j), i -> new HashSet<>()).add(id);
+                        registered.get(id).unplaced();
+                    }
+                }
+            }
+
+            Journal.Edits edits = edits();
+            List<Change> changes = new ArrayList<>();
+            for (int i = 0; i < files.length; i++) {
+                if (replicas[i] == null)
+                    continue;
+
+                Set<Integer> missing = failed.getOrDefault(i, Collections.emptySet());
+                int[] hosts = Arrays.stream(replicas[i]).filter(id -> !missing.contains(id)).toArray();
+                if (hosts.length == 0) {
+                    outcomes[i] = Outcome.FAILED;
+                    continue;
+                }
+
+                Path file = files[i];
+                Directory_tree node = Directory_tree.file(file.last(), hosts);
+                edits.file(file, hosts);
+                changes.add(at(file, parent -> parent.withChild(node)));
+                outcomes[i] = Outcome.DONE;
+            }
+            sequence = apply(edits, () -> publish(changes));
+        }
+
+        sync(sequence);
+        return outcomes;
     }
 
     @Override
-    public boolean delete(Path path) throws FileNotFoundException {
+    public Outcome[] createDirectories(Path[] directories) {
 
-        if (path==null)
+        if (directories == null)
             throw new NullPointerException("Null is provided");
 
-        if (path.isRoot())
-            return false;
+        Outcome[] outcomes = new Outcome[directories.length];
+        long sequence;
+        try (PathLock lock = PathLock.changing(tree, Arrays.asList(directories))) {
+            Journal.Edits edits = edits();
+            List<Change> changes = new ArrayList<>();
+            // the tree with the directories created so far, in which the
+            // later ones are looked up
+            Directory_tree updated = tree.get();
+
+            for (int i = 0; i < directories.length; i++) {
+                Path directory = directories[i];
+                if (directory.isRoot() || updated.lookup(directory) != null) {
+                    outcomes[i] = Outcome.EXISTS;
+                    continue;
+                }
 
-        if (!isDirectory(path.parent())){
-            throw new FileNotFoundException("parent directory is not exist");
+                Directory_tree parent = updated.lookup(directory.parent());
+                if (parent == null || !parent.isDirectory()) {
+                    outcomes[i] = Outcome.NOT_FOUND;
+                    continue;
+                }
+
+                Directory_tree node = Directory_tree.directory(directory.last());
+                Change change = at(directory, p -> p.withChild(node));
+                updated = change.apply(updated);
+                changes.add(change);
+                edits.directory(directory);
+                outcomes[i] = Outcome.DONE;
+            }
+            sequence = apply(edits, () -> publish(changes));
         }
 
-        try {
-            for (Directory_tree dT:allNodes) {
-                if (dT.getP().toString().startsWith(path.toString()))
-                    allNodes.remove(dT);
+        sync(sequence);
+        return outcomes;
+    }
+
+    @Override
+    public Outcome[] deletePaths(Path[] paths) throws RMIException {
+
+        if (paths == null)
+            throw new NullPointerException("Null is provided");
+
+        Outcome[] outcomes = new Outcome[paths.length];
+        long sequence;
+        // the parents' exclusive locks also keep other writers out of the
+        // subtrees
+        try (PathLock lock = PathLock.changing(tree, Arrays.asList(paths))) {
+            Directory_tree root = tree.get();
+            List<Server> registered = servers;
+            long now = System.nanoTime();
+            // paths to be deleted, mapped to their indices
+            Map<Path, Integer> planned = new HashMap<>();
+            // for each path inside one to be deleted before it, the index of
+            // that path; -1 otherwise
+            int[] within = new int[paths.length];
+            // indices of the paths to be deleted, by storage server hosting
+            // some of their files
+            Map<Integer, List<Integer>> hosted = new TreeMap<>();
+            // dead servers hosting files of each path to be deleted, which
+            // get tombstones
+            Map<Integer, List<Integer>> skipped = new HashMap<>();
+
+            for (int i = 0; i < paths.length; i++) {
+                Path path = paths[i];
+                within[i] = -1;
+                if (path.isRoot()) {
+                    outcomes[i] = Outcome.FAILED;
+                    continue;
+                }
+
+                Directory_tree node = root.lookup(path);
+                if (node == null) {
+                    outcomes[i] = Outcome.NOT_FOUND;
+                    continue;
+                }
+
+                within[i] = covering(planned, path);
+                if (within[i] >= 0)
+                    continue;
+
+                planned.put(path, i);
+                outcomes[i] = Outcome.DONE;
+                Set<Integer> hosts = new TreeSet<>();
+                node.collectServers(hosts);
+                for (int host : hosts) {
+                    if (!registered.get(host).dead(now))
+                        hosted.computeIfAbsent(host, id -> new ArrayList<>()).add(i);
+                    else
+                        skipped.computeIfAbsent(i, index -> new ArrayList<>()).add(host);
+                }
             }
-            stubs.get(getStorage(path)).delete(path);
-        } catch (RMIException e) {
-            e.printStackTrace();
+
+            // an object is only removed from the tree if every live storage
+            // server hosting files of it could be reached and deleted it
+            for (Map.Entry<Integer, List<Integer>> group : hosted.entrySet()) {
+                List<Integer> indices = group.getValue();
+                boolean[] deleted;
+                try {
+                    deleted = registered.get(group.getKey()).command.deleteMany(select(paths, indices));
+                } catch (RMIException e) {
+                    deleted = null;
+                }
+                for (int j = 0; j < indices.size(); j++) {
+                    if (!succeeded(deleted, j))
+                        outcomes[indices.get(j)] = Outcome.FAILED;
+                }
+            }
+
+            Journal.Edits edits = edits();
+            List<Change> changes = new ArrayList<>();
+            for (int i = 0; i < paths.length; i++) {
+                if (within[i] >= 0)
+                    outcomes[i] = outcomes[within[i]] == Outcome.DONE ? Outcome.NOT_FOUND : Outcome.FAILED;
+                if (outcomes[i] != Outcome.DONE || within[i] >= 0)
+                    continue;
+
+                Path path = paths[i];
+                edits.delete(path);
+                for (int host : skipped.getOrDefault(i, Collections.emptyList()))
+                    edits.tombstone(host, path);
+                changes.add(at(path, parent -> parent.withoutChild(path.last())));
+            }
+            sequence = apply(edits, () -> {
+                for (int i = 0; i < paths.length; i++) {
+                    if (outcomes[i] != Outcome.DONE || within[i] >= 0)
+                        continue;
+                    forgetReplication(paths[i]);
+                    for (int host : skipped.getOrDefault(i, Collections.emptyList()))
+                        bury(host, paths[i]);
+                }
+                publish(changes);
+            });
         }
 
-        return true;
+        sync(sequence);
+        return outcomes;
     }
 
     @Override
-    public Storage getStorage(Path file) throws FileNotFoundException {
+    public Storage[] getStorages(Path[] files) {
 
-        if (file==null)
+        if (files == null)
             throw new NullPointerException("Null is provided");
 
-        if (!isDirectory(file.parent()))
-            throw new FileNotFoundException("Directories not exist");
+        Directory_tree root = tree.get();
+        List<Server> registered = servers;
+        long now = System.nanoTime();
+        Storage[] storage = new Storage[files.length];
+        for (int i = 0; i < files.length; i++) {
+            Directory_tree node = root.lookup(files[i]);
+            if (node == null || node.isDirectory())
+                continue;
+            List<Server> live = live(node, registered, now);
+            if (!live.isEmpty())
+                storage[i] = live.get(0).storage;
+        }
+        return storage;
+    }
+
+    @Override
+    public Lease lease(long version) {
+        return invalidations.since(version, LEASE_DURATION);
+    }
+
+    /** Returns the servers of the replicas of a file that are not dead, in
+     the order of the replicas. */
+    private static List<Server> live(Directory_tree node, List<Server> registered, long now) {
+        int[] hosts = node.servers();
+        List<Server> live = new ArrayList<>(hosts.length);
+        for (int host : hosts) {
+            if (!registered.get(host).dead(now))
+                live.add(registered.get(host));
+        }
+        return live;
+    }
+
+    /**
+     * Chooses the storage servers of new replicas with the placement policy.
+     *
+     * <p>
+     * Servers that are not up, or that reported having no free space, are left
+     * out. If that leaves none for the first replica of a new file, it is
+     * placed on any server that is not dead; further replicas are only placed
+     * on servers that are up, so there may be fewer of them than requested.
+     *
+     * @param registered The registered servers.
+     * @param count Number of replicas to place.
+     * @param excluded Identifiers of servers that must not be chosen, such as
+     *                 those already holding a replica. Chosen servers are
+     *                 added to it.
+     * @return The chosen servers, whose count of placed files is raised; the
+     *         caller takes it back with <code>unplaced</code> for those on
+     *         which no replica is created.
+     * @throws IllegalStateException If no storage servers are registered, or
+     *                               all of them are dead and a new file is
+     *                               placed.
+     */
+    private List<Server> place(List<Server> registered, int count, Set<Integer> excluded) {
+        if (registered.isEmpty())
+            throw new IllegalStateException("No storage servers are connected");
+
+        long now = System.nanoTime();
+        boolean first = excluded.isEmpty();
+        List<Server> chosen = new ArrayList<>(count);
+        while (chosen.size() < count) {
+            List<ServerLoad> candidates = new ArrayList<>(registered.size());
+            for (Server server : registered) {
+                if (!excluded.contains(server.id) && server.status(now) == ServerHealth.Status.UP
+                        && (server.report == null || server.report.getFree() > 0))
+                    candidates.add(server.load());
+            }
+            if (candidates.isEmpty() && first) {
+                for (Server server : registered) {
+                    if (!server.dead(now))
+                        candidates.add(server.load());
+                }
+                if (candidates.isEmpty())
+                    throw new IllegalStateException("All storage servers are dead");
+            }
+            if (candidates.isEmpty())
+                break;
+
+            Server next = registered.get(candidates.get(placement.choose(candidates)).getServer());
+            next.placed.incrementAndGet();
+            excluded.add(next.id);
+            chosen.add(next);
+            first = false;
+        }
+        return chosen;
+    }
+
+    /** Returns the replication factor of a path: the one set on the path or on
+     its nearest ancestor, or 1 if there is none. */
+    private int replicationOf(Path path) {
+        if (replication.isEmpty())
+            return 1;
+
+        for (Path ancestor = path; ; ancestor = ancestor.parent()) {
+            Integer factor = replication.get(ancestor);
+            if (factor != null)
+                return factor;
+            if (ancestor.isRoot())
+                return 1;
+        }
+    }
+
+    /** Sets the replication factor of a path, replacing the factors set below
+     it. */
+    private void setReplicationFactor(Path path, int factor) {
+        forgetReplication(path);
+        replication.put(path, factor);
+    }
+
+    /** Removes the replication factors set on a path and below it. */
+    private void forgetReplication(Path path) {
+        if (!replication.isEmpty())
+            replication.keySet().removeIf(entry -> within(entry, path));
+    }
+
+    /** Returns <code>true</code> if a path is the given ancestor or lies below
+     it. */
+    private static boolean within(Path path, Path ancestor) {
+        for (Path current = path; ; current = current.parent()) {
+            if (current.equals(ancestor))
+                return true;
+            if (current.isRoot())
+                return false;
+        }
+    }
+
+    /**
+     * Brings the files of a subtree towards the given number of replicas.
+     * Extra replicas are deleted, and the files with too few replicas are
+     * collected, to be copied by the repair workers once the factor is
+     * published. The subtree must be locked exclusively.
+     *
+     * @param path Path of the subtree.
+     * @param node Root of the subtree.
+     * @param factor Number of replicas wanted.
+     * @param registered The registered servers.
+     * @param edits Receives the edits of the files whose replicas change.
+     * @param changes Receives the changes of the tree.
+     * @param missing Receives the files with fewer replicas than the factor.
+     */
+    private void replicate(Path path, Directory_tree node, int factor, List<Server> registered,
+                           Journal.Edits edits, List<Change> changes, List<Path> missing) {
+        if (node.isDirectory()) {
+            for (Directory_tree child : node.children())
+                replicate(new Path(path, child.getName()), child, factor, registered, edits, changes, missing);
+            return;
+        }
+
+        int[] current = node.servers();
+        if (current.length < factor)
+            missing.add(path);
+        if (current.length <= factor)
+            return;
+
+        // a copy that cannot be deleted now is reported as a duplicate when
+        // its server registers again
+        for (int i = factor; i < current.length; i++) {
+            try {
+                registered.get(current[i]).command.delete(path);
+            } catch (RMIException e) {
+                // the server is unreachable
+            }
+        }
+        int[] hosts = Arrays.copyOf(current, factor);
+        Directory_tree replicated = Directory_tree.file(node.getName(), hosts);
+        edits.file(path, hosts);
+        changes.add(at(path, parent -> parent.withChild(replicated)));
+    }
+
+    /** Returns the semaphore limiting the copies a server takes part in to
+     <code>TRANSFERS_PER_SERVER</code>. */
+    private Semaphore slot(int server) {
+        return transfers.computeIfAbsent(server, id -> new Semaphore(TRANSFERS_PER_SERVER));
+    }
+
+    /**
+     * Refuses writes to a file on the live servers hosting it, so that none
+     * reaches a replica while the file is copied from it, or after the copy
+     * from a client that does not know of the new replica (see
+     * <code>Command.fence</code>). The fences are released with
+     * <code>release</code> once the new replicas are published. A copy made
+     * under fences for which <code>lapsed</code> holds is not published.
+     *
+     * @return The servers fenced, or <code>null</code> if the file no longer
+     *         exists or one of its servers could not be fenced, in which case
+     *         none is.
+     */
+    private List<Server> fence(Path file) {
+        Directory_tree node = tree.get().lookup(file);
+        if (node == null || node.isDirectory())
+            return null;
+
+        List<Server> fenced = new ArrayList<>();
+        for (Server server : live(node, servers, System.nanoTime())) {
+            try {
+                server.command.fence(file);
+                fenced.add(server);
+            } catch (RMIException | IOException | UnsupportedOperationException e) {
+                release(file, fenced);
+                return null;
+            }
+        }
+        return fenced;
+    }
+
+    /** Returns whether fences taken at the given time, as given by
+     <code>System.nanoTime</code>, may have lapsed on their storage servers
+     (see <code>Command.FENCE_LEASE</code>). */
+    private static boolean lapsed(long fencedAt) {
+        return System.nanoTime() - fencedAt >= TimeUnit.MILLISECONDS.toNanos(Command.FENCE_LEASE);
+    }
 
-        for (Directory_tree dT:allNodes) {
-            if (dT.getP().toString().equals(file.toString())){
-                return dT.getStorageStub();
+    /** Releases the fences on a file, on the servers that can be reached. */
+    private static void release(Path file, List<Server> fenced) {
+        for (Server server : fenced) {
+            try {
+                server.command.release(file);
+            } catch (RMIException e) {
+                // the fence is dropped when the server restarts
             }
         }
-        throw new FileNotFoundException("File not found");
+    }
+
+    /** Deletes a copy of a file that is no longer wanted, if the server can be
+     reached. */
+    private static void discard(Server server, Path file) {
+        try {
+            server.command.delete(file);
+        } catch (RMIException e) {
+            // the copy is left on the server
+        }
+    }
+
+    /** Returns whether a storage server carried out the operation on the
+     path at an index of a batch, given the results of the batch, or
+     <code>null</code> if it could not be reached. */
+    private static boolean succeeded(boolean[] results, int index) {
+        return results != null && index < results.length && results[index];
+    }
+
+    /** Returns the paths at the given indices. */
+    private static Path[] select(Path[] paths, List<Integer> indices) {
+        Path[] selected = new Path[indices.size()];
+        for (int i = 0; i < selected.length; i++)
+            selected[i] = paths[indices.get(i)];
+        return selected;
+    }
+
+    /** Returns the index of the planned path that is the given path or one of
+     its ancestors, or -1 if there is none. */
+    private static int covering(Map<Path, Integer> planned, Path path) {
+        for (Path ancestor = path; ; ancestor = ancestor.parent()) {
+            Integer index = planned.get(ancestor);
+            if (index != null)
+                return index;
+            if (ancestor.isRoot())
+                return -1;
+        }
+    }
+
+    /** Returns the node of a path, or throws if the path does not exist. */
+    private static Directory_tree find(Directory_tree root, Path path) throws FileNotFoundException {
+        Directory_tree node = root.lookup(path);
+        if (node == null)
+            throw new FileNotFoundException("File not found: " + path);
+        return node;
+    }
+
+    /** Returns the node of a directory, or throws if the path does not exist
+     or is a file. */
+    private static Directory_tree findDirectory(Directory_tree root, Path path)
+            throws FileNotFoundException {
+        Directory_tree node = root.lookup(path);
+        if (node == null || !node.isDirectory())
+            throw new FileNotFoundException("Directory not found: " + path);
+        return node;
+    }
+
+    /**
+     * Publishes a new version of the tree in which an object's parent
+     * directory is replaced.
+     *
+     * <p>
+     * The caller must hold the parent directory's lock exclusively. Writers
+     * working on other parts of the tree may publish in the meantime, in which
+     * case the change is applied again to their version: the locked directory
+     * is the same in every version.
+     *
+     * @param path The object whose parent directory is changed.
+     * @param change Computes the new version of the parent directory.
+     */
+    private void publish(Path path, UnaryOperator<Directory_tree> change) {
+        publish(Collections.singletonList(at(path, change)));
+    }
+
+    /** Publishes a new version of the tree with several changes, made by
+     <code>at</code>, applied in order, and records the objects changed in the
+     invalidation log. The caller must hold the locks of the directories
+     changed, as for a single change. */
+    private void publish(List<Change> changes) {
+        Directory_tree current;
+        Directory_tree next;
+        do {
+            current = tree.get();
+            next = current;
+            for (Change change : changes)
+                next = change.apply(next);
+        } while (!tree.compareAndSet(current, next));
+
+        for (Change change : changes)
+            invalidations.record(change.path);
+    }
+
+    /** Returns a change of the whole tree that replaces an object's parent
+     directory by a new version. */
+    private static Change at(Path path, UnaryOperator<Directory_tree> change) {
+        return new Change(path, components(path.parent()), change);
+    }
+
+    /** Change of the whole tree that replaces the parent directory of an
+     object, made by <code>at</code>. */
+    private static final class Change implements UnaryOperator<Directory_tree> {
+        // the object created, deleted or replaced
+        final Path path;
+        private final List<String> parent;
+        private final UnaryOperator<Directory_tree> change;
+
+        Change(Path path, List<String> parent, UnaryOperator<Directory_tree> change) {
+            this.path = path;
+            this.parent = parent;
+            this.change = change;
+        }
+
+        @Override
+        public Directory_tree apply(Directory_tree root) {
+            return root.update(parent, change);
+        }
+    }
+
+    private static List<String> components(Path path) {
+        List<String> components = new ArrayList<>();
+        for (String component : path) {
+            if (!component.isEmpty())
+                components.add(component);
+        }
+        return components;
+    }
+
+    /** Returns an empty set of edits, which records nothing if the namespace
+     is not persistent. */
+    private Journal.Edits edits() {
+        return journal == null ? Journal.Edits.NONE : new Journal.Edits();
+    }
+
+    /** Logs the edits of a change, if the namespace is persistent, and applies
+     the change. Returns the sequence number to pass to <code>sync</code>. */
+    private long apply(Journal.Edits edits, Runnable change) {
+        if (journal == null) {
+            change.run();
+            return 0;
+        }
+        return journal.log(edits, change);
+    }
+
+    /** Waits for logged edits to become durable. */
+    private void sync(long sequence) {
+        if (journal == null)
+            return;
+        try {
+            journal.sync(sequence);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Edit journal failed", e);
+        }
+    }
+
+    /** Returns the state to be written to a checkpoint image. Called with
+     writers held off by the journal. */
+    private Journal.Snapshot snapshot() {
+        List<Storage> storage = new ArrayList<>();
+        List<Command> commands = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (Server server : servers) {
+            storage.add(server.storage);
+            commands.add(server.command);
+            names.add(server.name);
+        }
+        Map<Integer, Set<Path>> buried = new HashMap<>();
+        for (Map.Entry<Integer, Set<Path>> entry : tombstones.entrySet())
+            buried.put(entry.getKey(), new HashSet<>(entry.getValue()));
+        return new Journal.Snapshot(tree.get(), storage, commands, new HashMap<>(replication), names,
+                buried);
     }
 
     // The method register is documented in Registration.java.
@@ -284,72 +1203,1066 @@ public class NamingServer implements Service, Registration {
     public Path[] register(Storage client_stub, Command command_stub,
                            Path[] files) {
 
-        stubs.put(client_stub,command_stub);
-        if (RegisteredServer.contains(command_stub))
+        if (client_stub == null || command_stub == null || files == null)
+            throw new NullPointerException("Anyone of the parameters null while registering storage server in naming server.");
+
+        Server server;
+        synchronized (registrationLock) {
+            server = admit(client_stub, command_stub);
+        }
+        server.heard();
+        // the server listed all its files, so those deleted while it was away
+        // are among the duplicates
+        Set<Path> buried = tombstones(server.id);
+        Path[] duplicates = merge(server, files, false);
+        unbury(server.id, buried);
+        return duplicates;
+    }
+
+    @Override
+    public Path[] registerBatch(Storage client_stub, Command command_stub, Path[] files,
+                                boolean last) {
+
+        if (client_stub == null || command_stub == null || files == null)
+            throw new NullPointerException("Null is provided");
+
+        Server server;
+        synchronized (registrationLock) {
+            server = server(command_stub);
+            if (server == null || !server.registering)
+                server = admit(client_stub, command_stub);
+            server.registering = !last;
+        }
+        server.heard();
+        Set<Path> buried = tombstones(server.id);
+        Path[] duplicates = merge(server, files, false);
+        if (last)
+            unbury(server.id, buried);
+        return duplicates;
+    }
+
+    /** Adds a storage server to the registered ones, or accepts the
+     registration of one recovered from the journal. The caller must hold
+     <code>registrationLock</code>; the addition is made durable by the next
+     <code>sync</code>. */
+    private Server admit(Storage client_stub, Command command_stub) {
+        Server server = server(command_stub);
+        if (server != null && !recovered.remove(command_stub))
             throw new IllegalStateException("Storage server is already registered.");
 
-        if (client_stub.equals(null) || command_stub.equals(null) || files.equals(null))
-            throw new NullPointerException("Anyone of the parameters null while registering storage server in naming server.");
+        if (server == null) {
+            Server added = new Server(servers.size(), client_stub, command_stub);
+            apply(edits().server(added.id, client_stub, command_stub), () -> addServer(added));
+            server = added;
+        }
+        return server;
+    }
 
-        RegisteredServer.add(command_stub);
+    /**
+     * Merges files of a storage server into the tree, and returns those it
+     * must delete.
+     *
+     * @param server The storage server.
+     * @param files Files the server hosts.
+     * @param changes <code>true</code> if the files were reported as changes,
+     *                in which case a file hosted by other servers is left
+     *                alone: it may be a copy made for a repair or a move that
+     *                is not yet recorded.
+     * @return The files the server must delete, including those lying under
+     *         one of its tombstones.
+     */
+    private Path[] merge(Server server, Path[] files, boolean changes) {
+        // files that already exist in the tree, or that collide with it, are
+        // returned for the storage server to delete
+        long sequence;
+        List<Path> duplicates = new ArrayList<>();
+        try (PathLock lock = PathLock.changing(tree, Arrays.asList(files))) {
+            Journal.Edits edits = edits();
+            List<List<String>> added = new ArrayList<>();
+            List<Path> merged = new ArrayList<>();
+            Directory_tree base = tree.get();
+            Directory_tree updated = base;
+
+            for (Path file : files) {
+                if (file.isRoot())
+                    continue;
+
+                // after a restart, the server may report files it is known
+                // to host
+                Directory_tree existing = updated.lookup(file);
+                if (existing != null && existing.hostedBy(server.id))
+                    continue;
+                if (changes && existing != null && !existing.isDirectory())
+                    continue;
+                // the file was deleted while the server was away
+                if (buried(server.id, file)) {
+                    duplicates.add(file);
+                    continue;
+                }
 
-        //checkduplicatefiles returns the list of files that are already exist in naming server
-        ArrayList<Path> copyfiles = checkduplicaefiles(files, client_stub, command_stub);
-        Path[] toArray = new Path[0];
+                List<String> path = components(file);
+                Directory_tree next = add(updated, path, 0, server.id);
+                if (next == null) {
+                    duplicates.add(file);
+                    continue;
+                }
+                updated = next;
+                added.add(path);
+                merged.add(file);
+                edits.file(file, server.id);
+            }
 
-        return copyfiles.toArray(toArray);
+            Directory_tree first = updated;
+            int id = server.id;
+            sequence = apply(edits, () -> {
+                // writers in other parts of the tree may have published since
+                // the files were added; they are then added again
+                Directory_tree current = base;
+                Directory_tree next = first;
+                while (!tree.compareAndSet(current, next)) {
+                    current = tree.get();
+                    next = current;
+                    for (List<String> path : added)
+                        next = add(next, path, 0, id);
+                }
+                invalidations.record(merged);
+            });
+        }
+
+        sync(sequence);
+        return duplicates.toArray(new Path[0]);
     }
 
-    private ArrayList<Path> checkduplicaefiles(Path[] files, Storage storageStub, Command commandStub) {
+    @Override
+    public void report(Command command_stub, LoadReport load) {
 
-        ArrayList<Path> copyFiles = new ArrayList<>();
-        for (Path p : files) {
-            //exist function returns boolean value that if path is exit or not in naming server
-            if (exist(p, storageStub, commandStub, copyFiles)) {
-                continue;
+        if (command_stub == null || load == null)
+            throw new NullPointerException("Null is provided");
+
+        Server server = server(command_stub);
+        if (server == null)
+            throw new IllegalStateException("Storage server is not registered.");
+        server.reported(load);
+        server.heard();
+    }
+
+    @Override
+    public Path[] reconnect(Storage client_stub, Command command_stub, String name,
+                            long generation, Path[] added, Path[] removed) {
+
+        if (client_stub == null || command_stub == null || name == null || added == null
+                || removed == null)
+            throw new NullPointerException("Null is provided");
+
+        Server server;
+        long sequence;
+        synchronized (registrationLock) {
+            Server known = named(name);
+            if (known == null)
+                return null;
+            Server other = server(command_stub);
+            if (other != null && other != known)
+                throw new IllegalStateException("Storage server is already registered.");
+
+            // the server keeps its identifier, and so the files it hosts
+            recovered.remove(known.command);
+            server = new Server(known.id, client_stub, command_stub);
+            server.name = name;
+            Server replacement = server;
+            sequence = apply(edits().server(known.id, client_stub, command_stub),
+                    () -> replaceServer(replacement));
+            // clients may have cached the server's old stubs
+            invalidations.record(new Path());
+        }
+        server.heard();
+
+        sync(sequence);
+        return reconcile(server, generation, added, removed);
+    }
+
+    @Override
+    public Path[] reportChanges(Command command_stub, String name, long generation,
+                                Path[] added, Path[] removed) {
+
+        if (command_stub == null || name == null || added == null || removed == null)
+            throw new NullPointerException("Null is provided");
+
+        Server server = server(command_stub);
+        if (server == null)
+            throw new IllegalStateException("Storage server is not registered.");
+
+        if (!name.equals(server.name)) {
+            long sequence;
+            synchronized (registrationLock) {
+                Server other = named(name);
+                if (other != null && other.id != server.id)
+                    throw new IllegalStateException("Storage server name is already in use: " + name);
+                sequence = apply(edits().name(server.id, name), () -> server.name = name);
+            }
+            sync(sequence);
+        }
+        server.heard();
+        return reconcile(server, generation, added, removed);
+    }
+
+    /** Applies the changes to the files of a storage server reported with the
+     given generation, unless a later report was applied already, and returns
+     the files it must delete. */
+    private Path[] reconcile(Server server, long generation, Path[] added, Path[] removed) {
+        if (!server.advance(generation))
+            return new Path[0];
+
+        forget(server, removed);
+
+        // the server only reported its changes, so the objects deleted while
+        // it was away, and not created again since, are returned as well
+        Set<Path> buried = tombstones(server.id);
+        Directory_tree root = tree.get();
+        List<Path> duplicates = new ArrayList<>(Arrays.asList(merge(server, added, true)));
+        for (Path path : buried) {
+            if (root.lookup(path) == null && !duplicates.contains(path))
+                duplicates.add(path);
+        }
+        unbury(server.id, buried);
+        return duplicates.toArray(new Path[0]);
+    }
+
+    /** Returns a copy of the tombstones of a storage server. */
+    private Set<Path> tombstones(int id) {
+        Set<Path> buried = tombstones.get(id);
+        return buried == null ? Collections.emptySet() : new HashSet<>(buried);
+    }
+
+    /** Records that a storage server may still host files of a deleted path.
+     Called when the deletion is applied. */
+    private void bury(int id, Path path) {
+        tombstones.computeIfAbsent(id, key -> ConcurrentHashMap.newKeySet()).add(path);
+    }
+
+    /** Returns <code>true</code> if a file lies under one of the tombstones
+     of a storage server. */
+    private boolean buried(int id, Path file) {
+        Set<Path> buried = tombstones.get(id);
+        if (buried == null || buried.isEmpty())
+            return false;
+        for (Path current = file; !current.isRoot(); current = current.parent()) {
+            if (buried.contains(current))
+                return true;
+        }
+        return false;
+    }
+
+    /** Drops tombstones of a storage server once it has been told to delete
+     what lies under them. */
+    private void unbury(int id, Set<Path> paths) {
+        if (paths.isEmpty())
+            return;
+
+        Journal.Edits edits = edits();
+        for (Path path : paths)
+            edits.cleared(id, path);
+        sync(apply(edits, () -> {
+            Set<Path> buried = tombstones.get(id);
+            if (buried != null)
+                buried.removeAll(paths);
+        }));
+    }
+
+    /** Removes a storage server from the replicas of files it no longer has. A
+     file left without replicas is removed from the tree; others are queued
+     for repair. */
+    private void forget(Server server, Path[] files) {
+        if (files.length == 0)
+            return;
+
+        long sequence;
+        List<Path> reduced = new ArrayList<>();
+        try (PathLock lock = PathLock.changing(tree, Arrays.asList(files))) {
+            Directory_tree root = tree.get();
+            Journal.Edits edits = edits();
+            List<Path> deleted = new ArrayList<>();
+            List<Change> changes = new ArrayList<>();
+
+            for (Path file : files) {
+                Directory_tree node = file.isRoot() ? null : root.lookup(file);
+                if (node == null || node.isDirectory() || !node.hostedBy(server.id))
+                    continue;
+
+                int[] hosts = Arrays.stream(node.servers()).filter(id -> id != server.id).toArray();
+                if (hosts.length == 0) {
+                    edits.delete(file);
+                    deleted.add(file);
+                    changes.add(at(file, parent -> parent.withoutChild(file.last())));
+                } else {
+                    Directory_tree replaced = Directory_tree.file(file.last(), hosts);
+                    edits.file(file, hosts);
+                    reduced.add(file);
+                    changes.add(at(file, parent -> parent.withChild(replaced)));
+                }
             }
+            sequence = apply(edits, () -> {
+                for (Path file : deleted)
+                    forgetReplication(file);
+                publish(changes);
+            });
+        }
+
+        sync(sequence);
+        Repairs running = repairs;
+        if (running != null) {
+            for (Path file : reduced)
+                running.submit(file);
+        }
+    }
+
+    /** Returns the server with the given name, or <code>null</code>. */
+    private Server named(String name) {
+        for (Server server : servers) {
+            if (name.equals(server.name))
+                return server;
+        }
+        return null;
+    }
+
+    /** Returns the registered server with the given command stub, or
+     <code>null</code>. */
+    private Server server(Command command) {
+        for (Server server : servers) {
+            if (server.command.equals(command))
+                return server;
+        }
+        return null;
+    }
+
+    /** Adds a server to the table of registered servers. Its identifier must
+     be the size of the table. */
+    private void addServer(Server server) {
+        List<Server> updated = new ArrayList<>(servers);
+        updated.add(server);
+        servers = Collections.unmodifiableList(updated);
+    }
+
+    /** Replaces the server with the same identifier as the given one in the
+     table of registered servers. */
+    private void replaceServer(Server server) {
+        List<Server> updated = new ArrayList<>(servers);
+        updated.set(server.id, server);
+        servers = Collections.unmodifiableList(updated);
+    }
+
+    /** Returns a version of a subtree with a file added, creating its missing
+     parent directories, or <code>null</code> if the file already exists, or if
+     the file or one of its parents collides with an object of the other kind.
+     The tree must be locked for the creation of the file. */
+    private static Directory_tree add(Directory_tree directory, List<String> path, int index,
+                                      int server) {
+        String component = path.get(index);
+        Directory_tree child = directory.child(component);
+
+        if (index == path.size() - 1) {
+            if (child != null)
+                return null;
+            return directory.withChild(Directory_tree.file(component, server));
         }
-          return copyFiles;
+
+        if (child == null)
+            child = Directory_tree.directory(component);
+        else if (!child.isDirectory())
+            return null;
+
+        Directory_tree added = add(child, path, index + 1, server);
+        return added == null ? null : directory.withChild(added);
     }
 
-    private boolean exist(Path p, Storage storageStub, Command commandStub, ArrayList<Path> list) {
+    /** Places a node in a subtree, creating its missing parent directories
+     and replacing any node already at its path. Used when replaying the
+     journal. */
+    private static Directory_tree place(Directory_tree directory, List<String> path, int index,
+                                        Directory_tree node) {
+        if (index == path.size() - 1)
+            return directory.withChild(node);
+
+        Directory_tree child = directory.child(path.get(index));
+        if (child == null || !child.isDirectory())
+            child = Directory_tree.directory(path.get(index));
+        return directory.withChild(place(child, path, index + 1, node));
+    }
 
-        if (p.isRoot()) {
+    /** A registered storage server. */
+    private static final class Server {
+        /** Identifier of the server, by which file nodes and the journal
+         refer to it; servers are numbered in order of registration. */
+        final int id;
+        final Storage storage;
+        final Command command;
+        /** Latest load report, or <code>null</code> if the server has not
+         reported since it was registered. */
+        volatile LoadReport report;
+        /** Files placed on the server since its latest report. */
+        final AtomicLong placed = new AtomicLong();
+        /** Time, as given by <code>System.nanoTime</code>, at which the server
+         last registered or sent a heartbeat, or, if not
+         <code>everHeard</code>, at which it became known. */
+        private volatile long lastHeard = System.nanoTime();
+        private volatile boolean everHeard;
+        /** Whether the server is registering in batches and has more to send;
+         guarded by <code>registrationLock</code>. */
+        boolean registering;
+        /** Name under which the server reconnects after a restart, or
+         <code>null</code> if it has none; changed under
+         <code>registrationLock</code>. */
+        volatile String name;
+        /** Generation of the latest report of changes applied. */
+        private long generation = -1;
+
+        Server(int id, Storage storage, Command command) {
+            this.id = id;
+            this.storage = storage;
+            this.command = command;
+        }
+
+        synchronized void reported(LoadReport load) {
+            report = load;
+            placed.set(0);
+        }
+
+        /** Records that a report of changes with the given generation is
+         applied, unless a later one was. */
+        synchronized boolean advance(long reported) {
+            if (reported < generation)
+                return false;
+            generation = reported;
             return true;
         }
 
-        if (allNodes.stream().map(Directory_tree::getP).collect(Collectors.toList()).contains(p) ||
-                    allNodes.stream().filter(g -> g.getP().toString().contains(p+"/")).collect(Collectors.toList()).size() > 0) {
-            list.add(p);
-            return false;
+        ServerLoad load() {
+            return new ServerLoad(id, report, placed.get());
+        }
+
+        /** Takes back the placement of a replica that was not created on the
+         server. */
+        void unplaced() {
+            placed.updateAndGet(count -> count > 0 ? count - 1 : 0);
         }
-        List<String> ArrayPath = new LinkedList<>(Arrays.asList(p.toString().split("/")));
 
-        String tempPath = "";
+        void heard() {
+            lastHeard = System.nanoTime();
+            everHeard = true;
+        }
 
-        while (ArrayPath.size() > 1) {
-            boolean exist = false;
-            tempPath += "/" + ArrayPath.get(1);
-            if (allNodes.isEmpty()) {
-                allNodes.add(new Directory_tree(new Path(p.toString()), ArrayPath.get(1), commandStub, storageStub,false));
-                listOffiles.add( new File(p.toString()));
-            } else {
-                for (Object obj : allNodes.stream().map(Directory_tree::getP).collect(Collectors.toList())) {
+        /** Returns the state of the server. Only servers that have sent a
+         heartbeat are expected to keep sending them: a server that registered
+         without ever reporting is taken to be up, and one not heard from
+         since the naming server started is unknown. */
+        ServerHealth.Status status(long now) {
+            LoadReport last = report;
+            if (!everHeard)
+                return ServerHealth.Status.UNKNOWN;
+            if (last == null)
+                return ServerHealth.Status.UP;
+            long silent = millisSinceHeard(now);
+            if (silent > DEAD_HEARTBEATS * last.getInterval())
+                return ServerHealth.Status.DEAD;
+            return silent > MISSED_HEARTBEATS * last.getInterval()
+                    ? ServerHealth.Status.LATE : ServerHealth.Status.UP;
+        }
+
+        boolean dead(long now) {
+            LoadReport last = report;
+            return last != null && millisSinceHeard(now) > DEAD_HEARTBEATS * last.getInterval();
+        }
+
+        ServerHealth health(long now) {
+            return new ServerHealth(id, storage, status(now),
+                    everHeard ? millisSinceHeard(now) : -1, report);
+        }
+
+        private long millisSinceHeard(long now) {
+            return (now - lastHeard) / 1000000;
+        }
+    }
+
+    /** A file queued for repair. Repairs of files with fewer live replicas
+     come first, then those queued earlier. */
+    private static final class Repair implements Comparable<Repair> {
+        final Path file;
+        /** Number of live replicas when the repair was queued. */
+        final int live;
+        /** Number of times the repair could not proceed. */
+        final int attempts;
+        final long order;
+
+        Repair(Path file, int live, int attempts, long order) {
+            this.file = file;
+            this.live = live;
+            this.attempts = attempts;
+            this.order = order;
+        }
+
+        @Override
+        public int compareTo(Repair other) {
+            if (live != other.live)
+                return Integer.compare(live, other.live);
+            return Long.compare(order, other.order);
+        }
+    }
+
+    /** Result of one step of a repair. */
+    private enum Step {
+        /** The file needs no further repair, or cannot be repaired. */
+        DONE,
+        /** A replica was added; the file is queued again in case it needs
+         more. */
+        AGAIN,
+        /** The servers of the repair are busy with other copies; it is
+         retried when a copy ends. */
+        BUSY,
+        /** The repair failed, and is retried later. */
+        LATER
+    }
+
+    /**
+     * Re-replication of the files of dead storage servers, and of files whose
+     * replication factor was raised.
+     *
+     * <p>
+     * The monitor thread checks the servers every
+     * <code>MONITOR_INTERVAL</code>, and queues the files of each server that
+     * has died since the previous check. <code>setReplication</code> queues
+     * the files left with too few replicas. Worker threads take repairs from the
+     * queue in order of priority. Each step copies a file from a live replica
+     * to a server chosen by the placement policy, and replaces the dead
+     * replicas of the file with the copy. A step that cannot take a transfer
+     * slot on its servers waits for another copy to end. One that finds no
+     * server to copy to, or whose copy fails, is queued again at the next
+     * check, up to <code>REPAIR_ATTEMPTS</code> times.
+     */
+    private final class Repairs {
+        private final PriorityBlockingQueue<Repair> queue = new PriorityBlockingQueue<>();
+        // repairs to be queued again at the next check
+        private final Queue<Repair> retries = new ConcurrentLinkedQueue<>();
+        // repairs waiting for transfer slots, queued again when a copy ends
+        private final Queue<Repair> waiting = new ConcurrentLinkedQueue<>();
+        // files with a repair queued or in progress
+        private final Set<Path> pending = ConcurrentHashMap.newKeySet();
+        private final AtomicLong order = new AtomicLong();
+        // servers found dead at the previous check; monitor thread only
+        private final Set<Integer> dead = new HashSet<>();
+        private final List<Thread> threads = new ArrayList<>();
+
+        Repairs() {
+            threads.add(new Thread(this::monitor, "naming-monitor"));
+            for (int i = 0; i < REPAIR_THREADS; i++)
+                threads.add(new Thread(this::work, "naming-repair-" + i));
+            for (Thread thread : threads)
+                thread.setDaemon(true);
+        }
+
+        void start() {
+            for (Thread thread : threads)
+                thread.start();
+        }
+
+        void stop() {
+            for (Thread thread : threads)
+                thread.interrupt();
+        }
+
+        private void monitor() {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    Thread.sleep(MONITOR_INTERVAL);
+                    check();
+                }
+            } catch (InterruptedException e) {
+                // the naming server is stopping
+            }
+        }
+
+        private void check() {
+            long now = System.nanoTime();
+            for (Server server : servers) {
+                // lookups leave dead servers out, so clients drop the
+                // replicas they have cached when a server dies or revives
+                if (!server.dead(now)) {
+                    if (dead.remove(server.id))
+                        invalidations.record(new Path());
+                } else if (dead.add(server.id)) {
+                    invalidations.record(new Path());
+                    scan(new Path(), tree.get(), server.id);
+                }
+            }
+
+            for (Repair repair = retries.poll(); repair != null; repair = retries.poll())
+                enqueue(repair.file, repair.attempts);
+            resume();
+        }
+
+        /** Queues again the repairs waiting for transfer slots. */
+        private void resume() {
+            for (Repair repair = waiting.poll(); repair != null; repair = waiting.poll())
+                enqueue(repair.file, repair.attempts);
+        }
+
+        /** Queues the files of a subtree with a replica on the given
+         server. */
+        private void scan(Path path, Directory_tree node, int server) {
+            if (node.isDirectory()) {
+                for (Directory_tree child : node.children())
+                    scan(new Path(path, child.getName()), child, server);
+            } else if (node.hostedBy(server)) {
+                submit(path);
+            }
+        }
+
+        /** Queues a file for repair, unless it is queued already. */
+        void submit(Path file) {
+            if (pending.add(file))
+                enqueue(file, 0);
+        }
+
+        private void enqueue(Path file, int attempts) {
+            Directory_tree node = tree.get().lookup(file);
+            if (node == null || node.isDirectory()) {
+                pending.remove(file);
+                return;
+            }
+            int live = live(node, servers, System.nanoTime()).size();
+            queue.add(new Repair(file, live, attempts, order.incrementAndGet()));
+        }
+
+        private void work() {
+            while (true) {
+                Repair repair;
+                try {
+                    repair = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                Step step;
+                try {
+                    step = repair(repair.file);
+                } catch (RuntimeException e) {
+                    step = Step.LATER;
+                }
+
+                if (step == Step.AGAIN)
+                    enqueue(repair.file, repair.attempts);
+                else if (step == Step.BUSY)
+                    waiting.add(repair);
+                else if (step == Step.LATER && repair.attempts + 1 < REPAIR_ATTEMPTS)
+                    retries.add(new Repair(repair.file, repair.live, repair.attempts + 1, repair.order));
+                else
+                    pending.remove(repair.file);
+            }
+        }
+
+        /** Takes one step towards giving a file as many live replicas as its
+         replication factor, and no dead ones. */
+        private Step repair(Path file) {
+            List<Server> registered = servers;
+            Directory_tree node = tree.get().lookup(file);
+            if (node == null || node.isDirectory())
+                return Step.DONE;
+
+            List<Server> live = live(node, registered, System.nanoTime());
+            if (live.isEmpty())
+                return Step.DONE;
+            if (live.size() >= replicationOf(file)) {
+                if (live.size() < node.servers().length)
+                    commit(file, -1, -1);
+                return Step.DONE;
+            }
+
+            Server source = null;
+            for (Server server : live) {
+                if (slot(server.id).tryAcquire()) {
+                    source = server;
+                    break;
+                }
+            }
+            if (source == null)
+                return Step.BUSY;
+
+            // writes to the file are fenced from before the copy until the
+            // new replica is published
+            Server target = null;
+            List<Server> fenced = null;
+            boolean kept = false;
+            try {
+                try {
+                    Set<Integer> excluded = new HashSet<>();
+                    for (int server : node.servers())
+                        excluded.add(server);
+                    List<Server> chosen = place(registered, 1, excluded);
+                    if (chosen.isEmpty())
+                        return Step.LATER;
+                    target = chosen.get(0);
+                    if (!slot(target.id).tryAcquire())
+                        return Step.BUSY;
+
+                    try {
+                        long fencedAt = System.nanoTime();
+                        fenced = fence(file);
+                        if (fenced == null)
+                            return Step.LATER;
+                        if (!target.command.copy(file, source.storage))
+                            return Step.DONE;
+                        if (lapsed(fencedAt)) {
+                            // writes may have been made after the copy
+                            discard(target, file);
+                            return Step.LATER;
+                        }
+                    } catch (RMIException | IOException | UnsupportedOperationException e) {
+                        return Step.LATER;
+                    } finally {
+                        slot(target.id).release();
+                    }
+                } finally {
+                    slot(source.id).release();
+                    resume();
+                }
+
+                kept = commit(file, source.id, target.id);
+                return kept ? Step.AGAIN : Step.DONE;
+            } finally {
+                if (fenced != null)
+                    release(file, fenced);
+                // the target only counts as placed on if it got the replica
+                if (target != null && !kept)
+                    target.unplaced();
+            }
+        }
+
+        /**
+         * Replaces the replicas of a file by those on live servers and, if
+         * given, a new copy.
+         *
+         * @param file The file.
+         * @param source Server the copy was made from, which must still host
+         *               the file for the copy to be kept, or -1.
+         * @param target Server holding the new copy, or -1.
+         * @return <code>true</code> if the replicas are replaced,
+         *         <code>false</code> if the file was deleted or replaced in
+         *         the meantime, in which case the copy is deleted.
+         */
+        private boolean commit(Path file, int source, int target) {
+            List<Server> registered = servers;
+            long sequence;
+            try (PathLock lock = PathLock.exclusive(tree, file.parent())) {
+                Directory_tree node = tree.get().lookup(file);
+                if (node == null || node.isDirectory() || (source >= 0 && !node.hostedBy(source))) {
+                    if (target >= 0 && (node == null || !node.hostedBy(target)))
+                        discard(registered.get(target), file);
+                    return false;
+                }
+
+                List<Integer> hosts = new ArrayList<>();
+                for (Server server : live(node, registered, System.nanoTime()))
+                    hosts.add(server.id);
+                if (target >= 0 && !hosts.contains(target))
+                    hosts.add(target);
+                int[] replicas = hosts.stream().mapToInt(Integer::intValue).toArray();
+                if (Arrays.equals(replicas, node.servers()))
+                    return true;
+
+                Directory_tree replaced = Directory_tree.file(file.last(), replicas);
+                sequence = apply(edits().file(file, replicas),
+                        () -> publish(file, parent -> parent.withChild(replaced)));
+            } catch (FileNotFoundException e) {
+                // the parent directory was deleted
+                if (target >= 0)
+                    discard(registered.get(target), file);
+                return false;
+            }
+
+            sync(sequence);
+            return true;
+        }
+    }
+
+    /**
+     * Background thread moving files from the fullest live storage servers to
+     * the emptiest ones.
+     *
+     * <p>
+     * Every <code>REBALANCE_INTERVAL</code>, the bytes used on each live server
+     * and its capacity are taken from its latest report. While the fullest
+     * server is fuller than the emptiest by more than
+     * <code>REBALANCE_THRESHOLD</code>, a file of the fullest server that the
+     * emptiest does not host is moved between them, and the estimates are
+     * updated with its size. A file is only moved if the fullest server is
+     * left at least as full as the emptiest, so that files do not move back
+     * and forth. After each move, the thread waits until the move has taken as
+     * long as it would at the configured bandwidth.
+     */
+    private final class Rebalancer extends Thread {
+
+        Rebalancer() {
+            super("naming-rebalancer");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!isInterrupted()) {
+                    Thread.sleep(REBALANCE_INTERVAL);
+                    rebalance();
+                }
+            } catch (InterruptedException e) {
+                // the naming server is stopping
+            }
+        }
+
+        /** Moves files until the servers are balanced, or no file can be
+         moved. */
+        private void rebalance() throws InterruptedException {
+            long now = System.nanoTime();
+            // estimated bytes used and capacity of each live server with a
+            // report
+            Map<Server, long[]> usage = new HashMap<>();
+            for (Server server : servers) {
+                LoadReport report = server.report;
+                if (report != null && report.getCapacity() > 0 && !server.dead(now))
+                    usage.put(server, new long[] {report.getUsed(), report.getCapacity()});
+            }
+            // files of each server not yet considered in this round
+            Map<Server, Iterator<Path>> candidates = new HashMap<>();
+
+            while (usage.size() >= 2) {
+                long bandwidth = rebalanceBandwidth;
+                if (bandwidth == 0)
+                    return;
+
+                Server fullest = null;
+                Server emptiest = null;
+                for (Map.Entry<Server, long[]> entry : usage.entrySet()) {
+                    double used = utilization(entry.getValue());
+                    if (fullest == null || used > utilization(usage.get(fullest)))
+                        fullest = entry.getKey();
+                    if (emptiest == null || used < utilization(usage.get(emptiest)))
+                        emptiest = entry.getKey();
+                }
+                long[] from = usage.get(fullest);
+                long[] to = usage.get(emptiest);
+                if (utilization(from) - utilization(to) <= REBALANCE_THRESHOLD)
+                    return;
+
+                Path file = next(candidates.computeIfAbsent(fullest,
+                        server -> hosted(server.id).iterator()), fullest, emptiest);
+                if (file == null) {
+                    // nothing more can be moved off the fullest server
+                    usage.remove(fullest);
+                    continue;
+                }
+
+                long size;
+                try {
+                    size = fullest.storage.size(file);
+                } catch (RMIException | FileNotFoundException e) {
+                    continue;
+                }
+                if (size == 0 || utilization(from[0] - size, from[1]) < utilization(to[0] + size, to[1]))
+                    continue;
+
+                long start = System.nanoTime();
+                if (!move(file, fullest, emptiest))
+                    continue;
+                from[0] -= size;
+                to[0] += size;
+
+                long spent = (System.nanoTime() - start) / 1000000;
+                long due = size * 1000 / bandwidth;
+                if (due > spent)
+                    Thread.sleep(due - spent);
+            }
+        }
+
+        /** Returns the next file that can be moved from one server to another,
+         or <code>null</code> if there is none. */
+        private Path next(Iterator<Path> files, Server from, Server to) {
+            while (files.hasNext()) {
+                Path file = files.next();
+                Directory_tree node = tree.get().lookup(file);
+                if (node != null && !node.isDirectory() && node.hostedBy(from.id) && !node.hostedBy(to.id))
+                    return file;
+            }
+            return null;
+        }
+
+        /** Returns files with a replica on the given server, at most
+         <code>REBALANCE_CANDIDATES</code> of them. */
+        private List<Path> hosted(int server) {
+            List<Path> files = new ArrayList<>();
+            collect(new Path(), tree.get(), server, files);
+            return files;
+        }
 
-                    if (obj.equals(p.toString())) {
-                        exist = true;
-                        break;
+        private void collect(Path path, Directory_tree node, int server, List<Path> files) {
+            if (!node.isDirectory()) {
+                if (node.hostedBy(server))
+                    files.add(path);
+                return;
+            }
+            for (Directory_tree child : node.children()) {
+                if (files.size() == REBALANCE_CANDIDATES)
+                    return;
+                collect(new Path(path, child.getName()), child, server, files);
+            }
+        }
+
+        /**
+         * Moves the replica of a file from one server to another: writes to
+         * the file are fenced, the file is copied, the replica is switched to
+         * the new server, the old copy is deleted, and the fences are
+         * released.
+         *
+         * @return <code>true</code> if the file is moved, <code>false</code> if
+         *         the copy failed, or the file was deleted or its replicas
+         *         changed in the meantime.
+         */
+        private boolean move(Path file, Server from, Server to) throws InterruptedException {
+            List<Server> fenced = null;
+            try {
+                slot(from.id).acquire();
+                try {
+                    slot(to.id).acquire();
+                    try {
+                        long fencedAt = System.nanoTime();
+                        fenced = fence(file);
+                        if (fenced == null || !to.command.copy(file, from.storage))
+                            return false;
+                        if (lapsed(fencedAt)) {
+                            // writes may have been made after the copy
+                            discard(to, file);
+                            return false;
+                        }
+                    } catch (RMIException | IOException | UnsupportedOperationException e) {
+                        return false;
+                    } finally {
+                        slot(to.id).release();
                     }
+                } finally {
+                    slot(from.id).release();
+                }
+
+                return switchReplica(file, from, to);
+            } finally {
+                if (fenced != null)
+                    release(file, fenced);
+            }
+        }
+
+        /** Switches the replica of a file from one server to another once the
+         file is copied, and deletes the old copy. */
+        private boolean switchReplica(Path file, Server from, Server to) {
+            long sequence;
+            try (PathLock lock = PathLock.exclusive(tree, file.parent())) {
+                Directory_tree node = tree.get().lookup(file);
+                if (node == null || node.isDirectory() || !node.hostedBy(from.id) || node.hostedBy(to.id)) {
+                    if (node == null || !node.hostedBy(to.id))
+                        discard(to, file);
+                    return false;
                 }
 
-                if (!exist) {
-                    allNodes.add(new Directory_tree(new Path(p.toString()), ArrayPath.get(1), commandStub, storageStub,false));
-                    listOffiles.add(new File(p.toString()));
+                int[] replicas = node.servers().clone();
+                for (int i = 0; i < replicas.length; i++) {
+                    if (replicas[i] == from.id)
+                        replicas[i] = to.id;
                 }
+                Directory_tree moved = Directory_tree.file(file.last(), replicas);
+                sequence = apply(edits().file(file, replicas),
+                        () -> publish(file, parent -> parent.withChild(moved)));
+            } catch (FileNotFoundException e) {
+                // the parent directory was deleted
+                discard(to, file);
+                return false;
+            }
+
+            sync(sequence);
+            discard(from, file);
+            return true;
+        }
+    }
+
+    private static double utilization(long[] usage) {
+        return utilization(usage[0], usage[1]);
+    }
+
+    private static double utilization(long used, long capacity) {
+        return (double) used / capacity;
+    }
+
+    /** Rebuilds the namespace from the journal. Runs in the constructor,
+     before the server is shared. */
+    private final class Recovery implements Journal.Replay {
+
+        @Override
+        public void server(int id, Storage storage, Command command) {
+            Server server = new Server(id, storage, command);
+            if (id < servers.size()) {
+                // the server reconnected with new stubs
+                Server previous = servers.get(id);
+                recovered.remove(previous.command);
+                server.name = previous.name;
+                replaceServer(server);
+            } else {
+                addServer(server);
             }
-            ArrayPath.remove(1);
+            recovered.add(command);
         }
 
-       return true;
+        @Override
+        public void name(int id, String name) {
+            servers.get(id).name = name;
+        }
+
+        @Override
+        public void tree(Directory_tree root) {
+            tree.set(root);
+        }
+
+        @Override
+        public void file(Path file, int[] servers) {
+            Directory_tree node = Directory_tree.file(file.last(), servers);
+            tree.set(place(tree.get(), components(file), 0, node));
+        }
+
+        @Override
+        public void replication(Path path, int factor) {
+            setReplicationFactor(path, factor);
+        }
+
+        @Override
+        public void tombstone(int id, Path path) {
+            bury(id, path);
+        }
+
+        @Override
+        public void cleared(int id, Path path) {
+            Set<Path> buried = tombstones.get(id);
+            if (buried != null)
+                buried.remove(path);
+        }
+
+        @Override
+        public void directory(Path directory) {
+            Directory_tree existing = tree.get().lookup(directory);
+            if (directory.isRoot() || (existing != null && existing.isDirectory()))
+                return;
+            tree.set(place(tree.get(), components(directory), 0,
+                    Directory_tree.directory(directory.last())));
+        }
+
+        @Override
+        public void delete(Path path) {
+            if (path.isRoot() || tree.get().lookup(path) == null)
+                return;
+            forgetReplication(path);
+            tree.set(tree.get().update(components(path.parent()),
+                    parent -> parent.withoutChild(path.last())));
+        }
     }
 }
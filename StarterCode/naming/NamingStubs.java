@@ -36,6 +36,31 @@ public abstract class NamingStubs
         return service(hostname, SERVICE_PORT);
     }
 
+    /** Returns an asynchronous stub for a naming server client service
+        interface.
+
+        @param hostname Naming server hostname.
+        @param port Client service interface port.
+     */
+    public static AsyncService asyncService(String hostname, int port)
+    {
+        InetSocketAddress   address = new InetSocketAddress(hostname, port);
+        return AsyncStub.create(AsyncService.class, Service.class, address);
+    }
+
+    /** Returns an asynchronous stub for a naming server client service
+        interface.
+
+        <p>
+        The default port is used.
+
+        @param hostname Naming server hostname.
+     */
+    public static AsyncService asyncService(String hostname)
+    {
+        return asyncService(hostname, SERVICE_PORT);
+    }
+
     /** Returns a stub for a naming server registration interface.
 
         @param hostname Naming server hostname.
@@ -0,0 +1,23 @@
+package naming;
+
+/** Outcome of the operation on one path of a batch.
+
+    <p>
+    The batch methods of {@link Service} return one outcome per path given,
+    at the same index.
+ */
+public enum Outcome
+{
+    /** The operation was carried out. */
+    DONE,
+    /** The object to be created already exists, or was created earlier in
+        the same batch. */
+    EXISTS,
+    /** The object, or the parent directory of the object to be created, does
+        not exist. */
+    NOT_FOUND,
+    /** The operation was not carried out for another reason: the root
+        directory cannot be deleted, or a storage server could not be
+        reached or did not carry out the operation. */
+    FAILED
+}
@@ -0,0 +1,185 @@
+package naming;
+
+import common.Path;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Locks held by one naming server operation on directories of the tree.
+ *
+ * <p>
+ * Readers do not lock: they read a published version of the tree, which never
+ * changes. Operations that change the tree first lock the directories they
+ * depend on, so that what they checked stays true until they publish their
+ * change. Every directory has a read/write lock. An operation takes the locks
+ * of a directory's ancestors in shared mode, from the root down, and the lock
+ * of the directory itself in exclusive mode if it adds or removes children.
+ * Since every change to a subtree is made under a lock on its root, an
+ * exclusive lock on a directory also covers everything below it.
+ *
+ * <p>
+ * An operation on several paths takes all its locks before it starts, in
+ * depth-first order of the paths, and a node is locked at most once. All
+ * operations acquire locks in this one order, so none of them can deadlock.
+ *
+ * <p>
+ * Locks are released by <code>close</code>, in any order.
+ */
+final class PathLock implements AutoCloseable {
+
+    /** Orders paths depth-first: a directory before its children, and
+     siblings by name. */
+    private static final Comparator<List<String>> DEPTH_FIRST = (a, b) -> {
+        int common = Math.min(a.size(), b.size());
+        for (int i = 0; i < common; i++) {
+            int order = a.get(i).compareTo(b.get(i));
+            if (order != 0)
+                return order;
+        }
+        return Integer.compare(a.size(), b.size());
+    };
+
+    private final AtomicReference<Directory_tree> tree;
+    /** Locks held, mapped to <code>true</code> if held exclusively. */
+    private final Map<ReentrantReadWriteLock, Boolean> held = new IdentityHashMap<>();
+
+    private PathLock(AtomicReference<Directory_tree> tree) {
+        this.tree = tree;
+    }
+
+    /**
+     * Locks a directory in exclusive mode, and its ancestors in shared mode.
+     *
+     * @param tree Reference to the latest version of the tree.
+     * @param path The directory.
+     * @throws FileNotFoundException If the path does not exist or is a file.
+     */
+    static PathLock exclusive(AtomicReference<Directory_tree> tree, Path path)
+            throws FileNotFoundException {
+        TreeMap<List<String>, Boolean> targets = new TreeMap<>(DEPTH_FIRST);
+        targets.put(components(path), true);
+
+        PathLock lock = new PathLock(tree);
+        if (lock.acquire(targets) != null) {
+            lock.close();
+            throw new FileNotFoundException("Directory not found: " + path);
+        }
+        return lock;
+    }
+
+    /**
+     * Locks the tree for the creation or deletion of several paths, whether or
+     * not they or their parents exist.
+     *
+     * <p>
+     * For each path, the parent directory is locked exclusively if it exists;
+     * otherwise its deepest existing ancestor directory is, so that missing
+     * directories can be added below it.
+     *
+     * @param tree Reference to the latest version of the tree.
+     * @param paths Paths to be created or deleted. The root directory is
+     *              ignored.
+     */
+    static PathLock changing(AtomicReference<Directory_tree> tree, Collection<Path> paths) {
+        TreeMap<List<String>, Boolean> targets = new TreeMap<>(DEPTH_FIRST);
+        for (Path path : paths) {
+            List<String> components = components(path);
+            if (!components.isEmpty())
+                targets.put(components.subList(0, components.size() - 1), true);
+        }
+
+        // Each pass either succeeds or moves a target to a shallower node, so
+        // the loop ends.
+        while (true) {
+            PathLock lock = new PathLock(tree);
+            List<String> missing = lock.acquire(targets);
+            if (missing == null)
+                return lock;
+
+            lock.close();
+            targets.remove(missing);
+            targets.put(missing.subList(0, missing.size() - 1), true);
+        }
+    }
+
+    /**
+     * Locks the given targets and their ancestors in depth-first order. Targets
+     * below an exclusively locked target are covered by it and skipped.
+     *
+     * @return <code>null</code> if every target was locked, or otherwise the
+     *         first target that is not an existing directory. Locks taken so
+     *         far are kept, and must be released by the caller.
+     */
+    private List<String> acquire(TreeMap<List<String>, Boolean> targets) {
+        List<String> covering = null;
+        for (Map.Entry<List<String>, Boolean> target : targets.entrySet()) {
+            List<String> path = target.getKey();
+            if (covering != null && path.size() >= covering.size()
+                    && path.subList(0, covering.size()).equals(covering))
+                continue;
+
+            Directory_tree node = tree.get();
+            for (int i = 0; ; i++) {
+                boolean last = i == path.size();
+                take(node.lock(), last && target.getValue());
+                if (last)
+                    break;
+
+                // the version read before the lock was taken may be out of
+                // date, but the directory's children cannot change now
+                node = tree.get().lookup(path.subList(0, i));
+                Directory_tree child = node.child(path.get(i));
+                if (child == null || !child.isDirectory())
+                    return path;
+                node = child;
+            }
+
+            if (target.getValue())
+                covering = path;
+        }
+        return null;
+    }
+
+    /** Takes a lock in the given mode, unless this operation holds it
+     already. */
+    private void take(ReentrantReadWriteLock lock, boolean exclusive) {
+        if (held.containsKey(lock))
+            return;
+
+        if (exclusive)
+            lock.writeLock().lock();
+        else
+            lock.readLock().lock();
+        held.put(lock, exclusive);
+    }
+
+    /** Releases every lock held. */
+    @Override
+    public void close() {
+        for (Map.Entry<ReentrantReadWriteLock, Boolean> entry : held.entrySet()) {
+            if (entry.getValue())
+                entry.getKey().writeLock().unlock();
+            else
+                entry.getKey().readLock().unlock();
+        }
+        held.clear();
+    }
+
+    private static List<String> components(Path path) {
+        List<String> components = new ArrayList<>();
+        for (String component : path) {
+            if (!component.isEmpty())
+                components.add(component);
+        }
+        return components;
+    }
+}
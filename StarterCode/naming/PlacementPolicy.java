@@ -0,0 +1,89 @@
+package naming;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses the storage server on which the naming server creates a new file.
+ *
+ * <p>
+ * The policy is given the load of every server that can take the file, as
+ * reported by the servers (see <code>Registration.report</code>). It is set
+ * with <code>NamingServer.setPlacementPolicy</code>, and is called by
+ * concurrent operations, so implementations must be thread-safe. The policies
+ * provided are created by the static methods of this interface.
+ */
+public interface PlacementPolicy {
+
+    /**
+     * Chooses a server for a new file.
+     *
+     * @param candidates Load of each server that can take the file, in order of
+     *                   registration. The list is never empty.
+     * @return The index of the chosen server in <code>candidates</code>.
+     */
+    int choose(List<ServerLoad> candidates);
+
+    /** Orders servers by recent load, then by bytes in use. */
+    Comparator<ServerLoad> BY_RECENT_LOAD = Comparator.comparingLong(ServerLoad::getRecentLoad)
+            .thenComparingLong(ServerLoad::getUsed);
+
+    /** Orders servers by bytes in use, then by recent load. */
+    Comparator<ServerLoad> BY_USED_BYTES = Comparator.comparingLong(ServerLoad::getUsed)
+            .thenComparingLong(ServerLoad::getRecentLoad);
+
+    /** Returns a policy that takes the servers in turn, whatever their
+     load. */
+    static PlacementPolicy roundRobin() {
+        AtomicInteger next = new AtomicInteger();
+        return candidates -> Math.floorMod(next.getAndIncrement(), candidates.size());
+    }
+
+    /** Returns a policy that chooses the server with the fewest bytes in use,
+     which evens out disk usage. */
+    static PlacementPolicy leastUsedBytes() {
+        return candidates -> least(candidates, BY_USED_BYTES);
+    }
+
+    /** Returns a policy that chooses the server that handled the fewest
+     requests recently, which evens out bandwidth. */
+    static PlacementPolicy leastRecentLoad() {
+        return candidates -> least(candidates, BY_RECENT_LOAD);
+    }
+
+    /**
+     * Returns a policy that picks two servers at random and chooses the one
+     * with the lower recent load.
+     *
+     * <p>
+     * This comes close to the balance of <code>leastRecentLoad</code>, but
+     * does not send a burst of files to the single least loaded server while
+     * the reports are out of date.
+     */
+    static PlacementPolicy randomTwoChoices() {
+        return candidates -> {
+            int size = candidates.size();
+            if (size == 1)
+                return 0;
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(size);
+            int second = (first + 1 + random.nextInt(size - 1)) % size;
+            return BY_RECENT_LOAD.compare(candidates.get(first), candidates.get(second)) <= 0
+                    ? first : second;
+        };
+    }
+
+    /** Returns the index of the first of the least servers in the given
+     order. */
+    private static int least(List<ServerLoad> candidates, Comparator<ServerLoad> order) {
+        int least = 0;
+        for (int i = 1; i < candidates.size(); i++) {
+            if (order.compare(candidates.get(i), candidates.get(least)) < 0)
+                least = i;
+        }
+        return least;
+    }
+}
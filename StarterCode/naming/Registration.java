@@ -7,7 +7,9 @@ import rmi.RMIException;
 /** Naming server registration interface.
 
     <p>
-    This interface is used once, on startup, by each storage server.
+    This interface is used by each storage server to register on startup, in
+    one call or in batches, or to reconnect after a restart, and then to send
+    heartbeats carrying its load, and the changes to its files, periodically.
  */
 public interface Registration
 {
@@ -47,4 +49,149 @@ public interface Registration
      */
     public Path[] register(Storage client_stub, Command command_stub,
                            Path[] files) throws RMIException;
+
+    /** Registers a storage server with the naming server, sending its files in
+        several batches.
+
+        <p>
+        A storage server hosting many files calls this method once per batch of
+        files instead of calling <code>register</code> with all of them. The
+        first call registers the server, and each call merges its batch into
+        the directory tree as <code>register</code> does, returning the files
+        of the batch that the storage server must delete. The server is fully
+        registered after the call with <code>last</code> set; until then, it
+        may be sent commands for the files merged so far.
+
+        <p>
+        The default implementation does not support registration in batches;
+        storage servers then register with <code>register</code>.
+
+        @param client_stub Storage server client service stub, as for
+                           <code>register</code>.
+        @param command_stub Storage server command service stub, as for
+                            <code>register</code>. It identifies the server
+                            across the calls of the registration.
+        @param files A batch of the files stored on the storage server.
+        @param last <code>true</code> if this is the last batch.
+        @return A list of duplicate files of the batch to delete on the local
+                storage of the registering storage server.
+        @throws IllegalStateException If the first call is made for a storage
+                                      server that is already registered.
+        @throws NullPointerException If any of the arguments is
+                                     <code>null</code>.
+        @throws UnsupportedOperationException If the naming server does not
+                                              support registration in
+                                              batches.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default Path[] registerBatch(Storage client_stub, Command command_stub,
+                                        Path[] files, boolean last)
+        throws RMIException
+    {
+        throw new UnsupportedOperationException("Naming server does not support registration in batches");
+    }
+
+    /** Reconnects a storage server that registered before, possibly with
+        other stubs, sending only the changes to its files since its last
+        acknowledged report.
+
+        <p>
+        The server is identified by the name it gave in
+        <code>reportChanges</code>. If the naming server knows the name, it
+        takes the new stubs for the server, keeps the files it knows the server
+        to host, and applies the changes as <code>reportChanges</code> does.
+        Otherwise the storage server must register with <code>register</code>
+        or <code>registerBatch</code>. The default implementation knows no
+        names.
+
+        @param client_stub New storage server client service stub.
+        @param command_stub New storage server command service stub.
+        @param name Name of the storage server.
+        @param generation Generation of the server's inventory that the changes
+                          bring it to.
+        @param added Files added since the last acknowledged report.
+        @param removed Files removed since the last acknowledged report.
+        @return The files to delete on the local storage of the storage
+                server, or <code>null</code> if the name is not known.
+        @throws IllegalStateException If the stubs are those of another
+                                      registered storage server.
+        @throws NullPointerException If any of the arguments is
+                                     <code>null</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default Path[] reconnect(Storage client_stub, Command command_stub, String name,
+                                    long generation, Path[] added, Path[] removed)
+        throws RMIException
+    {
+        return null;
+    }
+
+    /** Reports the changes to the files of a registered storage server since
+        its last acknowledged report.
+
+        <p>
+        Each file is reported as added or removed according to its latest
+        change. An added file that the naming server does not have is added to
+        the directory tree, hosted by the server. One whose path is taken by a
+        directory, or lies below a file, is returned for the storage server to
+        delete; a file that the naming server attributes to other servers is
+        left alone, as it may be a copy not yet recorded. The server is removed
+        from the replicas of a removed file, and a file left without replicas
+        is removed from the tree. A report with an older generation
+        than one already applied is ignored. The call acknowledges the changes
+        up to the given generation.
+
+        <p>
+        The call also names the storage server, so that it can reconnect with
+        <code>reconnect</code> after a restart. The default implementation
+        ignores the changes.
+
+        @param command_stub Command stub with which the storage server
+                            registered.
+        @param name Name of the storage server.
+        @param generation Generation of the server's inventory that the changes
+                          bring it to.
+        @param added Files added since the last acknowledged report.
+        @param removed Files removed since the last acknowledged report.
+        @return The files to delete on the local storage of the storage
+                server.
+        @throws IllegalStateException If the storage server is not registered,
+                                      or another one has the same name.
+        @throws NullPointerException If any of the arguments is
+                                     <code>null</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default Path[] reportChanges(Command command_stub, String name, long generation,
+                                        Path[] added, Path[] removed)
+        throws RMIException
+    {
+        return new Path[0];
+    }
+
+    /** Heartbeat of a registered storage server, reporting its capacity and
+        recent load.
+
+        <p>
+        Storage servers send heartbeats periodically after registering, at the
+        interval given in each report. The naming server keeps the latest
+        report of each server in its table of server health, and uses it to
+        place new files; a server whose heartbeats stop is considered late.
+        The default implementation ignores the report.
+
+        @param command_stub Command stub with which the storage server
+                            registered.
+        @param load The server's capacity and load.
+        @throws IllegalStateException If the storage server is not registered.
+        @throws NullPointerException If any of the arguments is
+                                     <code>null</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default void report(Command command_stub, LoadReport load)
+        throws RMIException
+    {
+    }
 }
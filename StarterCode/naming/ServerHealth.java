@@ -0,0 +1,86 @@
+package naming;
+
+import storage.LoadReport;
+import storage.Storage;
+
+/**
+ * Entry of the naming server's table of storage server health, at a point in
+ * time.
+ *
+ * <p>
+ * The naming server hears from a storage server when it registers and with
+ * each heartbeat (see <code>Registration.report</code>). Only servers that
+ * have sent a heartbeat are expected to keep sending them; a server that
+ * registered without reporting is taken to be up. A server that has reported
+ * and then not been heard from for <code>NamingServer.MISSED_HEARTBEATS</code>
+ * of its heartbeat intervals is late: it may be down, overloaded or cut off from the
+ * naming server. New files are not placed on late servers while others are up.
+ * A server that has been silent for <code>NamingServer.DEAD_HEARTBEATS</code>
+ * intervals is dead: it is left out of placement and lookups, and its files
+ * are copied to other servers until it is heard from again.
+ */
+public final class ServerHealth {
+
+    /** State of a storage server, as far as the naming server knows. */
+    public enum Status {
+        /** The server is known from the journal, but has not registered since
+         the naming server started. */
+        UNKNOWN,
+        /** The server sent a heartbeat recently, or registered and has never
+         sent one. */
+        UP,
+        /** The server has missed several heartbeats. */
+        LATE,
+        /** The server has missed so many heartbeats that it is taken to have
+         failed. */
+        DEAD
+    }
+
+    private final int server;
+    private final Storage storage;
+    private final Status status;
+    private final long sinceHeard;
+    private final LoadReport report;
+
+    ServerHealth(int server, Storage storage, Status status, long sinceHeard, LoadReport report) {
+        this.server = server;
+        this.storage = storage;
+        this.status = status;
+        this.sinceHeard = sinceHeard;
+        this.report = report;
+    }
+
+    /** Returns the identifier of the server, which is its rank in order of
+     registration. */
+    public int getServer() {
+        return server;
+    }
+
+    /** Returns the client stub of the server. */
+    public Storage getStorage() {
+        return storage;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /** Returns the time, in milliseconds, since the server registered or sent
+     its latest heartbeat, or -1 if it has not since the naming server
+     started. */
+    public long getMillisSinceHeard() {
+        return sinceHeard;
+    }
+
+    /** Returns the load carried by the server's latest heartbeat, or
+     <code>null</code> if it has not sent one. */
+    public LoadReport getReport() {
+        return report;
+    }
+
+    @Override
+    public String toString() {
+        return "ServerHealth[server=" + server + ", status=" + status + ", sinceHeard="
+                + sinceHeard + "ms, report=" + report + "]";
+    }
+}
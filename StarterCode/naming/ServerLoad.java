@@ -0,0 +1,67 @@
+package naming;
+
+import storage.LoadReport;
+
+/**
+ * Load of one storage server, as seen by a placement policy.
+ *
+ * <p>
+ * The figures come from the latest report of the server, and are zero if it
+ * has not reported yet. Since reports are periodic, the naming server also
+ * counts the files it placed on the server after the report, so that a policy
+ * based on recent load does not send every new file to the same server until
+ * the next one.
+ */
+public final class ServerLoad {
+
+    private final int server;
+    private final LoadReport report;
+    private final long placed;
+
+    ServerLoad(int server, LoadReport report, long placed) {
+        this.server = server;
+        this.report = report;
+        this.placed = placed;
+    }
+
+    /** Returns the identifier of the server, which is its rank in order of
+     registration. */
+    public int getServer() {
+        return server;
+    }
+
+    /** Returns the total size of the server's filesystem, in bytes. */
+    public long getCapacity() {
+        return report == null ? 0 : report.getCapacity();
+    }
+
+    /** Returns the number of bytes of the server's filesystem in use. */
+    public long getUsed() {
+        return report == null ? 0 : report.getUsed();
+    }
+
+    /** Returns the number of bytes of the server's filesystem available to
+     it. */
+    public long getFree() {
+        return report == null ? 0 : report.getFree();
+    }
+
+    /** Returns the number of files placed on the server since its latest
+     report. */
+    public long getPlaced() {
+        return placed;
+    }
+
+    /** Returns the recent load of the server: the requests it handled in the
+     interval covered by its latest report, and the files placed on it
+     since. */
+    public long getRecentLoad() {
+        return (report == null ? 0 : report.getRequests()) + placed;
+    }
+
+    @Override
+    public String toString() {
+        return "ServerLoad[server=" + server + ", used=" + getUsed() + ", free=" + getFree()
+                + ", recentLoad=" + getRecentLoad() + "]";
+    }
+}
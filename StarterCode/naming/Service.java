@@ -42,6 +42,33 @@ public interface Service
     public String[] list(Path directory)
         throws RMIException, FileNotFoundException;
 
+    /** Lists a page of the contents of a directory.
+
+        <p>
+        Entries are listed in order of the Unicode code points of their names.
+        A directory of any size can be listed in pages of bounded size by
+        passing the last name of each page as <code>startAfter</code> in the
+        call for the next page, until a page holds fewer than
+        <code>limit</code> entries. Each page is taken from a consistent view
+        of the directory, but entries added or removed between calls may or
+        may not be listed.
+
+        @param directory The directory to be listed.
+        @param startAfter The page starts at the first entry whose name follows
+                          this name, which need not exist in the directory, or
+                          at the first entry if this is <code>null</code>.
+        @param limit Maximum number of entries in the page.
+        @return The entries of the page, in order.
+        @throws FileNotFoundException If the given path does not refer to a
+                                      directory.
+        @throws IllegalArgumentException If <code>limit</code> is not
+                                         positive.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public String[] listPage(Path directory, String startAfter, int limit)
+        throws RMIException, FileNotFoundException;
+
     /** Creates the given file, if it does not exist.
 
         @param file Path at which the file is to be created.
@@ -72,6 +99,11 @@ public interface Service
 
     /** Deletes a file or directory.
 
+        <p>
+        Storage servers hosting files of the object that are dead, cannot be
+        reached, or fail to delete them, are told to delete them when they
+        next register with the naming server.
+
         @param path Path to the file or directory to be deleted.
         @return <code>true</code> if the file or directory is deleted;
                 <code>false</code> otherwise. The root directory cannot be
@@ -85,12 +117,158 @@ public interface Service
 
     /** Returns a stub for the storage server hosting a file.
 
+        <p>
+        Storage servers that the naming server considers dead are not
+        returned.
+
         @param file Path to the file.
         @return A stub for communicating with the storage server.
-        @throws FileNotFoundException If the file does not exist.
+        @throws FileNotFoundException If the file does not exist, or none of
+                                      its replicas is on a live storage
+                                      server.
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
     public Storage getStorage(Path file)
         throws RMIException, FileNotFoundException;
+
+    /** Returns stubs for the storage servers hosting the replicas of a file.
+
+        <p>
+        Every replica holds the whole file, so readers may spread their reads
+        over the replicas. Writers must write to every replica. Replicas on
+        storage servers that the naming server considers dead are left out.
+
+        @param file Path to the file.
+        @return Stubs for the servers hosting the replicas, the primary
+                replica, which <code>getStorage</code> returns, first.
+        @throws FileNotFoundException If the file does not exist, or none of
+                                      its replicas is on a live storage
+                                      server.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public Storage[] getReplicas(Path file)
+        throws RMIException, FileNotFoundException;
+
+    /** Sets the number of replicas of a file, or of every file of a
+        directory's subtree.
+
+        <p>
+        The factor replaces any factor set on paths below the given one, and
+        applies to files created in the subtree later. Extra replicas of
+        existing files of the subtree are deleted before the call returns.
+        Missing replicas are copied between storage servers afterwards, in the
+        background, while the naming server is started. A file may be left
+        with fewer replicas than requested if not enough storage servers are
+        available.
+
+        @param path Path to the file or directory.
+        @param factor Number of replicas of each file.
+        @throws FileNotFoundException If the object does not exist.
+        @throws IllegalArgumentException If <code>factor</code> is not
+                                         positive.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public void setReplication(Path path, int factor)
+        throws RMIException, FileNotFoundException;
+
+    /** Creates several files, if they do not exist.
+
+        <p>
+        The whole batch is checked and applied under one set of locks, and
+        the storage servers are sent one command each for all the files they
+        are to host, rather than one per file. Each file is created as by
+        <code>createFile</code>; a file given twice is created once.
+
+        @param files Paths at which the files are to be created.
+        @return The outcome for each file: <code>DONE</code> if it is created,
+                <code>EXISTS</code> if an object of that name already exists,
+                <code>NOT_FOUND</code> if its parent directory does not
+                exist, or <code>FAILED</code> if none of its storage servers
+                could be reached and create it.
+        @throws IllegalStateException If a file is to be created and no
+                                      storage servers are connected to the
+                                      naming server.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public Outcome[] createFiles(Path[] files) throws RMIException;
+
+    /** Creates several directories, if they do not exist.
+
+        <p>
+        The directories are created in order, under one set of locks, so a
+        directory may be created inside another one created earlier in the
+        same batch.
+
+        @param directories Paths at which the directories are to be created.
+        @return The outcome for each directory: <code>DONE</code> if it is
+                created, <code>EXISTS</code> if an object of that name already
+                exists, or <code>NOT_FOUND</code> if its parent directory does
+                not exist.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public Outcome[] createDirectories(Path[] directories)
+        throws RMIException;
+
+    /** Deletes several files or directories.
+
+        <p>
+        The whole batch is checked and applied under one set of locks, and
+        each storage server is sent one command for all the objects it hosts
+        files of. A path inside an object deleted earlier in the same batch
+        is reported as not found.
+
+        @param paths Paths to the objects to be deleted.
+        @return The outcome for each path: <code>DONE</code> if the object is
+                deleted, <code>NOT_FOUND</code> if it does not exist, or
+                <code>FAILED</code> if it is the root directory or a storage
+                server hosting some of its files could not be reached or
+                failed to delete them. An object whose deletion failed is
+                kept in the directory tree.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public Outcome[] deletePaths(Path[] paths) throws RMIException;
+
+    /** Returns stubs for the storage servers hosting several files.
+
+        <p>
+        All the files are looked up in the same consistent view of the
+        directory tree.
+
+        @param files Paths to the files.
+        @return A stub for each file, as <code>getStorage</code> would return,
+                or <code>null</code> for a path that does not exist, refers to
+                a directory, or has no replica on a live storage server.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public Storage[] getStorages(Path[] files) throws RMIException;
+
+    /** Grants a lease on metadata cached by a client.
+
+        <p>
+        The naming server numbers the changes to the namespace with versions.
+        A client caching results of the other methods of this interface calls
+        this method with the version of its previous lease, and drops the
+        cached metadata of the objects changed since then, of the objects
+        below them, and the listings of the directories above them. The rest
+        may be used for the duration of the new lease, counted from when this
+        method was called. Changes are only reported at lease renewals, so a
+        client sees changes made by others up to a lease late.
+
+        @param version The version of the client's previous lease, or
+                       <code>-1</code> if it has none.
+        @return The lease, with the current version and the paths of the
+                objects changed since <code>version</code>. If the naming
+                server no longer remembers the changes, the paths are
+                <code>null</code> and all cached metadata must be dropped.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public Lease lease(long version) throws RMIException;
 }
@@ -0,0 +1,166 @@
+package rmi;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/** Asynchronous RMI stub factory.
+
+    <p>
+    An asynchronous stub calls the same skeleton as an ordinary stub, but its
+    methods return as soon as the call has been sent. The result arrives later
+    through a <code>CompletableFuture</code>. Calls share the multiplexed
+    connections used by ordinary stubs, and replies are delivered by the
+    connection's reader thread, so any number of calls may be outstanding
+    without a thread per call.
+
+    <p>
+    Java cannot derive a type whose methods return futures from a remote
+    interface, so the methods of an asynchronous stub are declared by an
+    <em>asynchronous interface</em> that mirrors the remote interface: for each
+    of its methods there is a method of the remote interface with the same name
+    and parameter types. An asynchronous method returns
+    <code>CompletableFuture&lt;R&gt;</code>, where <code>R</code> is the
+    (boxed) return type of the remote method, or <code>Void</code> for
+    <code>void</code> methods. It does not need to declare any exceptions.
+
+    <p>
+    The future returned by a call completes with the result of the remote
+    method, or exceptionally with the exception thrown by the remote method,
+    or with <code>RMIException</code> if the call cannot be completed due to a
+    network error. Dependent actions registered without an executor may run on
+    the connection's reader thread, and must therefore not block.
+
+    <p>
+    Two asynchronous stubs are equal if they implement the same asynchronous
+    interface and carry the same remote server address.
+ */
+public abstract class AsyncStub
+{
+    /** Creates an asynchronous stub, given the address of a remote server.
+
+        @param asyncInterface The asynchronous interface to implement.
+        @param remoteInterface The remote interface implemented by the remote
+                               server, which <code>asyncInterface</code>
+                               mirrors.
+        @param address The network address of the remote skeleton.
+        @return The asynchronous stub created.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws Error If <code>remoteInterface</code> is not a remote interface,
+                      or if a method of <code>asyncInterface</code> does not
+                      return <code>CompletableFuture</code> or has no
+                      counterpart in <code>remoteInterface</code>.
+     */
+    public static <A> A create(Class<A> asyncInterface,
+                               Class<?> remoteInterface,
+                               InetSocketAddress address) {
+        if (asyncInterface == null || remoteInterface == null || address == null)
+            throw new NullPointerException("Anyone parameter is null.");
+
+        if (!remoteInterface.isInterface())
+            throw new Error(remoteInterface.getName() + " does not represent remote Interface");
+
+        return create(asyncInterface, new ProxyHandler(address, remoteInterface));
+    }
+
+    /** Creates an asynchronous stub calling the same remote server as an
+        existing stub.
+
+        @param asyncInterface The asynchronous interface to implement.
+        @param stub A stub created by <code>Stub.create</code>, or received
+                    from a remote server. <code>asyncInterface</code> must
+                    mirror the remote interface of this stub.
+        @return The asynchronous stub created.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws IllegalArgumentException If <code>stub</code> is not an RMI
+                                         stub.
+        @throws Error If a method of <code>asyncInterface</code> does not
+                      return <code>CompletableFuture</code> or has no
+                      counterpart in the stub's remote interface.
+     */
+    public static <A> A of(Class<A> asyncInterface, Object stub) {
+        if (asyncInterface == null || stub == null)
+            throw new NullPointerException("Anyone parameter is null.");
+
+        if (!Proxy.isProxyClass(stub.getClass())
+                || !(Proxy.getInvocationHandler(stub) instanceof ProxyHandler))
+            throw new IllegalArgumentException("Object is not an RMI stub");
+
+        return create(asyncInterface, (ProxyHandler) Proxy.getInvocationHandler(stub));
+    }
+
+    private static <A> A create(Class<A> asyncInterface, ProxyHandler remote) {
+        if (!asyncInterface.isInterface())
+            throw new Error(asyncInterface.getName() + " is not an interface");
+
+        Map<Method, Method> methods = new HashMap<>();
+        for (Method m : asyncInterface.getMethods()) {
+            if (m.isDefault() || Modifier.isStatic(m.getModifiers()))
+                continue;
+
+            if (m.getReturnType() != CompletableFuture.class)
+                throw new Error(m + " does not return CompletableFuture");
+
+            try {
+                methods.put(m, remote.remoteInterface().getMethod(m.getName(), m.getParameterTypes()));
+            } catch (NoSuchMethodException e) {
+                throw new Error(m + " has no counterpart in " + remote.remoteInterface().getName());
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        A stub = (A) Proxy.newProxyInstance(asyncInterface.getClassLoader(),
+                new Class<?>[]{asyncInterface}, new Handler(asyncInterface, remote, methods));
+        return stub;
+    }
+
+    /** Invocation handler of asynchronous stubs. */
+    private static final class Handler implements InvocationHandler {
+
+        private final Class<?> asyncInterface;
+        private final ProxyHandler remote;
+        private final Map<Method, Method> methods;
+
+        Handler(Class<?> asyncInterface, ProxyHandler remote, Map<Method, Method> methods) {
+            this.asyncInterface = asyncInterface;
+            this.remote = remote;
+            this.methods = methods;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Method target = methods.get(method);
+            if (target != null)
+                return remote.invokeAsync(target, args);
+
+            if (method.isDefault())
+                return InvocationHandler.invokeDefault(proxy, method, args);
+
+            String functionName = method.getName();
+            if (functionName.equals("equals") && method.getParameterCount() == 1) {
+                Object argument = args[0];
+                if (argument == null || !Proxy.isProxyClass(argument.getClass()))
+                    return false;
+
+                InvocationHandler other = Proxy.getInvocationHandler(argument);
+                if (!(other instanceof Handler))
+                    return false;
+
+                Handler handler = (Handler) other;
+                return asyncInterface.equals(handler.asyncInterface)
+                        && remote.address().equals(handler.remote.address());
+            } else if (functionName.equals("hashCode") && method.getParameterCount() == 0) {
+                return remote.address().hashCode() + asyncInterface.hashCode();
+            } else if (functionName.equals("toString") && method.getParameterCount() == 0) {
+                return "InetAddress of AsyncStub is :" + remote.address() + " Interface : " + asyncInterface;
+            }
+
+            throw new UnsupportedOperationException(method.toString());
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package rmi;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-method call metrics of a set of remote interfaces.
+ *
+ * <p>
+ * Every skeleton keeps its own metrics, returned by
+ * <code>Skeleton.getMetrics</code>. Stubs share one process-wide instance,
+ * returned by <code>client</code>. Metrics are recorded for every call,
+ * whether or not anyone reads them; see <code>MethodSnapshot</code> for what
+ * is measured.
+ */
+public final class CallMetrics {
+
+    private static final CallMetrics client = new CallMetrics();
+
+    private final ConcurrentHashMap<MethodTable, MethodMetrics[]> tables = new ConcurrentHashMap<>();
+
+    CallMetrics() {
+    }
+
+    /** Returns the metrics of the calls made by the stubs of this process. */
+    public static CallMetrics client() {
+        return client;
+    }
+
+    /** Returns the counters of a method, or <code>null</code> if
+     <code>methodId</code> is not an ID of the table. */
+    MethodMetrics method(MethodTable table, int methodId) {
+        MethodMetrics[] methods = tables.get(table);
+        if (methods == null)
+            methods = tables.computeIfAbsent(table, CallMetrics::create);
+        return methodId >= 0 && methodId < methods.length ? methods[methodId] : null;
+    }
+
+    private static MethodMetrics[] create(MethodTable table) {
+        MethodMetrics[] methods = new MethodMetrics[table.size()];
+        for (int id = 0; id < methods.length; id++)
+            methods[id] = new MethodMetrics(table.remoteInterface, table.method(id));
+        return methods;
+    }
+
+    /** Returns the metrics of every method that has been called at least
+     once, sorted by interface and method name. */
+    public List<MethodSnapshot> snapshot() {
+        List<MethodSnapshot> snapshots = new ArrayList<>();
+        for (MethodMetrics[] methods : tables.values()) {
+            for (MethodMetrics method : methods) {
+                MethodSnapshot snapshot = method.snapshot();
+                if (snapshot.getCalls() > 0)
+                    snapshots.add(snapshot);
+            }
+        }
+        snapshots.sort(Comparator.comparing(MethodSnapshot::getInterfaceName)
+                .thenComparing(MethodSnapshot::getMethodName));
+        return snapshots;
+    }
+
+    /** Sets every counter to zero. Calls in progress may still be recorded
+     partly before and partly after the reset. */
+    public void reset() {
+        for (MethodMetrics[] methods : tables.values()) {
+            for (MethodMetrics method : methods)
+                method.reset();
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package rmi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A persistent, multiplexed connection from stubs to a skeleton.
+ *
+ * <p>
+ * Every call sent over the connection is tagged with a call ID. Any number of
+ * calls may be outstanding at once, and the skeleton may reply to them in any
+ * order. A reader thread owned by the connection receives the replies and
+ * completes the matching <code>Call</code>.
+ *
+ * <p>
+ * Calls and replies are frames in the format described by
+ * <code>WireFormat</code>. Before the first call for a remote interface, the
+ * connection binds the interface to a slot; later calls name the interface by
+ * slot and the method by its ID in the interface's <code>MethodTable</code>.
+ */
+class Connection {
+
+    final InetSocketAddress address;
+    private final Socket socket;
+    private final DataOutputStream output;
+    private final DataInputStream input;
+    private final ConnectionPool pool;
+
+    private final ConcurrentHashMap<Integer, Call> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger nextCallId = new AtomicInteger();
+    /** Slots of the interfaces bound on this connection; guarded by the
+     output stream lock. */
+    private final Map<MethodTable, Integer> slots = new HashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong completedCalls = new AtomicLong();
+    private volatile long lastUsed = System.nanoTime();
+    private volatile boolean closed;
+
+    private Connection(InetSocketAddress address, Socket socket, ConnectionPool pool) throws IOException {
+        this.address = address;
+        this.socket = socket;
+        this.pool = pool;
+
+        output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+        Thread reader = new Thread(this::receive, "rmi-connection-" + address);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Opens a new connection to the given skeleton address.
+     *
+     * @param address Address of the skeleton.
+     * @param pool Pool to notify when the connection closes.
+     * @return The connection.
+     * @throws IOException If the connection cannot be established.
+     */
+    static Connection open(InetSocketAddress address, ConnectionPool pool) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(address);
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            return new Connection(address, socket, pool);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sends a call over the connection.
+     *
+     * @param table Method table of the remote interface.
+     * @param methodId ID of the remote method in the table.
+     * @param args Arguments of the call.
+     * @return The outstanding call, which completes when the reply arrives or
+     *         the connection fails.
+     * @throws RMIException If the arguments cannot be encoded.
+     */
+    Call send(MethodTable table, int methodId, Object[] args) throws RMIException {
+        int id = nextCallId.incrementAndGet();
+        MethodMetrics counters = CallMetrics.client().method(table, methodId);
+        long started = System.nanoTime();
+
+        // arguments are encoded before taking the stream lock, so that calls
+        // from different threads are encoded in parallel
+        WireFormat.Frame frame;
+        try {
+            frame = new WireFormat.Frame(WireFormat.CALL);
+            frame.writeInt(id);
+            frame.writeByte(0);
+            frame.writeShort(methodId);
+            if (args != null) {
+                for (Object arg : args)
+                    WireFormat.writeValue(frame, arg);
+            }
+        } catch (IOException e) {
+            counters.failed();
+            throw new RMIException("Unable to encode arguments of call to " + table.method(methodId).getName(), e);
+        }
+
+        long encoded = System.nanoTime();
+        counters.serialization(encoded - started);
+        counters.bytesOut(4 + frame.length());
+
+        Call call = new Call(completedCalls.get() > 0, counters, started);
+        inFlight.incrementAndGet();
+        pending.put(id, call);
+        try {
+            synchronized (output) {
+                counters.queueWait(System.nanoTime() - encoded);
+                if (closed)
+                    throw new EOFException("Connection to " + address + " is closed");
+
+                frame.patch(WireFormat.CALL_SLOT_OFFSET, slot(table));
+                // from here on the skeleton may receive the call, even if the
+                // write fails
+                call.sent = true;
+                frame.writeTo(output);
+                output.flush();
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+        return call;
+    }
+
+    /** Returns the slot of an interface, binding it first if this is the
+     first call for the interface on this connection. Must be called with the
+     output stream lock held. */
+    private int slot(MethodTable table) throws IOException {
+        Integer slot = slots.get(table);
+        if (slot != null)
+            return slot;
+
+        if (slots.size() > 255)
+            throw new IOException("Too many remote interfaces on one connection");
+
+        slot = slots.size();
+        WireFormat.Frame bind = new WireFormat.Frame(WireFormat.BIND);
+        bind.writeByte(slot);
+        WireFormat.writeString(bind, table.remoteInterface.getName());
+        bind.writeLong(table.fingerprint);
+        bind.writeTo(output);
+
+        slots.put(table, slot);
+        return slot;
+    }
+
+    /** Returns the number of calls sent and not yet answered. */
+    int inFlight() {
+        return inFlight.get();
+    }
+
+    /** Marks the connection as used now, as when a reply arrives. */
+    void touch() {
+        lastUsed = System.nanoTime();
+    }
+
+    /** Returns the time, in nanoseconds, since the last reply arrived or the
+     connection was last chosen for a call or, if calls are outstanding,
+     zero. */
+    long idleNanos() {
+        return inFlight.get() > 0 ? 0 : System.nanoTime() - lastUsed;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    void close() {
+        fail(new EOFException("Connection to " + address + " was closed"));
+    }
+
+    /** Reads replies until the connection fails. */
+    private void receive() {
+        try {
+            while (true) {
+                int length = WireFormat.readLength(input);
+                byte type = input.readByte();
+                int id = input.readInt();
+                long started = System.nanoTime();
+                Object value;
+                boolean success = type == WireFormat.RESULT;
+                try {
+                    value = WireFormat.readValue(input);
+                } catch (WireFormat.UndecodableValueException e) {
+                    // the value was read in full, so only this call fails
+                    // and the replies that follow can still be read
+                    value = new RMIException("Unable to decode the reply from " + address, e);
+                    success = false;
+                }
+                long decoding = System.nanoTime() - started;
+
+                Call call = pending.remove(id);
+                if (call == null)
+                    continue;
+
+                call.counters.bytesIn(4 + length);
+                call.counters.serialization(decoding);
+
+                completedCalls.incrementAndGet();
+                lastUsed = System.nanoTime();
+                inFlight.decrementAndGet();
+
+                if (success)
+                    call.succeeded(value);
+                else
+                    call.remoteFailure(value);
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (Exception e) {
+            fail(new IOException("Malformed reply from " + address, e));
+        }
+    }
+
+    /** Closes the connection and fails every outstanding call. */
+    private void fail(IOException cause) {
+        boolean first;
+        synchronized (this) {
+            first = !closed;
+            closed = true;
+        }
+
+        if (first) {
+            try {
+                socket.close();
+            } catch (IOException ignored) { }
+            pool.removed(this);
+        }
+
+        for (Integer id : pending.keySet()) {
+            Call call = pending.remove(id);
+            if (call != null) {
+                inFlight.decrementAndGet();
+                call.transportFailure(cause);
+            }
+        }
+    }
+
+    /**
+     * A call waiting for its reply.
+     *
+     * <p>
+     * The call completes with the result of the remote method. If the remote
+     * method throws, the call completes exceptionally with that exception. If
+     * the connection fails first, the call completes exceptionally with an
+     * <code>RMIException</code> and <code>failedInTransport</code> returns
+     * <code>true</code>.
+     */
+    static final class Call extends CompletableFuture<Object> {
+
+        private final boolean reused;
+        private final MethodMetrics counters;
+        private final long started;
+        // set, under the output stream lock, before the call's frame is
+        // written
+        private volatile boolean sent;
+        private volatile boolean transportFailed;
+
+        private Call(boolean reused, MethodMetrics counters, long started) {
+            this.reused = reused;
+            this.counters = counters;
+            this.started = started;
+        }
+
+        /** Returns <code>true</code> if the call failed in transport before
+         its frame was written, over a connection that had already completed
+         other calls. Such a call was never received by the skeleton and may be
+         sent again: the pooled connection was most likely closed while it was
+         idle. A call whose frame was written may have been executed, and a
+         new connection that fails at once points to a skeleton that cannot
+         serve calls, so neither is retried. */
+        boolean mayBeRetried() {
+            return transportFailed && !sent && reused;
+        }
+
+        boolean failedInTransport() {
+            return transportFailed;
+        }
+
+        private void succeeded(Object value) {
+            counters.completed(System.nanoTime() - started, true);
+            complete(value);
+        }
+
+        private void remoteFailure(Object value) {
+            counters.completed(System.nanoTime() - started, false);
+            if (value instanceof Throwable)
+                completeExceptionally((Throwable) value);
+            else
+                completeExceptionally(new RMIException("Remote call failed on the server"));
+        }
+
+        private void transportFailure(IOException cause) {
+            transportFailed = true;
+            counters.completed(System.nanoTime() - started, false);
+            completeExceptionally(new RMIException("Connection failed", cause));
+        }
+    }
+}
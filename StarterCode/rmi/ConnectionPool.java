@@ -0,0 +1,225 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of persistent stub connections, shared by all stubs in the virtual
+ * machine.
+ *
+ * <p>
+ * Connections are grouped by skeleton address, so every stub that targets the
+ * same <code>InetSocketAddress</code> draws from the same set of open
+ * connections, whatever its remote interface. Connections are multiplexed:
+ * each call is sent over the open connection with the fewest outstanding
+ * calls. A new connection is opened only when every open connection already
+ * carries <code>callsPerConnection</code> outstanding calls and the
+ * per-address limit has not been reached. Connections that stay idle for
+ * longer than the idle timeout are closed by a background thread.
+ */
+public final class ConnectionPool {
+
+    /** Default maximum number of open connections per skeleton address. */
+    public static final int DEFAULT_MAX_CONNECTIONS = 16;
+    /** Default number of outstanding calls on a connection before another
+     connection to the same address is opened. */
+    public static final int DEFAULT_CALLS_PER_CONNECTION = 32;
+    /** Default time, in milliseconds, after which idle connections are
+     closed. This is shorter than the time after which a skeleton closes an
+     idle connection, so stubs rarely pick up a connection that the skeleton
+     has already dropped. */
+    public static final long DEFAULT_IDLE_TIMEOUT = 15000;
+
+    private static final ConnectionPool shared = new ConnectionPool();
+
+    private final ConcurrentHashMap<InetSocketAddress, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private volatile int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private volatile int callsPerConnection = DEFAULT_CALLS_PER_CONNECTION;
+    private volatile long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_IDLE_TIMEOUT);
+
+    private ConnectionPool() {
+        ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "rmi-connection-reaper");
+            t.setDaemon(true);
+            return t;
+        });
+        reaper.scheduleWithFixedDelay(this::evictIdle, 1, 1, TimeUnit.SECONDS);
+    }
+
+    static ConnectionPool shared() {
+        return shared;
+    }
+
+    /**
+     * Sets the limits of the shared pool.
+     *
+     * <p>
+     * The new limits apply to connections chosen or opened after the call;
+     * existing connections are not closed.
+     *
+     * @param maxConnectionsPerAddress Maximum number of connections kept open
+     *                                 to a single skeleton address.
+     * @param callsPerConnection Number of outstanding calls on every open
+     *                           connection before another one is opened.
+     * @param idleTimeoutMillis Time after which an idle connection is closed.
+     * @throws IllegalArgumentException If any value is less than one.
+     */
+    public static void configure(int maxConnectionsPerAddress, int callsPerConnection,
+                                 long idleTimeoutMillis) {
+        if (maxConnectionsPerAddress < 1 || callsPerConnection < 1 || idleTimeoutMillis < 1)
+            throw new IllegalArgumentException("Pool limits must be positive");
+
+        shared.maxConnections = maxConnectionsPerAddress;
+        shared.callsPerConnection = callsPerConnection;
+        shared.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+    }
+
+    /** Returns the number of connections currently open to the given
+     address. */
+    public static int openConnections(InetSocketAddress address) {
+        Endpoint endpoint = shared.endpoints.get(address);
+        if (endpoint == null)
+            return 0;
+
+        synchronized (endpoint) {
+            return endpoint.connections.size();
+        }
+    }
+
+    /** Returns the number of calls to the given address that have been sent
+     and not yet answered. */
+    public static int outstandingCalls(InetSocketAddress address) {
+        Endpoint endpoint = shared.endpoints.get(address);
+        if (endpoint == null)
+            return 0;
+
+        int calls = 0;
+        synchronized (endpoint) {
+            for (Connection connection : endpoint.connections)
+                calls += connection.inFlight();
+        }
+        return calls;
+    }
+
+    /** Closes every connection in the pool that has no outstanding calls. */
+    public static void closeIdle() {
+        for (Endpoint endpoint : shared.endpoints.values())
+            endpoint.evict(-1);
+    }
+
+    /**
+     * Chooses the connection over which the next call to the given address is
+     * sent.
+     *
+     * <p>
+     * A new connection is opened without holding the lock of the address, so
+     * a slow or unreachable skeleton only holds up the callers that need the
+     * new connection. Connections being opened count against the per-address
+     * limit; a caller finding no open connection while the limit is taken up
+     * by connections being opened waits for one of them.
+     *
+     * @param address Address of the skeleton.
+     * @return An open connection.
+     * @throws IOException If a new connection is needed and cannot be opened.
+     */
+    Connection select(InetSocketAddress address) throws IOException {
+        Endpoint endpoint = endpoints.computeIfAbsent(address, a -> new Endpoint());
+
+        synchronized (endpoint) {
+            while (true) {
+                Connection least = null;
+                for (Connection connection : endpoint.connections) {
+                    if (!connection.isClosed() && (least == null || connection.inFlight() < least.inFlight()))
+                        least = connection;
+                }
+
+                boolean full = endpoint.connections.size() + endpoint.opening >= maxConnections;
+                if (least != null && (least.inFlight() < callsPerConnection || full)) {
+                    // the evictor, which also holds the lock, will not take
+                    // a connection that was just chosen
+                    least.touch();
+                    return least;
+                }
+                if (!full)
+                    break;
+
+                try {
+                    endpoint.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a connection to " + address);
+                }
+            }
+            endpoint.opening++;
+        }
+
+        Connection connection = null;
+        try {
+            connection = Connection.open(address, this);
+            return connection;
+        } finally {
+            synchronized (endpoint) {
+                endpoint.opening--;
+                // a connection that failed at once has already been removed
+                if (connection != null && !connection.isClosed())
+                    endpoint.connections.add(connection);
+                endpoint.notifyAll();
+            }
+        }
+    }
+
+    /** Forgets a connection that has been closed. */
+    void removed(Connection connection) {
+        Endpoint endpoint = endpoints.get(connection.address);
+        if (endpoint == null)
+            return;
+
+        synchronized (endpoint) {
+            endpoint.connections.remove(connection);
+            endpoint.notifyAll();
+        }
+    }
+
+    private void evictIdle() {
+        for (Endpoint endpoint : endpoints.values())
+            endpoint.evict(idleTimeoutNanos);
+    }
+
+    /** Connections to one skeleton address. */
+    private static final class Endpoint {
+
+        final List<Connection> connections = new ArrayList<>();
+        // connections being opened outside the lock; guarded by this
+        int opening;
+
+        /** Closes the connections idle for longer than the given time. They
+         are taken out of the pool under the lock, so that <code>select</code>
+         cannot choose a connection that is about to be closed. */
+        void evict(long timeoutNanos) {
+            List<Connection> idle = new ArrayList<>();
+            synchronized (this) {
+                for (Iterator<Connection> i = connections.iterator(); i.hasNext(); ) {
+                    Connection connection = i.next();
+                    if (connection.inFlight() == 0 && connection.idleNanos() > timeoutNanos) {
+                        i.remove();
+                        idle.add(connection);
+                    }
+                }
+                if (!idle.isEmpty())
+                    notifyAll();
+            }
+
+            // closing calls back into removed(), so it is done outside the lock
+            for (Connection connection : idle)
+                connection.close();
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package rmi;
+
+/** Ways in which a <code>Skeleton</code> can run the code serving its
+    connections and calls.
+
+    <p>
+    The mode is chosen with <code>Skeleton.setDispatchMode</code> before the
+    skeleton is started.
+ */
+public enum DispatchMode
+{
+    /** Each connection is read by its own platform thread, and the calls
+        read from it are queued for a bounded pool of platform worker threads.
+        The pool is configured with <code>Skeleton.setWorkerPool</code>; once
+        the pool and its queue are full, further calls are rejected. */
+    PLATFORM_POOL,
+
+    /** Connections are read and calls are executed on virtual threads, one
+        per connection and one per call, so the number of concurrent calls is
+        not limited by a pool size. On a Java runtime without virtual threads,
+        daemon platform threads are used instead. */
+    VIRTUAL_THREADS
+}
@@ -0,0 +1,81 @@
+package rmi;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+
+/**
+ * Server-side invokers for the methods of a remote interface.
+ *
+ * <p>
+ * The table is built once, when the skeleton is created. Each method of the
+ * interface's <code>MethodTable</code> gets a <code>MethodHandle</code> that
+ * is already bound to the server object and adapted to take the decoded
+ * argument array, so executing a call needs neither a method lookup nor the
+ * access checks of <code>Method.invoke</code>.
+ */
+final class DispatchTable {
+
+    /** Type of every invoker: the argument array in, the result out. */
+    private static final MethodType INVOKER_TYPE = MethodType.methodType(Object.class, Object[].class);
+
+    private final MethodTable table;
+    private final MethodHandle[] invokers;
+
+    /**
+     * Builds the invokers for a server object.
+     *
+     * @param table Method table of the remote interface.
+     * @param server Object implementing the interface.
+     * @throws Error If a method of the interface cannot be made accessible.
+     */
+    DispatchTable(MethodTable table, Object server) {
+        this.table = table;
+        this.invokers = new MethodHandle[table.size()];
+
+        for (int id = 0; id < invokers.length; id++) {
+            Method method = table.method(id);
+            invokers[id] = unreflect(method)
+                    .bindTo(server)
+                    .asSpreader(Object[].class, method.getParameterCount())
+                    .asType(INVOKER_TYPE);
+        }
+    }
+
+    /** Returns the method with the given ID, or <code>null</code> if there is
+     no such method. */
+    Method method(int id) {
+        return table.method(id);
+    }
+
+    /**
+     * Calls a method on the server object.
+     *
+     * @param id ID of the method.
+     * @param args Decoded arguments, one per parameter.
+     * @return The value returned by the method, or <code>null</code> for
+     *         <code>void</code> methods.
+     * @throws Throwable Whatever the method throws, unwrapped. Arguments of
+     *                   the wrong type cause a
+     *                   <code>ClassCastException</code>.
+     */
+    Object invoke(int id, Object[] args) throws Throwable {
+        return (Object) invokers[id].invokeExact(args);
+    }
+
+    private static MethodHandle unreflect(Method method) {
+        try {
+            return MethodHandles.publicLookup().unreflect(method);
+        } catch (IllegalAccessException e) {
+            // the interface itself is not public
+        }
+
+        try {
+            method.setAccessible(true);
+            return MethodHandles.lookup().unreflect(method);
+        } catch (IllegalAccessException | RuntimeException e) {
+            throw new Error("Remote method " + method + " cannot be made accessible", e);
+        }
+    }
+}
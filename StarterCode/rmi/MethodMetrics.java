@@ -0,0 +1,94 @@
+package rmi;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the calls of one remote method, on one side of the connection.
+ *
+ * <p>
+ * Counters are <code>LongAdder</code>s and the latency histogram has one
+ * bucket per power of two nanoseconds, so recording a call costs a few
+ * uncontended additions and no allocation.
+ */
+final class MethodMetrics {
+
+    /** Number of histogram buckets: bucket <code>i</code> counts durations
+     <code>d</code> with <code>2^i &lt;= d &lt; 2^(i+1)</code> nanoseconds. */
+    static final int BUCKETS = 64;
+
+    private final String interfaceName;
+    private final String methodName;
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder queueWait = new LongAdder();
+    private final LongAdder serialization = new LongAdder();
+    private final LongAdder execution = new LongAdder();
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+    MethodMetrics(Class<?> remoteInterface, Method method) {
+        this.interfaceName = remoteInterface.getName();
+        this.methodName = method.getName();
+    }
+
+    void bytesIn(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    void bytesOut(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    void queueWait(long nanos) {
+        queueWait.add(nanos);
+    }
+
+    void serialization(long nanos) {
+        serialization.add(nanos);
+    }
+
+    /** Records a finished call and its execution time. */
+    void completed(long nanos, boolean success) {
+        calls.increment();
+        if (!success)
+            errors.increment();
+        execution.add(nanos);
+        histogram.incrementAndGet(bucket(nanos));
+    }
+
+    /** Records a call that failed before it could be executed. */
+    void failed() {
+        calls.increment();
+        errors.increment();
+    }
+
+    private static int bucket(long nanos) {
+        return nanos <= 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+    }
+
+    MethodSnapshot snapshot() {
+        long[] buckets = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            buckets[i] = histogram.get(i);
+
+        return new MethodSnapshot(interfaceName, methodName, calls.sum(), errors.sum(),
+                bytesIn.sum(), bytesOut.sum(), queueWait.sum(), serialization.sum(),
+                execution.sum(), buckets);
+    }
+
+    void reset() {
+        calls.reset();
+        errors.reset();
+        bytesIn.reset();
+        bytesOut.reset();
+        queueWait.reset();
+        serialization.reset();
+        execution.reset();
+        for (int i = 0; i < BUCKETS; i++)
+            histogram.set(i, 0);
+    }
+}
@@ -0,0 +1,156 @@
+package rmi;
+
+import java.io.Serializable;
+
+/**
+ * Metrics of one remote method at a point in time.
+ *
+ * <p>
+ * All times are in nanoseconds. On the skeleton side, the execution time is
+ * the time spent in the server object's method; on the stub side, it is the
+ * whole round trip of the call. The queue wait is, on the skeleton side, the
+ * time a call waited for a worker and, on the stub side, the time a call
+ * waited for its turn to be written to the connection. Serialization time
+ * covers encoding and decoding of the arguments and the result on that side.
+ *
+ * <p>
+ * Snapshots are serializable so that servers can return them to remote
+ * callers.
+ */
+public final class MethodSnapshot implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String interfaceName;
+    private final String methodName;
+    private final long calls;
+    private final long errors;
+    private final long bytesIn;
+    private final long bytesOut;
+    private final long queueWaitNanos;
+    private final long serializationNanos;
+    private final long executionNanos;
+    private final long[] histogram;
+
+    MethodSnapshot(String interfaceName, String methodName, long calls, long errors,
+                   long bytesIn, long bytesOut, long queueWaitNanos, long serializationNanos,
+                   long executionNanos, long[] histogram) {
+        this.interfaceName = interfaceName;
+        this.methodName = methodName;
+        this.calls = calls;
+        this.errors = errors;
+        this.bytesIn = bytesIn;
+        this.bytesOut = bytesOut;
+        this.queueWaitNanos = queueWaitNanos;
+        this.serializationNanos = serializationNanos;
+        this.executionNanos = executionNanos;
+        this.histogram = histogram;
+    }
+
+    /** Returns the fully qualified name of the remote interface. */
+    public String getInterfaceName() {
+        return interfaceName;
+    }
+
+    /** Returns the name of the method. */
+    public String getMethodName() {
+        return methodName;
+    }
+
+    /** Returns the number of calls, including failed ones. */
+    public long getCalls() {
+        return calls;
+    }
+
+    /** Returns the number of calls that threw an exception or could not be
+     completed. */
+    public long getErrors() {
+        return errors;
+    }
+
+    /** Returns the number of bytes received for the calls, frame headers
+     included. */
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    /** Returns the number of bytes sent for the calls, frame headers
+     included. */
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    /** Returns the total time calls spent waiting in queues. */
+    public long getQueueWaitNanos() {
+        return queueWaitNanos;
+    }
+
+    /** Returns the total time spent encoding and decoding values. */
+    public long getSerializationNanos() {
+        return serializationNanos;
+    }
+
+    /** Returns the total execution time of the calls. */
+    public long getExecutionNanos() {
+        return executionNanos;
+    }
+
+    /** Returns the mean execution time of the calls, or zero if there were
+     none. */
+    public long getMeanExecutionNanos() {
+        long executed = executedCalls();
+        return executed == 0 ? 0 : executionNanos / executed;
+    }
+
+    /**
+     * Returns an estimate of a percentile of the execution time.
+     *
+     * <p>
+     * The estimate is the upper bound of the histogram bucket containing the
+     * percentile, so it is at most twice the actual value.
+     *
+     * @param percentile Percentile, between 0 and 100.
+     * @return The estimate, in nanoseconds, or zero if no call has been
+     *         executed.
+     * @throws IllegalArgumentException If <code>percentile</code> is out of
+     *                                  range.
+     */
+    public long getExecutionPercentileNanos(double percentile) {
+        if (percentile < 0 || percentile > 100)
+            throw new IllegalArgumentException("Percentile out of range: " + percentile);
+
+        long executed = executedCalls();
+        if (executed == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(executed * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (seen >= rank)
+                return i >= 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /** Returns a copy of the execution time histogram. Element
+     <code>i</code> counts the calls that took at least <code>2^i</code> and
+     less than <code>2^(i+1)</code> nanoseconds. */
+    public long[] getHistogram() {
+        return histogram.clone();
+    }
+
+    private long executedCalls() {
+        long executed = 0;
+        for (long count : histogram)
+            executed += count;
+        return executed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s.%s: %d calls, %d errors, %d B in, %d B out, mean %d us, p99 %d us",
+                interfaceName, methodName, calls, errors, bytesIn, bytesOut,
+                getMeanExecutionNanos() / 1000, getExecutionPercentileNanos(99) / 1000);
+    }
+}
@@ -0,0 +1,85 @@
+package rmi;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Numbering of the methods of a remote interface.
+ *
+ * <p>
+ * Calls name their method by its index in this table instead of by name and
+ * parameter types. The table is computed from the interface alone - methods
+ * are sorted by their signatures - so a stub and a skeleton built from the
+ * same interface agree on it without exchanging it. The fingerprint of the
+ * table is sent when a connection is first used for an interface, and the
+ * skeleton refuses calls if it does not match its own.
+ */
+final class MethodTable {
+
+    private static final ConcurrentHashMap<Class<?>, MethodTable> tables = new ConcurrentHashMap<>();
+
+    final Class<?> remoteInterface;
+    final long fingerprint;
+    private final Method[] methods;
+    private final Map<Method, Integer> ids = new HashMap<>();
+
+    private MethodTable(Class<?> remoteInterface) {
+        this.remoteInterface = remoteInterface;
+
+        List<Method> list = new ArrayList<>();
+        for (Method m : remoteInterface.getMethods()) {
+            if (!Modifier.isStatic(m.getModifiers()))
+                list.add(m);
+        }
+        list.sort(Comparator.comparing(MethodTable::signature));
+        methods = list.toArray(new Method[0]);
+
+        long hash = 1125899906842597L;
+        hash = mix(hash, remoteInterface.getName());
+        for (int id = 0; id < methods.length; id++) {
+            ids.put(methods[id], id);
+            hash = mix(hash, signature(methods[id]));
+        }
+        fingerprint = hash;
+    }
+
+    /** Returns the method table of the given remote interface. Tables are
+     computed once per interface and shared. */
+    static MethodTable of(Class<?> remoteInterface) {
+        return tables.computeIfAbsent(remoteInterface, MethodTable::new);
+    }
+
+    /** Returns the ID of a method of the interface, or <code>-1</code> if the
+     method is not part of the table. */
+    int id(Method method) {
+        Integer id = ids.get(method);
+        return id == null ? -1 : id;
+    }
+
+    /** Returns the method with the given ID, or <code>null</code> if there is
+     no such method. */
+    Method method(int id) {
+        return id >= 0 && id < methods.length ? methods[id] : null;
+    }
+
+    int size() {
+        return methods.length;
+    }
+
+    private static String signature(Method m) {
+        return m.getName() + Arrays.toString(Arrays.stream(m.getParameterTypes()).map(Class::getName).toArray());
+    }
+
+    private static long mix(long hash, String s) {
+        for (int i = 0; i < s.length(); i++)
+            hash = 31 * hash + s.charAt(i);
+        return hash;
+    }
+}
@@ -1,24 +1,41 @@
 package rmi;
 
-import java.io.FileNotFoundException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 public class ProxyHandler implements InvocationHandler, Serializable {
 
     private InetSocketAddress address;
     private Class<?> c;
+    // numbering of the interface's methods; not serialized, as it is derived
+    // from the interface alone
+    private transient MethodTable table;
 
     public ProxyHandler(InetSocketAddress address, Class<? > c) {
         super();
         this.address = address;
         this.c = c;
+        this.table = MethodTable.of(c);
+    }
+
+    InetSocketAddress address() {
+        return address;
+    }
+
+    Class<?> remoteInterface() {
+        return c;
+    }
+
+    private MethodTable table() {
+        if (table == null)
+            table = MethodTable.of(c);
+        return table;
     }
 
 
@@ -26,63 +43,118 @@ public class ProxyHandler implements InvocationHandler, Serializable {
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
 
         String functionName = method.getName();
-        Class[] tyesOfParamates = method.getParameterTypes();
-        Object MarshalledPacket = null;
-        boolean flag = false;
-        ObjectOutputStream write = null;
-        ObjectInputStream read = null;
-        Socket new_Socket = new Socket();
 
         //Local methods - Equal(),hashcode(),toString()
-        if (functionName.equals("equals")){
-            java.lang.reflect.Proxy argument = (java.lang.reflect.Proxy) args[0];
+        if (functionName.equals("equals") && method.getParameterCount() == 1){
+            Object argument = args[0];
 
-            if (argument==null){
+            if (argument==null || !Proxy.isProxyClass(argument.getClass())){
                 return false;
             }
 
-            InetSocketAddress address1 = ((ProxyHandler)Proxy.getInvocationHandler(argument)).address;
-            Class<?> c1 = ((ProxyHandler)Proxy.getInvocationHandler(argument)).c;
+            InvocationHandler other = Proxy.getInvocationHandler(argument);
+            if (!(other instanceof ProxyHandler))
+                return false;
+
+            InetSocketAddress address1 = ((ProxyHandler)other).address;
+            Class<?> c1 = ((ProxyHandler)other).c;
 
             if (address.equals(address1) && c.equals(c1))
                 return true;
             else
                 return false;
 
-        }else if (functionName.equals("hashCode")){
+        }else if (functionName.equals("hashCode") && method.getParameterCount() == 0){
             return address.hashCode()+c.hashCode();
-        }else if (functionName.equals("toString")){
+        }else if (functionName.equals("toString") && method.getParameterCount() == 0){
             return "InetAddress of Stub is :" + address + " Interface : "+c;
-        }else {
-            try{
-
-                new_Socket.connect(address);
+        }
 
-                write = new ObjectOutputStream(new_Socket.getOutputStream());
-                read = new ObjectInputStream(new_Socket.getInputStream());
+        return remoteInvoke(method, args);
+    }
 
-                //marshaling method name,parameter types, and arguments
-                write.writeObject(functionName);
-                write.writeObject(tyesOfParamates);
-                write.writeObject(args);
+    /**
+     * Sends a call over a pooled connection and waits for its result.
+     *
+     * <p>
+     * A connection taken from the pool may be closed before the call is
+     * written to it, for example by the pool's idle evictor or by the
+     * skeleton. Such a call is retried once over another connection. A call
+     * that was written is never retried, since the skeleton may already be
+     * executing it.
+     */
+    private Object remoteInvoke(Method method, Object[] args) throws Throwable {
+
+        for (int attempt = 0; ; attempt++) {
+            Connection.Call call = send(method, args);
+
+            try {
+                return call.get();
+            } catch (ExecutionException e) {
+                if (call.mayBeRetried() && attempt == 0)
+                    continue;
+                throw e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RMIException("Interrupted while waiting for " + method.getName(), e);
+            }
+        }
+    }
 
+    /**
+     * Sends a call and returns a future for its result, with the same retry
+     * as <code>remoteInvoke</code>.
+     *
+     * @param method The remote method.
+     * @param args Arguments of the call.
+     * @return A future completed with the result of the call, or exceptionally
+     *         with the exception thrown by the remote method or an
+     *         <code>RMIException</code>.
+     */
+    CompletableFuture<Object> invokeAsync(Method method, Object[] args) {
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        invokeAsync(method, args, result, 0);
+        return result;
+    }
 
-                flag = (boolean)read.readObject();
-                MarshalledPacket = read.readObject();
+    private void invokeAsync(Method method, Object[] args, CompletableFuture<Object> result, int attempt) {
+        Connection.Call call;
+        try {
+            call = send(method, args);
+        } catch (RMIException e) {
+            result.completeExceptionally(e);
+            return;
+        }
 
-                new_Socket.close();
+        call.whenComplete((value, failure) -> {
+            if (failure == null)
+                result.complete(value);
+            else if (call.mayBeRetried() && attempt == 0)
+                invokeAsync(method, args, result, attempt + 1);
+            else
+                result.completeExceptionally(failure);
+        });
+    }
 
-            }catch (FileNotFoundException e){
-                throw new FileNotFoundException();
-            }catch (NullPointerException e){}
-            catch (Exception e){
-                new_Socket.close();
-                throw new RMIException("RMI exception");
-            }
-            if (flag == false) {
-                throw   ((Throwable) MarshalledPacket);
-            }
+    /**
+     * Sends a call without waiting for its reply.
+     *
+     * @param method The remote method.
+     * @param args Arguments of the call.
+     * @return The outstanding call.
+     * @throws RMIException If no connection to the skeleton can be opened.
+     */
+    Connection.Call send(Method method, Object[] args) throws RMIException {
+        Connection connection;
+        try {
+            connection = ConnectionPool.shared().select(address);
+        } catch (IOException e) {
+            throw new RMIException("Unable to connect to " + address, e);
         }
-        return MarshalledPacket;
+        MethodTable methods = table();
+        int id = methods.id(method);
+        if (id < 0)
+            throw new RMIException(method + " is not a method of " + c.getName());
+        return connection.send(methods, id, args);
     }
 }
@@ -0,0 +1,369 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Event-loop transport of a skeleton, selected with {@link Transport#NIO}.
+ *
+ * <p>
+ * A fixed number of event loops each own a <code>Selector</code>. The first
+ * loop also accepts connections, and hands them out to the loops in turn.
+ * Loops read whatever bytes are available, cut them into frames and pass each
+ * complete frame to the connection's <code>Skeleton.Session</code>, which
+ * queues calls for the skeleton's workers. An idle connection costs only its
+ * channel: bytes of an incomplete frame are kept per connection, but reads
+ * otherwise go through a buffer shared by the loop.
+ *
+ * <p>
+ * Replies are written by the worker that produced them when the channel can
+ * take them at once. Otherwise they are queued on the connection, and its
+ * loop writes them as the channel becomes writable.
+ */
+final class SelectorTransport {
+
+    /** Interval, in milliseconds, at which loops look for idle connections. */
+    private static final int SWEEP_INTERVAL = 1000;
+    /** Size of the read buffer shared by the connections of a loop. */
+    private static final int READ_BUFFER = 64 * 1024;
+
+    private final Skeleton<?> skeleton;
+    private final ServerSocketChannel listener;
+    private final EventLoop[] loops;
+    private int next;
+
+    /**
+     * Creates the event loops for a bound listening channel.
+     *
+     * @param skeleton The skeleton receiving the calls.
+     * @param listener The listening channel, already bound.
+     * @param count Number of event loops.
+     * @param name Prefix of the names of the event-loop threads.
+     * @throws IOException If a selector cannot be opened.
+     */
+    SelectorTransport(Skeleton<?> skeleton, ServerSocketChannel listener, int count, String name)
+            throws IOException {
+        this.skeleton = skeleton;
+        this.listener = listener;
+        this.loops = new EventLoop[count];
+
+        listener.configureBlocking(false);
+        for (int i = 0; i < count; i++)
+            loops[i] = new EventLoop(name + (i + 1));
+        listener.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+    }
+
+    void start() {
+        for (EventLoop loop : loops)
+            loop.thread.start();
+    }
+
+    /** Stops the event loops and waits for them to close their channels. The
+     listening channel is released once the first loop has exited. */
+    void stop() {
+        for (EventLoop loop : loops) {
+            loop.running = false;
+            loop.selector.wakeup();
+        }
+
+        for (EventLoop loop : loops) {
+            if (loop.thread == Thread.currentThread())
+                continue;
+            try {
+                loop.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /** Accepts every pending connection. Runs on the first event loop. */
+    private void accept() {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = listener.accept();
+                if (channel == null)
+                    return;
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                if (!skeleton.listen_error(e)) {
+                    try {
+                        listener.close();
+                    } catch (IOException ignored) { }
+                }
+                return;
+            }
+
+            skeleton.connectionOpened(channel.socket());
+            EventLoop loop = loops[next];
+            next = (next + 1) % loops.length;
+            loop.registrations.add(channel);
+            if (loop.thread != Thread.currentThread())
+                loop.selector.wakeup();
+        }
+    }
+
+    /** A thread multiplexing many connections over one selector. */
+    private final class EventLoop implements Runnable {
+
+        final Selector selector;
+        final Thread thread;
+        final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+        final ByteBuffer shared = ByteBuffer.allocate(READ_BUFFER);
+        volatile boolean running = true;
+
+        EventLoop(String name) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long lastSweep = System.nanoTime();
+            try {
+                while (running) {
+                    selector.select(SWEEP_INTERVAL);
+                    register();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid())
+                            continue;
+
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (key.isReadable())
+                            connection.read(shared);
+                        if (key.isValid() && key.isWritable())
+                            connection.flush();
+                    }
+
+                    long now = System.nanoTime();
+                    if (now - lastSweep > SWEEP_INTERVAL * 1000000L) {
+                        sweep(now);
+                        lastSweep = now;
+                    }
+                }
+            } catch (IOException e) {
+                skeleton.service_error(new RMIException("Event loop " + thread.getName() + " failed", e));
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof NioConnection)
+                        ((NioConnection) key.attachment()).close();
+                }
+                for (SocketChannel channel : registrations)
+                    close(channel);
+                try {
+                    selector.close();
+                } catch (IOException ignored) { }
+            }
+        }
+
+        /** Registers the connections handed to this loop since the last
+         select. */
+        private void register() {
+            SocketChannel channel;
+            while ((channel = registrations.poll()) != null) {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new NioConnection(channel, key));
+                } catch (IOException e) {
+                    close(channel);
+                }
+            }
+        }
+
+        /** Closes the connections on which nothing has happened for
+         <code>Skeleton.IDLE_TIMEOUT</code> and no call is in progress, as the
+         blocking transport does. */
+        private void sweep(long now) {
+            for (SelectionKey key : selector.keys()) {
+                if (!(key.attachment() instanceof NioConnection))
+                    continue;
+                NioConnection connection = (NioConnection) key.attachment();
+                if (connection.idle(now))
+                    connection.close();
+            }
+        }
+
+        private void close(SocketChannel channel) {
+            skeleton.connectionClosed(channel.socket());
+            try {
+                channel.close();
+            } catch (IOException ignored) { }
+        }
+    }
+
+    /** One connection served by an event loop. */
+    private final class NioConnection implements Skeleton.Link {
+
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final Skeleton<?>.Session session;
+        /** Bytes of an incomplete frame, or <code>null</code> if there are
+         none. Only used by the event loop. */
+        private ByteBuffer partial;
+        /** Replies waiting for the channel to become writable; guarded by
+         itself. */
+        private final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+        private volatile long lastActivity = System.nanoTime();
+
+        NioConnection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+            this.session = skeleton.newSession(this);
+        }
+
+        /** Reads the available bytes and handles every complete frame. */
+        void read(ByteBuffer shared) {
+            ByteBuffer buffer = partial != null ? partial : shared;
+            try {
+                if (channel.read(buffer) < 0) {
+                    close();
+                    return;
+                }
+                lastActivity = System.nanoTime();
+
+                buffer.flip();
+                int needed = 4;
+                while (buffer.remaining() >= 4) {
+                    int length = buffer.getInt(buffer.position());
+                    if (length < 1 || length > WireFormat.MAX_FRAME)
+                        throw new StreamCorruptedException("Invalid RMI frame length " + length);
+
+                    needed = 4 + length;
+                    if (buffer.remaining() < needed)
+                        break;
+
+                    byte[] frame = new byte[length];
+                    buffer.getInt();
+                    buffer.get(frame);
+                    session.received(frame);
+                    needed = 4;
+                }
+
+                keep(buffer, shared, needed);
+            } catch (IOException e) {
+                close();
+            } catch (RuntimeException e) {
+                skeleton.service_error(new RMIException("Malformed call received from "
+                        + channel.socket().getRemoteSocketAddress(), e));
+                close();
+            }
+        }
+
+        /** Keeps the unread bytes of <code>buffer</code>, in a buffer large
+         enough for the frame they start, until more bytes arrive. */
+        private void keep(ByteBuffer buffer, ByteBuffer shared, int needed) {
+            if (!buffer.hasRemaining()) {
+                partial = null;
+                shared.clear();
+                return;
+            }
+
+            if (buffer != shared && buffer.capacity() >= needed) {
+                buffer.compact();
+                return;
+            }
+
+            ByteBuffer kept = ByteBuffer.allocate(Math.max(needed, buffer.remaining()));
+            kept.put(buffer);
+            partial = kept;
+            shared.clear();
+        }
+
+        /** Sends a reply, writing it at once if the channel accepts it all and
+         no earlier reply is waiting. */
+        @Override
+        public void send(WireFormat.Frame frame) throws IOException {
+            ByteBuffer buffer = frame.toBuffer();
+            synchronized (output) {
+                if (!channel.isOpen())
+                    throw new ClosedChannelException();
+
+                if (output.isEmpty()) {
+                    channel.write(buffer);
+                    if (!buffer.hasRemaining()) {
+                        lastActivity = System.nanoTime();
+                        return;
+                    }
+                }
+
+                output.add(buffer);
+                if (output.size() == 1) {
+                    try {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    } catch (CancelledKeyException e) {
+                        throw new ClosedChannelException();
+                    }
+                    key.selector().wakeup();
+                }
+            }
+        }
+
+        /** Writes queued replies. Runs on the event loop when the channel is
+         writable. */
+        void flush() {
+            synchronized (output) {
+                try {
+                    while (!output.isEmpty()) {
+                        ByteBuffer buffer = output.peek();
+                        channel.write(buffer);
+                        if (buffer.hasRemaining())
+                            return;
+                        output.poll();
+                    }
+                    lastActivity = System.nanoTime();
+                    key.interestOps(SelectionKey.OP_READ);
+                } catch (IOException | CancelledKeyException e) {
+                    close();
+                }
+            }
+        }
+
+        /** Returns <code>true</code> if nothing has been received or sent
+         for <code>Skeleton.IDLE_TIMEOUT</code>, and no call received over the
+         connection is still running or waiting to send its reply. */
+        boolean idle(long now) {
+            if (now - lastActivity < Skeleton.IDLE_TIMEOUT * 1000000L)
+                return false;
+            if (session.outstanding() > 0)
+                return false;
+            synchronized (output) {
+                return output.isEmpty();
+            }
+        }
+
+        @Override
+        public void close() {
+            key.cancel();
+            skeleton.connectionClosed(channel.socket());
+            try {
+                channel.close();
+            } catch (IOException ignored) { }
+        }
+    }
+}
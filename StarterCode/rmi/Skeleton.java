@@ -1,14 +1,38 @@
 package rmi;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.StreamCorruptedException;
 import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Arrays;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /** RMI skeleton
 
@@ -31,15 +55,65 @@ import java.util.Random;
  The skeleton's response to these exceptions can be customized by deriving
  a class from <code>Skeleton</code> and overriding <code>listen_error</code>
  or <code>service_error</code>.
+
+ <p>
+ Connections are persistent and multiplexed: a stub may send many calls over
+ one connection without waiting for earlier replies. Each call carries a call
+ ID, which the reply repeats, so replies may be sent in any order. Calls name
+ their method by its ID in the interface's method table, and arguments and
+ results use the compact encodings of <code>WireFormat</code>. A thread
+ per connection reads the calls and hands them to a bounded pool of worker
+ threads; when both the workers and the queue are full, the call fails with an
+ <code>RMIException</code> and is counted as rejected. The pool size and
+ queue capacity can be changed with <code>setWorkerPool</code> while the
+ skeleton is stopped. Alternatively, <code>setDispatchMode</code> selects
+ {@link DispatchMode#VIRTUAL_THREADS}, in which connections are read and
+ calls are executed on virtual threads.
+
+ <p>
+ With the {@link Transport#NIO} transport, selected by
+ <code>setTransport</code>, connections are not given a thread each: a few
+ event loops read all connections and hand complete calls to the workers.
  */
 public class Skeleton<T>
 {
+    /** Default number of worker threads executing calls. */
+    public static final int DEFAULT_WORKER_THREADS =
+            Math.max(16, 4 * Runtime.getRuntime().availableProcessors());
+    /** Default number of received calls waiting for a worker. */
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+    /** Time, in milliseconds, after which a connection on which no call
+     arrives, and no call is in progress, is closed by the skeleton. */
+    public static final int IDLE_TIMEOUT = 60000;
+    /** Length of the queue of connections waiting to be accepted. The
+     platform default of 50 makes bursts of new connections time out when
+     thousands of clients connect at once. */
+    public static final int LISTEN_BACKLOG = 1024;
+    /** Default number of event-loop threads of the {@link Transport#NIO}
+     transport. */
+    public static final int DEFAULT_EVENT_LOOPS = Runtime.getRuntime().availableProcessors();
+
     private InetSocketAddress address;
     private  Class<T> obj;
+    private MethodTable methods;
+    private DispatchTable dispatch;
     private T server;
     private ServerSocket serverSocket=null;
-    private Socket listen;
     private ListenThread listenThread;
+    private SelectorTransport selectorTransport;
+
+    private int workerThreads = DEFAULT_WORKER_THREADS;
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private DispatchMode dispatchMode = DispatchMode.PLATFORM_POOL;
+    private Transport transport = Transport.BLOCKING;
+    private int eventLoops = DEFAULT_EVENT_LOOPS;
+    private ExecutorService workers;
+    private ExecutorService readers;
+    private final AtomicInteger activeCalls = new AtomicInteger();
+    private final Set<Socket> openConnections = ConcurrentHashMap.newKeySet();
+    private final AtomicLong acceptedConnections = new AtomicLong();
+    private final AtomicLong rejectedCalls = new AtomicLong();
+    private final CallMetrics metrics = new CallMetrics();
 
     /** Creates a <code>Skeleton</code> with no initial server address. The
      address will be determined by the system when <code>start</code> is
@@ -72,6 +146,8 @@ public class Skeleton<T>
             throw new NullPointerException("Server or object c is null.");
 
         this.obj = c;
+        this.methods = MethodTable.of(c);
+        this.dispatch = new DispatchTable(methods, server);
         this.server = server;
     }
 
@@ -107,6 +183,8 @@ public class Skeleton<T>
 
 
         this.obj = c;
+        this.methods = MethodTable.of(c);
+        this.dispatch = new DispatchTable(methods, server);
         this.server = server;
         this.address = address;
 
@@ -202,6 +280,9 @@ public class Skeleton<T>
      */
     public synchronized void start() throws RMIException {
 
+        if (isRunning())
+            throw new RMIException("Skeleton is already running");
+
         try {
             if (address==null){
 
@@ -220,12 +301,229 @@ public class Skeleton<T>
                 }
             }
 
-            serverSocket = new ServerSocket(address.getPort());
-            listenThread = new ListenThread();
+            if (transport == Transport.NIO) {
+                ServerSocketChannel channel = ServerSocketChannel.open();
+                try {
+                    channel.bind(new InetSocketAddress(address.getPort()), LISTEN_BACKLOG);
+                    selectorTransport = new SelectorTransport(this, channel, eventLoops, threadName("loop-"));
+                } catch (IOException e) {
+                    channel.close();
+                    throw e;
+                }
+                serverSocket = channel.socket();
+                workers = createWorkers();
+                selectorTransport.start();
+                return;
+            }
+
+            serverSocket = new ServerSocket(address.getPort(), LISTEN_BACKLOG);
+            workers = createWorkers();
+            readers = threadPerTask(threadName("connection-"),
+                    dispatchMode == DispatchMode.VIRTUAL_THREADS);
+            listenThread = new ListenThread(serverSocket, readers);
+            listenThread.setName(threadName("listener"));
             listenThread.start();
 
-        } catch (IOException e) {  }
+        } catch (IOException e) {
+            throw new RMIException("Unable to listen on port " + address.getPort(), e);
+        }
+    }
+
+    /** Sets the size of the worker pool and of the queue of received calls
+     waiting for a worker.
+
+     <p>
+     The new values take effect the next time the skeleton is started.
+
+     @param threads Number of worker threads executing calls.
+     @param queueCapacity Number of received calls that may wait for a free
+     worker before further calls are rejected.
+     @throws IllegalArgumentException If <code>threads</code> is less than one
+     or <code>queueCapacity</code> is negative.
+     @throws IllegalStateException If the skeleton is running.
+     */
+    public synchronized void setWorkerPool(int threads, int queueCapacity) {
+        if (threads < 1 || queueCapacity < 0)
+            throw new IllegalArgumentException("Worker pool needs at least one thread and a non-negative queue");
+
+        if (isRunning())
+            throw new IllegalStateException("Worker pool cannot be changed while the skeleton is running");
+
+        this.workerThreads = threads;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /** Returns the number of received calls waiting for a worker. This is
+     always zero in {@link DispatchMode#VIRTUAL_THREADS} mode. */
+    public int getQueueDepth() {
+        ExecutorService pool = workers;
+        if (pool instanceof ThreadPoolExecutor)
+            return ((ThreadPoolExecutor) pool).getQueue().size();
+        return 0;
+    }
+
+    /** Returns the number of calls currently being executed. */
+    public int getActiveWorkers() {
+        return activeCalls.get();
+    }
 
+    /** Returns the number of connections currently open. */
+    public int getOpenConnections() {
+        return openConnections.size();
+    }
+
+    /** Returns the number of connections accepted since the skeleton was
+     created. */
+    public long getAcceptedConnections() {
+        return acceptedConnections.get();
+    }
+
+    /** Returns the number of calls failed without being executed because the
+     worker pool and its queue were full. */
+    public long getRejectedCalls() {
+        return rejectedCalls.get();
+    }
+
+    /** Returns the per-method metrics of the calls received by this
+     skeleton. */
+    public CallMetrics getMetrics() {
+        return metrics;
+    }
+
+    /** Selects how connections are read and calls are executed.
+
+     <p>
+     The new mode takes effect the next time the skeleton is started. The
+     worker pool settings are only used in
+     {@link DispatchMode#PLATFORM_POOL} mode.
+
+     @param mode The dispatch mode.
+     @throws NullPointerException If <code>mode</code> is <code>null</code>.
+     @throws IllegalStateException If the skeleton is running.
+     */
+    public synchronized void setDispatchMode(DispatchMode mode) {
+        if (mode == null)
+            throw new NullPointerException("Dispatch mode is null");
+
+        if (isRunning())
+            throw new IllegalStateException("Dispatch mode cannot be changed while the skeleton is running");
+
+        this.dispatchMode = mode;
+    }
+
+    /** Returns the mode in which calls are dispatched. */
+    public synchronized DispatchMode getDispatchMode() {
+        return dispatchMode;
+    }
+
+    /** Selects how connections are accepted and read.
+
+     <p>
+     The new transport takes effect the next time the skeleton is started.
+
+     @param transport The transport.
+     @throws NullPointerException If <code>transport</code> is
+     <code>null</code>.
+     @throws IllegalStateException If the skeleton is running.
+     */
+    public synchronized void setTransport(Transport transport) {
+        if (transport == null)
+            throw new NullPointerException("Transport is null");
+
+        if (isRunning())
+            throw new IllegalStateException("Transport cannot be changed while the skeleton is running");
+
+        this.transport = transport;
+    }
+
+    /** Returns the transport accepting and reading connections. */
+    public synchronized Transport getTransport() {
+        return transport;
+    }
+
+    /** Sets the number of event-loop threads used by the
+     {@link Transport#NIO} transport.
+
+     <p>
+     The new value takes effect the next time the skeleton is started.
+
+     @param loops Number of event loops.
+     @throws IllegalArgumentException If <code>loops</code> is less than one.
+     @throws IllegalStateException If the skeleton is running.
+     */
+    public synchronized void setEventLoops(int loops) {
+        if (loops < 1)
+            throw new IllegalArgumentException("At least one event loop is needed");
+
+        if (isRunning())
+            throw new IllegalStateException("Event loops cannot be changed while the skeleton is running");
+
+        this.eventLoops = loops;
+    }
+
+    private synchronized boolean isRunning() {
+        return serverSocket != null && !serverSocket.isClosed();
+    }
+
+    /** Creates the executor running calls for one run of the skeleton. Each
+     skeleton names its threads after the remote interface and port so that
+     they can be told apart in thread dumps. */
+    private ExecutorService createWorkers() {
+        if (dispatchMode == DispatchMode.VIRTUAL_THREADS)
+            return threadPerTask(threadName("call-"), true);
+
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread t = new Thread(r, threadName("worker-" + counter.incrementAndGet()));
+            t.setDaemon(true);
+            return t;
+        };
+
+        BlockingQueue<Runnable> queue = queueCapacity == 0
+                ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(queueCapacity);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(workerThreads, workerThreads,
+                60, TimeUnit.SECONDS, queue, factory, new ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /** Creates an executor starting one thread per task.
+
+     <p>
+     Virtual threads are looked up reflectively so that the library still
+     builds and runs on runtimes that predate them. Without them, each task is
+     given its own daemon platform thread, which keeps the unbounded
+     thread-per-task behaviour.
+
+     @param prefix Prefix of the names of the threads.
+     @param virtual Whether virtual threads should be used if available.
+     */
+    private static ExecutorService threadPerTask(String prefix, boolean virtual) {
+        if (virtual) {
+            try {
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+                builder = builderType.getMethod("name", String.class, long.class).invoke(builder, prefix, 1L);
+                ThreadFactory factory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+                return (ExecutorService) Executors.class
+                        .getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+            } catch (ReflectiveOperationException e) {
+                // fall back to platform threads
+            }
+        }
+
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread t = new Thread(r, prefix + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), factory);
+    }
+
+    private String threadName(String role) {
+        return "skeleton-" + obj.getSimpleName() + "-" + address.getPort() + "-" + role;
     }
 
     /**
@@ -257,70 +555,361 @@ public class Skeleton<T>
     //multithreaded skeleton server which is able to attend multiple client requests
     public class ListenThread extends Thread {
 
+        private final ServerSocket socket;
+        private final ExecutorService pool;
+
+        ListenThread(ServerSocket socket, ExecutorService pool) {
+            this.socket = socket;
+            this.pool = pool;
+        }
+
         @Override
         public void run() {
 
-            while (true) {
+            while (!socket.isClosed()) {
+                Socket accepted;
                 try {
+                    accepted = socket.accept();
+                } catch (SocketException e) {
+                    // thrown when stop() closes the listening socket
+                    if (socket.isClosed())
+                        break;
+                    if (!listen_error(e))
+                        break;
+                    continue;
+                } catch (Exception e) {
+                    if (!listen_error(e))
+                        break;
+                    continue;
+                }
 
-                    listen = serverSocket.accept();
-                    ClientThread clientThread = new ClientThread(listen);
-                    clientThread.run();
-
-                } catch (Exception e) { }
+                acceptedConnections.incrementAndGet();
+                try {
+                    pool.execute(new ClientThread(accepted));
+                } catch (RejectedExecutionException e) {
+                    // the skeleton is being stopped
+                    try {
+                        accepted.close();
+                    } catch (IOException ignored) { }
+                }
             }
+
+            pool.shutdown();
         }
     }
 
-    public class ClientThread implements Runnable {
+    /** Reads the calls arriving over one connection.
+
+     <p>
+     Connections are persistent: the stub may send any number of calls over
+     the same connection, without waiting for earlier replies. Each call is
+     handed to the worker pool, and its reply is written as soon as it
+     completes. The thread returns when the stub closes the connection, when
+     no call arrives for <code>IDLE_TIMEOUT</code> milliseconds while none is
+     in progress, or when the skeleton is stopped.
+     */
+    public class ClientThread implements Runnable, Link {
 
         Socket client;
-        ObjectOutputStream write;
-        ObjectInputStream read;
+        DataOutputStream write;
+        DataInputStream read;
+        ExecutorService calls;
+        Session session;
 
 
         public ClientThread(Socket c) {
             client = c;
-
+            calls = workers;
+            session = new Session(this);
         }
 
         @Override
         public void run() {
+            openConnections.add(client);
+            try {
+                serve();
+            } finally {
+                openConnections.remove(client);
+                close();
+            }
+        }
 
+        private void serve() {
 
             try {
-                read = new ObjectInputStream(client.getInputStream());
-                write = new ObjectOutputStream(client.getOutputStream());
+                client.setTcpNoDelay(true);
+                client.setSoTimeout(IDLE_TIMEOUT);
+
+                write = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
+                read = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+
+                while (true) {
+                    int length;
+                    try {
+                        length = WireFormat.readLength(read);
+                    } catch (EOFException e) {
+                        // the stub closed the connection
+                        return;
+                    } catch (SocketTimeoutException e) {
+                        // the connection is only idle if no call is still
+                        // running on a worker
+                        if (session.outstanding() > 0)
+                            continue;
+                        return;
+                    }
 
-                String function_name = (String) read.readObject();
-                Class[] parameterTypes = (Class[]) read.readObject();
-                Object[] args = (Object[]) read.readObject();
+                    byte type = read.readByte();
+                    if (type == WireFormat.BIND) {
+                        session.bind(read);
+                    } else if (type == WireFormat.CALL) {
+                        session.begin();
+                        session.call(read, length, calls, -1);
+                    } else
+                        throw new StreamCorruptedException("Unexpected RMI frame type " + type);
+                }
 
-                Method method = obj.getDeclaredMethod(function_name, parameterTypes);
+            } catch (IOException e) {
+                // the connection was closed by the stub or by stop(), or the
+                // stream is corrupt
+            } catch (Exception e) {
+                service_error(new RMIException("Malformed call received from " + client.getRemoteSocketAddress(), e));
+            }
 
-                Object output = null;
-                if (args!=null){
-                    output = method.invoke(server, args);
-                }
+        }
+
+        /** Writes a reply. Replies from different workers are written one at
+         a time, each as a whole. */
+        @Override
+        public void send(WireFormat.Frame frame) throws IOException {
+            synchronized (write) {
+                frame.writeTo(write);
+                write.flush();
+            }
+        }
 
-                write.writeObject(true);
-                write.writeObject(output);
+        @Override
+        public void close() {
+            try {
                 client.close();
+            } catch (IOException ignored) { }
+        }
 
+    }
 
-            } catch (Exception e) {
+    /** The connection over which a <code>Session</code> sends its replies. */
+    interface Link {
+
+        /** Sends a frame. Frames sent concurrently must not be interleaved. */
+        void send(WireFormat.Frame frame) throws IOException;
+
+        /** Closes the connection. */
+        void close();
+    }
+
+    /** Creates the handler of the frames received over a new connection. */
+    Session newSession(Link link) {
+        return new Session(link);
+    }
+
+    /** Handles the frames received over one connection, whatever the
+     transport that receives them. */
+    class Session {
+
+        private final Link link;
+        private final ExecutorService calls = workers;
+        // slots of the interfaces bound by the stub side; a slot is usable
+        // only if it was bound to this skeleton's interface and method table
+        private final boolean[] bound = new boolean[256];
+        // calls received whose replies have not been sent; the connection is
+        // not idle while there are any
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        Session(Link link) {
+            this.link = link;
+        }
+
+        /** Counts a call frame received over the connection. The call is
+         counted until its reply is sent. */
+        void begin() {
+            outstanding.incrementAndGet();
+        }
+
+        /** Returns the number of calls received over the connection whose
+         replies have not been sent. */
+        int outstanding() {
+            return outstanding.get();
+        }
+
+        /** Handles a whole frame. <code>BIND</code> frames are applied at
+         once, so that they take effect before the calls that follow them;
+         <code>CALL</code> frames are decoded and executed by a worker. */
+        void received(byte[] frame) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+            byte type = in.readByte();
+            if (type == WireFormat.BIND) {
+                bind(in);
+                return;
+            }
+
+            if (type != WireFormat.CALL)
+                throw new StreamCorruptedException("Unexpected RMI frame type " + type);
+
+            long queued = System.nanoTime();
+            begin();
+            try {
+                calls.execute(() -> {
+                    try {
+                        call(in, frame.length, Runnable::run, queued);
+                    } catch (IOException e) {
+                        // the frame is corrupt
+                        outstanding.decrementAndGet();
+                        link.close();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                ByteBuffer header = ByteBuffer.wrap(frame);
+                reject(header.getInt(1), header.getShort(WireFormat.CALL_SLOT_OFFSET + 1) & 0xffff, e);
+            }
+        }
+
+        /** Handles a <code>BIND</code> frame whose type has been read. */
+        void bind(DataInput in) throws IOException {
+            int slot = in.readUnsignedByte();
+            String name = WireFormat.readString(in);
+            long fingerprint = in.readLong();
+            bound[slot] = name.equals(obj.getName()) && fingerprint == methods.fingerprint;
+        }
+
+        /** Handles a <code>CALL</code> frame whose type has been read: decodes
+         the arguments and has the call executed by <code>executor</code>.
+
+         @param queued Time at which the frame was queued for a worker before
+         it was decoded, or <code>-1</code> if it is queued by
+         <code>executor</code> once decoded. */
+        void call(DataInput in, int length, Executor executor, long queued) throws IOException {
+            long started = System.nanoTime();
+            int id = in.readInt();
+            int slot = in.readUnsignedByte();
+            int methodId = in.readUnsignedShort();
+            Method method = dispatch.method(methodId);
+
+            if (!bound[slot] || method == null) {
+                WireFormat.skipFully(in, length - WireFormat.CALL_HEADER);
+                respond(id, false, new RMIException("Call does not match the interface " + obj.getName()), null);
+                return;
+            }
+
+            MethodMetrics counters = metrics.method(methods, methodId);
+            counters.bytesIn(4 + length);
+
+            Object[] args = new Object[method.getParameterCount()];
+            IOException undecodable = null;
+            for (int i = 0; i < args.length; i++) {
                 try {
-                    write.writeObject(false);
-                    write.writeObject(e.getCause());
-                    client.close();
-                } catch (IOException e1) {
-                    System.out.println("Error in writing exception");
+                    args[i] = WireFormat.readValue(in);
+                } catch (WireFormat.UndecodableValueException e) {
+                    // the value was read in full, so the stream is still
+                    // intact and the other arguments can be read
+                    undecodable = e;
                 }
+            }
 
+            long decoded = System.nanoTime();
+            counters.serialization(decoded - started);
+
+            if (undecodable != null) {
+                counters.failed();
+                respond(id, false, new RMIException("Unable to decode arguments of " + method.getName(), undecodable), counters);
+                return;
             }
 
+            // time spent decoding on a worker is not time spent waiting for it
+            long ready = queued < 0 ? decoded : queued + (decoded - started);
+            try {
+                executor.execute(() -> execute(id, methodId, args, counters, ready));
+            } catch (RejectedExecutionException e) {
+                reject(id, methodId, e);
+            }
+        }
+
+        private void reject(int id, int methodId, RejectedExecutionException e) {
+            rejectedCalls.incrementAndGet();
+            Method method = dispatch.method(methodId);
+            String name = method == null ? "" : " " + method.getName();
+            MethodMetrics counters = metrics.method(methods, methodId);
+            if (counters != null)
+                counters.failed();
+            respond(id, false, new RMIException("Call" + name + " rejected: skeleton is overloaded", e), counters);
+        }
+
+        private void execute(int id, int methodId, Object[] args, MethodMetrics counters, long ready) {
+            activeCalls.incrementAndGet();
+            long started = System.nanoTime();
+            counters.queueWait(started - ready);
+
+            boolean success;
+            Object output;
+            try {
+                output = dispatch.invoke(methodId, args);
+                success = true;
+            } catch (Throwable t) {
+                output = t;
+                success = false;
+            } finally {
+                activeCalls.decrementAndGet();
+            }
+
+            counters.completed(System.nanoTime() - started, success);
+            respond(id, success, output, counters);
         }
 
+        /** Encodes the reply to a call on the calling thread and sends it.
+         The encoding time and size are added to <code>counters</code>, if
+         not <code>null</code>. */
+        private void respond(int id, boolean success, Object output, MethodMetrics counters) {
+            try {
+                reply(id, success, output, counters);
+            } finally {
+                outstanding.decrementAndGet();
+            }
+        }
+
+        private void reply(int id, boolean success, Object output, MethodMetrics counters) {
+            try {
+                long started = System.nanoTime();
+                WireFormat.Frame frame;
+                try {
+                    frame = new WireFormat.Frame(success ? WireFormat.RESULT : WireFormat.FAILURE);
+                    frame.writeInt(id);
+                    WireFormat.writeValue(frame, output);
+                } catch (IOException e) {
+                    frame = new WireFormat.Frame(WireFormat.FAILURE);
+                    frame.writeInt(id);
+                    WireFormat.writeValue(frame, new RMIException("Unable to encode the result of the call", e));
+                }
+
+                if (counters != null) {
+                    counters.serialization(System.nanoTime() - started);
+                    counters.bytesOut(4 + frame.length());
+                }
+                link.send(frame);
+            } catch (IOException e) {
+                // the reply cannot be delivered; closing the connection makes
+                // the stub fail every call still outstanding on it
+                link.close();
+            }
+        }
+    }
+
+    /** Records a connection accepted by a transport other than the listening
+     thread, so that it is counted and closed when the skeleton stops. */
+    void connectionOpened(Socket connection) {
+        acceptedConnections.incrementAndGet();
+        openConnections.add(connection);
+    }
+
+    void connectionClosed(Socket connection) {
+        openConnections.remove(connection);
     }
 
         /** Stops the skeleton server, if it is already running.
@@ -341,6 +930,31 @@ public class Skeleton<T>
         } catch (IOException e) {
             e.printStackTrace();
         }
+        // the listening socket is only released once the thread blocked in
+        // accept() has left it; until then new connections may still succeed
+        if (listenThread != null && listenThread != Thread.currentThread()) {
+            try {
+                listenThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // the event loops close the channels they serve, and with them the
+        // listening channel
+        if (selectorTransport != null) {
+            selectorTransport.stop();
+            selectorTransport = null;
+        }
+        if (workers != null)
+            workers.shutdown();
+        if (readers != null)
+            readers.shutdown();
+        // persistent connections would otherwise keep being served
+        for (Socket connection : openConnections) {
+            try {
+                connection.close();
+            } catch (IOException ignored) { }
+        }
         stopped(null);
     }
 
@@ -0,0 +1,26 @@
+package rmi;
+
+/** Ways in which a <code>Skeleton</code> can accept and read its
+    connections.
+
+    <p>
+    The transport is chosen with <code>Skeleton.setTransport</code> before the
+    skeleton is started. It is independent of the {@link DispatchMode}, which
+    decides how the calls received are executed.
+ */
+public enum Transport
+{
+    /** A listening thread accepts connections with a blocking
+        <code>ServerSocket</code>, and each connection is read by its own
+        thread. Idle connections therefore each hold a thread. */
+    BLOCKING,
+
+    /** Connections are accepted and read by a small number of event-loop
+        threads, each multiplexing many non-blocking channels with a
+        <code>Selector</code>. The event loops only assemble frames; complete
+        calls are decoded and executed by the skeleton's workers. Idle
+        connections hold no thread, so this transport suits servers with
+        thousands of mostly idle connections. The number of event loops is set
+        with <code>Skeleton.setEventLoops</code>. */
+    NIO
+}
@@ -0,0 +1,379 @@
+package rmi;
+
+import common.Path;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Binary wire format of the RMI library.
+ *
+ * <p>
+ * Every message is a frame: a four-byte length followed by that many bytes.
+ * The first byte of a frame gives its type:
+ *
+ * <ul>
+ * <li><code>BIND</code>: slot (byte), interface name (string), method table
+ *     fingerprint (long). Sent by the stub side the first time a connection
+ *     is used for a remote interface. Later calls refer to the interface by
+ *     its slot.</li>
+ * <li><code>CALL</code>: call ID (int), slot (byte), method ID (short), then
+ *     one encoded value per parameter.</li>
+ * <li><code>RESULT</code> and <code>FAILURE</code>: call ID (int), then the
+ *     encoded return value or exception.</li>
+ * </ul>
+ *
+ * <p>
+ * Values are written as a one-byte tag followed by the value. The types that
+ * the filesystem interfaces exchange - <code>boolean</code>,
+ * <code>int</code>, <code>long</code>, <code>byte[]</code>,
+ * <code>String</code>, <code>String[]</code>, <code>Path</code>,
+ * <code>Path[]</code> and stubs - have compact encodings. Any other
+ * serializable value, including exceptions, falls back to Java serialization.
+ */
+final class WireFormat {
+
+    static final byte BIND = 1;
+    static final byte CALL = 2;
+    static final byte RESULT = 3;
+    static final byte FAILURE = 4;
+
+    /** Position of the slot in a <code>CALL</code> frame. The slot is only
+     known once the stream lock is held, so it is filled in last. */
+    static final int CALL_SLOT_OFFSET = 5;
+    /** Length of a <code>CALL</code> frame before its arguments. */
+    static final int CALL_HEADER = 8;
+
+    /** Largest frame accepted from the network. */
+    static final int MAX_FRAME = 256 * 1024 * 1024;
+
+    private static final byte NULL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte INT = 3;
+    private static final byte LONG = 4;
+    private static final byte BYTES = 5;
+    private static final byte STRING = 6;
+    private static final byte STRING_ARRAY = 7;
+    private static final byte PATH = 8;
+    private static final byte PATH_ARRAY = 9;
+    private static final byte STUB = 10;
+    private static final byte SERIALIZED = 11;
+
+    private static final ConcurrentHashMap<String, Class<?>> interfaces = new ConcurrentHashMap<>();
+
+    private WireFormat() {
+    }
+
+    /**
+     * A frame being assembled in memory.
+     *
+     * <p>
+     * The frame is written through the <code>DataOutputStream</code> methods
+     * and then sent, with its length, by <code>writeTo</code>.
+     */
+    static final class Frame extends DataOutputStream {
+
+        Frame(byte type) throws IOException {
+            super(new Buffer());
+            writeByte(type);
+        }
+
+        /** Writes the length and contents of the frame to a stream. */
+        void writeTo(DataOutputStream stream) throws IOException {
+            Buffer buffer = (Buffer) out;
+            stream.writeInt(buffer.size());
+            stream.write(buffer.array(), 0, buffer.size());
+        }
+
+        /** Returns the length and contents of the frame in a buffer ready to
+         be written to a channel. */
+        ByteBuffer toBuffer() {
+            Buffer buffer = (Buffer) out;
+            ByteBuffer frame = ByteBuffer.allocate(4 + buffer.size());
+            frame.putInt(buffer.size()).put(buffer.array(), 0, buffer.size()).flip();
+            return frame;
+        }
+
+        /** Overwrites a byte already written to the frame. */
+        void patch(int position, int value) {
+            ((Buffer) out).array()[position] = (byte) value;
+        }
+
+        /** Returns the number of bytes in the frame, without its length. */
+        int length() {
+            return ((Buffer) out).size();
+        }
+    }
+
+    /** Byte array output stream giving access to its array without a copy. */
+    private static final class Buffer extends ByteArrayOutputStream {
+
+        Buffer() {
+            super(64);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    /** Reads the length of the next frame and checks that it is sensible. */
+    static int readLength(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 1 || length > MAX_FRAME)
+            throw new StreamCorruptedException("Invalid RMI frame length " + length);
+        return length;
+    }
+
+    /**
+     * Writes a value with its tag.
+     *
+     * @param out Stream to write to.
+     * @param value Value to write; may be <code>null</code>.
+     * @throws IOException If the value cannot be written, for example because
+     *                     it is not serializable.
+     */
+    static void writeValue(DataOutput out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Integer) {
+            out.writeByte(INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            out.writeByte(BYTES);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof String[]) {
+            String[] strings = (String[]) value;
+            out.writeByte(STRING_ARRAY);
+            out.writeInt(strings.length);
+            for (String s : strings)
+                writeNullableString(out, s);
+        } else if (value.getClass() == Path.class) {
+            out.writeByte(PATH);
+            writeString(out, value.toString());
+        } else if (value.getClass() == Path[].class) {
+            Path[] paths = (Path[]) value;
+            out.writeByte(PATH_ARRAY);
+            out.writeInt(paths.length);
+            for (Path p : paths)
+                writeNullableString(out, p == null ? null : p.toString());
+        } else if (isStub(value)) {
+            ProxyHandler handler = (ProxyHandler) Proxy.getInvocationHandler(value);
+            out.writeByte(STUB);
+            writeString(out, handler.remoteInterface().getName());
+            writeAddress(out, handler.address());
+        } else {
+            out.writeByte(SERIALIZED);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream stream = new ObjectOutputStream(bytes)) {
+                stream.writeObject(value);
+            }
+            out.writeInt(bytes.size());
+            out.write(bytes.toByteArray());
+        }
+    }
+
+    /**
+     * Reads a value written by <code>writeValue</code>.
+     *
+     * @param in Stream to read from.
+     * @return The value, which may be <code>null</code>.
+     * @throws IOException If the stream is malformed or the value cannot be
+     *                     deserialized.
+     */
+    static Object readValue(DataInput in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case INT:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case BYTES: {
+                byte[] bytes = new byte[checkedLength(in.readInt())];
+                in.readFully(bytes);
+                return bytes;
+            }
+            case STRING:
+                return readString(in);
+            case STRING_ARRAY: {
+                String[] strings = new String[checkedLength(in.readInt())];
+                for (int i = 0; i < strings.length; i++)
+                    strings[i] = readNullableString(in);
+                return strings;
+            }
+            case PATH:
+                return new Path(readString(in));
+            case PATH_ARRAY: {
+                Path[] paths = new Path[checkedLength(in.readInt())];
+                for (int i = 0; i < paths.length; i++) {
+                    String s = readNullableString(in);
+                    paths[i] = s == null ? null : new Path(s);
+                }
+                return paths;
+            }
+            case STUB: {
+                String name = readString(in);
+                InetSocketAddress address = readAddress(in);
+                Class<?> remoteInterface = interfaceNamed(name);
+                return Proxy.newProxyInstance(remoteInterface.getClassLoader(),
+                        new Class<?>[]{remoteInterface}, new ProxyHandler(address, remoteInterface));
+            }
+            case SERIALIZED: {
+                byte[] bytes = new byte[checkedLength(in.readInt())];
+                in.readFully(bytes);
+                try (ObjectInputStream stream = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                    return stream.readObject();
+                } catch (ClassNotFoundException | IOException e) {
+                    throw new UndecodableValueException("Unable to deserialize RMI value", e);
+                }
+            }
+            default:
+                throw new StreamCorruptedException("Unknown RMI value tag " + tag);
+        }
+    }
+
+    static void writeString(DataOutput out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[checkedLength(in.readInt())];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeNullableString(DataOutput out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        writeString(out, s);
+    }
+
+    private static String readNullableString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length == -1)
+            return null;
+
+        byte[] bytes = new byte[checkedLength(length)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Writes a socket address without resolving it. Resolved addresses are
+     written as raw IP addresses so that reading them needs no name lookup and
+     the result compares equal to the original. */
+    private static void writeAddress(DataOutput out, InetSocketAddress address) throws IOException {
+        InetAddress ip = address.getAddress();
+        writeString(out, address.getHostString());
+        out.writeInt(address.getPort());
+        if (ip == null) {
+            out.writeByte(0);
+        } else {
+            byte[] raw = ip.getAddress();
+            out.writeByte(raw.length);
+            out.write(raw);
+        }
+    }
+
+    private static InetSocketAddress readAddress(DataInput in) throws IOException {
+        String host = readString(in);
+        int port = in.readInt();
+        int length = in.readUnsignedByte();
+        if (length == 0)
+            return InetSocketAddress.createUnresolved(host, port);
+
+        byte[] raw = new byte[length];
+        in.readFully(raw);
+        return new InetSocketAddress(InetAddress.getByAddress(host, raw), port);
+    }
+
+    private static boolean isStub(Object value) {
+        if (!Proxy.isProxyClass(value.getClass()))
+            return false;
+        InvocationHandler handler = Proxy.getInvocationHandler(value);
+        return handler instanceof ProxyHandler;
+    }
+
+    static Class<?> interfaceNamed(String name) throws IOException {
+        Class<?> c = interfaces.get(name);
+        if (c != null)
+            return c;
+
+        try {
+            c = Class.forName(name, false, WireFormat.class.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            throw new UndecodableValueException("Unknown remote interface " + name, e);
+        }
+        if (!c.isInterface())
+            throw new UndecodableValueException(name + " is not an interface", null);
+
+        interfaces.put(name, c);
+        return c;
+    }
+
+    /** Skips the given number of bytes of a stream. */
+    static void skipFully(DataInput in, int count) throws IOException {
+        while (count > 0) {
+            int skipped = in.skipBytes(count);
+            if (skipped <= 0) {
+                in.readByte();
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    /**
+     * Thrown when a value has been read in full but cannot be turned into an
+     * object, for example because its class is unknown. The stream is still
+     * positioned after the value, so reading may continue.
+     */
+    static final class UndecodableValueException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        UndecodableValueException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    private static int checkedLength(int length) throws IOException {
+        if (length < 0 || length > MAX_FRAME)
+            throw new StreamCorruptedException("Invalid RMI value length " + length);
+        return length;
+    }
+}
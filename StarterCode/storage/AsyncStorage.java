@@ -0,0 +1,30 @@
+package storage;
+
+import java.net.*;
+import java.util.concurrent.*;
+
+import common.*;
+
+/** Asynchronous view of the storage server client interface.
+
+    <p>
+    Each method sends the corresponding call of {@link Storage} and returns
+    immediately; the returned future completes with the result of the call, or
+    exceptionally with the exception that the <code>Storage</code> method would
+    have thrown. Objects implementing this interface are created from storage
+    server stubs with <code>rmi.AsyncStub.of</code>.
+ */
+public interface AsyncStorage
+{
+    /** Asynchronous form of {@link Storage#size(Path)}. */
+    public CompletableFuture<Long> size(Path file);
+
+    /** Asynchronous form of {@link Storage#read(Path, long, int)}. */
+    public CompletableFuture<byte[]> read(Path file, long offset, int length);
+
+    /** Asynchronous form of {@link Storage#write(Path, long, byte[])}. */
+    public CompletableFuture<Void> write(Path file, long offset, byte[] data);
+
+    /** Asynchronous form of {@link Storage#dataAddress()}. */
+    public CompletableFuture<InetSocketAddress> dataAddress();
+}
@@ -18,6 +18,13 @@ import rmi.RMIException;
  */
 public interface Command
 {
+    /** Time, in milliseconds, after which a fence that has not been released
+        lapses. */
+    public static final long FENCE_LEASE = 10 * 60 * 1000;
+    /** Time, in milliseconds, for which <code>fence</code> waits for the
+        writes in progress to finish. */
+    public static final long FENCE_WAIT = 10 * 1000;
+
     /** Creates a file on the storage server.
 
         @param file Path to the file to be created. The parent directory will be
@@ -44,4 +51,114 @@ public interface Command
                              error.
      */
     public boolean delete(Path path) throws RMIException;
+
+    /** Creates several files on the storage server, in one call.
+
+        <p>
+        The default implementation calls <code>create</code> for each file, on
+        the storage server when the call is remote.
+
+        @param files Paths to the files to be created, as for
+                     <code>create</code>.
+        @return For each file, the result <code>create</code> would return.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default boolean[] createMany(Path[] files) throws RMIException
+    {
+        boolean[] created = new boolean[files.length];
+        for (int i = 0; i < files.length; i++)
+            created[i] = create(files[i]);
+        return created;
+    }
+
+    /** Deletes several files or directories on the storage server, in one
+        call.
+
+        <p>
+        The default implementation calls <code>delete</code> for each path, on
+        the storage server when the call is remote.
+
+        @param paths Paths to the objects to be deleted, as for
+                     <code>delete</code>.
+        @return For each path, the result <code>delete</code> would return.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default boolean[] deleteMany(Path[] paths) throws RMIException
+    {
+        boolean[] deleted = new boolean[paths.length];
+        for (int i = 0; i < paths.length; i++)
+            deleted[i] = delete(paths[i]);
+        return deleted;
+    }
+
+    /** Copies a file from another storage server.
+
+        <p>
+        The naming server uses this method to create replicas. The file's
+        contents are read from <code>source</code> and replace any local copy
+        of the file; its parent directory is created if it does not exist.
+        The default implementation does not support copies.
+
+        @param file Path to the file to be copied. This path may not be the
+                    root directory.
+        @param source Client stub of a storage server hosting the file.
+        @return <code>true</code> if the file is copied; <code>false</code>
+                if the path is the root directory.
+        @throws FileNotFoundException If the file cannot be found on the
+                                      source server, or the path refers to a
+                                      directory there.
+        @throws IOException If the file cannot be read from the source server
+                            or written locally.
+        @throws UnsupportedOperationException If the storage server does not
+                                              support copies.
+        @throws RMIException If the call cannot be completed due to a network
+                             error, including when the source server cannot
+                             be reached.
+     */
+    public default boolean copy(Path file, Storage source)
+        throws RMIException, FileNotFoundException, IOException
+    {
+        throw new UnsupportedOperationException("Storage server cannot copy files");
+    }
+
+    /** Refuses writes to a file until <code>release</code> is called.
+
+        <p>
+        The naming server fences every replica of a file before copying it to
+        another storage server, so that no write reaches a replica that the
+        copy would miss. The call returns once the writes to the file in
+        progress have finished. A fence lapses if it is not released within
+        <code>FENCE_LEASE</code> of the latest fence of the file, so the naming
+        server must not publish a copy made under a fence older than that. The
+        default implementation does not support fences.
+
+        @param file Path to the file.
+        @throws IOException If the writes in progress do not finish within
+                            <code>FENCE_WAIT</code>. The file is not fenced.
+        @throws UnsupportedOperationException If the storage server does not
+                                              support fences.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default void fence(Path file) throws RMIException, IOException
+    {
+        throw new UnsupportedOperationException("Storage server cannot fence files");
+    }
+
+    /** Accepts writes to a file fenced with <code>fence</code> again.
+
+        <p>
+        The version of the file (see <code>Storage.version</code>) is raised,
+        so that writes made against the replicas the file had before it was
+        copied are refused. The default implementation does nothing.
+
+        @param file Path to the file.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default void release(Path file) throws RMIException
+    {
+    }
 }
@@ -0,0 +1,233 @@
+package storage;
+
+import common.Path;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Client side of the storage server's bulk data channel.
+ *
+ * <p>
+ * The data channel is a plain TCP port, separate from the RMI skeletons, over
+ * which file contents are streamed without being encoded as RMI values. On the
+ * storage server, reads are sent with <code>FileChannel.transferTo</code>, so
+ * the data does not pass through the server's heap, and writes are received
+ * with <code>FileChannel.transferFrom</code>. The address of the channel is
+ * returned by <code>Storage.dataAddress</code>.
+ *
+ * <p>
+ * Each transfer uses its own connection. The client sends a request frame - a
+ * four-byte length followed by the operation (byte), path (UTF), offset
+ * (long), length (long) and, for a write, the version of the file (long) -
+ * and the server answers with a status frame of the same shape: a status
+ * (byte) and, on failure, a message (UTF). A read
+ * that is accepted is followed by exactly the requested bytes. A write that is
+ * accepted is followed by the data from the client and then by a second status
+ * frame once the data is in the file.
+ *
+ * <p>
+ * The checks and exceptions are those of <code>Storage.read</code> and of
+ * <code>Storage.write</code> with a version.
+ */
+public final class DataChannel {
+
+    static final byte READ = 1;
+    static final byte WRITE = 2;
+
+    static final byte OK = 0;
+    static final byte NOT_FOUND = 1;
+    static final byte OUT_OF_BOUNDS = 2;
+    static final byte FAILED = 3;
+
+    /** Largest request or status frame accepted from the network. */
+    private static final int MAX_HEADER = 64 * 1024;
+
+    private DataChannel() {
+    }
+
+    /**
+     * Reads a sequence of bytes from a file into a buffer.
+     *
+     * @param address Address of the storage server's data channel.
+     * @param file Path to the file.
+     * @param offset Offset into the file to the beginning of the sequence.
+     * @param buffer Buffer to receive the bytes.
+     * @param bufferOffset Offset into the buffer at which the bytes are to be
+     *                     written.
+     * @param length The number of bytes to be read.
+     * @throws IndexOutOfBoundsException If the sequence is outside the bounds
+     *                                   of the file or of the buffer.
+     * @throws FileNotFoundException If the file cannot be found or the path
+     *                               refers to a directory.
+     * @throws IOException If the server cannot be contacted or the read cannot
+     *                     be completed.
+     */
+    public static void read(InetSocketAddress address, Path file, long offset,
+                            byte[] buffer, int bufferOffset, int length) throws IOException {
+        if (bufferOffset < 0 || length < 0 || bufferOffset + length > buffer.length)
+            throw new IndexOutOfBoundsException("range extends past buffer");
+
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            writeHeader(channel, READ, file.toString(), offset, length);
+            checkStatus(channel);
+
+            ByteBuffer data = ByteBuffer.wrap(buffer, bufferOffset, length);
+            while (data.hasRemaining()) {
+                if (channel.read(data) < 0)
+                    throw new EOFException("data channel closed during read");
+            }
+        }
+    }
+
+    /**
+     * Reads a sequence of bytes from a file straight into a local file.
+     *
+     * @param address Address of the storage server's data channel.
+     * @param file Path to the file.
+     * @param offset Offset into the file of the sequence, which is also its
+     *               offset in <code>target</code>.
+     * @param length The number of bytes to be read.
+     * @param target Local file to receive the bytes.
+     * @throws IndexOutOfBoundsException If the sequence is outside the bounds
+     *                                   of the file.
+     * @throws FileNotFoundException If the file cannot be found or the path
+     *                               refers to a directory.
+     * @throws IOException If the server cannot be contacted or the read cannot
+     *                     be completed.
+     */
+    static void read(InetSocketAddress address, Path file, long offset, long length,
+                     FileChannel target) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            writeHeader(channel, READ, file.toString(), offset, length);
+            checkStatus(channel);
+
+            // transferFrom does nothing at positions past the end of the file
+            if (length > 0 && offset > target.size())
+                target.write(ByteBuffer.allocate(1), offset - 1);
+
+            long received = 0;
+            while (received < length) {
+                long count = target.transferFrom(channel, offset + received, length - received);
+                if (count <= 0)
+                    throw new EOFException("data channel closed during read");
+                received += count;
+            }
+        }
+    }
+
+    /**
+     * Writes bytes from a buffer to a file.
+     *
+     * @param address Address of the storage server's data channel.
+     * @param file Path to the file.
+     * @param offset Offset into the file where data is to be written.
+     * @param buffer Buffer containing the bytes.
+     * @param bufferOffset Offset into the buffer of the first byte to write.
+     * @param length The number of bytes to write.
+     * @param version Version of the file against which the write is made, as
+     *                returned by <code>Storage.version</code>.
+     * @throws IndexOutOfBoundsException If <code>offset</code> is negative, or
+     *                                   the range is outside the buffer.
+     * @throws FileNotFoundException If the file cannot be found or the path
+     *                               refers to a directory.
+     * @throws IOException If the server cannot be contacted, the file is being
+     *                     copied or its version has changed, or the write
+     *                     cannot be completed.
+     */
+    public static void write(InetSocketAddress address, Path file, long offset,
+                             byte[] buffer, int bufferOffset, int length, long version)
+            throws IOException {
+        if (bufferOffset < 0 || length < 0 || bufferOffset + length > buffer.length)
+            throw new IndexOutOfBoundsException("range extends past buffer");
+
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            ByteArrayOutputStream header = header(WRITE, file.toString(), offset, length);
+            new DataOutputStream(header).writeLong(version);
+            writeFrame(channel, header.toByteArray());
+            checkStatus(channel);
+
+            ByteBuffer data = ByteBuffer.wrap(buffer, bufferOffset, length);
+            while (data.hasRemaining())
+                channel.write(data);
+
+            checkStatus(channel);
+        }
+    }
+
+    private static void writeHeader(WritableByteChannel channel, byte operation, String path,
+                                    long offset, long length) throws IOException {
+        writeFrame(channel, header(operation, path, offset, length).toByteArray());
+    }
+
+    /** Returns the fields of a request frame common to all operations. */
+    private static ByteArrayOutputStream header(byte operation, String path, long offset,
+                                                long length) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(operation);
+        out.writeUTF(path);
+        out.writeLong(offset);
+        out.writeLong(length);
+        return bytes;
+    }
+
+    /** Reads a status frame and throws the exception it describes, if any. */
+    private static void checkStatus(ReadableByteChannel channel) throws IOException {
+        DataInputStream in = readFrame(channel);
+        byte status = in.readByte();
+        if (status == OK)
+            return;
+
+        String message = in.readUTF();
+        switch (status) {
+            case NOT_FOUND:
+                throw new FileNotFoundException(message);
+            case OUT_OF_BOUNDS:
+                throw new IndexOutOfBoundsException(message);
+            default:
+                throw new IOException(message);
+        }
+    }
+
+    /** Writes a length-prefixed frame to a channel. */
+    static void writeFrame(WritableByteChannel channel, byte[] frame) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + frame.length);
+        buffer.putInt(frame.length).put(frame).flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    /** Reads a length-prefixed frame from a channel. Nothing beyond the frame
+     is consumed, so the channel may be used for data afterwards. */
+    static DataInputStream readFrame(ReadableByteChannel channel) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(channel, length);
+        int size = length.getInt(0);
+        if (size < 1 || size > MAX_HEADER)
+            throw new StreamCorruptedException("Invalid data channel frame length " + size);
+
+        ByteBuffer frame = ByteBuffer.allocate(size);
+        readFully(channel, frame);
+        return new DataInputStream(new ByteArrayInputStream(frame.array()));
+    }
+
+    private static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0)
+                throw new EOFException("data channel closed");
+        }
+    }
+}
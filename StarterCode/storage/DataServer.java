@@ -0,0 +1,258 @@
+package storage;
+
+import common.Path;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server side of the bulk data channel of a storage server.
+ *
+ * <p>
+ * The protocol is described in <code>DataChannel</code>. Each connection is
+ * served by its own thread. File regions are sent to the socket with
+ * <code>FileChannel.transferTo</code>, which the operating system can carry
+ * out without copying the data into the Java heap, and received from the
+ * socket's stream with <code>FileChannel.transferFrom</code>. A connection on
+ * which the client sends nothing for <code>READ_TIMEOUT</code> is closed, so
+ * that a stalled client holds neither a thread nor a write to a file for
+ * long.
+ */
+class DataServer {
+
+    /** Time, in milliseconds, for which a read from a client may block. */
+    static final int READ_TIMEOUT = 30000;
+
+    private final File root;
+    private ServerSocketChannel listener;
+    private ExecutorService transfers;
+    private final Set<SocketChannel> connections = ConcurrentHashMap.newKeySet();
+    private InetSocketAddress address;
+    private final AtomicLong served = new AtomicLong();
+    private final IoStats io;
+    private final Fences fences;
+
+    /**
+     * Creates a data server for the files under the given directory.
+     *
+     * @param root Directory on the local filesystem.
+     * @param io Counters to which transfers are added.
+     * @param fences Versions and fences of the files, checked by writes.
+     */
+    DataServer(File root, IoStats io, Fences fences) {
+        this.root = root;
+        this.io = io;
+        this.fences = fences;
+    }
+
+    /**
+     * Opens the data port on all local addresses and starts accepting
+     * connections.
+     *
+     * @param hostname Externally visible hostname, used in the address returned
+     *                 by <code>address</code>.
+     * @throws IOException If the port cannot be opened.
+     */
+    synchronized void start(String hostname) throws IOException {
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(0));
+        address = new InetSocketAddress(hostname, listener.socket().getLocalPort());
+
+        transfers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "storage-data-" + address.getPort());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Thread acceptor = new Thread(this::accept, "storage-data-listen-" + address.getPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /** Returns the externally visible address of the data port, or
+     <code>null</code> if the server has not been started. */
+    synchronized InetSocketAddress address() {
+        return address;
+    }
+
+    /** Returns the number of transfers served since the server started. */
+    long transfers() {
+        return served.get();
+    }
+
+    /** Closes the data port and every open data connection. */
+    synchronized void stop() {
+        if (listener == null)
+            return;
+
+        try {
+            listener.close();
+        } catch (IOException ignored) { }
+        transfers.shutdownNow();
+        for (SocketChannel connection : connections) {
+            try {
+                connection.close();
+            } catch (IOException ignored) { }
+        }
+    }
+
+    private void accept() {
+        while (true) {
+            SocketChannel connection;
+            try {
+                connection = listener.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                continue;
+            }
+
+            connections.add(connection);
+            try {
+                transfers.execute(() -> serve(connection));
+            } catch (RuntimeException e) {
+                // the server is stopping
+                close(connection);
+            }
+        }
+    }
+
+    /** Serves the single transfer carried by a connection. */
+    private void serve(SocketChannel connection) {
+        served.incrementAndGet();
+        try {
+            // reads go through the socket's stream, which honours the timeout,
+            // rather than through the channel, which would block forever
+            connection.socket().setSoTimeout(READ_TIMEOUT);
+            ReadableByteChannel in = Channels.newChannel(connection.socket().getInputStream());
+            DataInputStream request = DataChannel.readFrame(in);
+            byte operation = request.readByte();
+            Path path = new Path(request.readUTF());
+            long offset = request.readLong();
+            long length = request.readLong();
+
+            File file = path.toFile(root);
+            if (file.isDirectory() || !file.exists()) {
+                status(connection, DataChannel.NOT_FOUND, "File not found or it is a directory");
+                return;
+            }
+
+            if (operation == DataChannel.READ)
+                read(connection, file, offset, length);
+            else if (operation == DataChannel.WRITE)
+                write(connection, in, path, file, offset, length, request.readLong());
+            else
+                status(connection, DataChannel.FAILED, "Unknown data channel operation " + operation);
+        } catch (IllegalArgumentException e) {
+            status(connection, DataChannel.FAILED, "Invalid path: " + e.getMessage());
+        } catch (IOException e) {
+            // the client is gone or the stream is corrupt; nothing to report
+        } finally {
+            close(connection);
+        }
+    }
+
+    private void read(SocketChannel connection, File file, long offset, long length) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (offset < 0 || length < 0 || offset + length > channel.size()) {
+                status(connection, DataChannel.OUT_OF_BOUNDS, "Indexes of reading file is out of bound");
+                return;
+            }
+
+            status(connection, DataChannel.OK, null);
+            long start = io.started();
+            long sent = 0;
+            try {
+                while (sent < length)
+                    sent += channel.transferTo(offset + sent, length - sent, connection);
+            } finally {
+                io.finished(start, sent, 0);
+            }
+        } catch (NoSuchFileException e) {
+            status(connection, DataChannel.NOT_FOUND, e.getMessage());
+        }
+    }
+
+    private void write(SocketChannel connection, ReadableByteChannel in, Path path, File file,
+                       long offset, long length, long version) throws IOException {
+        if (offset < 0 || length < 0) {
+            status(connection, DataChannel.OUT_OF_BOUNDS, "Offset is negative ");
+            return;
+        }
+
+        try {
+            fences.begin(path, version);
+        } catch (IOException e) {
+            status(connection, DataChannel.FAILED, e.getMessage());
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            // transferFrom does nothing at positions past the end of the file,
+            // so the gap is filled first, as a positional write would do
+            if (length > 0 && offset > channel.size())
+                channel.write(ByteBuffer.allocate(1), offset - 1);
+
+            status(connection, DataChannel.OK, null);
+            long start = io.started();
+            long received = 0;
+            try {
+                while (received < length) {
+                    long count = channel.transferFrom(in, offset + received, length - received);
+                    if (count <= 0)
+                        throw new EOFException("data channel closed during write");
+                    received += count;
+                }
+            } finally {
+                io.finished(start, 0, received);
+            }
+            status(connection, DataChannel.OK, null);
+        } catch (NoSuchFileException e) {
+            status(connection, DataChannel.NOT_FOUND, e.getMessage());
+        } catch (IOException e) {
+            status(connection, DataChannel.FAILED, "Write failed: " + e.getMessage());
+            throw e;
+        } finally {
+            fences.end(path);
+        }
+    }
+
+    /** Sends a status frame, ignoring failures: if the client cannot be
+     reached, there is no one to report to. */
+    private static void status(SocketChannel connection, byte status, String message) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(status);
+            if (status != DataChannel.OK)
+                out.writeUTF(message == null ? "" : message);
+            DataChannel.writeFrame(connection, bytes.toByteArray());
+        } catch (IOException ignored) { }
+    }
+
+    private void close(SocketChannel connection) {
+        connections.remove(connection);
+        try {
+            connection.close();
+        } catch (IOException ignored) { }
+    }
+}
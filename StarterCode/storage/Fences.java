@@ -0,0 +1,162 @@
+package storage;
+
+import common.Path;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Versions of the files of a storage server, and the fences that keep writes
+ * out of files while the naming server copies them.
+ *
+ * <p>
+ * Every write, over the <code>Storage</code> interface or the data channel,
+ * is bracketed by <code>begin</code> and <code>end</code>. While a file is
+ * fenced, writes to it are refused, and <code>fence</code> only returns once
+ * the writes in progress have finished, so that the copy sees all of them. If
+ * they do not finish within <code>Command.FENCE_WAIT</code>, the fence is not
+ * taken and the copy fails. Releasing the fence raises the version of the
+ * file: writes made against the version a client read before the copy are
+ * refused from then on, since the client may not know of the new replica. A
+ * file may be fenced several times; writes are accepted again once every
+ * fence is released.
+ *
+ * <p>
+ * A fence that is not released within <code>Command.FENCE_LEASE</code> of the
+ * latest fence of the file lapses, as if it were released, so that a naming
+ * server that fails during a copy does not keep the file fenced forever.
+ *
+ * <p>
+ * Versions start at a random number, so that versions given by a previous
+ * instance of the server are not taken for its own. The version of a file is
+ * forgotten when the file is deleted, so that the table only holds the files
+ * of the server; a file created again at the same path starts over from the
+ * initial version.
+ */
+final class Fences {
+
+    /** Version of the files whose version has never been raised. */
+    private final long initial = ThreadLocalRandom.current().nextLong(1L << 62);
+    private final Map<Path, Long> versions = new HashMap<>();
+    /** Number of fences held, by file. */
+    private final Map<Path, Integer> fenced = new HashMap<>();
+    /** Time, as given by <code>System.nanoTime</code>, at which the fences of
+     each fenced file lapse. */
+    private final Map<Path, Long> leases = new HashMap<>();
+    /** Number of writes in progress, by file. */
+    private final Map<Path, Integer> writing = new HashMap<>();
+
+    synchronized long version(Path file) {
+        return versions.getOrDefault(file, initial);
+    }
+
+    /**
+     * Records the start of a write.
+     *
+     * @param file The file written.
+     * @param version Version of the file the write is made against, or a
+     *                negative number if the writer does not know it.
+     * @throws IOException If the file is fenced, or its version is not the
+     *                     given one.
+     */
+    synchronized void begin(Path file, long version) throws IOException {
+        if (isFenced(file, System.nanoTime()))
+            throw new IOException("File is being copied to another server: " + file);
+        if (version >= 0 && version != version(file))
+            throw new IOException("Replicas of the file changed; look them up again: " + file);
+        writing.merge(file, 1, Integer::sum);
+    }
+
+    /** Records the end of a write started with <code>begin</code>. */
+    synchronized void end(Path file) {
+        if (writing.computeIfPresent(file, (path, count) -> count == 1 ? null : count - 1) == null)
+            notifyAll();
+    }
+
+    /**
+     * Refuses writes to a file, and waits for those in progress to finish.
+     *
+     * @throws IOException If writes are still in progress after
+     *                     <code>Command.FENCE_WAIT</code>; the file is not
+     *                     fenced then.
+     */
+    synchronized void fence(Path file) throws IOException {
+        long now = System.nanoTime();
+        lapse(now);
+        fenced.merge(file, 1, Integer::sum);
+        leases.put(file, now + TimeUnit.MILLISECONDS.toNanos(Command.FENCE_LEASE));
+
+        long deadline = now + TimeUnit.MILLISECONDS.toNanos(Command.FENCE_WAIT);
+        boolean interrupted = false;
+        while (writing.containsKey(file)) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                // the copy is not made, so the version is not raised
+                unfence(file);
+                throw new IOException("Writes to the file did not finish in time: " + file);
+            }
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /** Releases a fence, accepting writes to the file again if it was the
+     last one, and raises the version of the file. */
+    synchronized void release(Path file) {
+        unfence(file);
+        versions.put(file, version(file) + 1);
+    }
+
+    /** Forgets the versions of a deleted file, or of the files of a deleted
+     directory. Files that are fenced keep theirs until released. */
+    synchronized void forget(Path path) {
+        versions.keySet().removeIf(file -> Manifest.within(file, path) && !fenced.containsKey(file));
+    }
+
+    /** Drops one fence of a file. */
+    private void unfence(Path file) {
+        if (fenced.computeIfPresent(file, (path, count) -> count == 1 ? null : count - 1) == null)
+            leases.remove(file);
+    }
+
+    /** Returns whether a file is fenced, lapsing its fences if their lease has
+     run out. */
+    private boolean isFenced(Path file, long now) {
+        Long lease = leases.get(file);
+        if (lease == null)
+            return false;
+        if (now - lease < 0)
+            return true;
+        expire(file);
+        return false;
+    }
+
+    /** Lapses the fences of every file whose lease has run out. */
+    private void lapse(long now) {
+        List<Path> lapsed = new ArrayList<>();
+        for (Map.Entry<Path, Long> lease : leases.entrySet()) {
+            if (now - lease.getValue() >= 0)
+                lapsed.add(lease.getKey());
+        }
+        for (Path file : lapsed)
+            expire(file);
+    }
+
+    /** Lapses the fences of a file, raising its version as a release
+     does. */
+    private void expire(Path file) {
+        leases.remove(file);
+        fenced.remove(file);
+        versions.put(file, version(file) + 1);
+    }
+}
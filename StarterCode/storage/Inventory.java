@@ -0,0 +1,78 @@
+package storage;
+
+import common.Path;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Files under the root directory of a storage server, listed in batches for
+ * registration.
+ *
+ * <p>
+ * The directory tree is walked as batches are taken, so only the directories
+ * still to be listed and the files of those already listed are held in
+ * memory, rather than every file of the server. Directories deleted during
+ * the walk, for example because the naming server returned all their files as
+ * duplicates, are skipped.
+ */
+final class Inventory implements Iterator<Path[]> {
+
+    private final int batchSize;
+    // directories still to be listed, and their paths
+    private final Deque<File> directories = new ArrayDeque<>();
+    private final Deque<Path> directoryPaths = new ArrayDeque<>();
+    // files of the listed directories not yet returned
+    private final Deque<Path> files = new ArrayDeque<>();
+
+    /**
+     * Creates the inventory of a directory.
+     *
+     * @param root The root directory of the storage server.
+     * @param batchSize Maximum number of files in a batch.
+     */
+    Inventory(File root, int batchSize) {
+        this.batchSize = batchSize;
+        directories.push(root);
+        directoryPaths.push(new Path());
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (files.isEmpty() && !directories.isEmpty())
+            list(directories.pop(), directoryPaths.pop());
+        return !files.isEmpty();
+    }
+
+    /** Returns the next batch of files, which is never empty. */
+    @Override
+    public Path[] next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+
+        List<Path> batch = new ArrayList<>(Math.min(batchSize, files.size()));
+        while (batch.size() < batchSize && hasNext())
+            batch.add(files.poll());
+        return batch.toArray(new Path[0]);
+    }
+
+    private void list(File directory, Path path) {
+        File[] entries = directory.listFiles();
+        if (entries == null)
+            return;
+
+        for (File entry : entries) {
+            if (entry.isFile()) {
+                files.add(new Path(path, entry.getName()));
+            } else if (entry.isDirectory()) {
+                directories.push(entry);
+                directoryPaths.push(new Path(path, entry.getName()));
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package storage;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the file reads and writes of a storage server, over both the
+ * <code>Storage</code> interface and the data channel.
+ *
+ * <p>
+ * The counters accumulate between two load reports: <code>report</code>
+ * returns their values and starts a new interval. Operations record
+ * themselves with <code>started</code> and <code>finished</code>, so that the
+ * number of requests in progress is known at any time.
+ */
+final class IoStats {
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder operations = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+    private long intervalStart = System.nanoTime();
+
+    /** Records the start of an operation. Returns the time to pass to
+     <code>finished</code>. */
+    long started() {
+        active.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the end of an operation, whether or not it succeeded.
+     *
+     * @param start The value returned by <code>started</code>.
+     * @param read Bytes read from files by the operation.
+     * @param written Bytes written to files by the operation.
+     */
+    void finished(long start, long read, long written) {
+        nanos.add(System.nanoTime() - start);
+        operations.increment();
+        bytesRead.add(read);
+        bytesWritten.add(written);
+        active.decrementAndGet();
+    }
+
+    /** Returns the number of operations in progress. */
+    int active() {
+        return active.get();
+    }
+
+    /**
+     * Builds a load report from the counters, and resets them for the next
+     * interval. Called by one thread at a time.
+     *
+     * @param capacity Total size of the filesystem, in bytes.
+     * @param free Bytes of the filesystem available to the server.
+     * @param requests Requests handled since the previous report.
+     * @param active Requests in progress, besides the operations counted here.
+     * @param interval Interval, in milliseconds, until the next report.
+     */
+    synchronized LoadReport report(long capacity, long free, long requests, int active,
+                                   long interval) {
+        long now = System.nanoTime();
+        double seconds = Math.max(now - intervalStart, 1) / 1e9;
+        intervalStart = now;
+
+        long count = operations.sumThenReset();
+        long total = nanos.sumThenReset();
+        long latency = count == 0 ? 0 : total / count;
+        return new LoadReport(capacity, free, requests, active + active(),
+                (long) (bytesRead.sumThenReset() / seconds),
+                (long) (bytesWritten.sumThenReset() / seconds), latency, interval);
+    }
+}
@@ -0,0 +1,111 @@
+package storage;
+
+import java.io.Serializable;
+
+/**
+ * Capacity and recent load of a storage server, as reported to the naming
+ * server in each heartbeat.
+ *
+ * <p>
+ * Capacities are those of the local filesystem holding the server's files, in
+ * bytes. Counts, throughputs and latencies cover the interval since the
+ * server's previous report: the number of requests counts the calls and data
+ * transfers the server handled, the throughputs are those of file reads and
+ * writes, and the latency is the mean duration of a file read or write.
+ */
+public final class LoadReport implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long capacity;
+    private final long free;
+    private final long requests;
+    private final long activeRequests;
+    private final long readThroughput;
+    private final long writeThroughput;
+    private final long ioLatencyNanos;
+    private final long interval;
+
+    /**
+     * Creates a report.
+     *
+     * @param capacity Total size of the filesystem, in bytes.
+     * @param free Bytes of the filesystem available to the server.
+     * @param requests Requests handled since the previous report.
+     * @param activeRequests Requests in progress.
+     * @param readThroughput Bytes read from files per second.
+     * @param writeThroughput Bytes written to files per second.
+     * @param ioLatencyNanos Mean duration of a file read or write, in
+     *                       nanoseconds, or zero if there were none.
+     * @param interval Interval, in milliseconds, after which the server sends
+     *                 its next report.
+     */
+    public LoadReport(long capacity, long free, long requests, long activeRequests,
+                      long readThroughput, long writeThroughput, long ioLatencyNanos,
+                      long interval) {
+        this.capacity = capacity;
+        this.free = free;
+        this.requests = requests;
+        this.activeRequests = activeRequests;
+        this.readThroughput = readThroughput;
+        this.writeThroughput = writeThroughput;
+        this.ioLatencyNanos = ioLatencyNanos;
+        this.interval = interval;
+    }
+
+    /** Returns the total size of the filesystem, in bytes. */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /** Returns the number of bytes of the filesystem available to the
+     server. */
+    public long getFree() {
+        return free;
+    }
+
+    /** Returns the number of bytes of the filesystem in use. */
+    public long getUsed() {
+        return capacity - free;
+    }
+
+    /** Returns the number of requests handled since the previous report. */
+    public long getRequests() {
+        return requests;
+    }
+
+    /** Returns the number of requests in progress when the report was
+     made. */
+    public long getActiveRequests() {
+        return activeRequests;
+    }
+
+    /** Returns the number of bytes read from files per second. */
+    public long getReadThroughput() {
+        return readThroughput;
+    }
+
+    /** Returns the number of bytes written to files per second. */
+    public long getWriteThroughput() {
+        return writeThroughput;
+    }
+
+    /** Returns the mean duration of a file read or write, in nanoseconds, or
+     zero if there were none. */
+    public long getIoLatencyNanos() {
+        return ioLatencyNanos;
+    }
+
+    /** Returns the interval, in milliseconds, after which the server sends its
+     next report. */
+    public long getInterval() {
+        return interval;
+    }
+
+    @Override
+    public String toString() {
+        return "LoadReport[capacity=" + capacity + ", free=" + free + ", requests=" + requests
+                + ", active=" + activeRequests + ", read=" + readThroughput + "B/s, write="
+                + writeThroughput + "B/s, latency=" + ioLatencyNanos + "ns]";
+    }
+}
@@ -0,0 +1,328 @@
+package storage;
+
+import common.Path;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Persistent inventory of the files of a storage server, with the changes
+ * that the naming server has not acknowledged.
+ *
+ * <p>
+ * Each change to the set of files - a file created, copied or deleted -
+ * raises the manifest's generation by one. When the naming server has applied
+ * the changes up to a generation, they are acknowledged and dropped; the
+ * changes after the acknowledged generation form the delta sent with the next
+ * report. The manifest also keeps the name under which the naming server
+ * knows the storage server, so that a restarted server can reconnect with a
+ * delta instead of its whole inventory, and without walking its directory
+ * tree.
+ *
+ * <p>
+ * The manifest is kept in two files: a snapshot, replaced atomically, and a
+ * log of the changes and acknowledgements made since, appended to as they are
+ * made. The log is folded into a new snapshot when it grows long and when the
+ * manifest is closed. Loading stops at the first incomplete record of the log,
+ * which can only be the last one written before a crash.
+ */
+final class Manifest {
+
+    private static final int MAGIC = 0x534d4631;
+    private static final byte ADDED = 1;
+    private static final byte REMOVED = 2;
+    private static final byte ACKNOWLEDGED = 3;
+    /** Number of log records after which the log is folded into a new
+     snapshot. */
+    private static final int LOG_LIMIT = 16384;
+
+    /** Changes to the files of a storage server, up to a generation. */
+    static final class Delta {
+        final long generation;
+        final Path[] added;
+        final Path[] removed;
+
+        Delta(long generation, Path[] added, Path[] removed) {
+            this.generation = generation;
+            this.added = added;
+            this.removed = removed;
+        }
+
+        boolean isEmpty() {
+            return added.length == 0 && removed.length == 0;
+        }
+    }
+
+    private final File snapshot;
+    private final File log;
+    private final boolean created;
+    private String name;
+    private final Set<Path> files = new HashSet<>();
+    // changes after the acknowledged generation, oldest first: each file, and
+    // whether it was added or removed
+    private final List<Path> changed = new ArrayList<>();
+    private final List<Boolean> added = new ArrayList<>();
+    private long acknowledged;
+    // null if the log could not be written, until the next snapshot
+    private DataOutputStream out;
+    private int logged;
+
+    /**
+     * Loads a manifest, or creates an empty one if the snapshot does not
+     * exist.
+     *
+     * @param snapshot The snapshot file. The log is kept next to it.
+     * @throws IOException If the manifest cannot be read or written.
+     */
+    Manifest(File snapshot) throws IOException {
+        this.snapshot = snapshot;
+        this.log = new File(snapshot.getPath() + ".log");
+        created = !snapshot.exists();
+        if (created) {
+            name = UUID.randomUUID().toString();
+        } else {
+            read();
+            replay();
+        }
+        save();
+    }
+
+    /** Returns <code>true</code> if the manifest did not exist, in which case
+     it must be filled with <code>reset</code>. */
+    boolean isNew() {
+        return created;
+    }
+
+    /** Returns the name of the storage server. */
+    String name() {
+        return name;
+    }
+
+    /** Returns the files of the storage server. */
+    synchronized List<Path> files() {
+        return new ArrayList<>(files);
+    }
+
+    /** Replaces the files of the manifest, taken from a walk of the storage
+     server's directory tree. */
+    synchronized void reset(Collection<Path> inventory) throws IOException {
+        files.clear();
+        files.addAll(inventory);
+        changed.clear();
+        added.clear();
+        save();
+    }
+
+    synchronized void added(Path file) {
+        files.add(file);
+        change(file, true);
+    }
+
+    synchronized void removed(Path file) {
+        if (files.remove(file))
+            change(file, false);
+    }
+
+    /** Records the removal of a directory, with all its files. */
+    synchronized void removedUnder(Path directory) {
+        List<Path> removed = new ArrayList<>();
+        for (Path file : files) {
+            if (within(file, directory))
+                removed.add(file);
+        }
+        for (Path file : removed)
+            removed(file);
+    }
+
+    /** Returns the changes after the acknowledged generation, the latest for
+     each file. */
+    synchronized Delta delta() {
+        Map<Path, Boolean> latest = new LinkedHashMap<>();
+        for (int i = 0; i < changed.size(); i++) {
+            latest.remove(changed.get(i));
+            latest.put(changed.get(i), added.get(i));
+        }
+
+        List<Path> addedFiles = new ArrayList<>();
+        List<Path> removedFiles = new ArrayList<>();
+        for (Map.Entry<Path, Boolean> entry : latest.entrySet())
+            (entry.getValue() ? addedFiles : removedFiles).add(entry.getKey());
+        return new Delta(acknowledged + changed.size(), addedFiles.toArray(new Path[0]),
+                removedFiles.toArray(new Path[0]));
+    }
+
+    /** Drops the changes up to the given generation, which the naming server
+     has applied. */
+    synchronized void acknowledge(long generation) {
+        if (!drop(generation))
+            return;
+
+        if (out != null) {
+            try {
+                out.writeByte(ACKNOWLEDGED);
+                out.writeLong(acknowledged);
+                out.flush();
+                logged++;
+            } catch (IOException e) {
+                out = null;
+            }
+        }
+        if (out == null || logged >= LOG_LIMIT)
+            trySave();
+    }
+
+    /** Writes a snapshot and closes the log. */
+    synchronized void close() {
+        trySave();
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // the snapshot holds every change
+            }
+            out = null;
+        }
+    }
+
+    /** Drops the changes up to a generation from memory. Returns
+     <code>false</code> if there were none. */
+    private boolean drop(long generation) {
+        int count = (int) Math.min(generation - acknowledged, changed.size());
+        if (count <= 0)
+            return false;
+        changed.subList(0, count).clear();
+        added.subList(0, count).clear();
+        acknowledged += count;
+        return true;
+    }
+
+    private void change(Path file, boolean isAdded) {
+        changed.add(file);
+        added.add(isAdded);
+        if (out == null)
+            return;
+        try {
+            out.writeByte(isAdded ? ADDED : REMOVED);
+            out.writeUTF(file.toString());
+            out.flush();
+            logged++;
+        } catch (IOException e) {
+            // the change is kept in memory, and written with the next
+            // snapshot
+            out = null;
+            return;
+        }
+        if (logged >= LOG_LIMIT)
+            trySave();
+    }
+
+    private void trySave() {
+        try {
+            save();
+        } catch (IOException e) {
+            // the log, if it can still be written, holds the changes
+        }
+    }
+
+    /** Writes a snapshot of the manifest and starts a new log. */
+    private void save() throws IOException {
+        if (out != null)
+            out.close();
+        out = null;
+
+        File temporary = new File(snapshot.getPath() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temporary)) {
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024));
+            data.writeInt(MAGIC);
+            data.writeUTF(name);
+            data.writeLong(acknowledged);
+            data.writeInt(files.size());
+            for (Path path : files)
+                data.writeUTF(path.toString());
+            data.writeInt(changed.size());
+            for (int i = 0; i < changed.size(); i++) {
+                data.writeBoolean(added.get(i));
+                data.writeUTF(changed.get(i).toString());
+            }
+            data.flush();
+            file.getChannel().force(true);
+        }
+        Files.move(temporary.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(log)));
+        logged = 0;
+    }
+
+    private void read() throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(snapshot), 64 * 1024))) {
+            if (in.readInt() != MAGIC)
+                throw new StreamCorruptedException("Not a storage manifest: " + snapshot);
+            name = in.readUTF();
+            acknowledged = in.readLong();
+            for (int count = in.readInt(); count > 0; count--)
+                files.add(new Path(in.readUTF()));
+            for (int count = in.readInt(); count > 0; count--) {
+                added.add(in.readBoolean());
+                changed.add(new Path(in.readUTF()));
+            }
+        }
+    }
+
+    /** Applies the records of the log written after the snapshot. Runs before
+     the log is opened for writing, so the changes are only made in
+     memory. */
+    private void replay() throws IOException {
+        if (!log.exists())
+            return;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(log), 64 * 1024))) {
+            while (true) {
+                byte type = in.readByte();
+                if (type == ACKNOWLEDGED) {
+                    drop(in.readLong());
+                    continue;
+                }
+                Path file = new Path(in.readUTF());
+                if (type == ADDED)
+                    added(file);
+                else if (type == REMOVED)
+                    removed(file);
+                else
+                    break;
+            }
+        } catch (EOFException e) {
+            // the end of the log, or a record cut short by a crash
+        }
+    }
+
+    /** Returns <code>true</code> if a path is the given directory or lies
+     below it. */
+    static boolean within(Path path, Path directory) {
+        for (Path current = path; ; current = current.parent()) {
+            if (current.equals(directory))
+                return true;
+            if (current.isRoot())
+                return false;
+        }
+    }
+}
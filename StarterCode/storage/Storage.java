@@ -1,6 +1,7 @@
 package storage;
 
 import java.io.*;
+import java.net.*;
 
 import common.*;
 import rmi.RMIException;
@@ -60,4 +61,74 @@ public interface Storage
      */
     public void write(Path file, long offset, byte[] data)
         throws RMIException, FileNotFoundException, IOException;
+
+    /** Returns the version of a file, against which writes are made.
+
+        <p>
+        The version changes when the naming server copies the file to another
+        storage server. A client writing a file reads the version of each
+        replica after looking the replicas up, and passes it with its writes,
+        so that its writes are refused once the file has a replica it does
+        not know of. Storage servers that do not keep versions return
+        <code>0</code>, which is the default.
+
+        @param file Path to the file.
+        @return The version of the file.
+        @throws FileNotFoundException If the file cannot be found or the path
+                                      refers to a directory.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default long version(Path file)
+        throws RMIException, FileNotFoundException
+    {
+        return 0;
+    }
+
+    /** Writes bytes to a file, unless its version has changed.
+
+        <p>
+        The default implementation ignores the version and calls
+        <code>write</code>.
+
+        @param file Path to the file.
+        @param offset Offset into the file where data is to be written.
+        @param data Array of bytes to be written.
+        @param version Version of the file, as returned by
+                       <code>version</code>, against which the write is
+                       made.
+        @throws IndexOutOfBoundsException If <code>offset</code> is negative.
+        @throws FileNotFoundException If the file cannot be found or the path
+                                      refers to a directory.
+        @throws IOException If the file is being copied to another storage
+                            server, if its version is no longer the given one,
+                            or if the file write cannot be completed on the
+                            server.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default void write(Path file, long offset, byte[] data, long version)
+        throws RMIException, FileNotFoundException, IOException
+    {
+        write(file, offset, data);
+    }
+
+    /** Returns the address of the storage server's bulk data channel.
+
+        <p>
+        The data channel carries the same reads and writes as <code>read</code>
+        and <code>write</code>, but streams file contents directly between the
+        socket and the file instead of through RMI. Clients use it, through
+        <code>DataChannel</code>, for large transfers. Storage servers that do
+        not offer a data channel return <code>null</code>, which is the default.
+
+        @return The address of the data channel, or <code>null</code> if the
+                server has none.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default InetSocketAddress dataAddress() throws RMIException
+    {
+        return null;
+    }
 }
@@ -2,16 +2,29 @@ package storage;
 
 import common.Path;
 import naming.Registration;
+import rmi.MethodSnapshot;
 import rmi.RMIException;
 import rmi.Skeleton;
 import rmi.Stub;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+import java.util.stream.Stream;
 
 /** Storage server.
 
@@ -19,6 +32,14 @@ import java.util.Comparator;
     Storage servers respond to client file access requests. The files accessible
     through a storage server are those accessible under a given directory of the
     local filesystem.
+
+    <p>
+    A storage server created with a manifest keeps the inventory of its files
+    in it, with the changes that the naming server has not acknowledged. It
+    reports those changes with its heartbeats, rather than only announcing its
+    files when it registers, and after a restart it reconnects to the naming
+    server with the changes since its last report instead of walking its
+    directory tree and registering every file again.
  */
 public class StorageServer implements Storage, Command
 {
@@ -27,6 +48,30 @@ public class StorageServer implements Storage, Command
     Skeleton<Storage> storageSkeleton;
     Command commandStub;
     Storage storageStub;
+    private final DataServer dataServer;
+    private final IoStats io = new IoStats();
+    private final Fences fences = new Fences();
+    // inventory of the files, or null if the server keeps none
+    private final Manifest manifest;
+    // directory, outside the root, in which copies are written before they
+    // are moved into place
+    private final File stagingDir;
+    // whether the naming server knows the manifest's name; used by the
+    // reporter thread only
+    private boolean named;
+    private Thread reporter;
+    // requests handled up to the previous load report; used by the reporter
+    // thread only
+    private long requestsReported;
+
+    /** Interval, in milliseconds, between two heartbeats to the naming
+        server. */
+    public static final int REPORT_INTERVAL = 5000;
+    /** Size of the chunks in which copies from servers without a data
+        channel are read. */
+    private static final int COPY_CHUNK_SIZE = 1024 * 1024;
+    /** Number of files sent in each call when registering in batches. */
+    private static final int REGISTRATION_BATCH = 4096;
 
     /** Creates a storage server, given a directory on the local filesystem.
 
@@ -42,8 +87,49 @@ public class StorageServer implements Storage, Command
         this.rootDir = root;
         commandSkeleton = new Skeleton<Command>(Command.class,this);
         storageSkeleton = new Skeleton<Storage>(Storage.class,this);
+        dataServer = new DataServer(root, io, fences);
+        manifest = null;
+        stagingDir = stagingDirectory(root);
+    }
+
+    /** Creates a storage server that keeps the inventory of its files in a
+        manifest.
+
+        <p>
+        The manifest is loaded from the given file, or created if the file does
+        not exist. It must not be inside the root directory.
 
+        @param root Directory on the local filesystem. The contents of this
+                    directory will be accessible through the storage server.
+        @param manifestFile File holding the manifest.
+        @throws IOException If the manifest cannot be read or created.
+        @throws NullPointerException If either argument is <code>null</code>.
+    */
+    public StorageServer(File root, File manifestFile) throws IOException
+    {
+        if (root == null || manifestFile == null)
+            throw new NullPointerException();
 
+        this.rootDir = root;
+        commandSkeleton = new Skeleton<Command>(Command.class,this);
+        storageSkeleton = new Skeleton<Storage>(Storage.class,this);
+        dataServer = new DataServer(root, io, fences);
+        manifest = new Manifest(manifestFile);
+        stagingDir = stagingDirectory(root);
+    }
+
+    /** Returns the directory in which copies to a server with the given root
+        are staged: a hidden sibling of the root, so that it is not served and
+        is normally on the same filesystem, or a directory under the system's
+        temporary directory if the root has no parent.
+     */
+    private static File stagingDirectory(File root)
+    {
+        File absolute = root.getAbsoluteFile();
+        File parent = absolute.getParentFile();
+        if (parent == null)
+            parent = new File(System.getProperty("java.io.tmpdir"));
+        return new File(parent, "." + absolute.getName() + ".staging");
     }
 
     /** Starts the storage server and registers it with the given naming
@@ -71,32 +157,249 @@ public class StorageServer implements Storage, Command
         if(!rootDir.exists() || rootDir.isFile() )
             throw new FileNotFoundException("Root directory is not found or is a file ");
 
+        // copies left staged by a previous instance are never moved in
+        File[] staged = stagingDir.listFiles();
+        if (staged != null) {
+            for (File copy : staged)
+                copy.delete();
+        }
+
         commandSkeleton.start();;
         storageSkeleton.start();
 
+        try {
+            dataServer.start(hostname);
+        } catch (IOException e) {
+            throw new RMIException("Unable to open the data channel", e);
+        }
+
         createStub(hostname);
 
-        Path[] CopyFile = naming_server.register(storageStub,commandStub,Path.list(rootDir));
+        if (manifest == null || !reconnect(naming_server))
+            register(naming_server, inventory());
+
+        startReports(naming_server);
+    }
+
+    /** Reconnects to the naming server with the changes recorded in the
+        manifest, if the naming server knows the manifest's name.
+
+        @return <code>true</code> if the server is reconnected,
+                <code>false</code> if it must register.
+     */
+    private boolean reconnect(Registration naming_server) throws RMIException
+    {
+        if (manifest.isNew())
+            return false;
+
+        Manifest.Delta delta = manifest.delta();
+        Path[] duplicates = naming_server.reconnect(storageStub, commandStub, manifest.name(),
+                                                    delta.generation, delta.added, delta.removed);
+        if (duplicates == null)
+            return false;
 
+        named = true;
+        manifest.acknowledge(delta.generation);
+        deleteDuplicates(duplicates);
+        return true;
+    }
 
-        // Delete those duplicate files
-        for(Path path: CopyFile) {
+    /** Returns the files to register, in batches. Without a manifest, or with
+        a new one, they are found by walking the directory tree; otherwise they
+        are those of the manifest.
+     */
+    private Iterator<Path[]> inventory() throws RMIException
+    {
+        if (manifest == null)
+            return new Inventory(rootDir, REGISTRATION_BATCH);
+
+        if (manifest.isNew()) {
+            List<Path> files = new ArrayList<>();
+            Inventory walk = new Inventory(rootDir, REGISTRATION_BATCH);
+            while (walk.hasNext())
+                files.addAll(Arrays.asList(walk.next()));
+            try {
+                manifest.reset(files);
+            } catch (IOException e) {
+                throw new RMIException("Unable to write the manifest", e);
+            }
+        }
+        return batches(manifest.files());
+    }
+
+    /** Returns the given files in batches of <code>REGISTRATION_BATCH</code>.
+     */
+    private static Iterator<Path[]> batches(List<Path> files)
+    {
+        return new Iterator<Path[]>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext()
+            {
+                return next < files.size();
+            }
+
+            @Override
+            public Path[] next()
+            {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                int end = Math.min(next + REGISTRATION_BATCH, files.size());
+                Path[] batch = files.subList(next, end).toArray(new Path[0]);
+                next = end;
+                return batch;
+            }
+        };
+    }
+
+    /** Registers the given files with the naming server. A server with few
+        files registers them in one call; others send them in batches, if the
+        naming server supports it.
+     */
+    private void register(Registration naming_server, Iterator<Path[]> inventory)
+        throws RMIException
+    {
+        Path[] first = inventory.hasNext() ? inventory.next() : new Path[0];
+        if (inventory.hasNext())
+            registerBatches(naming_server, inventory, first);
+        else
+            deleteDuplicates(naming_server.register(storageStub, commandStub, first));
+    }
+
+    /** Registers with the naming server in batches, starting with the given
+        one. If the naming server does not support batches, the rest of the
+        inventory is collected and registered in one call.
+     */
+    private void registerBatches(Registration naming_server, Iterator<Path[]> inventory,
+                                 Path[] first)
+            throws RMIException
+    {
+        try {
+            deleteDuplicates(naming_server.registerBatch(storageStub, commandStub, first, false));
+        } catch (UnsupportedOperationException e) {
+            List<Path> files = new ArrayList<>(Arrays.asList(first));
+            while (inventory.hasNext())
+                files.addAll(Arrays.asList(inventory.next()));
+            deleteDuplicates(naming_server.register(storageStub, commandStub,
+                                                    files.toArray(new Path[0])));
+            return;
+        }
+
+        // the last batch may be empty if the remaining directories were
+        // pruned
+        boolean last = false;
+        while (!last) {
+            Path[] batch = inventory.hasNext() ? inventory.next() : new Path[0];
+            last = !inventory.hasNext();
+            deleteDuplicates(naming_server.registerBatch(storageStub, commandStub, batch, last));
+        }
+    }
+
+    /** Deletes the files the naming server returned as duplicates, and the
+        directories left empty. A directory is returned when it was deleted
+        from the namespace while this server could not delete it, and is
+        deleted with its contents.
+     */
+    private void deleteDuplicates(Path[] duplicates)
+    {
+        // the directories above the deleted files are checked once each,
+        // children before their parents, whose paths they extend
+        TreeSet<File> parents = new TreeSet<>(Comparator.comparing(File::getPath).reversed());
+        for(Path path: duplicates) {
+            if (path.isRoot())
+                continue;
             File currentFile = path.toFile(rootDir);
-            File parentFile = new File(currentFile.getParent());
-            currentFile.delete();
-
-            // Delete the parent file if empty
-            while(!parentFile.equals(rootDir)) {
-                if (parentFile.list().length == 0) {
-                    parentFile.delete();
-                    parentFile =  new File(parentFile.getParent());
-                } else {
-                    break;
+            if (currentFile.isDirectory()) {
+                try (Stream<java.nio.file.Path> walk = Files.walk(currentFile.toPath())) {
+                    walk.sorted(Comparator.reverseOrder())
+                        .map(java.nio.file.Path :: toFile)
+                        .forEach(File::delete);
+                } catch (IOException e) {
+                    // the files that could not be deleted stay on disk
                 }
+                if (manifest != null)
+                    manifest.removedUnder(path);
+            } else {
+                currentFile.delete();
+                if (manifest != null)
+                    manifest.removed(path);
             }
+            fences.forget(path);
+
+            File parentFile = currentFile.getParentFile();
+            while(!parentFile.equals(rootDir) && parents.add(parentFile))
+                parentFile = parentFile.getParentFile();
         }
 
+        // Delete the parent files left empty
+        for(File parentFile: parents) {
+            String[] left = parentFile.list();
+            if (left != null && left.length == 0)
+                parentFile.delete();
+        }
+    }
 
+    /** Starts the thread sending heartbeats with the server's load to the
+        naming server, first at once and then every
+        <code>REPORT_INTERVAL</code>.
+     */
+    private void startReports(Registration naming_server)
+    {
+        reporter = new Thread(() -> {
+            try {
+                while (true) {
+                    try {
+                        naming_server.report(commandStub, load());
+                        if (manifest != null)
+                            reportChanges(naming_server);
+                    } catch (RMIException | IllegalStateException e) {
+                        // the naming server is unreachable or has forgotten
+                        // this server; the next report is tried all the same
+                    }
+                    Thread.sleep(REPORT_INTERVAL);
+                }
+            } catch (InterruptedException e) {
+                // the server is stopping
+            }
+        }, "storage-report");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    /** Reports the changes to the server's files that the naming server has
+        not acknowledged, and deletes the files it returns as duplicates. The
+        first report also tells the naming server the manifest's name.
+     */
+    private void reportChanges(Registration naming_server) throws RMIException
+    {
+        Manifest.Delta delta = manifest.delta();
+        if (named && delta.isEmpty())
+            return;
+
+        Path[] duplicates = naming_server.reportChanges(commandStub, manifest.name(),
+                                                        delta.generation, delta.added,
+                                                        delta.removed);
+        named = true;
+        manifest.acknowledge(delta.generation);
+        deleteDuplicates(duplicates);
+    }
+
+    /** Returns the capacity of the local filesystem and the load of the
+        server since the previous report.
+     */
+    private LoadReport load()
+    {
+        long requests = dataServer.transfers();
+        for (MethodSnapshot snapshot : metrics())
+            requests += snapshot.getCalls();
+
+        long recent = requests - requestsReported;
+        requestsReported = requests;
+        // file reads and writes in progress are counted by io; creations
+        // and deletions are the command calls
+        return io.report(rootDir.getTotalSpace(), rootDir.getUsableSpace(), recent,
+                         commandSkeleton.getActiveWorkers(), REPORT_INTERVAL);
     }
 
     private void createStub(String host) {
@@ -111,8 +414,27 @@ public class StorageServer implements Storage, Command
      */
     public void stop()
     {
+        synchronized (this) {
+            if (reporter != null)
+                reporter.interrupt();
+        }
         storageSkeleton.stop();
         commandSkeleton.stop();
+        dataServer.stop();
+        if (manifest != null)
+            manifest.close();
+        // removed only if no copy is staged in it
+        stagingDir.delete();
+    }
+
+    /** Returns the call metrics of the storage and command interfaces, one
+        entry per method that has been called.
+     */
+    public List<MethodSnapshot> metrics()
+    {
+        List<MethodSnapshot> snapshots = new ArrayList<>(storageSkeleton.getMetrics().snapshot());
+        snapshots.addAll(commandSkeleton.getMetrics().snapshot());
+        return snapshots;
     }
 
     /** Called when the storage server has shut down.
@@ -126,7 +448,7 @@ public class StorageServer implements Storage, Command
 
     // The following methods are documented in Storage.java.
     @Override
-    public synchronized long size(Path file) throws FileNotFoundException
+    public long size(Path file) throws FileNotFoundException
     {
         File PathToFile = file.toFile(rootDir);
         if (PathToFile.isDirectory() || !PathToFile.exists())
@@ -135,7 +457,7 @@ public class StorageServer implements Storage, Command
     }
 
     @Override
-    public synchronized byte[] read(Path file, long offset, int length)
+    public byte[] read(Path file, long offset, int length)
         throws FileNotFoundException, IOException
     {
         File PathToFile = file.toFile(rootDir);
@@ -143,24 +465,44 @@ public class StorageServer implements Storage, Command
         if (PathToFile.isDirectory() || !PathToFile.exists())
             throw new FileNotFoundException("File not found or it is a directory");
 
-        if (length<0 || (offset+length)>PathToFile.length())
+        if (offset<0 || length<0 || (offset+length)>PathToFile.length())
             throw new IndexOutOfBoundsException("Indexes of reading file is out of bound");
 
         byte[] readContent = new byte[length];
 
-        FileInputStream readFile = new FileInputStream(PathToFile);
+        // reads do not share any state, so they are not synchronized and
+        // concurrent readers are served in parallel
+        long start = io.started();
+        int done = 0;
+        try (RandomAccessFile readFile = new RandomAccessFile(PathToFile, "r")) {
+            readFile.seek(offset);
+            readFile.readFully(readContent);
+            done = length;
+        } finally {
+            io.finished(start, done, 0);
+        }
 
-        readFile.read(readContent,(int)offset,length);
+        return readContent;
+    }
 
-        try{
-            readFile.close();
-        }catch (Exception e){}
+    @Override
+    public void write(Path file, long offset, byte[] data)
+        throws FileNotFoundException, IOException
+    {
+        write(file, offset, data, -1);
+    }
 
-        return readContent;
+    @Override
+    public long version(Path file) throws FileNotFoundException
+    {
+        File PathToFile = file.toFile(rootDir);
+        if (PathToFile.isDirectory() || !PathToFile.exists())
+            throw new FileNotFoundException("File not found or it is a directory");
+        return fences.version(file);
     }
 
     @Override
-    public synchronized void write(Path file, long offset, byte[] data)
+    public void write(Path file, long offset, byte[] data, long version)
         throws FileNotFoundException, IOException
     {
         File PathToFile = file.toFile(rootDir);
@@ -171,16 +513,30 @@ public class StorageServer implements Storage, Command
         if (offset<0)
             throw new IndexOutOfBoundsException("Offset is negative ");
 
-        FileOutputStream writeFile = new FileOutputStream(PathToFile);
-
-        FileChannel c1 = writeFile.getChannel();
-        c1.position(offset);
-        c1.write(ByteBuffer.wrap(data));
-
-        try {
-            writeFile.close();
-        }catch (Exception e){}
+        // writes are not synchronized: each writes at its own position, as
+        // writes over the data channel do, and copies are kept out by the
+        // fences rather than by a lock on the server. The file is opened
+        // without truncation, so that data outside the written range is kept
+        fences.begin(file, version);
+        long start = io.started();
+        long position = offset;
+        try (FileChannel writeFile = FileChannel.open(PathToFile.toPath(), StandardOpenOption.WRITE)) {
+            ByteBuffer content = ByteBuffer.wrap(data);
+            while (content.hasRemaining())
+                position += writeFile.write(content, position);
+        } catch (NoSuchFileException e) {
+            // deleted since it was checked
+            throw new FileNotFoundException("File not found or it is a directory");
+        } finally {
+            io.finished(start, 0, position - offset);
+            fences.end(file);
+        }
+    }
 
+    @Override
+    public InetSocketAddress dataAddress()
+    {
+        return dataServer.address();
     }
 
     // The following methods are documented in Command.java.
@@ -190,38 +546,24 @@ public class StorageServer implements Storage, Command
         if (file.isRoot())
             return false;
 
-       File createFile = file.toFile(rootDir);
-       File parentFile = file.parent().toFile(rootDir);
-
-       if (file.parent().isRoot()){
-           if (!createFile.exists()) {
-               try {
-                   createFile.createNewFile();
-                   return true;
-               } catch (IOException e) {
-                   e.printStackTrace();
-               }
-           }
-       }
+        File createFile = file.toFile(rootDir);
+        File parentFile = file.parent().toFile(rootDir);
 
-
-        if (!parentFile.exists()){
-            parentFile.mkdirs();
-        }else {
+        // the parent may exist already, for instance if this server hosts
+        // replicas of other files of the directory
+        if (!parentFile.isDirectory() && !parentFile.mkdirs())
             return false;
-        }
 
-        if (!createFile.exists()){
-            try {
-                createFile.createNewFile();
-                return true;
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        try {
+            if (!createFile.createNewFile())
+                return false;
+        } catch (IOException e) {
+            return false;
         }
 
+        if (manifest != null)
+            manifest.added(file);
         return true;
-
     }
 
     @Override
@@ -238,6 +580,9 @@ public class StorageServer implements Storage, Command
 
             if(deleteFile.isFile()){
                 deleteFile.delete();
+                fences.forget(path);
+                if (manifest != null)
+                    manifest.removed(path);
                 return true;
             }else {
                 for (File f:deleteFile.listFiles()) {
@@ -246,6 +591,9 @@ public class StorageServer implements Storage, Command
                                 .sorted(Comparator.reverseOrder())
                                 .map(java.nio.file.Path :: toFile)
                                 .forEach(File::delete);
+                                fences.forget(path);
+                                if (manifest != null)
+                                    manifest.removedUnder(path);
                                 return true;
                     } catch (IOException e) {
                         e.printStackTrace();
@@ -255,4 +603,68 @@ public class StorageServer implements Storage, Command
 
             return false;
     }
+
+    @Override
+    public boolean copy(Path file, Storage source)
+        throws RMIException, FileNotFoundException, IOException
+    {
+        if (file.isRoot())
+            return false;
+
+        long size = source.size(file);
+        InetSocketAddress data = source.dataAddress();
+
+        File target = file.toFile(rootDir);
+        target.getParentFile().mkdirs();
+
+        // the copy is written to a file of its own in the staging directory,
+        // where it is neither served nor listed, and moved into place, so that
+        // readers never see a partial file
+        Files.createDirectories(stagingDir.toPath());
+        java.nio.file.Path temporary = Files.createTempFile(stagingDir.toPath(), target.getName(), ".copy");
+        long start = io.started();
+        long copied = 0;
+        try {
+            try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                if (data != null && size > 0) {
+                    DataChannel.read(data, file, 0, size, out);
+                    copied = size;
+                }
+                while (copied < size) {
+                    int length = (int) Math.min(COPY_CHUNK_SIZE, size - copied);
+                    ByteBuffer chunk = ByteBuffer.wrap(source.read(file, copied, length));
+                    while (chunk.hasRemaining())
+                        copied += out.write(chunk, copied);
+                }
+                out.force(false);
+            }
+            try {
+                Files.move(temporary, target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                // the root is a mount point, and the staging directory is on
+                // another filesystem
+                Files.move(temporary, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+            io.finished(start, 0, copied);
+        }
+
+        if (manifest != null)
+            manifest.added(file);
+        return true;
+    }
+
+    @Override
+    public void fence(Path file) throws IOException
+    {
+        fences.fence(file);
+    }
+
+    @Override
+    public void release(Path file)
+    {
+        fences.release(file);
+    }
 }
@@ -0,0 +1,74 @@
+package unit;
+
+import test.*;
+
+/** Runs all unit tests on distributed filesystem components.
+
+    <p>
+    Tests performed are:
+    <ul>
+    <li>{@link rmi.ConnectionPoolTest}</li>
+    <li>{@link rmi.MultiplexingTest}</li>
+    <li>{@link rmi.WireFormatTest}</li>
+    <li>{@link naming.PathLockTest}</li>
+    <li>{@link naming.JournalTest}</li>
+    <li>{@link naming.ListPageTest}</li>
+    <li>{@link naming.BatchTest}</li>
+    <li>{@link naming.PlacementPolicyTest}</li>
+    <li>{@link naming.ReplicationTest}</li>
+    <li>{@link naming.RepairTest}</li>
+    <li>{@link naming.RebalanceTest}</li>
+    <li>{@link naming.RegisterBatchTest}</li>
+    <li>{@link storage.ManifestTest}</li>
+    <li>{@link naming.ReconnectTest}</li>
+    <li>{@link naming.LeaseTest}</li>
+    <li>{@link client.MetadataCacheTest}</li>
+    <li>{@link naming.TombstoneTest}</li>
+    <li>{@link rmi.SelectorTransportTest}</li>
+    <li>{@link storage.DataServerTest}</li>
+    <li>{@link rmi.AsyncStubTest}</li>
+    <li>{@link rmi.CallMetricsTest}</li>
+    <li>{@link naming.ServerHealthTest}</li>
+    </ul>
+ */
+public class UnitTests
+{
+    /** Runs the tests.
+
+        @param arguments Ignored.
+     */
+    public static void main(String[] arguments)
+    {
+        // Create the test list, the series object, and run the test series.
+        @SuppressWarnings("unchecked")
+        Class<? extends Test>[]     tests =
+            new Class[] {rmi.ConnectionPoolTest.class,
+                         rmi.MultiplexingTest.class,
+                         rmi.WireFormatTest.class,
+                         naming.PathLockTest.class,
+                         naming.JournalTest.class,
+                         naming.ListPageTest.class,
+                         naming.BatchTest.class,
+                         naming.PlacementPolicyTest.class,
+                         naming.ReplicationTest.class,
+                         naming.RepairTest.class,
+                         naming.RebalanceTest.class,
+                         naming.RegisterBatchTest.class,
+                         storage.ManifestTest.class,
+                         naming.ReconnectTest.class,
+                         naming.LeaseTest.class,
+                         client.MetadataCacheTest.class,
+                         naming.TombstoneTest.class,
+                         rmi.SelectorTransportTest.class,
+                         storage.DataServerTest.class,
+                         rmi.AsyncStubTest.class,
+                         rmi.CallMetricsTest.class,
+                         naming.ServerHealthTest.class};
+        Series                      series = new Series(tests);
+        SeriesReport                report = series.run(5, System.out);
+
+        // Print the report and exit with an appropriate exit status.
+        report.print(System.out);
+        System.exit(report.successful() ? 0 : 2);
+    }
+}
@@ -0,0 +1,246 @@
+package client;
+
+import java.io.FileNotFoundException;
+import java.lang.reflect.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+
+import test.*;
+import rmi.*;
+import common.*;
+import naming.*;
+import storage.*;
+
+/** Tests the client-side metadata cache.
+
+    <p>
+    The cache is given a naming server, which is not started, through a proxy
+    counting the calls made to it. Items checked are:
+    <ul>
+    <li>Repeated lookups of the same paths are answered from the cache, under
+        a single lease.</li>
+    <li>Lookups that fail are not cached.</li>
+    <li>Changes made through the cache drop the metadata they affect at
+        once.</li>
+    <li>Changes made by other clients are seen once the lease runs out, when
+        the metadata of the changed paths is dropped, and only that.</li>
+    </ul>
+ */
+public class MetadataCacheTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking client metadata cache";
+
+    /** Naming server whose metadata is cached, which is not started. */
+    private NamingServer        server;
+    /** Number of calls made to the naming server, by method name. */
+    private final Map<String, Integer>  calls = new HashMap<>();
+    /** Cache under test. */
+    private MetadataCache       cache;
+    /** Client interface stub of the storage server, which is not running. */
+    private final Storage       storage =
+        Stub.create(Storage.class, new InetSocketAddress("127.0.0.1", 7001));
+
+    /** Creates the naming server and the cache. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        server = new NamingServer();
+
+        try
+        {
+            server.createDirectory(new Path("/d"));
+            server.createDirectory(new Path("/h"));
+            server.register(storage,
+                Stub.create(Command.class,
+                            new InetSocketAddress("127.0.0.1", 7002)),
+                new Path[] {new Path("/d/f")});
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create the namespace", t);
+        }
+
+        Service     counted = (Service)Proxy.newProxyInstance(
+            Service.class.getClassLoader(), new Class<?>[] {Service.class},
+            (proxy, method, arguments) -> {
+                synchronized(calls)
+                {
+                    calls.merge(method.getName(), 1, Integer::sum);
+                }
+
+                try
+                {
+                    return method.invoke(server, arguments);
+                }
+                catch(InvocationTargetException e)
+                {
+                    throw e.getCause();
+                }
+            });
+
+        cache = new MetadataCache(counted);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testHits();
+            testFailures();
+            testOwnChanges();
+            testOtherChanges();
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Stops the naming server. */
+    @Override
+    protected void clean()
+    {
+        if(server != null)
+        {
+            server.stop();
+            server = null;
+        }
+    }
+
+    /** Checks that repeated lookups are answered from the cache.
+
+        @throws TestFailed If a lookup reaches the naming server twice.
+     */
+    private void testHits() throws Throwable
+    {
+        for(int repeat = 0; repeat < 3; ++repeat)
+        {
+            if(!cache.isDirectory(new Path("/h")) ||
+               cache.isDirectory(new Path("/d/f")))
+            {
+                throw new TestFailed("wrong type of object returned");
+            }
+
+            expectListing("/d", "f");
+
+            if(cache.getStorage(new Path("/d/f")) != storage)
+                throw new TestFailed("wrong storage server returned");
+        }
+
+        expectCalls("isDirectory", 2);
+        expectCalls("list", 1);
+        expectCalls("getStorage", 1);
+        expectCalls("lease", 1);
+    }
+
+    /** Checks that failed lookups are not cached.
+
+        @throws TestFailed If a failed lookup is answered from the cache.
+     */
+    private void testFailures() throws Throwable
+    {
+        for(int repeat = 0; repeat < 2; ++repeat)
+        {
+            try
+            {
+                cache.isDirectory(new Path("/missing"));
+                throw new TestFailed("missing path found");
+            }
+            catch(FileNotFoundException e)
+            {
+                // Expected.
+            }
+        }
+
+        expectCalls("isDirectory", 4);
+    }
+
+    /** Checks that changes made through the cache are seen at once.
+
+        @throws TestFailed If stale metadata is returned.
+     */
+    private void testOwnChanges() throws Throwable
+    {
+        cache.createDirectory(new Path("/d/e"));
+        expectListing("/d", "e", "f");
+        expectCalls("list", 2);
+
+        // The listing of the parent, and the lookup of the file, are kept.
+        cache.createDirectory(new Path("/h/i"));
+        expectListing("/d", "e", "f");
+        cache.getStorage(new Path("/d/f"));
+        expectCalls("list", 2);
+        expectCalls("getStorage", 1);
+    }
+
+    /** Checks that changes made by other clients are seen at the next
+        lease.
+
+        @throws TestFailed If the changes are not seen after the lease, or
+                           more metadata than they affect is dropped.
+     */
+    private void testOtherChanges() throws Throwable
+    {
+        server.createDirectory(new Path("/d/g"));
+
+        // Under the current lease, the listing is stale.
+        expectListing("/d", "e", "f");
+
+        Thread.sleep(NamingServer.LEASE_DURATION + 100);
+
+        expectListing("/d", "e", "f", "g");
+        expectCalls("lease", 2);
+        expectCalls("list", 3);
+
+        cache.isDirectory(new Path("/h"));
+        cache.getStorage(new Path("/d/f"));
+        expectCalls("isDirectory", 4);
+        expectCalls("getStorage", 1);
+    }
+
+    /** Checks the listing of a directory returned by the cache.
+
+        @throws TestFailed If the listing is not the one expected.
+     */
+    private void expectListing(String directory, String... expected)
+        throws TestFailed, RMIException, FileNotFoundException
+    {
+        String[]    listing = cache.list(new Path(directory));
+
+        if(!TestUtil.sameElements(listing, expected))
+        {
+            throw new TestFailed(directory + " listed as " +
+                                 Arrays.toString(listing));
+        }
+    }
+
+    /** Checks the number of calls made to a method of the naming server.
+
+        @throws TestFailed If the number differs from the one expected.
+     */
+    private void expectCalls(String method, int expected) throws TestFailed
+    {
+        int         made;
+
+        synchronized(calls)
+        {
+            made = calls.getOrDefault(method, 0);
+        }
+
+        if(made != expected)
+        {
+            throw new TestFailed(method + " called " + made + " times " +
+                                 "instead of " + expected);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package naming;
+
+import java.io.FileNotFoundException;
+import java.util.*;
+
+import test.*;
+import common.*;
+import storage.*;
+
+/** Tests the outcomes of batched creation and deletion of files.
+
+    <p>
+    Items checked are:
+    <ul>
+    <li><code>createFiles</code> reports, for each path, whether the file was
+        created, already existed or was given earlier in the batch, has no
+        parent directory, or could not be created by any of its storage
+        servers.</li>
+    <li>A file whose creation fails on some of its storage servers is created
+        on the others only.</li>
+    <li><code>deletePaths</code> reports, for each path, whether it was
+        deleted, does not exist or lies below a path deleted earlier in the
+        batch, or could not be deleted, in which case it is kept in the
+        directory tree.</li>
+    </ul>
+ */
+public class BatchTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking outcomes of batched creation and deletion";
+
+    /** Naming server under test, which is not started. */
+    private NamingServer        server;
+    /** Storage server registered first. */
+    private final MemoryServer  first = new MemoryServer(0, new Path("/d/f"));
+    /** Storage server registered second. */
+    private final MemoryServer  second = new MemoryServer(0);
+
+    /** Creates the naming server and registers the first storage server. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        server = new NamingServer();
+        server.register(first, first, first.files());
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testCreation();
+            testReplicatedCreation();
+            testDeletion();
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Stops the naming server. */
+    @Override
+    protected void clean()
+    {
+        if(server != null)
+        {
+            server.stop();
+            server = null;
+        }
+    }
+
+    /** Checks the outcomes of creating files on a single storage server.
+
+        @throws TestFailed If an outcome is not as expected.
+     */
+    private void testCreation() throws Throwable
+    {
+        first.refuse(new Path("/d/refused"));
+
+        expect("creation", server.createFiles(paths(
+                   "/d/new", "/d/f", "/d/new", "/missing/x", "/d/f/x", "/",
+                   "/d/refused")),
+               Outcome.DONE, Outcome.EXISTS, Outcome.EXISTS,
+               Outcome.NOT_FOUND, Outcome.NOT_FOUND, Outcome.EXISTS,
+               Outcome.FAILED);
+
+        if(server.isDirectory(new Path("/d/new")) ||
+           !first.holds(new Path("/d/new")))
+        {
+            throw new TestFailed("created file not added");
+        }
+
+        expectMissing(new Path("/d/refused"));
+
+        first.setUnreachable(true);
+        try
+        {
+            expect("creation on unreachable server",
+                   server.createFiles(paths("/d/unreachable")),
+                   Outcome.FAILED);
+        }
+        finally
+        {
+            first.setUnreachable(false);
+        }
+
+        expectMissing(new Path("/d/unreachable"));
+    }
+
+    /** Checks that a replicated file is created on the storage servers that
+        create it.
+
+        @throws TestFailed If the replicas of a file are not as expected.
+     */
+    private void testReplicatedCreation() throws Throwable
+    {
+        server.register(second, second, second.files());
+        server.createDirectory(new Path("/r"));
+        server.setReplication(new Path("/r"), 2);
+
+        second.refuse(new Path("/r/half"));
+
+        expect("replicated creation",
+               server.createFiles(paths("/r/both", "/r/half")),
+               Outcome.DONE, Outcome.DONE);
+
+        if(!TestUtil.sameElements(server.getReplicas(new Path("/r/both")),
+                                  new Storage[] {first, second}))
+        {
+            throw new TestFailed("file not created on both storage servers");
+        }
+
+        if(!TestUtil.sameElements(server.getReplicas(new Path("/r/half")),
+                                  new Storage[] {first}))
+        {
+            throw new TestFailed("file listed on a storage server that did " +
+                                 "not create it");
+        }
+    }
+
+    /** Checks the outcomes of deleting paths.
+
+        @throws TestFailed If an outcome is not as expected, or a path is not
+                           kept or removed as expected.
+     */
+    private void testDeletion() throws Throwable
+    {
+        first.refuse(new Path("/r/both"));
+
+        expect("deletion refused by a storage server",
+               server.deletePaths(paths("/r/both", "/r/half")),
+               Outcome.FAILED, Outcome.DONE);
+
+        if(server.isDirectory(new Path("/r/both")))
+            throw new TestFailed("file not kept after failed deletion");
+
+        expectMissing(new Path("/r/half"));
+
+        first.setUnreachable(true);
+        try
+        {
+            expect("deletion on unreachable server",
+                   server.deletePaths(paths("/r", "/r/both")),
+                   Outcome.FAILED, Outcome.FAILED);
+        }
+        finally
+        {
+            first.setUnreachable(false);
+        }
+
+        if(!server.isDirectory(new Path("/r")))
+            throw new TestFailed("directory not kept after failed deletion");
+
+        expect("deletion",
+               server.deletePaths(paths("/d", "/d/new", "/", "/missing")),
+               Outcome.DONE, Outcome.NOT_FOUND, Outcome.FAILED,
+               Outcome.NOT_FOUND);
+
+        expectMissing(new Path("/d"));
+
+        if(first.holds(new Path("/d/f")) || first.holds(new Path("/d/new")))
+            throw new TestFailed("files of deleted directory kept on server");
+    }
+
+    /** Checks that a path is not in the directory tree.
+
+        @throws TestFailed If the path is in the tree.
+     */
+    private void expectMissing(Path path) throws TestFailed
+    {
+        try
+        {
+            server.isDirectory(path);
+        }
+        catch(FileNotFoundException e)
+        {
+            return;
+        }
+
+        throw new TestFailed(path + " is in the directory tree");
+    }
+
+    /** Checks the outcomes of a batch.
+
+        @param what Description of the batch.
+        @param outcomes Outcomes returned.
+        @param expected Outcomes expected.
+        @throws TestFailed If the outcomes are not those expected.
+     */
+    private static void expect(String what, Outcome[] outcomes,
+                               Outcome... expected)
+        throws TestFailed
+    {
+        if(!Arrays.equals(outcomes, expected))
+        {
+            throw new TestFailed(what + " reported " +
+                                 Arrays.toString(outcomes) + " instead of " +
+                                 Arrays.toString(expected));
+        }
+    }
+
+    /** Returns the paths with the given names. */
+    private static Path[] paths(String... names)
+    {
+        Path[]      paths = new Path[names.length];
+        for(int index = 0; index < names.length; ++index)
+            paths[index] = new Path(names[index]);
+        return paths;
+    }
+}
@@ -0,0 +1,427 @@
+package naming;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+
+import test.*;
+import rmi.*;
+import common.*;
+import storage.*;
+
+/** Tests the naming server journal.
+
+    <p>
+    Items checked are:
+    <ul>
+    <li>A naming server created on the journal of another recovers its
+        directory tree and registered storage servers, whose files are not
+        returned as duplicates when they register again, and the names of its
+        storage servers.</li>
+    <li>A checkpoint is taken after <code>CHECKPOINT_EDITS</code> edits, older
+        generations are deleted, and recovery replays the image followed by
+        the edits logged after it.</li>
+    <li>Recovery stops without error at an incomplete or damaged edit at the
+        end of the journal.</li>
+    </ul>
+ */
+public class JournalTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking naming server journal";
+
+    /** Client interface stub of the storage server, which is not running. */
+    private final Storage       storage =
+        Stub.create(Storage.class, new InetSocketAddress("127.0.0.1", 7001));
+    /** Command interface stub of the storage server. */
+    private final Command       command =
+        Stub.create(Command.class, new InetSocketAddress("127.0.0.1", 7002));
+
+    /** Journal directory. */
+    private TemporaryDirectory  directory;
+
+    /** Creates the journal directory. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+        }
+        catch(FileNotFoundException e)
+        {
+            throw new TestFailed("unable to create temporary directory", e);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        testNamingServerRecovery();
+        testCheckpoint();
+        testTornTail();
+    }
+
+    /** Removes the journal directory. */
+    @Override
+    protected void clean()
+    {
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Checks that a naming server recovers the namespace of another.
+
+        @throws TestFailed If the namespace is not recovered.
+     */
+    private void testNamingServerRecovery() throws TestFailed
+    {
+        File            journal = new File(directory.root(), "naming");
+        NamingServer    first = null;
+
+        try
+        {
+            first = new NamingServer(journal);
+            first.register(storage, command,
+                           new Path[] {new Path("/a/f"), new Path("/a/b/g"),
+                                       new Path("/h")});
+            first.reportChanges(command, "server", 0, new Path[0],
+                                new Path[0]);
+            first.createDirectory(new Path("/d"));
+            first.createDirectory(new Path("/d/e"));
+            first.delete(new Path("/d/e"));
+            first.setReplication(new Path("/a"), 2);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to change the namespace", t);
+        }
+        finally
+        {
+            if(first != null)
+                first.stop();
+        }
+
+        NamingServer    second;
+
+        try
+        {
+            second = new NamingServer(journal);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to recover the namespace", e);
+        }
+
+        try
+        {
+            expectListing(second, "/", "a", "d", "h");
+            expectListing(second, "/a", "b", "f");
+            expectListing(second, "/a/b", "g");
+            expectListing(second, "/d");
+
+            if(!storage.equals(second.getStorage(new Path("/a/b/g"))))
+                throw new TestFailed("storage server of file not recovered");
+
+            Path[]      duplicates =
+                second.register(storage, command,
+                                new Path[] {new Path("/a/f"), new Path("/d"),
+                                            new Path("/n")});
+
+            if(!TestUtil.sameElements(duplicates, new Path[] {new Path("/d")}))
+            {
+                throw new TestFailed("registration after recovery returned " +
+                                     "the wrong duplicates: " +
+                                     Arrays.toString(duplicates));
+            }
+
+            if(second.isDirectory(new Path("/n")))
+                throw new TestFailed("new file registered as a directory");
+
+            Storage     moved = Stub.create(Storage.class,
+                new InetSocketAddress("127.0.0.1", 7003));
+            Command     movedCommand = Stub.create(Command.class,
+                new InetSocketAddress("127.0.0.1", 7004));
+
+            if(second.reconnect(moved, movedCommand, "server", 1, new Path[0],
+                                new Path[0]) == null)
+            {
+                throw new TestFailed("name of storage server not recovered");
+            }
+
+            if(!moved.equals(second.getStorage(new Path("/a/f"))))
+                throw new TestFailed("reconnected stubs not used for files");
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to use the recovered namespace", t);
+        }
+        finally
+        {
+            second.stop();
+        }
+    }
+
+    /** Checks that a checkpoint is taken and recovered.
+
+        @throws TestFailed If the checkpoint is not taken, or recovery does not
+                           replay it followed by the later edits.
+     */
+    private void testCheckpoint() throws TestFailed
+    {
+        File            journalDirectory = new File(directory.root(), "journal");
+        Directory_tree  root = Directory_tree.root()
+            .withChild(Directory_tree.directory("image")
+                .withChild(Directory_tree.file("file", new int[] {0, 1})));
+        Journal.Snapshot    snapshot =
+            new Journal.Snapshot(root, Arrays.asList(storage, storage),
+                                 Arrays.asList(command, command),
+                                 Collections.singletonMap(new Path("/image"),
+                                                          2),
+                                 Arrays.asList("server", null),
+                                 Collections.singletonMap(1,
+                                     Collections.singleton(new Path("/gone"))));
+
+        try
+        {
+            Journal     journal = new Journal(journalDirectory, () -> snapshot);
+
+            if(journal.recover(new Recorder()) != 0)
+                throw new TestFailed("edits recovered from empty journal");
+
+            // A single change of many edits starts the checkpoint.
+            Journal.Edits   edits = new Journal.Edits();
+            for(int index = 0; index < Journal.CHECKPOINT_EDITS; ++index)
+                edits.directory(new Path("/before" + index));
+            journal.sync(journal.log(edits, () -> { }));
+
+            File        image = new File(journalDirectory, "image.1");
+            long        deadline = System.currentTimeMillis() + 10000;
+            while(!image.exists())
+            {
+                if(System.currentTimeMillis() > deadline)
+                    throw new TestFailed("checkpoint image not written");
+                Thread.sleep(10);
+            }
+
+            journal.sync(journal.log(new Journal.Edits()
+                                         .directory(new Path("/after"))
+                                         .delete(new Path("/image/file"))
+                                         .tombstone(0, new Path("/image/file"))
+                                         .cleared(1, new Path("/gone")),
+                                     () -> { }));
+            journal.close();
+
+            if(new File(journalDirectory, "edits.0").exists())
+                throw new TestFailed("edits of old generation not deleted");
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to write the journal", t);
+        }
+
+        expectRecovery(journalDirectory, 4,
+                       "server 0", "server 1", "tree [image [file 0 1]]",
+                       "replication /image 2", "name 0 server",
+                       "tombstone 1 /gone", "directory /after",
+                       "delete /image/file", "tombstone 0 /image/file",
+                       "cleared 1 /gone");
+    }
+
+    /** Checks that damaged edits at the end of the journal are ignored.
+
+        @throws TestFailed If recovery fails or replays the damaged edits.
+     */
+    private void testTornTail() throws TestFailed
+    {
+        File        journalDirectory = new File(directory.root(), "torn");
+
+        try
+        {
+            Journal     journal = new Journal(journalDirectory, () -> null);
+            journal.recover(new Recorder());
+            journal.sync(journal.log(new Journal.Edits()
+                                         .directory(new Path("/kept")),
+                                     () -> { }));
+            journal.close();
+
+            // An edit whose checksum does not match, followed by one cut
+            // short.
+            try(DataOutputStream out = new DataOutputStream(
+                    new FileOutputStream(new File(journalDirectory, "edits.0"),
+                                         true)))
+            {
+                out.writeInt(3);
+                out.writeInt(12345);
+                out.write(new byte[] {Journal.DIRECTORY, 0, 0});
+                out.writeInt(100);
+                out.writeInt(0);
+                out.write(new byte[] {Journal.DIRECTORY});
+            }
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to write the journal", e);
+        }
+
+        expectRecovery(journalDirectory, 1, "directory /kept");
+        // The next generation, created by the recovery above, is empty.
+        expectRecovery(journalDirectory, 1, "directory /kept");
+    }
+
+    /** Checks that a directory is listed with the given children. */
+    private static void expectListing(NamingServer server, String path,
+                                      String... children)
+        throws TestFailed, FileNotFoundException
+    {
+        String[]    listing = server.list(new Path(path));
+
+        if(!TestUtil.sameElements(listing, children))
+        {
+            throw new TestFailed("directory " + path + " recovered as " +
+                                 Arrays.toString(listing));
+        }
+    }
+
+    /** Recovers a journal and checks what is replayed.
+
+        @param journalDirectory The journal directory.
+        @param edits Number of edits expected to be replayed after the image.
+        @param expected Description of each call expected on the replay, in
+                        order.
+        @throws TestFailed If the recovery fails, or does not replay what is
+                           expected.
+     */
+    private static void expectRecovery(File journalDirectory, long edits,
+                                       String... expected)
+        throws TestFailed
+    {
+        Recorder    recorder = new Recorder();
+        long        replayed;
+
+        try
+        {
+            Journal journal = new Journal(journalDirectory, () -> null);
+            replayed = journal.recover(recorder);
+            journal.close();
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to recover the journal", e);
+        }
+
+        if(!recorder.calls.equals(Arrays.asList(expected)))
+            throw new TestFailed("journal recovered as " + recorder.calls);
+
+        if(replayed != edits)
+        {
+            throw new TestFailed(replayed + " edits replayed instead of " +
+                                 edits);
+        }
+    }
+
+    /** Replay recording a description of each call. */
+    private static class Recorder implements Journal.Replay
+    {
+        /** Description of each call, in order. */
+        final List<String>  calls = new ArrayList<>();
+
+        @Override
+        public void server(int id, Storage storage, Command command)
+        {
+            calls.add("server " + id);
+        }
+
+        @Override
+        public void name(int id, String name)
+        {
+            calls.add("name " + id + " " + name);
+        }
+
+        @Override
+        public void tree(Directory_tree root)
+        {
+            StringBuilder   description = new StringBuilder("tree ");
+            describe(root, description);
+            calls.add(description.toString());
+        }
+
+        @Override
+        public void file(Path file, int[] servers)
+        {
+            calls.add("file " + file + " " + Arrays.toString(servers));
+        }
+
+        @Override
+        public void replication(Path path, int factor)
+        {
+            calls.add("replication " + path + " " + factor);
+        }
+
+        @Override
+        public void tombstone(int id, Path path)
+        {
+            calls.add("tombstone " + id + " " + path);
+        }
+
+        @Override
+        public void cleared(int id, Path path)
+        {
+            calls.add("cleared " + id + " " + path);
+        }
+
+        @Override
+        public void directory(Path directory)
+        {
+            calls.add("directory " + directory);
+        }
+
+        @Override
+        public void delete(Path path)
+        {
+            calls.add("delete " + path);
+        }
+
+        /** Describes the children of a directory and their servers. */
+        private static void describe(Directory_tree directory,
+                                     StringBuilder description)
+        {
+            description.append('[');
+            String  separator = "";
+
+            for(Directory_tree child : directory.children())
+            {
+                description.append(separator).append(child.getName());
+                separator = " ";
+
+                if(child.isDirectory())
+                {
+                    description.append(' ');
+                    describe(child, description);
+                }
+                else
+                {
+                    for(int server : child.servers())
+                        description.append(' ').append(server);
+                }
+            }
+
+            description.append(']');
+        }
+    }
+}
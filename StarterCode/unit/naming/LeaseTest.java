@@ -0,0 +1,155 @@
+package naming;
+
+import java.util.*;
+
+import test.*;
+import common.*;
+
+/** Tests leases and the invalidation log of the naming server.
+
+    <p>
+    Items checked are:
+    <ul>
+    <li>A lease requested without a version lists no changes, and one
+        requested with the current version lists none either.</li>
+    <li>A lease lists the paths changed after the version given, in order,
+        and raises the version by one for each.</li>
+    <li>A lease requested with a version the log no longer covers, or with a
+        version the log has not reached, gives <code>null</code> for the
+        changes, so that the client drops all its metadata.</li>
+    <li>The naming server records the paths it changes, and grants leases
+        of <code>LEASE_DURATION</code>.</li>
+    </ul>
+ */
+public class LeaseTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking leases and invalidation";
+
+    /** Capacity of the invalidation log under test. */
+    private static final int    CAPACITY = 4;
+    /** Duration of the leases granted from the log under test. */
+    private static final long   DURATION = 1234;
+
+    /** Naming server under test, which is not started. */
+    private NamingServer        server;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        testLog();
+        testNamingServer();
+    }
+
+    /** Stops the naming server. */
+    @Override
+    protected void clean()
+    {
+        if(server != null)
+        {
+            server.stop();
+            server = null;
+        }
+    }
+
+    /** Checks the leases granted from an invalidation log.
+
+        @throws TestFailed If a lease is not as expected.
+     */
+    private void testLog() throws TestFailed
+    {
+        InvalidationLog log = new InvalidationLog(CAPACITY);
+        Lease           first = log.since(-1, DURATION);
+        long            start = first.getVersion();
+
+        expectLease(first, start, paths());
+
+        if(first.getDuration() != DURATION)
+            throw new TestFailed("lease granted for the wrong duration");
+
+        log.record(new Path("/a"));
+        log.record(Arrays.asList(new Path("/b"), new Path("/a")));
+
+        expectLease(log.since(start, DURATION), start + 3,
+                    paths("/a", "/b", "/a"));
+        expectLease(log.since(start + 2, DURATION), start + 3, paths("/a"));
+        expectLease(log.since(start + 3, DURATION), start + 3, paths());
+        expectLease(log.since(start + 4, DURATION), start + 3, null);
+
+        log.record(Arrays.asList(new Path("/c"), new Path("/d")));
+
+        expectLease(log.since(start, DURATION), start + 5, null);
+        expectLease(log.since(start + 1, DURATION), start + 5,
+                    paths("/b", "/a", "/c", "/d"));
+    }
+
+    /** Checks that the naming server records the paths it changes.
+
+        @throws TestFailed If a change is not recorded.
+     */
+    private void testNamingServer() throws TestFailed
+    {
+        server = new NamingServer();
+
+        Lease       lease = server.lease(-1);
+        long        version = lease.getVersion();
+
+        if(lease.getDuration() != NamingServer.LEASE_DURATION)
+            throw new TestFailed("lease granted for the wrong duration");
+
+        try
+        {
+            server.createDirectory(new Path("/d"));
+            server.createDirectories(paths("/d/e", "/f"));
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create directories", t);
+        }
+
+        lease = server.lease(version);
+
+        if(lease.getChanged() == null ||
+           !new HashSet<>(Arrays.asList(lease.getChanged()))
+               .containsAll(Arrays.asList(paths("/d", "/d/e", "/f"))))
+        {
+            throw new TestFailed("changes of naming server not recorded");
+        }
+
+        if(server.lease(lease.getVersion()).getChanged().length != 0)
+            throw new TestFailed("changes listed twice");
+    }
+
+    /** Checks a lease.
+
+        @param lease The lease.
+        @param version Version expected.
+        @param changed Paths expected to be listed, or <code>null</code> if
+                       the lease must give <code>null</code>.
+        @throws TestFailed If the lease is not as expected.
+     */
+    private static void expectLease(Lease lease, long version, Path[] changed)
+        throws TestFailed
+    {
+        if(lease.getVersion() != version ||
+           !Arrays.equals(lease.getChanged(), changed))
+        {
+            throw new TestFailed("lease of version " + lease.getVersion() +
+                                 " lists " +
+                                 Arrays.toString(lease.getChanged()));
+        }
+    }
+
+    /** Returns the paths with the given names. */
+    private static Path[] paths(String... names)
+    {
+        Path[]      paths = new Path[names.length];
+        for(int index = 0; index < names.length; ++index)
+            paths[index] = new Path(names[index]);
+        return paths;
+    }
+}
@@ -0,0 +1,234 @@
+package naming;
+
+import java.io.FileNotFoundException;
+import java.net.InetSocketAddress;
+import java.util.*;
+
+import test.*;
+import rmi.*;
+import common.*;
+import storage.*;
+
+/** Tests paginated listing of directories by the naming server.
+
+    <p>
+    Items checked are:
+    <ul>
+    <li>Listing a directory page by page, passing the last name of each page
+        as the cursor of the next, lists every entry exactly once, in order of
+        the code points of the names.</li>
+    <li>A cursor need not name an entry of the directory.</li>
+    <li>Non-positive limits, and paths that are not directories, are
+        rejected.</li>
+    </ul>
+ */
+public class ListPageTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking paginated directory listing";
+
+    /** Names of the entries of the listed directory, in code point order.
+        The last two are ordered differently by UTF-16 code units. */
+    private static final String[]   NAMES =
+        new String[] {"A", "B", "a", "a0", "ab", "b", "z", "\u00e9",
+                      "\uff01", "\ud83d\ude00"};
+
+    /** Naming server under test, which is not started. */
+    private NamingServer        server;
+
+    /** Creates the directory to be listed. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        server = new NamingServer();
+
+        Storage     storage =
+            Stub.create(Storage.class, new InetSocketAddress("127.0.0.1", 7001));
+        Command     command =
+            Stub.create(Command.class, new InetSocketAddress("127.0.0.1", 7002));
+
+        try
+        {
+            server.createDirectory(new Path("/list"));
+
+            // Half of the entries are files, the other half directories, in
+            // no particular order.
+            List<Path>  files = new ArrayList<>();
+            for(int index = NAMES.length - 1; index >= 0; --index)
+            {
+                Path    path = new Path(new Path("/list"), NAMES[index]);
+
+                if(index % 2 == 0)
+                    files.add(path);
+                else
+                    server.createDirectory(path);
+            }
+
+            server.register(storage, command, files.toArray(new Path[0]));
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create the listed directory", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        for(int limit = 1; limit <= NAMES.length + 1; ++limit)
+            testPages(limit);
+
+        testCursors();
+        testArguments();
+    }
+
+    /** Stops the naming server. */
+    @Override
+    protected void clean()
+    {
+        if(server != null)
+        {
+            server.stop();
+            server = null;
+        }
+    }
+
+    /** Lists the directory in pages of the given size.
+
+        @param limit Maximum number of entries in each page.
+        @throws TestFailed If a page is too large, or the pages together do
+                           not list every entry once, in order.
+     */
+    private void testPages(int limit) throws TestFailed
+    {
+        List<String>    listed = new ArrayList<>();
+        String          cursor = null;
+
+        try
+        {
+            while(true)
+            {
+                String[]    page = server.listPage(new Path("/list"), cursor,
+                                                   limit);
+
+                if(page.length > limit)
+                {
+                    throw new TestFailed("page of " + page.length +
+                                         " entries returned for limit " +
+                                         limit);
+                }
+
+                listed.addAll(Arrays.asList(page));
+
+                if(page.length < limit)
+                    break;
+
+                cursor = page[page.length - 1];
+            }
+        }
+        catch(FileNotFoundException e)
+        {
+            throw new TestFailed("unable to list directory", e);
+        }
+
+        if(!listed.equals(Arrays.asList(NAMES)))
+        {
+            throw new TestFailed("pages of " + limit + " entries listed " +
+                                 listed);
+        }
+
+        try
+        {
+            if(!TestUtil.sameElements(server.list(new Path("/list")), NAMES))
+                throw new TestFailed("pages do not match the full listing");
+        }
+        catch(FileNotFoundException e)
+        {
+            throw new TestFailed("unable to list directory", e);
+        }
+    }
+
+    /** Checks pages starting after names that are not in the directory.
+
+        @throws TestFailed If a page does not start at the first entry after
+                           the cursor.
+     */
+    private void testCursors() throws TestFailed
+    {
+        expectPage("", 2, "A", "B");
+        expectPage("a00", 2, "ab", "b");
+        expectPage("c", 2, "z", "\u00e9");
+        expectPage("\uffff", 2, "\ud83d\ude00");
+        expectPage("\ud83d\ude00", 2);
+    }
+
+    /** Checks that invalid arguments are rejected.
+
+        @throws TestFailed If an invalid argument is accepted.
+     */
+    private void testArguments() throws TestFailed
+    {
+        for(int limit : new int[] {0, -1})
+        {
+            try
+            {
+                server.listPage(new Path("/list"), null, limit);
+                throw new TestFailed("page listed with limit " + limit);
+            }
+            catch(IllegalArgumentException e)
+            {
+                // Expected.
+            }
+            catch(FileNotFoundException e)
+            {
+                throw new TestFailed("limit " + limit + " raised the wrong " +
+                                     "exception", e);
+            }
+        }
+
+        for(Path path : new Path[] {new Path("/list/A"), new Path("/missing")})
+        {
+            try
+            {
+                server.listPage(path, null, 1);
+                throw new TestFailed("page of " + path + " listed");
+            }
+            catch(FileNotFoundException e)
+            {
+                // Expected.
+            }
+        }
+    }
+
+    /** Checks a single page of the directory.
+
+        @param startAfter Cursor of the page.
+        @param limit Maximum number of entries in the page.
+        @param expected Entries expected in the page, in order.
+        @throws TestFailed If the page is not as expected.
+     */
+    private void expectPage(String startAfter, int limit, String... expected)
+        throws TestFailed
+    {
+        String[]    page;
+
+        try
+        {
+            page = server.listPage(new Path("/list"), startAfter, limit);
+        }
+        catch(FileNotFoundException e)
+        {
+            throw new TestFailed("unable to list directory", e);
+        }
+
+        if(!Arrays.equals(page, expected))
+        {
+            throw new TestFailed("page after \"" + startAfter + "\" listed " +
+                                 "as " + Arrays.toString(page));
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package naming;
+
+import java.io.*;
+import java.util.*;
+
+import rmi.*;
+import common.*;
+import storage.*;
+
+/** Storage server keeping its files in memory, used to test the naming
+    server without starting skeletons.
+
+    <p>
+    The naming server calls the server directly, as its client and command
+    stubs. Calls can be made to fail as a network error would fail them, and
+    the creation or deletion of given paths can be refused. The server counts
+    the fences, releases and copies the naming server asks for.
+ */
+class MemoryServer implements Storage, Command
+{
+    /** Contents of the files on the server. */
+    private final Map<Path, byte[]> files = new HashMap<>();
+    /** Paths whose creation or deletion is refused. */
+    private final Set<Path>         refused = new HashSet<>();
+    /** Whether calls fail as if the server could not be reached. */
+    private boolean                 unreachable = false;
+    /** Number of fences requested, by file. */
+    private final Map<Path, Integer>    fences = new HashMap<>();
+    /** Number of releases requested, by file. */
+    private final Map<Path, Integer>    releases = new HashMap<>();
+    /** Number of files copied to the server. */
+    private int                     copies = 0;
+
+    /** Creates a server holding files of the given size.
+
+        @param size Size of each file.
+        @param paths Paths of the files.
+     */
+    MemoryServer(int size, Path... paths)
+    {
+        for(Path path : paths)
+            files.put(path, new byte[size]);
+    }
+
+    /** Makes calls fail, or succeed again. */
+    synchronized void setUnreachable(boolean unreachable)
+    {
+        this.unreachable = unreachable;
+    }
+
+    /** Makes the server refuse to create or delete the given path. */
+    synchronized void refuse(Path path)
+    {
+        refused.add(path);
+    }
+
+    /** Returns <code>true</code> if the server holds the given file. */
+    synchronized boolean holds(Path file)
+    {
+        return files.containsKey(file);
+    }
+
+    /** Returns the files on the server. */
+    synchronized Path[] files()
+    {
+        return files.keySet().toArray(new Path[0]);
+    }
+
+    /** Returns the number of fences requested on the given file. */
+    synchronized int fences(Path file)
+    {
+        return fences.getOrDefault(file, 0);
+    }
+
+    /** Returns the number of releases requested on the given file. */
+    synchronized int releases(Path file)
+    {
+        return releases.getOrDefault(file, 0);
+    }
+
+    /** Returns the number of files copied to the server. */
+    synchronized int copies()
+    {
+        return copies;
+    }
+
+    /** Throws <code>RMIException</code> if the server is unreachable. */
+    private void reach() throws RMIException
+    {
+        if(unreachable)
+            throw new RMIException("storage server unreachable");
+    }
+
+    /** Returns the contents of a file. */
+    private byte[] contents(Path file) throws FileNotFoundException
+    {
+        byte[]      data = files.get(file);
+        if(data == null)
+            throw new FileNotFoundException(file.toString());
+        return data;
+    }
+
+    @Override
+    public synchronized long size(Path file)
+        throws RMIException, FileNotFoundException
+    {
+        reach();
+        return contents(file).length;
+    }
+
+    @Override
+    public synchronized byte[] read(Path file, long offset, int length)
+        throws RMIException, FileNotFoundException
+    {
+        reach();
+        byte[]      data = contents(file);
+
+        if(offset < 0 || length < 0 || offset + length > data.length)
+            throw new IndexOutOfBoundsException("read outside of " + file);
+
+        return Arrays.copyOfRange(data, (int)offset, (int)offset + length);
+    }
+
+    @Override
+    public synchronized void write(Path file, long offset, byte[] data)
+        throws RMIException, FileNotFoundException
+    {
+        reach();
+        byte[]      current = contents(file);
+
+        if(offset < 0)
+            throw new IndexOutOfBoundsException("negative offset");
+
+        byte[]      updated =
+            Arrays.copyOf(current, Math.max(current.length,
+                                            (int)offset + data.length));
+        System.arraycopy(data, 0, updated, (int)offset, data.length);
+        files.put(file, updated);
+    }
+
+    @Override
+    public synchronized boolean create(Path file) throws RMIException
+    {
+        reach();
+
+        if(refused.contains(file) || files.containsKey(file))
+            return false;
+
+        files.put(file, new byte[0]);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean delete(Path path) throws RMIException
+    {
+        reach();
+
+        if(refused.contains(path))
+            return false;
+
+        return files.keySet().removeIf(file -> within(file, path));
+    }
+
+    @Override
+    public boolean copy(Path file, Storage source)
+        throws RMIException, FileNotFoundException, IOException
+    {
+        synchronized(this)
+        {
+            reach();
+        }
+
+        byte[]      data = source.read(file, 0, (int)source.size(file));
+
+        synchronized(this)
+        {
+            files.put(file, data);
+            ++copies;
+        }
+
+        return true;
+    }
+
+    @Override
+    public synchronized void fence(Path file) throws RMIException
+    {
+        reach();
+        fences.merge(file, 1, Integer::sum);
+    }
+
+    @Override
+    public synchronized void release(Path file) throws RMIException
+    {
+        reach();
+        releases.merge(file, 1, Integer::sum);
+    }
+
+    /** Returns <code>true</code> if a path is the given path or lies below
+        it. */
+    private static boolean within(Path path, Path ancestor)
+    {
+        for(Path current = path; ; current = current.parent())
+        {
+            if(current.equals(ancestor))
+                return true;
+            if(current.isRoot())
+                return false;
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package naming;
+
+import java.io.FileNotFoundException;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+
+import test.*;
+import common.*;
+
+/** Tests the path locks of the naming server.
+
+    <p>
+    Items checked are:
+    <ul>
+    <li><code>exclusive</code> rejects paths that are not directories.</li>
+    <li>An exclusive lock on a directory keeps out exclusive locks on the
+        directory and below it, but not on other directories.</li>
+    <li><code>changing</code> locks the deepest existing ancestor of a path
+        whose parent does not exist.</li>
+    <li>Many threads taking overlapping locks on several paths, given in any
+        order, while publishing changes to the tree, never hold conflicting
+        locks at once and never deadlock.</li>
+    </ul>
+ */
+public class PathLockTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking naming server path locks";
+
+    /** Directories of the test tree. */
+    private static final Path[] DIRECTORIES =
+        new Path[] {new Path("/"), new Path("/a"), new Path("/a/b"),
+                    new Path("/c"), new Path("/c/d")};
+    /** Time, in milliseconds, for which a blocked lock is given the chance to
+        be taken. */
+    private static final long   WAIT = 200;
+    /** Number of threads in the deadlock test. */
+    private static final int    THREADS = 8;
+    /** Number of operations of each thread in the deadlock test. */
+    private static final int    OPERATIONS = 2000;
+
+    /** Latest version of the test tree. */
+    private final AtomicReference<Directory_tree>   tree =
+        new AtomicReference<>();
+    /** Directories locked exclusively by the operations of the deadlock test,
+        with the thread holding each. */
+    private final Map<Path, Thread> held = new HashMap<>();
+
+    /** Creates the test tree. */
+    @Override
+    protected void initialize()
+    {
+        Directory_tree  a = Directory_tree.directory("a")
+            .withChild(Directory_tree.directory("b"));
+        Directory_tree  c = Directory_tree.directory("c")
+            .withChild(Directory_tree.directory("d"))
+            .withChild(Directory_tree.file("f", 0));
+
+        tree.set(Directory_tree.root().withChild(a).withChild(c));
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        testArguments();
+        testExclusion();
+        testMissingParents();
+        testDeadlockFreedom();
+    }
+
+    /** Checks that locks on paths that are not directories are rejected.
+
+        @throws TestFailed If such a lock is taken.
+     */
+    private void testArguments() throws TestFailed
+    {
+        for(Path path : new Path[] {new Path("/missing"), new Path("/c/f"),
+                                    new Path("/a/missing/b")})
+        {
+            PathLock    lock;
+
+            try
+            {
+                lock = PathLock.exclusive(tree, path);
+            }
+            catch(FileNotFoundException e)
+            {
+                // Expected.
+                continue;
+            }
+
+            lock.close();
+            throw new TestFailed("exclusive lock taken on " + path);
+        }
+    }
+
+    /** Checks that an exclusive lock keeps out the locks it must, and only
+        those.
+
+        @throws TestFailed If a lock is taken when it must not, or blocks when
+                           it must not.
+     */
+    private void testExclusion() throws TestFailed
+    {
+        PathLock    lock;
+
+        try
+        {
+            lock = PathLock.exclusive(tree, new Path("/a"));
+        }
+        catch(FileNotFoundException e)
+        {
+            throw new TestFailed("unable to lock /a", e);
+        }
+
+        Attempt     same;
+        Attempt     below;
+
+        try
+        {
+            same = new Attempt(new Path("/a"));
+            below = new Attempt(new Path("/a/b"));
+            Attempt     other = new Attempt(new Path("/c"));
+
+            other.await(true);
+            same.await(false);
+            below.await(false);
+        }
+        finally
+        {
+            lock.close();
+        }
+
+        same.await(true);
+        below.await(true);
+    }
+
+    /** Checks that creating a path below missing directories locks the
+        deepest existing one.
+
+        @throws TestFailed If the lock is not taken as expected.
+     */
+    private void testMissingParents() throws TestFailed
+    {
+        List<Path>      paths = Arrays.asList(new Path("/a/x/y/z"));
+
+        PathLock    lock = PathLock.changing(tree, paths);
+        Attempt     covered;
+
+        try
+        {
+            covered = new Attempt(new Path("/a"));
+            Attempt     other = new Attempt(new Path("/c"));
+
+            other.await(true);
+            covered.await(false);
+        }
+        finally
+        {
+            lock.close();
+        }
+
+        covered.await(true);
+    }
+
+    /** Runs threads taking overlapping locks at random.
+
+        @throws TestFailed If two operations hold conflicting locks at once,
+                           or the threads do not finish.
+     */
+    private void testDeadlockFreedom() throws TestFailed
+    {
+        Thread[]    threads = new Thread[THREADS];
+        for(int index = 0; index < THREADS; ++index)
+        {
+            threads[index] = new Thread(this::operate);
+            threads[index].start();
+        }
+
+        for(Thread thread : threads)
+        {
+            try
+            {
+                thread.join();
+            }
+            catch(InterruptedException e)
+            {
+                throw new TestFailed("interrupted waiting for the threads", e);
+            }
+        }
+    }
+
+    /** Performs random operations for the deadlock test. */
+    private void operate()
+    {
+        ThreadLocalRandom   random = ThreadLocalRandom.current();
+
+        for(int operation = 0; operation < OPERATIONS; ++operation)
+        {
+            try
+            {
+                if(random.nextInt(4) == 0)
+                    lockDirectory(random);
+                else
+                    changeFiles(random);
+            }
+            catch(TestFailed e)
+            {
+                failure(e);
+                return;
+            }
+        }
+    }
+
+    /** Locks a random directory exclusively, as a single-path operation
+        does. */
+    private void lockDirectory(ThreadLocalRandom random) throws TestFailed
+    {
+        Path        directory = DIRECTORIES[random.nextInt(DIRECTORIES.length)];
+
+        PathLock    lock;
+
+        try
+        {
+            lock = PathLock.exclusive(tree, directory);
+        }
+        catch(FileNotFoundException e)
+        {
+            throw new TestFailed("unable to lock " + directory, e);
+        }
+
+        try
+        {
+            enter(Arrays.asList(directory));
+            leave();
+        }
+        finally
+        {
+            lock.close();
+        }
+    }
+
+    /** Adds or removes files in random directories, in random order, as a
+        batched operation does. */
+    private void changeFiles(ThreadLocalRandom random) throws TestFailed
+    {
+        List<Path>  files = new ArrayList<>();
+        List<Path>  parents = new ArrayList<>();
+
+        for(int count = 1 + random.nextInt(3); count > 0; --count)
+        {
+            Path    parent = DIRECTORIES[random.nextInt(DIRECTORIES.length)];
+            files.add(new Path(parent, "file" + random.nextInt(4)));
+            parents.add(parent);
+        }
+
+        PathLock    lock = PathLock.changing(tree, files);
+
+        try
+        {
+            enter(parents);
+
+            try
+            {
+                publish(files);
+            }
+            finally
+            {
+                leave();
+            }
+        }
+        finally
+        {
+            lock.close();
+        }
+    }
+
+    /** Adds the given files to the test tree, or removes those that exist.
+        The caller must hold the locks of their parents. */
+    private void publish(List<Path> files)
+    {
+        for(Path file : files)
+        {
+            Directory_tree  node = Directory_tree.file(file.last(), 0);
+            List<String>    parent = components(file.parent());
+
+            Directory_tree  current;
+            Directory_tree  next;
+            do
+            {
+                current = tree.get();
+                boolean     exists = current.lookup(file) != null;
+                next = current.update(parent, directory ->
+                    exists ? directory.withoutChild(file.last())
+                           : directory.withChild(node));
+            }
+            while(!tree.compareAndSet(current, next));
+        }
+    }
+
+    /** Records that the calling thread holds exclusive locks on the given
+        directories.
+
+        @throws TestFailed If another thread holds a lock on one of them, or
+                           on a directory above or below one.
+     */
+    private synchronized void enter(List<Path> directories) throws TestFailed
+    {
+        for(Path directory : directories)
+        {
+            for(Map.Entry<Path, Thread> entry : held.entrySet())
+            {
+                if(entry.getValue() != Thread.currentThread() &&
+                   (within(entry.getKey(), directory) ||
+                    within(directory, entry.getKey())))
+                {
+                    throw new TestFailed(directory + " locked while " +
+                                         entry.getKey() + " is held by " +
+                                         "another operation");
+                }
+            }
+        }
+
+        for(Path directory : directories)
+            held.put(directory, Thread.currentThread());
+    }
+
+    /** Records that the calling thread releases its locks. */
+    private synchronized void leave()
+    {
+        held.values().removeIf(thread -> thread == Thread.currentThread());
+    }
+
+    /** Returns <code>true</code> if a path is the given directory or lies
+        below it. */
+    private static boolean within(Path path, Path directory)
+    {
+        for(Path current = path; ; current = current.parent())
+        {
+            if(current.equals(directory))
+                return true;
+            if(current.isRoot())
+                return false;
+        }
+    }
+
+    /** Returns the components of a path. */
+    private static List<String> components(Path path)
+    {
+        List<String>    components = new ArrayList<>();
+        for(String component : path)
+        {
+            if(!component.isEmpty())
+                components.add(component);
+        }
+        return components;
+    }
+
+    /** Thread attempting to lock a directory exclusively, and releasing the
+        lock at once. */
+    private class Attempt extends Thread
+    {
+        /** Directory to be locked. */
+        private final Path      directory;
+        /** Set once the lock has been taken. */
+        private volatile boolean    locked = false;
+
+        /** Starts the attempt. */
+        Attempt(Path directory)
+        {
+            this.directory = directory;
+            setDaemon(true);
+            start();
+        }
+
+        @Override
+        public void run()
+        {
+            PathLock    lock;
+
+            try
+            {
+                lock = PathLock.exclusive(tree, directory);
+            }
+            catch(FileNotFoundException e)
+            {
+                failure(new TestFailed("unable to lock " + directory, e));
+                return;
+            }
+
+            locked = true;
+            lock.close();
+        }
+
+        /** Waits for the lock to be taken, or checks that it is not.
+
+            @param expected <code>true</code> if the lock must be taken.
+            @throws TestFailed If the lock is taken when it must not be, or
+                               not taken when it must.
+         */
+        void await(boolean expected) throws TestFailed
+        {
+            try
+            {
+                join(expected ? 0 : WAIT);
+            }
+            catch(InterruptedException e)
+            {
+                throw new TestFailed("interrupted waiting for lock", e);
+            }
+
+            if(locked != expected)
+            {
+                throw new TestFailed("lock on " + directory +
+                                     (expected ? " not taken"
+                                               : " taken while held"));
+            }
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package naming;
+
+import java.util.*;
+
+import test.*;
+import rmi.*;
+import common.*;
+import storage.*;
+
+/** Tests the placement policies of the naming server.
+
+    <p>
+    Items checked are:
+    <ul>
+    <li><code>roundRobin</code> takes the candidates in turn.</li>
+    <li><code>leastUsedBytes</code> and <code>leastRecentLoad</code> choose
+        the least loaded candidate by their order, breaking ties by the other
+        figure, then by rank.</li>
+    <li><code>randomTwoChoices</code> always returns a valid index, never
+        chooses the single most loaded candidate, and spreads its choices over
+        the others.</li>
+    <li>The naming server places new files by the policy it is given, on the
+        load reported by the storage servers and the files placed since.</li>
+    <li>Files that a storage server failed to create are not counted as
+        placed on it.</li>
+    </ul>
+ */
+public class PlacementPolicyTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking file placement policies";
+
+    /** Number of choices made of random policies. */
+    private static final int    CHOICES = 1000;
+
+    /** Naming server of the placement test, which is not started. */
+    private NamingServer        server;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        testRoundRobin();
+        testLeast();
+        testRandomTwoChoices();
+        testPlacement();
+        testFailedPlacement();
+    }
+
+    /** Stops the naming server. */
+    @Override
+    protected void clean()
+    {
+        if(server != null)
+        {
+            server.stop();
+            server = null;
+        }
+    }
+
+    /** Checks that <code>roundRobin</code> takes the candidates in turn.
+
+        @throws TestFailed If a candidate is skipped or chosen twice in a
+                           row.
+     */
+    private void testRoundRobin() throws TestFailed
+    {
+        PlacementPolicy     policy = PlacementPolicy.roundRobin();
+        List<ServerLoad>    candidates =
+            loads(new long[] {0, 0, 0}, new long[] {0, 0, 0});
+
+        for(int choice = 0; choice < 7; ++choice)
+            expect("round robin", policy.choose(candidates), choice % 3);
+
+        // The turn continues over a different number of candidates.
+        expect("round robin", policy.choose(candidates.subList(0, 2)), 1);
+    }
+
+    /** Checks the policies choosing the least loaded candidate.
+
+        @throws TestFailed If another candidate is chosen.
+     */
+    private void testLeast() throws TestFailed
+    {
+        PlacementPolicy     bytes = PlacementPolicy.leastUsedBytes();
+        PlacementPolicy     load = PlacementPolicy.leastRecentLoad();
+
+        expect("least used bytes",
+               bytes.choose(loads(new long[] {50, 10, 10, 30},
+                                  new long[] {0, 5, 2, 0})), 2);
+        expect("least recent load",
+               load.choose(loads(new long[] {0, 20, 0, 10},
+                                 new long[] {3, 1, 2, 1})), 3);
+        expect("least used bytes",
+               bytes.choose(loads(new long[] {7, 7}, new long[] {4, 4})), 0);
+        expect("least recent load",
+               load.choose(loads(new long[] {7, 7}, new long[] {4, 4})), 0);
+    }
+
+    /** Checks the choices of <code>randomTwoChoices</code>.
+
+        @throws TestFailed If an invalid index or the most loaded candidate is
+                           chosen, or another candidate is never chosen.
+     */
+    private void testRandomTwoChoices() throws TestFailed
+    {
+        PlacementPolicy     policy = PlacementPolicy.randomTwoChoices();
+
+        expect("random two choices",
+               policy.choose(loads(new long[] {9}, new long[] {9})), 0);
+
+        List<ServerLoad>    candidates =
+            loads(new long[] {0, 0, 0, 0}, new long[] {4, 100, 1, 4});
+        int[]               chosen = new int[candidates.size()];
+
+        for(int choice = 0; choice < CHOICES; ++choice)
+        {
+            int     index = policy.choose(candidates);
+
+            if(index < 0 || index >= candidates.size())
+                throw new TestFailed("random two choices returned " + index);
+
+            ++chosen[index];
+        }
+
+        if(chosen[1] != 0)
+            throw new TestFailed("random two choices chose the most loaded");
+
+        if(chosen[0] == 0 || chosen[2] == 0 || chosen[3] == 0)
+        {
+            throw new TestFailed("random two choices never chose some " +
+                                 "candidates: " + Arrays.toString(chosen));
+        }
+
+        if(chosen[2] <= chosen[0] || chosen[2] <= chosen[3])
+        {
+            throw new TestFailed("random two choices did not favor the least " +
+                                 "loaded: " + Arrays.toString(chosen));
+        }
+    }
+
+    /** Checks that the naming server places files by its policy.
+
+        @throws TestFailed If a file is placed on the wrong storage server.
+     */
+    private void testPlacement() throws TestFailed
+    {
+        MemoryServer    full = new MemoryServer(0);
+        MemoryServer    empty = new MemoryServer(0);
+        MemoryServer    busy = new MemoryServer(0);
+        long            interval = 60000;
+
+        server = new NamingServer();
+        server.setPlacementPolicy(PlacementPolicy.leastRecentLoad());
+        server.register(full, full, full.files());
+        server.register(empty, empty, empty.files());
+        server.register(busy, busy, busy.files());
+        server.report(full, new LoadReport(1000, 100, 0, 0, 0, 0, 0, interval));
+        server.report(empty, new LoadReport(1000, 900, 2, 0, 0, 0, 0,
+                                            interval));
+        server.report(busy, new LoadReport(1000, 900, 10, 0, 0, 0, 0,
+                                           interval));
+
+        try
+        {
+            // The full server handled no requests, so takes the first two
+            // files. It then ties with the empty server, which has fewer
+            // bytes in use and takes the third, and is then the least loaded
+            // again.
+            for(String name : new String[] {"f0", "f1", "f2", "f3"})
+            {
+                if(!server.createFile(new Path(new Path("/"), name)))
+                    throw new TestFailed("unable to create " + name);
+            }
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create files", t);
+        }
+
+        if(!TestUtil.sameElements(full.files(),
+                                  new Path[] {new Path("/f0"), new Path("/f1"),
+                                              new Path("/f3")})
+           || !TestUtil.sameElements(empty.files(),
+                                     new Path[] {new Path("/f2")})
+           || busy.files().length != 0)
+        {
+            throw new TestFailed("files not placed by recent load");
+        }
+
+        // The busy server reports the fewest bytes in use.
+        server.setPlacementPolicy(PlacementPolicy.leastUsedBytes());
+        server.report(busy, new LoadReport(1000, 950, 0, 0, 0, 0, 0, interval));
+
+        try
+        {
+            server.createFile(new Path("/f4"));
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create file", t);
+        }
+
+        if(!busy.holds(new Path("/f4")))
+            throw new TestFailed("file not placed by bytes in use");
+    }
+
+    /** Checks that failed creations do not count as placed files.
+
+        @throws TestFailed If a server is avoided for files it did not
+                           create.
+     */
+    private void testFailedPlacement() throws TestFailed
+    {
+        MemoryServer    failing = new MemoryServer(0);
+        MemoryServer    other = new MemoryServer(0);
+        long            interval = 60000;
+        NamingServer    naming = new NamingServer();
+
+        try
+        {
+            naming.setPlacementPolicy(PlacementPolicy.leastRecentLoad());
+            naming.register(failing, failing, failing.files());
+            naming.register(other, other, other.files());
+            naming.report(failing, new LoadReport(1000, 900, 0, 0, 0, 0, 0,
+                                                  interval));
+            naming.report(other, new LoadReport(1000, 800, 0, 0, 0, 0, 0,
+                                                interval));
+
+            // The failing server has fewer bytes in use, so is chosen every
+            // time, and fails to create the files.
+            failing.setUnreachable(true);
+            for(String name : new String[] {"f0", "f1", "f2"})
+            {
+                try
+                {
+                    naming.createFile(new Path(new Path("/"), name));
+                    throw new TestFailed(name + " created on unreachable " +
+                                         "server");
+                }
+                catch(RMIException e)
+                {
+                    // Expected.
+                }
+            }
+            failing.setUnreachable(false);
+
+            if(!naming.createFile(new Path("/f3")))
+                throw new TestFailed("unable to create f3");
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create files", t);
+        }
+        finally
+        {
+            naming.stop();
+        }
+
+        if(!failing.holds(new Path("/f3")) || other.files().length != 0)
+            throw new TestFailed("failed creations counted as placed files");
+    }
+
+    /** Returns candidates with the given bytes in use and recent load. */
+    private static List<ServerLoad> loads(long[] used, long[] requests)
+    {
+        List<ServerLoad>    loads = new ArrayList<>();
+        for(int index = 0; index < used.length; ++index)
+        {
+            LoadReport  report =
+                new LoadReport(1000, 1000 - used[index], requests[index], 0, 0,
+                               0, 0, 1000);
+            loads.add(new ServerLoad(index, report, 0));
+        }
+        return loads;
+    }
+
+    /** Checks the choice of a policy.
+
+        @throws TestFailed If the choice is not the one expected.
+     */
+    private static void expect(String policy, int chosen, int expected)
+        throws TestFailed
+    {
+        if(chosen != expected)
+        {
+            throw new TestFailed(policy + " chose candidate " + chosen +
+                                 " instead of " + expected);
+        }
+    }
+}
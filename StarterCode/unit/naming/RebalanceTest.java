@@ -0,0 +1,166 @@
+package naming;
+
+import java.util.*;
+
+import test.*;
+import common.*;
+import storage.*;
+
+/** Tests the background rebalancing of files between storage servers.
+
+    <p>
+    One storage server reports half of its capacity in use, the other none.
+    Items checked are:
+    <ul>
+    <li>The rebalancer moves files from the fuller server to the emptier one
+        until their utilization differs by no more than
+        <code>REBALANCE_THRESHOLD</code>, and no further.</li>
+    <li>Each file moved is fenced on its old replica during the move,
+        released after, deleted from the old server, and looked up on the new
+        one.</li>
+    <li>A negative rebalancing bandwidth is rejected.</li>
+    </ul>
+ */
+public class RebalanceTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking rebalancing of files";
+
+    /** Number of files on the fuller server. */
+    private static final int    FILES = 10;
+    /** Size of each file. */
+    private static final int    SIZE = 100;
+    /** Capacity of each server. */
+    private static final long   CAPACITY = 2000;
+    /** Number of files moved to balance the servers: the utilizations are
+        then 0.3 and 0.2. */
+    private static final int    MOVED = 4;
+    /** Time, in milliseconds, within which the files must be moved. The first
+        round of rebalancing starts ten seconds after the naming server. */
+    private static final long   TIMEOUT = 16000;
+
+    /** Naming server under test. */
+    private NamingServer        server;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testArguments();
+            testRebalance();
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Stops the naming server. */
+    @Override
+    protected void clean()
+    {
+        if(server != null)
+        {
+            server.stop();
+            server = null;
+        }
+    }
+
+    /** Checks that a negative bandwidth is rejected.
+
+        @throws TestFailed If the bandwidth is accepted.
+     */
+    private void testArguments() throws TestFailed
+    {
+        try
+        {
+            new NamingServer().setRebalanceBandwidth(-1);
+            throw new TestFailed("negative rebalancing bandwidth accepted");
+        }
+        catch(IllegalArgumentException e)
+        {
+            // Expected.
+        }
+    }
+
+    /** Checks that files are moved until the servers are balanced.
+
+        @throws TestFailed If the files are not moved as expected.
+     */
+    private void testRebalance() throws Throwable
+    {
+        Path[]          files = new Path[FILES];
+        for(int index = 0; index < FILES; ++index)
+            files[index] = new Path("/file" + index);
+
+        MemoryServer    full = new MemoryServer(SIZE, files);
+        MemoryServer    empty = new MemoryServer(0);
+        long            interval = 60000;
+
+        server = new NamingServer();
+        server.start();
+        server.register(full, full, full.files());
+        server.register(empty, empty, empty.files());
+        server.report(full, new LoadReport(CAPACITY, CAPACITY - FILES * SIZE,
+                                           0, 0, 0, 0, 0, interval));
+        server.report(empty, new LoadReport(CAPACITY, CAPACITY, 0, 0, 0, 0,
+                                            0, interval));
+
+        long            deadline = System.currentTimeMillis() + TIMEOUT;
+        while(moved(files, empty).size() < MOVED)
+        {
+            if(System.currentTimeMillis() > deadline)
+            {
+                throw new TestFailed("only " + moved(files, empty).size() +
+                                     " files moved");
+            }
+
+            Thread.sleep(100);
+        }
+
+        // Give the round the chance to move files it must not.
+        Thread.sleep(500);
+
+        List<Path>      moved = moved(files, empty);
+        if(moved.size() != MOVED || empty.files().length != MOVED)
+            throw new TestFailed(moved.size() + " files moved");
+
+        for(Path file : files)
+        {
+            boolean     away = moved.contains(file);
+
+            if(full.holds(file) == away || empty.holds(file) != away)
+                throw new TestFailed(file + " not moved between servers");
+
+            if(!away)
+                continue;
+
+            if(full.fences(file) != 1 || full.releases(file) != 1)
+            {
+                throw new TestFailed(file + " not fenced and released once " +
+                                     "during the move");
+            }
+        }
+    }
+
+    /** Returns the files whose only replica is on the given server. */
+    private List<Path> moved(Path[] files, Storage to) throws Throwable
+    {
+        List<Path>      moved = new ArrayList<>();
+        for(Path file : files)
+        {
+            if(Arrays.equals(server.getReplicas(file), new Storage[] {to}))
+                moved.add(file);
+        }
+        return moved;
+    }
+}
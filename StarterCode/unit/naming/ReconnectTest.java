@@ -0,0 +1,220 @@
+package naming;
+
+import java.io.FileNotFoundException;
+import java.util.*;
+
+import test.*;
+import common.*;
+import storage.*;
+
+/** Tests incremental reports of changes and reconnection of storage
+    servers.
+
+    <p>
+    Items checked are:
+    <ul>
+    <li><code>reportChanges</code> adds the files added to the tree, returns
+        those colliding with it, leaves alone those hosted by other servers,
+        and removes the server from the replicas of the files removed.</li>
+    <li>A report with an older generation than one applied is ignored.</li>
+    <li>A name can only be taken by one server.</li>
+    <li><code>reconnect</code> returns <code>null</code> for an unknown name,
+        and otherwise replaces the stubs of the named server, keeps its files,
+        and applies the changes it reports.</li>
+    <li><code>reconnect</code> with the stubs of another registered server is
+        rejected.</li>
+    </ul>
+ */
+public class ReconnectTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking incremental reports and reconnection";
+
+    /** Naming server under test, which is not started. */
+    private NamingServer        server;
+    /** Storage server reporting its changes. */
+    private final MemoryServer  reporting = new MemoryServer(0);
+    /** Other storage server, one of whose files the first reports. */
+    private final MemoryServer  other = new MemoryServer(0);
+    /** Stubs with which the first storage server reconnects. */
+    private final MemoryServer  restarted = new MemoryServer(0);
+
+    /** Creates the naming server and registers the storage servers. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        server = new NamingServer();
+        server.register(reporting, reporting, paths("/a", "/b", "/s"));
+        server.register(other, other, paths("/o", "/dir/x"));
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testReport();
+            testNames();
+            testReconnect();
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Stops the naming server. */
+    @Override
+    protected void clean()
+    {
+        if(server != null)
+        {
+            server.stop();
+            server = null;
+        }
+    }
+
+    /** Checks the changes applied from reports.
+
+        @throws TestFailed If the changes are not applied as expected.
+     */
+    private void testReport() throws Throwable
+    {
+        Path[]      delete =
+            server.reportChanges(reporting, "server", 2,
+                                 paths("/c", "/o", "/dir", "/b/y"),
+                                 paths("/a"));
+
+        if(!TestUtil.sameElements(delete, paths("/dir", "/b/y")))
+        {
+            throw new TestFailed("report returned the files to delete " +
+                                 Arrays.toString(delete));
+        }
+
+        expectStorage("/c", reporting);
+        expectStorage("/o", other);
+        expectMissing("/a");
+        expectMissing("/b/y");
+
+        // An earlier report arriving late.
+        delete = server.reportChanges(reporting, "server", 1, paths("/d"),
+                                      paths("/b"));
+
+        if(delete.length != 0)
+            throw new TestFailed("stale report returned files to delete");
+
+        expectStorage("/b", reporting);
+        expectMissing("/d");
+    }
+
+    /** Checks that names are given to one server only.
+
+        @throws TestFailed If a name is taken by two servers.
+     */
+    private void testNames() throws TestFailed
+    {
+        try
+        {
+            server.reportChanges(other, "server", 0, paths(), paths());
+            throw new TestFailed("name of a server taken by another");
+        }
+        catch(IllegalStateException e)
+        {
+            // Expected.
+        }
+
+        if(server.reconnect(restarted, restarted, "unknown", 0, paths(),
+                            paths()) != null)
+        {
+            throw new TestFailed("server reconnected under an unknown name");
+        }
+
+        try
+        {
+            server.reconnect(other, other, "server", 3, paths(), paths());
+            throw new TestFailed("server reconnected with the stubs of " +
+                                 "another");
+        }
+        catch(IllegalStateException e)
+        {
+            // Expected.
+        }
+    }
+
+    /** Checks that a server reconnects with new stubs.
+
+        @throws TestFailed If the server does not keep its files, or its
+                           changes are not applied.
+     */
+    private void testReconnect() throws Throwable
+    {
+        Path[]      delete =
+            server.reconnect(restarted, restarted, "server", 3, paths("/e"),
+                             paths("/s"));
+
+        if(delete == null || delete.length != 0)
+            throw new TestFailed("server not reconnected");
+
+        expectStorage("/b", restarted);
+        expectStorage("/c", restarted);
+        expectStorage("/e", restarted);
+        expectMissing("/s");
+
+        if(server.health().size() != 2)
+            throw new TestFailed("reconnected server registered as new");
+
+        // The reconnected server starts from the generation it gave.
+        server.reportChanges(restarted, "server", 2, paths("/f"), paths());
+        expectMissing("/f");
+
+        server.reportChanges(restarted, "server", 4, paths("/f"), paths());
+        expectStorage("/f", restarted);
+    }
+
+    /** Checks the server hosting a file.
+
+        @throws TestFailed If the file is hosted by another server.
+     */
+    private void expectStorage(String file, Storage expected)
+        throws TestFailed, FileNotFoundException
+    {
+        if(server.getStorage(new Path(file)) != expected)
+            throw new TestFailed(file + " hosted by the wrong server");
+    }
+
+    /** Checks that a path is not in the directory tree.
+
+        @throws TestFailed If the path is in the tree.
+     */
+    private void expectMissing(String path) throws TestFailed
+    {
+        try
+        {
+            server.isDirectory(new Path(path));
+        }
+        catch(FileNotFoundException e)
+        {
+            return;
+        }
+
+        throw new TestFailed(path + " is in the directory tree");
+    }
+
+    /** Returns the paths with the given names. */
+    private static Path[] paths(String... names)
+    {
+        Path[]      paths = new Path[names.length];
+        for(int index = 0; index < names.length; ++index)
+            paths[index] = new Path(names[index]);
+        return paths;
+    }
+}
@@ -0,0 +1,241 @@
+package naming;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+
+import test.*;
+import rmi.*;
+import common.*;
+import storage.*;
+
+/** Tests registration of storage servers in batches.
+
+    <p>
+    Items checked are:
+    <ul>
+    <li>The batches of two servers registering at the same time are merged
+        into the tree as they arrive, and the duplicates of each batch are
+        returned with it, including files of the other server and files
+        colliding with directories.</li>
+    <li>A file sent again in a later batch of the same server is not a
+        duplicate.</li>
+    <li>A registered server cannot register again, whether with
+        <code>register</code> or <code>registerBatch</code>, once its last
+        batch is sent.</li>
+    <li>A server recovered from the journal may register again in batches,
+        without its known files or the files of its earlier batches being
+        returned as duplicates.</li>
+    </ul>
+ */
+public class RegisterBatchTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking registration in batches";
+
+    /** Naming server under test, which is not started. */
+    private NamingServer        server;
+    /** Journal directory of the recovery test. */
+    private TemporaryDirectory  directory;
+
+    /** Creates the journal directory. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+        }
+        catch(FileNotFoundException e)
+        {
+            throw new TestFailed("unable to create temporary directory", e);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testInterleaved();
+            testRecovered();
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Stops the naming server and removes the journal directory. */
+    @Override
+    protected void clean()
+    {
+        if(server != null)
+        {
+            server.stop();
+            server = null;
+        }
+
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Checks the batches of two servers registering at the same time.
+
+        @throws TestFailed If a batch is not merged as expected, or a server
+                           registers twice.
+     */
+    private void testInterleaved() throws Throwable
+    {
+        MemoryServer    first = new MemoryServer(0);
+        MemoryServer    second = new MemoryServer(0);
+
+        server = new NamingServer();
+
+        expectBatch(first, false, paths("/a/f", "/x"));
+        expectBatch(second, false, paths("/x", "/a", "/b/g"), "/x", "/a");
+        expectBatch(first, false, paths("/b/g", "/a/h", "/x"), "/b/g");
+        expectBatch(second, true, paths("/a/f/y", "/c"), "/a/f/y");
+        expectBatch(first, true, paths("/d"));
+
+        expectStorage("/a/f", first);
+        expectStorage("/a/h", first);
+        expectStorage("/x", first);
+        expectStorage("/d", first);
+        expectStorage("/b/g", second);
+        expectStorage("/c", second);
+
+        for(MemoryServer registered : new MemoryServer[] {first, second})
+        {
+            try
+            {
+                server.registerBatch(registered, registered, paths("/e"),
+                                     true);
+                throw new TestFailed("server registered again in batches");
+            }
+            catch(IllegalStateException e)
+            {
+                // Expected.
+            }
+
+            try
+            {
+                server.register(registered, registered, paths("/e"));
+                throw new TestFailed("server registered again");
+            }
+            catch(IllegalStateException e)
+            {
+                // Expected.
+            }
+        }
+
+        if(server.health().size() != 2)
+            throw new TestFailed("batches registered as separate servers");
+    }
+
+    /** Checks that a server recovered from the journal registers again in
+        batches.
+
+        @throws TestFailed If the server cannot register again, or its files
+                           are returned as duplicates.
+     */
+    private void testRecovered() throws Throwable
+    {
+        File            journal = new File(directory.root(), "naming");
+        Storage         storage =
+            Stub.create(Storage.class, new InetSocketAddress("127.0.0.1", 7001));
+        Command         command =
+            Stub.create(Command.class, new InetSocketAddress("127.0.0.1", 7002));
+        NamingServer    first = new NamingServer(journal);
+
+        try
+        {
+            first.registerBatch(storage, command, paths("/f"), false);
+            first.registerBatch(storage, command, paths("/g"), true);
+        }
+        finally
+        {
+            first.stop();
+        }
+
+        NamingServer    second = new NamingServer(journal);
+
+        try
+        {
+            for(boolean last : new boolean[] {false, true})
+            {
+                Path[]  duplicates =
+                    second.registerBatch(storage, command,
+                                         paths(last ? "/g" : "/f", "/h"),
+                                         last);
+
+                if(duplicates.length != 0)
+                {
+                    throw new TestFailed("recovered server given duplicates " +
+                                         Arrays.toString(duplicates));
+                }
+            }
+
+            if(second.health().size() != 1)
+                throw new TestFailed("recovered server registered as new");
+        }
+        finally
+        {
+            second.stop();
+        }
+    }
+
+    /** Sends a batch and checks the duplicates returned.
+
+        @param storage The registering server.
+        @param last Whether the batch is the last.
+        @param files Files of the batch.
+        @param duplicates Duplicates expected.
+        @throws TestFailed If other duplicates are returned.
+     */
+    private void expectBatch(MemoryServer storage, boolean last, Path[] files,
+                             String... duplicates)
+        throws TestFailed
+    {
+        Path[]      returned =
+            server.registerBatch(storage, storage, files, last);
+
+        if(!TestUtil.sameElements(returned, paths(duplicates)))
+        {
+            throw new TestFailed("batch " + Arrays.toString(files) +
+                                 " returned the duplicates " +
+                                 Arrays.toString(returned));
+        }
+    }
+
+    /** Checks the server hosting a file.
+
+        @throws TestFailed If the file is hosted by another server.
+     */
+    private void expectStorage(String file, Storage expected)
+        throws TestFailed, FileNotFoundException
+    {
+        if(server.getStorage(new Path(file)) != expected)
+            throw new TestFailed(file + " registered on the wrong server");
+    }
+
+    /** Returns the paths with the given names. */
+    private static Path[] paths(String... names)
+    {
+        Path[]      paths = new Path[names.length];
+        for(int index = 0; index < names.length; ++index)
+            paths[index] = new Path(names[index]);
+        return paths;
+    }
+}
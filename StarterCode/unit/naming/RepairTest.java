@@ -0,0 +1,241 @@
+package naming;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+
+import test.*;
+import rmi.*;
+import common.*;
+import storage.*;
+
+/** Tests failure detection and re-replication by the naming server.
+
+    <p>
+    Items checked are:
+    <ul>
+    <li>A storage server known only from the journal is reported as unknown,
+        one that registered without reporting as up, and one that stops
+        reporting as late, then dead, after the number of heartbeat intervals
+        given by <code>MISSED_HEARTBEATS</code> and
+        <code>DEAD_HEARTBEATS</code>.</li>
+    <li>The files of a dead storage server are copied from their live replicas
+        to other servers, with the file fenced during the copy, until they
+        have as many live replicas as their replication factor.</li>
+    </ul>
+ */
+public class RepairTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking failure detection and re-replication";
+
+    /** Replicated file. */
+    private static final Path   FILE = new Path("/f");
+    /** Heartbeat interval, in milliseconds, of the server that fails. */
+    private static final long   FAILING_INTERVAL = 50;
+    /** Heartbeat interval, in milliseconds, of the server that is late. */
+    private static final long   LATE_INTERVAL = 200;
+    /** Time, in milliseconds, within which the file must be repaired. */
+    private static final long   REPAIR_TIMEOUT = 10000;
+
+    /** Naming server under test. */
+    private NamingServer        server;
+    /** Journal directory of the health test. */
+    private TemporaryDirectory  directory;
+
+    /** Creates the journal directory. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+        }
+        catch(FileNotFoundException e)
+        {
+            throw new TestFailed("unable to create temporary directory", e);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testUnknown();
+            testRepair();
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Stops the naming server and removes the journal directory. */
+    @Override
+    protected void clean()
+    {
+        if(server != null)
+        {
+            server.stop();
+            server = null;
+        }
+
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Checks that a server known from the journal is unknown until it
+        registers.
+
+        @throws TestFailed If the server is reported in another state.
+     */
+    private void testUnknown() throws Throwable
+    {
+        File            journal = new File(directory.root(), "naming");
+        Storage         storage =
+            Stub.create(Storage.class, new InetSocketAddress("127.0.0.1", 7001));
+        Command         command =
+            Stub.create(Command.class, new InetSocketAddress("127.0.0.1", 7002));
+        NamingServer    first = new NamingServer(journal);
+
+        try
+        {
+            first.register(storage, command, new Path[] {new Path("/g")});
+            expectHealth(first, ServerHealth.Status.UP);
+        }
+        finally
+        {
+            first.stop();
+        }
+
+        NamingServer    second = new NamingServer(journal);
+
+        try
+        {
+            expectHealth(second, ServerHealth.Status.UNKNOWN);
+
+            second.register(storage, command, new Path[] {new Path("/g")});
+            expectHealth(second, ServerHealth.Status.UP);
+        }
+        finally
+        {
+            second.stop();
+        }
+    }
+
+    /** Checks that the file of a failed server is repaired.
+
+        @throws TestFailed If the servers are not reported in the expected
+                           states, or the file is not repaired.
+     */
+    private void testRepair() throws Throwable
+    {
+        MemoryServer    failing = new MemoryServer(10, FILE);
+        MemoryServer    replica = new MemoryServer(0);
+        MemoryServer    spare = new MemoryServer(0);
+        MemoryServer    late = new MemoryServer(0);
+
+        server = new NamingServer();
+        server.start();
+
+        // The file is copied to one of the two other servers, and the spare
+        // one is found afterwards.
+        server.register(failing, failing, failing.files());
+        server.register(replica, replica, replica.files());
+        server.register(spare, spare, spare.files());
+        server.setReplication(new Path("/"), 2);
+
+        long            deadline = System.currentTimeMillis() + REPAIR_TIMEOUT;
+        Storage[]       replicas = server.getReplicas(FILE);
+        while(replicas.length != 2 || failing.releases(FILE) != 1)
+        {
+            if(System.currentTimeMillis() > deadline)
+                throw new TestFailed("file not replicated");
+
+            Thread.sleep(50);
+            replicas = server.getReplicas(FILE);
+        }
+
+        if(!Arrays.asList(replicas).contains(replica))
+        {
+            MemoryServer    other = replica;
+            replica = spare;
+            spare = other;
+        }
+
+        server.register(late, late, late.files());
+        server.report(failing, new LoadReport(1000, 990, 0, 0, 0, 0, 0,
+                                              FAILING_INTERVAL));
+        server.report(late, new LoadReport(1000, 1000, 0, 0, 0, 0, 0,
+                                           LATE_INTERVAL));
+
+        // Past the missed heartbeats of the late server, but not its dead
+        // ones, and past the dead heartbeats of the failing server.
+        Thread.sleep(LATE_INTERVAL *
+                     (NamingServer.MISSED_HEARTBEATS +
+                      NamingServer.DEAD_HEARTBEATS) / 2);
+
+        expectHealth(server, ServerHealth.Status.DEAD, ServerHealth.Status.UP,
+                     ServerHealth.Status.UP, ServerHealth.Status.LATE);
+
+        deadline = System.currentTimeMillis() + REPAIR_TIMEOUT;
+        while(!spare.holds(FILE))
+        {
+            if(System.currentTimeMillis() > deadline)
+                throw new TestFailed("file of dead server not repaired");
+
+            Thread.sleep(50);
+        }
+
+        // The new replica is published after the copy.
+        while(!TestUtil.sameElements(server.getReplicas(FILE),
+                                     new Storage[] {replica, spare}))
+        {
+            if(System.currentTimeMillis() > deadline)
+                throw new TestFailed("repaired replica not published");
+
+            Thread.sleep(50);
+        }
+
+        if(spare.copies() != 1)
+            throw new TestFailed("file copied more than once");
+
+        if(replica.fences(FILE) != 1 || replica.releases(FILE) != 1)
+        {
+            throw new TestFailed("file not fenced and released on its live " +
+                                 "replica during the repair");
+        }
+    }
+
+    /** Checks the health table of a naming server.
+
+        @param naming The naming server.
+        @param expected Status expected of each storage server, in order of
+                        registration.
+        @throws TestFailed If the table is not as expected.
+     */
+    private static void expectHealth(NamingServer naming,
+                                     ServerHealth.Status... expected)
+        throws TestFailed
+    {
+        List<ServerHealth.Status>   statuses = new ArrayList<>();
+        for(ServerHealth health : naming.health())
+            statuses.add(health.getStatus());
+
+        if(!statuses.equals(Arrays.asList(expected)))
+            throw new TestFailed("storage servers reported as " + statuses);
+    }
+}
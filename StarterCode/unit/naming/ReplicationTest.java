@@ -0,0 +1,264 @@
+package naming;
+
+import java.io.FileNotFoundException;
+import java.util.*;
+
+import test.*;
+import rmi.*;
+import common.*;
+import storage.*;
+
+/** Tests the replication of files by the naming server.
+
+    <p>
+    Items checked are:
+    <ul>
+    <li>Raising the replication factor of a directory copies its files to new
+        storage servers in the background, with the file fenced on its
+        existing replicas during each copy and released after.</li>
+    <li>Files created below the directory afterwards are created on as many
+        storage servers as the factor.</li>
+    <li>Lowering the factor deletes the extra replicas.</li>
+    <li>Replicas on dead storage servers are not returned to clients.</li>
+    <li>Invalid factors and missing paths are rejected.</li>
+    </ul>
+ */
+public class ReplicationTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking replication of files";
+
+    /** Replicated file. */
+    private static final Path   FILE = new Path("/r/f");
+
+    /** Time, in milliseconds, within which the file must be copied. */
+    private static final long   COPY_TIMEOUT = 10000;
+
+    /** Naming server under test. */
+    private NamingServer        server;
+    /** Storage server holding the file at first. */
+    private final MemoryServer  source = new MemoryServer(10, FILE);
+    /** Storage server to which the file is copied. */
+    private final MemoryServer  first = new MemoryServer(0);
+    /** Other storage server to which the file is copied. */
+    private final MemoryServer  second = new MemoryServer(0);
+
+    /** Creates the naming server and registers the storage servers. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        server = new NamingServer();
+
+        try
+        {
+            server.start();
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to start naming server", e);
+        }
+
+        server.register(source, source, source.files());
+        server.register(first, first, first.files());
+        server.register(second, second, second.files());
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testRaise();
+            testCreation();
+            testLower();
+            testDeadReplica();
+            testArguments();
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Stops the naming server. */
+    @Override
+    protected void clean()
+    {
+        if(server != null)
+        {
+            server.stop();
+            server = null;
+        }
+    }
+
+    /** Checks that raising the factor copies the file.
+
+        @throws TestFailed If the file is not copied to every server, or not
+                           fenced and released.
+     */
+    private void testRaise() throws Throwable
+    {
+        server.setReplication(new Path("/r"), 3);
+
+        long        deadline = System.currentTimeMillis() + COPY_TIMEOUT;
+        while(server.getReplicas(FILE).length < 3 ||
+              source.releases(FILE) < 2)
+        {
+            if(System.currentTimeMillis() > deadline)
+                throw new TestFailed("new replicas not published");
+
+            Thread.sleep(50);
+        }
+
+        if(!first.holds(FILE) || !second.holds(FILE) ||
+           first.copies() != 1 || second.copies() != 1)
+        {
+            throw new TestFailed("file not copied to the new replicas");
+        }
+
+        // Each copy fences the replicas the file has then.
+        MemoryServer    copied = first.fences(FILE) == 0 ? first : second;
+        MemoryServer    other = copied == first ? second : first;
+
+        if(source.fences(FILE) != 2 || source.releases(FILE) != 2 ||
+           other.fences(FILE) != 1 || other.releases(FILE) != 1 ||
+           copied.releases(FILE) != 0)
+        {
+            throw new TestFailed("file not fenced and released on its " +
+                                 "replicas during each copy");
+        }
+
+        expectReplicas(FILE, source, first, second);
+    }
+
+    /** Checks that new files are created with the factor of their directory.
+
+        @throws TestFailed If a new file does not have three replicas.
+     */
+    private void testCreation() throws Throwable
+    {
+        Path        created = new Path("/r/g");
+
+        if(!server.createFile(created))
+            throw new TestFailed("unable to create file");
+
+        expectReplicas(created, source, first, second);
+
+        Path        other = new Path("/h");
+
+        if(!server.createFile(other) || server.getReplicas(other).length != 1)
+            throw new TestFailed("file outside the directory replicated");
+    }
+
+    /** Checks that lowering the factor deletes the extra replicas.
+
+        @throws TestFailed If a replica is left, or the first one deleted.
+     */
+    private void testLower() throws Throwable
+    {
+        server.setReplication(new Path("/r"), 2);
+
+        Storage[]   replicas = server.getReplicas(FILE);
+
+        if(replicas.length != 2 || !Arrays.asList(replicas).contains(source))
+            throw new TestFailed("replicas after lowering the factor wrong");
+
+        int         held = 0;
+        for(MemoryServer copy : new MemoryServer[] {first, second})
+        {
+            boolean     listed = Arrays.asList(replicas).contains(copy);
+
+            if(copy.holds(FILE) != listed)
+            {
+                throw new TestFailed("extra replica not deleted from its " +
+                                     "server");
+            }
+
+            if(listed)
+                ++held;
+        }
+
+        if(held != 1)
+            throw new TestFailed("wrong replica kept after lowering factor");
+    }
+
+    /** Checks that replicas on a dead server are not returned.
+
+        @throws TestFailed If the replica on the dead server is returned.
+     */
+    private void testDeadReplica() throws Throwable
+    {
+        Storage[]       replicas = server.getReplicas(FILE);
+        MemoryServer    dying = (MemoryServer)
+            (replicas[0] == source ? replicas[1] : replicas[0]);
+        MemoryServer    spare = dying == first ? second : first;
+
+        // The server is dead once it misses enough heartbeats of its
+        // reported interval. The spare server dies too, so that the file is
+        // not repaired onto it.
+        server.report(dying, new LoadReport(1000, 1000, 0, 0, 0, 0, 0, 10));
+        server.report(spare, new LoadReport(1000, 1000, 0, 0, 0, 0, 0, 10));
+        Thread.sleep(200);
+
+        expectReplicas(FILE, source);
+
+        if(server.getStorage(FILE) != source)
+            throw new TestFailed("replica on dead server returned");
+    }
+
+    /** Checks that invalid arguments are rejected.
+
+        @throws TestFailed If an invalid argument is accepted.
+     */
+    private void testArguments() throws TestFailed
+    {
+        try
+        {
+            server.setReplication(new Path("/r"), 0);
+            throw new TestFailed("replication factor of zero accepted");
+        }
+        catch(IllegalArgumentException e)
+        {
+            // Expected.
+        }
+        catch(FileNotFoundException e)
+        {
+            throw new TestFailed("factor of zero raised the wrong exception",
+                                 e);
+        }
+
+        try
+        {
+            server.setReplication(new Path("/missing"), 2);
+            throw new TestFailed("replication factor of missing path set");
+        }
+        catch(FileNotFoundException e)
+        {
+            // Expected.
+        }
+    }
+
+    /** Checks the replicas of a file.
+
+        @throws TestFailed If the replicas are not the given servers.
+     */
+    private void expectReplicas(Path file, Storage... expected)
+        throws TestFailed, FileNotFoundException
+    {
+        Storage[]   replicas = server.getReplicas(file);
+
+        if(!TestUtil.sameElements(replicas, expected))
+        {
+            throw new TestFailed(file + " has " + replicas.length +
+                                 " replicas instead of " + expected.length);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package naming;
+
+import java.io.FileNotFoundException;
+import java.util.*;
+
+import test.*;
+import common.*;
+import storage.*;
+
+/** Tests the failure detection of storage servers.
+
+    <p>
+    Items checked are:
+    <ul>
+    <li>A server that registered and has never sent a heartbeat is up.</li>
+    <li>A server that sent a heartbeat and then stays silent turns late after
+        <code>MISSED_HEARTBEATS</code> intervals, and dead after
+        <code>DEAD_HEARTBEATS</code>.</li>
+    <li>New files are not placed on a late server while another is up, but
+        its replicas are still returned.</li>
+    <li>Replicas on a dead server are not returned.</li>
+    <li>A dead server that sends a heartbeat is up again.</li>
+    </ul>
+ */
+public class ServerHealthTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking storage server health";
+
+    /** Heartbeat interval, in milliseconds, reported by the silent
+        server. */
+    private static final long   INTERVAL = 200;
+
+    /** Naming server under test, which is not started. */
+    private NamingServer        server;
+    /** Storage server that falls silent. */
+    private final MemoryServer  silent = new MemoryServer(0);
+    /** Storage server that never sends heartbeats, and so stays up. */
+    private final MemoryServer  other = new MemoryServer(0);
+    /** File hosted by the silent server. */
+    private final Path          file = new Path("/s");
+
+    /** Creates the naming server and registers the storage servers. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        server = new NamingServer();
+        server.register(silent, silent, new Path[] {file});
+        server.register(other, other, new Path[0]);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testHealth();
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Stops the naming server. */
+    @Override
+    protected void clean()
+    {
+        if(server != null)
+        {
+            server.stop();
+            server = null;
+        }
+    }
+
+    /** Checks the states of a server falling silent.
+
+        @throws TestFailed If the server is not reported in the expected
+                           state, or is used as that state forbids.
+     */
+    private void testHealth() throws Throwable
+    {
+        expectStatus(0, ServerHealth.Status.UP);
+        expectStatus(1, ServerHealth.Status.UP);
+
+        LoadReport  report = new LoadReport(1000, 1000, 0, 0, 0, 0, 0,
+                                            INTERVAL);
+        server.report(silent, report);
+        expectStatus(0, ServerHealth.Status.UP);
+
+        if(server.health().get(0).getReport() != report)
+            throw new TestFailed("latest report not in the health table");
+
+        awaitStatus(0, ServerHealth.Status.LATE);
+
+        if(server.getStorage(file) != silent)
+            throw new TestFailed("replica on late server not returned");
+
+        server.createFile(new Path("/new"));
+        if(!other.holds(new Path("/new")) || silent.holds(new Path("/new")))
+            throw new TestFailed("new file placed on late server");
+
+        awaitStatus(0, ServerHealth.Status.DEAD);
+        expectStatus(1, ServerHealth.Status.UP);
+
+        try
+        {
+            server.getStorage(file);
+            throw new TestFailed("replica on dead server returned");
+        }
+        catch(FileNotFoundException e)
+        {
+            // Expected.
+        }
+
+        if(server.health().get(0).getMillisSinceHeard() <
+           NamingServer.DEAD_HEARTBEATS * INTERVAL)
+        {
+            throw new TestFailed("dead server heard from too recently");
+        }
+
+        server.report(silent, report);
+        expectStatus(0, ServerHealth.Status.UP);
+
+        if(server.getStorage(file) != silent)
+            throw new TestFailed("replica not returned after heartbeat");
+    }
+
+    /** Waits for a server to reach the given state.
+
+        @throws TestFailed If the server does not reach the state in time, or
+                           reaches a later one first.
+     */
+    private void awaitStatus(int id, ServerHealth.Status expected)
+        throws TestFailed, InterruptedException
+    {
+        long        deadline = System.currentTimeMillis() +
+                               (NamingServer.DEAD_HEARTBEATS + 5) * INTERVAL;
+
+        while(true)
+        {
+            ServerHealth.Status status = server.health().get(id).getStatus();
+            if(status == expected)
+                return;
+
+            if(status.compareTo(expected) > 0 ||
+               System.currentTimeMillis() > deadline)
+            {
+                throw new TestFailed("server " + id + " is " + status +
+                                     " instead of " + expected);
+            }
+
+            Thread.sleep(INTERVAL / 10);
+        }
+    }
+
+    /** Checks the state of a server.
+
+        @throws TestFailed If the server is in another state.
+     */
+    private void expectStatus(int id, ServerHealth.Status expected)
+        throws TestFailed
+    {
+        List<ServerHealth>  health = server.health();
+        ServerHealth.Status status = health.get(id).getStatus();
+
+        if(status != expected)
+        {
+            throw new TestFailed("server " + id + " is " + status +
+                                 " instead of " + expected);
+        }
+    }
+}
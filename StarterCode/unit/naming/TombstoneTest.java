@@ -0,0 +1,225 @@
+package naming;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+
+import test.*;
+import rmi.*;
+import common.*;
+import storage.*;
+
+/** Tests the deletion of objects hosted by storage servers that cannot
+    delete them.
+
+    <p>
+    Items checked are:
+    <ul>
+    <li>An object is deleted from the tree when a storage server hosting
+        files of it refuses to delete them, or cannot be reached.</li>
+    <li>The paths of such objects are returned among the files to delete
+        when the server reconnects, and only once.</li>
+    <li>They are kept in the journal, and returned when the server registers
+        with a recovered naming server, rather than added back to the
+        tree.</li>
+    </ul>
+ */
+public class TombstoneTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking deletion on unreachable storage servers";
+
+    /** Storage server hosting the deleted files. */
+    private final MemoryServer  storage = new MemoryServer(0);
+    /** Stubs with which the storage server reconnects. */
+    private final MemoryServer  restarted = new MemoryServer(0);
+    /** Client interface stub of a storage server which is not running, and
+        so cannot be reached. */
+    private final Storage       stopped =
+        Stub.create(Storage.class, new InetSocketAddress("127.0.0.1", 7001));
+    /** Command interface stub of the storage server which is not
+        running. */
+    private final Command       stoppedCommand =
+        Stub.create(Command.class, new InetSocketAddress("127.0.0.1", 7002));
+    /** Journal directory. */
+    private TemporaryDirectory  directory;
+
+    /** Creates the journal directory. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+        }
+        catch(FileNotFoundException e)
+        {
+            throw new TestFailed("unable to create temporary directory", e);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testReconnect();
+            testRecovery();
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Removes the journal directory. */
+    @Override
+    protected void clean()
+    {
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Checks that objects deleted while a storage server missed their
+        deletion are returned when it reconnects.
+
+        @throws TestFailed If a deleted object is not returned to the storage
+                           server for deletion, or is returned twice.
+     */
+    private void testReconnect() throws Throwable
+    {
+        NamingServer    server = new NamingServer();
+
+        try
+        {
+            server.register(storage, storage, paths("/t/x", "/t/y", "/u"));
+            server.reportChanges(storage, "server", 0, paths(), paths());
+
+            storage.refuse(new Path("/t"));
+            if(!server.delete(new Path("/t")))
+                throw new TestFailed("refused deletion not completed");
+
+            storage.setUnreachable(true);
+            if(!server.delete(new Path("/u")))
+            {
+                throw new TestFailed("deletion on unreachable server not " +
+                                     "completed");
+            }
+
+            expectMissing(server, "/t");
+            expectMissing(server, "/u");
+
+            expectDuplicates(server.reconnect(restarted, restarted, "server",
+                                              1, paths(), paths()),
+                             "/t", "/u");
+
+            // The server was told to delete them, so they are not returned
+            // again.
+            expectDuplicates(server.reportChanges(restarted, "server", 2,
+                                                  paths(), paths()));
+        }
+        finally
+        {
+            server.stop();
+        }
+    }
+
+    /** Checks that objects deleted while a storage server could not be
+        reached are returned when it registers with a recovered naming
+        server.
+
+        @throws TestFailed If a deleted object is added back to the tree.
+     */
+    private void testRecovery() throws Throwable
+    {
+        File            journal = new File(directory.root(), "naming");
+        NamingServer    first = new NamingServer(journal);
+
+        try
+        {
+            first.register(stopped, stoppedCommand, paths("/d/f", "/g"));
+
+            if(!first.delete(new Path("/d")))
+            {
+                throw new TestFailed("deletion on unreachable server not " +
+                                     "completed");
+            }
+        }
+        finally
+        {
+            first.stop();
+        }
+
+        NamingServer    second = new NamingServer(journal);
+
+        try
+        {
+            expectDuplicates(second.register(stopped, stoppedCommand,
+                                             paths("/d/f", "/g", "/h")),
+                             "/d/f");
+            expectMissing(second, "/d");
+
+            if(second.isDirectory(new Path("/h")))
+                throw new TestFailed("new file registered as a directory");
+        }
+        finally
+        {
+            second.stop();
+        }
+    }
+
+    /** Checks the files a storage server is told to delete.
+
+        @throws TestFailed If the files are not the expected ones.
+     */
+    private static void expectDuplicates(Path[] duplicates, String... expected)
+        throws TestFailed
+    {
+        if(duplicates == null ||
+           !TestUtil.sameElements(duplicates, paths(expected)))
+        {
+            throw new TestFailed("storage server told to delete " +
+                                 Arrays.toString(duplicates));
+        }
+    }
+
+    /** Checks that a path is not in the directory tree.
+
+        @throws TestFailed If the path is in the tree.
+     */
+    private static void expectMissing(NamingServer server, String path)
+        throws TestFailed
+    {
+        try
+        {
+            server.isDirectory(new Path(path));
+        }
+        catch(FileNotFoundException e)
+        {
+            return;
+        }
+
+        throw new TestFailed(path + " is in the directory tree");
+    }
+
+    /** Returns the paths with the given names. */
+    private static Path[] paths(String... names)
+    {
+        Path[]      paths = new Path[names.length];
+        for(int index = 0; index < names.length; ++index)
+            paths[index] = new Path(names[index]);
+        return paths;
+    }
+}
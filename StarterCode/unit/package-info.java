@@ -22,8 +22,8 @@
 
     <p>
     After creating your test, add its class to the array of tests in the
-    <code>main</code> method of <code>unit.UnitTest</code>. To run all unit
-    tests, execute <code>java -cp .:unit unit.UnitTest</code> from the command
+    <code>main</code> method of <code>unit.UnitTests</code>. To run all unit
+    tests, execute <code>java -cp .:unit unit.UnitTests</code> from the command
     line. On a Windows system, execute
     <code>java -cp ".;unit" unit.UnitTests</code> instead.
  */
@@ -0,0 +1,276 @@
+package rmi;
+
+import java.io.FileNotFoundException;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.*;
+
+import test.*;
+
+/** Tests asynchronous stubs.
+
+    <p>
+    Calls are made to a skeleton through an asynchronous stub. The server holds
+    every call until the test releases its token, and the test releases them in
+    the reverse order of the calls, failing one of them. Items checked are:
+    <ul>
+    <li>Calls return their futures before the server answers.</li>
+    <li>Each future completes with the reply to its own call as soon as that
+        call is answered, while the calls made before it are still held.</li>
+    <li>The failure of a call completes only its own future, with the
+        exception thrown by the server.</li>
+    <li>A call to an unreachable server completes its future with an
+        <code>RMIException</code>.</li>
+    </ul>
+ */
+public class AsyncStubTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking asynchronous stubs";
+
+    /** Number of concurrent calls. */
+    private static final int    CALLS = 4;
+    /** Token of the call that fails. */
+    private static final int    FAILING = 1;
+    /** Time, in seconds, for which a future is waited for. */
+    private static final int    WAIT = 10;
+
+    /** Server object used in the test. */
+    private final LatchServer   server = new LatchServer();
+    /** Skeleton serving the calls. */
+    private Skeleton<Latch>     skeleton;
+    /** Asynchronous stub through which the calls are made. */
+    private AsyncLatch          stub;
+
+    /** Remote interface used in the test. */
+    public interface Latch
+    {
+        /** Waits for the token to be released and returns it.
+
+            @throws FileNotFoundException If the token is
+                                          <code>FAILING</code>.
+         */
+        public int hold(int token) throws RMIException, FileNotFoundException;
+    }
+
+    /** Asynchronous interface mirroring <code>Latch</code>. */
+    public interface AsyncLatch
+    {
+        /** Calls <code>Latch.hold</code>. */
+        public CompletableFuture<Integer> hold(int token);
+    }
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<Latch>(Latch.class, server);
+
+        try
+        {
+            skeleton.start();
+            stub = AsyncStub.of(AsyncLatch.class,
+                                Stub.create(Latch.class, skeleton));
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testOutOfOrder();
+            testUnreachable();
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Releases held calls and stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        server.releaseAll();
+
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Checks that futures complete in the order the calls are answered.
+
+        @throws TestFailed If a future completes before its call is answered,
+                           or with the reply to another call.
+     */
+    private void testOutOfOrder() throws Throwable
+    {
+        List<CompletableFuture<Integer>>    futures = new ArrayList<>();
+        for(int token = 0; token < CALLS; ++token)
+            futures.add(stub.hold(token));
+
+        server.awaitArrivals(CALLS);
+
+        for(CompletableFuture<Integer> future : futures)
+        {
+            if(future.isDone())
+                throw new TestFailed("future completed before the reply");
+        }
+
+        for(int token = CALLS - 1; token >= 0; --token)
+        {
+            server.release(token);
+
+            try
+            {
+                int     result = futures.get(token).get(WAIT, TimeUnit.SECONDS);
+
+                if(token == FAILING)
+                    throw new TestFailed("failing call returned normally");
+
+                if(result != token)
+                {
+                    throw new TestFailed("call " + token + " received the " +
+                                         "reply " + result + " of another " +
+                                         "call");
+                }
+            }
+            catch(ExecutionException e)
+            {
+                if(token != FAILING ||
+                   !(e.getCause() instanceof FileNotFoundException))
+                {
+                    throw new TestFailed("call " + token + " failed", e);
+                }
+            }
+            catch(TimeoutException e)
+            {
+                throw new TestFailed("call " + token + " not completed after " +
+                                     "its reply", e);
+            }
+
+            for(int earlier = 0; earlier < token; ++earlier)
+            {
+                if(futures.get(earlier).isDone())
+                {
+                    throw new TestFailed("call " + earlier + " completed " +
+                                         "before it was answered");
+                }
+            }
+        }
+    }
+
+    /** Checks that a call to an unreachable server fails its future.
+
+        @throws TestFailed If the future does not fail with
+                           <code>RMIException</code>.
+     */
+    private void testUnreachable() throws Throwable
+    {
+        AsyncLatch  unreachable = AsyncStub.create(AsyncLatch.class,
+            Latch.class, new InetSocketAddress("127.0.0.1", 1));
+
+        try
+        {
+            unreachable.hold(0).get(WAIT, TimeUnit.SECONDS);
+            throw new TestFailed("call to unreachable server returned");
+        }
+        catch(ExecutionException e)
+        {
+            if(!(e.getCause() instanceof RMIException))
+            {
+                throw new TestFailed("call to unreachable server failed " +
+                                     "with the wrong exception", e);
+            }
+        }
+    }
+
+    /** Server holding each call until its token is released. */
+    private static class LatchServer implements Latch
+    {
+        /** Tokens released. */
+        private final Set<Integer>  released = new HashSet<>();
+        /** Number of calls arrived. */
+        private int                 arrived = 0;
+        /** Set when the test is cleaned up, to release any waiting call. */
+        private boolean             all = false;
+
+        /** Waits for the given number of calls to arrive.
+
+            @throws TestFailed If they do not arrive in time.
+         */
+        synchronized void awaitArrivals(int calls) throws TestFailed
+        {
+            long    deadline = System.currentTimeMillis() + WAIT * 1000;
+
+            while(arrived < calls)
+            {
+                long    remaining = deadline - System.currentTimeMillis();
+                if(remaining <= 0)
+                    throw new TestFailed(arrived + " calls held at once");
+
+                try
+                {
+                    wait(remaining);
+                }
+                catch(InterruptedException e)
+                {
+                    throw new TestFailed("interrupted waiting for calls", e);
+                }
+            }
+        }
+
+        /** Lets the call with the given token return. */
+        synchronized void release(int token)
+        {
+            released.add(token);
+            notifyAll();
+        }
+
+        /** Lets every call return. */
+        synchronized void releaseAll()
+        {
+            all = true;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized int hold(int token) throws FileNotFoundException
+        {
+            ++arrived;
+            notifyAll();
+
+            while(!all && !released.contains(token))
+            {
+                try
+                {
+                    wait();
+                }
+                catch(InterruptedException e)
+                {
+                    break;
+                }
+            }
+
+            if(token == FAILING)
+                throw new FileNotFoundException("call " + token);
+
+            return token;
+        }
+    }
+}
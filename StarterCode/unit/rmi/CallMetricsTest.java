@@ -0,0 +1,256 @@
+package rmi;
+
+import java.io.FileNotFoundException;
+import java.util.*;
+
+import test.*;
+
+/** Tests the call metrics kept by skeletons and stubs.
+
+    <p>
+    Items checked are:
+    <ul>
+    <li>The skeleton and the stubs count every call of each method, and the
+        calls that fail, including those failing with an exception thrown by
+        the server object.</li>
+    <li>Bytes received and sent are counted for each method called.</li>
+    <li>Methods not called are left out of snapshots.</li>
+    <li>Resetting the metrics sets the counters back to zero.</li>
+    </ul>
+ */
+public class CallMetricsTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking call metrics";
+
+    /** Number of successful calls made. */
+    private static final int    CALLS = 5;
+    /** Number of failing calls made. */
+    private static final int    FAILURES = 2;
+    /** Time, in milliseconds, for which the skeleton's counters are waited
+        for: they may be updated after the reply is sent. */
+    private static final int    WAIT = 10000;
+
+    /** Skeleton serving the calls. */
+    private Skeleton<Probe>     skeleton;
+    /** Stub through which the calls are made. */
+    private Probe               stub;
+
+    /** Remote interface used in the test. */
+    public interface Probe
+    {
+        /** Returns the square of the given number. */
+        public int square(int value) throws RMIException;
+
+        /** Always fails.
+
+            @throws FileNotFoundException Always.
+         */
+        public void fail() throws RMIException, FileNotFoundException;
+
+        /** Never called. */
+        public void unused() throws RMIException;
+    }
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<Probe>(Probe.class, new Probe()
+        {
+            @Override
+            public int square(int value)
+            {
+                return value * value;
+            }
+
+            @Override
+            public void fail() throws FileNotFoundException
+            {
+                throw new FileNotFoundException("failing call");
+            }
+
+            @Override
+            public void unused()
+            {
+            }
+        });
+
+        try
+        {
+            skeleton.start();
+            stub = Stub.create(Probe.class, skeleton);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testCounters();
+            testReset();
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Checks the counters after successful and failing calls.
+
+        @throws TestFailed If a counter does not match the calls made.
+     */
+    private void testCounters() throws Throwable
+    {
+        for(int call = 0; call < CALLS; ++call)
+        {
+            if(stub.square(call) != call * call)
+                throw new TestFailed("wrong result returned");
+        }
+
+        for(int call = 0; call < FAILURES; ++call)
+        {
+            try
+            {
+                stub.fail();
+                throw new TestFailed("failing call returned normally");
+            }
+            catch(FileNotFoundException e)
+            {
+                // Expected.
+            }
+        }
+
+        CallMetrics     server = skeleton.getMetrics();
+        awaitCalls(server, "square", CALLS);
+        awaitCalls(server, "fail", FAILURES);
+
+        for(CallMetrics metrics : new CallMetrics[] {server,
+                                                     CallMetrics.client()})
+        {
+            MethodSnapshot  square = snapshot(metrics, "square");
+            MethodSnapshot  fail = snapshot(metrics, "fail");
+
+            if(square == null || fail == null)
+                throw new TestFailed("called method missing from snapshot");
+
+            expect(square, "calls", square.getCalls(), CALLS);
+            expect(square, "errors", square.getErrors(), 0);
+            expect(fail, "calls", fail.getCalls(), FAILURES);
+            expect(fail, "errors", fail.getErrors(), FAILURES);
+
+            if(square.getBytesIn() <= 0 || square.getBytesOut() <= 0)
+                throw new TestFailed("bytes of calls not counted");
+
+            if(snapshot(metrics, "unused") != null)
+                throw new TestFailed("method not called in snapshot");
+        }
+    }
+
+    /** Checks that resetting the skeleton's metrics clears its counters.
+
+        @throws TestFailed If a counter is not cleared, or the calls made
+                           after the reset are not counted.
+     */
+    private void testReset() throws Throwable
+    {
+        CallMetrics     server = skeleton.getMetrics();
+        server.reset();
+
+        if(!metricsOf(server).isEmpty())
+            throw new TestFailed("calls left in snapshot after reset");
+
+        stub.square(3);
+        awaitCalls(server, "square", 1);
+        expect(snapshot(server, "square"), "calls after reset",
+               snapshot(server, "square").getCalls(), 1);
+    }
+
+    /** Waits for the given number of calls of a method to be counted.
+
+        @throws TestFailed If they are not counted in time.
+     */
+    private void awaitCalls(CallMetrics metrics, String method, long calls)
+        throws TestFailed, InterruptedException
+    {
+        long            deadline = System.currentTimeMillis() + WAIT;
+
+        while(true)
+        {
+            MethodSnapshot  snapshot = snapshot(metrics, method);
+            if(snapshot != null && snapshot.getCalls() >= calls)
+                return;
+
+            if(System.currentTimeMillis() > deadline)
+                throw new TestFailed("calls of " + method + " not counted");
+
+            Thread.sleep(10);
+        }
+    }
+
+    /** Checks the value of a counter.
+
+        @throws TestFailed If the value is not the expected one.
+     */
+    private static void expect(MethodSnapshot snapshot, String counter,
+                               long value, long expected) throws TestFailed
+    {
+        if(value != expected)
+        {
+            throw new TestFailed(counter + " of " + snapshot.getMethodName() +
+                                 " is " + value + " instead of " + expected);
+        }
+    }
+
+    /** Returns the snapshot of a method of <code>Probe</code>, or
+        <code>null</code> if it is not in the snapshot of the metrics. */
+    private static MethodSnapshot snapshot(CallMetrics metrics, String method)
+    {
+        for(MethodSnapshot snapshot : metricsOf(metrics))
+        {
+            if(snapshot.getMethodName().equals(method))
+                return snapshot;
+        }
+
+        return null;
+    }
+
+    /** Returns the snapshots of the methods of <code>Probe</code>. The
+        metrics of stubs are shared with other tests. */
+    private static List<MethodSnapshot> metricsOf(CallMetrics metrics)
+    {
+        List<MethodSnapshot>    snapshots = new ArrayList<>();
+
+        for(MethodSnapshot snapshot : metrics.snapshot())
+        {
+            if(snapshot.getInterfaceName().equals(Probe.class.getName()))
+                snapshots.add(snapshot);
+        }
+
+        return snapshots;
+    }
+}
@@ -0,0 +1,151 @@
+package rmi;
+
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+
+import test.*;
+
+/** Tests the reuse of pooled connections by stubs.
+
+    <p>
+    Items checked are:
+    <ul>
+    <li>Consecutive calls through one stub, and through several stubs for the
+        same skeleton, are carried by a single connection.</li>
+    <li><code>closeIdle</code> closes the idle connection, and the next call
+        opens a new one.</li>
+    </ul>
+ */
+public class ConnectionPoolTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking stub connection pooling";
+
+    /** Number of calls made through each stub. */
+    private static final int    CALLS = 50;
+
+    /** Skeleton serving the calls. */
+    private Skeleton<Counter>   skeleton;
+
+    /** Remote interface used in the test. */
+    public interface Counter
+    {
+        /** Returns the number of calls made so far, including this one. */
+        public int next() throws RMIException;
+    }
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<Counter>(Counter.class, new Counter()
+        {
+            private int     calls = 0;
+
+            @Override
+            public synchronized int next()
+            {
+                return ++calls;
+            }
+        });
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Counter             first;
+        Counter             second;
+
+        try
+        {
+            first = Stub.create(Counter.class, skeleton);
+            second = Stub.create(Counter.class, skeleton);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create stubs", t);
+        }
+
+        InetSocketAddress   address =
+            ((ProxyHandler)Proxy.getInvocationHandler(first)).address();
+
+        call(first, 0);
+        call(second, CALLS);
+
+        if(skeleton.getAcceptedConnections() != 1)
+        {
+            throw new TestFailed("calls were carried by " +
+                                 skeleton.getAcceptedConnections() +
+                                 " connections instead of one");
+        }
+
+        if(ConnectionPool.openConnections(address) != 1)
+            throw new TestFailed("pool does not hold the connection open");
+
+        if(ConnectionPool.outstandingCalls(address) != 0)
+            throw new TestFailed("pool reports calls outstanding after replies");
+
+        ConnectionPool.closeIdle();
+
+        if(ConnectionPool.openConnections(address) != 0)
+            throw new TestFailed("idle connection not closed by closeIdle");
+
+        call(first, 2 * CALLS);
+
+        if(skeleton.getAcceptedConnections() != 2)
+            throw new TestFailed("call after closeIdle did not reconnect");
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Makes <code>CALLS</code> calls through a stub and checks their results.
+
+        @param stub The stub.
+        @param before Number of calls made before.
+        @throws TestFailed If a call fails or returns the wrong count.
+     */
+    private void call(Counter stub, int before) throws TestFailed
+    {
+        for(int call = 1; call <= CALLS; ++call)
+        {
+            int     count;
+
+            try
+            {
+                count = stub.next();
+            }
+            catch(Throwable t)
+            {
+                throw new TestFailed("unable to call the skeleton", t);
+            }
+
+            if(count != before + call)
+            {
+                throw new TestFailed("call returned " + count + " instead of " +
+                                     (before + call));
+            }
+        }
+    }
+}
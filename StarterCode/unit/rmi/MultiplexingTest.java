@@ -0,0 +1,230 @@
+package rmi;
+
+import java.io.FileNotFoundException;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+
+import test.*;
+
+/** Tests the multiplexing of calls over one connection.
+
+    <p>
+    Several threads call a skeleton at once through one stub. The server holds
+    every call until all of them have arrived, then answers them in the
+    reverse order of their tokens, failing one of them. Items checked are:
+    <ul>
+    <li>All the calls are outstanding at once over a single connection.</li>
+    <li>Each caller receives the reply to its own call, although the replies
+        arrive out of order, and the failure reaches only the call that
+        raised it.</li>
+    </ul>
+ */
+public class MultiplexingTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking multiplexing of calls";
+
+    /** Number of concurrent calls. */
+    private static final int    CALLS = 8;
+    /** Token of the call that fails. */
+    private static final int    FAILING = 3;
+
+    /** Server object used in the test. */
+    private final GateServer    server = new GateServer();
+    /** Skeleton serving the calls. */
+    private Skeleton<Gate>      skeleton;
+    /** Stub through which the calls are made. */
+    private Gate                stub;
+
+    /** Remote interface used in the test. */
+    public interface Gate
+    {
+        /** Waits for the other calls and returns the given token.
+
+            @throws FileNotFoundException If the token is
+                                          <code>FAILING</code>.
+         */
+        public int pass(int token) throws RMIException, FileNotFoundException;
+    }
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<Gate>(Gate.class, server);
+
+        try
+        {
+            skeleton.start();
+            stub = Stub.create(Gate.class, skeleton);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        // Open the connection with a first call, so that the concurrent calls
+        // find it in the pool.
+        server.expect(1);
+        pass(0);
+
+        server.expect(CALLS);
+        Thread[]    callers = new Thread[CALLS - 1];
+        for(int token = 1; token < CALLS; ++token)
+        {
+            int     caller = token;
+            callers[token - 1] = new Thread(() -> {
+                try
+                {
+                    pass(caller);
+                }
+                catch(TestFailed e)
+                {
+                    failure(e);
+                }
+            });
+            callers[token - 1].start();
+        }
+
+        pass(0);
+
+        for(Thread caller : callers)
+        {
+            try
+            {
+                caller.join();
+            }
+            catch(InterruptedException e)
+            {
+                throw new TestFailed("interrupted waiting for the callers", e);
+            }
+        }
+
+        if(skeleton.getAcceptedConnections() != 1)
+        {
+            throw new TestFailed("calls were carried by " +
+                                 skeleton.getAcceptedConnections() +
+                                 " connections instead of one");
+        }
+
+        InetSocketAddress   address =
+            ((ProxyHandler)Proxy.getInvocationHandler(stub)).address();
+
+        if(ConnectionPool.outstandingCalls(address) != 0)
+            throw new TestFailed("pool reports calls outstanding after replies");
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        server.release();
+
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Makes a call and checks its result.
+
+        @param token Token passed to the server.
+        @throws TestFailed If the call does not return its own token, or does
+                           not fail when expected to.
+     */
+    private void pass(int token) throws TestFailed
+    {
+        int         result;
+
+        try
+        {
+            result = stub.pass(token);
+        }
+        catch(FileNotFoundException e)
+        {
+            if(token == FAILING)
+                return;
+
+            throw new TestFailed("call " + token + " received the failure " +
+                                 "of another call", e);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call " + token + " failed", t);
+        }
+
+        if(token == FAILING)
+            throw new TestFailed("failing call returned normally");
+
+        if(result != token)
+        {
+            throw new TestFailed("call " + token + " received the reply " +
+                                 result + " of another call");
+        }
+    }
+
+    /** Server holding calls until a given number has arrived, and answering
+        them from the highest token down. */
+    private static class GateServer implements Gate
+    {
+        /** Number of calls expected. */
+        private int         expected;
+        /** Number of calls arrived. */
+        private int         arrived;
+        /** Token of the next call to be answered. */
+        private int         next;
+        /** Set when the test is cleaned up, to release any waiting call. */
+        private boolean     released = false;
+
+        /** Prepares the server for the given number of calls. */
+        synchronized void expect(int calls)
+        {
+            expected = calls;
+            arrived = 0;
+            next = calls - 1;
+        }
+
+        /** Releases any calls still held. */
+        synchronized void release()
+        {
+            released = true;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized int pass(int token) throws FileNotFoundException
+        {
+            ++arrived;
+            notifyAll();
+
+            while(!released && (arrived < expected || next != token))
+            {
+                try
+                {
+                    wait();
+                }
+                catch(InterruptedException e)
+                {
+                    break;
+                }
+            }
+
+            --next;
+            notifyAll();
+
+            if(token == FAILING)
+                throw new FileNotFoundException("call " + token);
+
+            return token;
+        }
+    }
+}
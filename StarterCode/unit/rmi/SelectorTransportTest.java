@@ -0,0 +1,352 @@
+package rmi;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import test.*;
+
+/** Tests the event-loop transport of skeletons.
+
+    <p>
+    Calls are made to a skeleton using the {@link Transport#NIO} transport
+    through a relay, which forwards the bytes sent by the stub in chunks of a
+    given size, so that the frames are cut at arbitrary points across reads.
+    Items checked are:
+    <ul>
+    <li>Calls whose frames arrive a few bytes at a time are received
+        whole.</li>
+    <li>A call whose frame is larger than the buffer shared by the
+        connections of an event loop is received whole.</li>
+    <li>Concurrent calls whose frames are cut anywhere, several in one read,
+        each receive their own reply.</li>
+    <li>Starting a skeleton on a port in use fails with an
+        <code>RMIException</code>.</li>
+    </ul>
+ */
+public class SelectorTransportTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking event-loop transport";
+
+    /** Size of the argument of the call larger than the shared buffer. */
+    private static final int    LARGE = 300 * 1024;
+    /** Number of concurrent calls. */
+    private static final int    CALLS = 4;
+
+    /** Skeleton serving the calls. */
+    private Skeleton<Echo>      skeleton;
+    /** Relay between the stub and the skeleton. */
+    private Relay               relay;
+    /** Stub making the calls through the relay. */
+    private Echo                stub;
+
+    /** Remote interface used in the test. */
+    public interface Echo
+    {
+        /** Returns the given bytes. */
+        public byte[] echo(byte[] data) throws RMIException;
+    }
+
+    /** Starts the skeleton and the relay. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<Echo>(Echo.class, data -> data);
+        skeleton.setTransport(Transport.NIO);
+
+        try
+        {
+            skeleton.start();
+            relay = new Relay(new InetSocketAddress("127.0.0.1",
+                skeleton.getAddress().getPort()));
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        stub = Stub.create(Echo.class, relay.address());
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        testSplitFrames();
+        testLargeFrame();
+        testConcurrentFrames();
+        testBusyPort();
+    }
+
+    /** Stops the relay and the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(relay != null)
+        {
+            relay.close();
+            relay = null;
+        }
+
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Checks calls whose frames arrive a few bytes at a time.
+
+        @throws TestFailed If a call fails or returns the wrong bytes.
+     */
+    private void testSplitFrames() throws TestFailed
+    {
+        relay.setChunk(3);
+
+        for(int call = 0; call < 3; ++call)
+            echo(bytes(50 + call, call));
+    }
+
+    /** Checks a call larger than the shared read buffer.
+
+        @throws TestFailed If the call fails or returns the wrong bytes.
+     */
+    private void testLargeFrame() throws TestFailed
+    {
+        relay.setChunk(10007);
+        echo(bytes(LARGE, 7));
+        // The connection is still usable for small calls.
+        echo(bytes(10, 8));
+    }
+
+    /** Checks concurrent calls over one connection, whose frames follow each
+        other in the stream.
+
+        @throws TestFailed If a call fails or receives the reply of another.
+     */
+    private void testConcurrentFrames() throws TestFailed
+    {
+        relay.setChunk(1021);
+
+        Thread[]    callers = new Thread[CALLS];
+        for(int call = 0; call < CALLS; ++call)
+        {
+            byte[]  data = bytes(20000 + call * 3001, call + 10);
+            callers[call] = new Thread(() -> {
+                try
+                {
+                    echo(data);
+                }
+                catch(TestFailed e)
+                {
+                    failure(e);
+                }
+            });
+            callers[call].start();
+        }
+
+        for(Thread caller : callers)
+        {
+            try
+            {
+                caller.join();
+            }
+            catch(InterruptedException e)
+            {
+                throw new TestFailed("interrupted waiting for the callers", e);
+            }
+        }
+    }
+
+    /** Checks that starting a skeleton on a port in use fails.
+
+        @throws TestFailed If the skeleton starts, or fails with another
+                           exception.
+     */
+    private void testBusyPort() throws TestFailed
+    {
+        Skeleton<Echo>  other = new Skeleton<Echo>(Echo.class, data -> data,
+            new InetSocketAddress(skeleton.getAddress().getPort()));
+        other.setTransport(Transport.NIO);
+
+        try
+        {
+            other.start();
+            other.stop();
+            throw new TestFailed("skeleton started on a port in use");
+        }
+        catch(RMIException e)
+        {
+            // Expected.
+        }
+    }
+
+    /** Makes a call and checks that it returns the bytes given.
+
+        @throws TestFailed If the call fails or returns other bytes.
+     */
+    private void echo(byte[] data) throws TestFailed
+    {
+        byte[]      result;
+
+        try
+        {
+            result = stub.echo(data);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call with " + data.length + " bytes failed",
+                                 t);
+        }
+
+        if(!Arrays.equals(result, data))
+        {
+            throw new TestFailed("call with " + data.length + " bytes " +
+                                 "returned other bytes");
+        }
+    }
+
+    /** Returns bytes of the given length, which depend on the seed. */
+    private static byte[] bytes(int length, int seed)
+    {
+        byte[]      data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /** Relay forwarding the bytes sent by clients to a server in chunks,
+        flushing each one on its own, and the replies unchanged. */
+    private static class Relay
+    {
+        /** Listening socket of the relay. */
+        private final ServerSocket  listener;
+        /** Address of the server. */
+        private final InetSocketAddress server;
+        /** Sockets opened by the relay. */
+        private final List<Socket>  sockets = new ArrayList<>();
+        /** Number of bytes forwarded at a time to the server. */
+        private volatile int        chunk = 1;
+
+        /** Starts relaying connections to the given server. */
+        Relay(InetSocketAddress server) throws IOException
+        {
+            this.server = server;
+            listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            start(this::accept);
+        }
+
+        /** Returns the address of the relay. */
+        InetSocketAddress address()
+        {
+            return new InetSocketAddress("127.0.0.1", listener.getLocalPort());
+        }
+
+        /** Sets the number of bytes forwarded at a time. */
+        void setChunk(int chunk)
+        {
+            this.chunk = chunk;
+        }
+
+        /** Closes the relay and the connections it opened. */
+        synchronized void close()
+        {
+            try
+            {
+                listener.close();
+            }
+            catch(IOException e) { }
+
+            for(Socket socket : sockets)
+            {
+                try
+                {
+                    socket.close();
+                }
+                catch(IOException e) { }
+            }
+        }
+
+        /** Accepts clients, connecting each to the server. */
+        private void accept()
+        {
+            while(true)
+            {
+                Socket      client;
+                Socket      connection;
+
+                try
+                {
+                    client = listener.accept();
+                    connection = new Socket(server.getAddress(),
+                                            server.getPort());
+                    client.setTcpNoDelay(true);
+                    connection.setTcpNoDelay(true);
+                }
+                catch(IOException e)
+                {
+                    return;
+                }
+
+                synchronized(this)
+                {
+                    sockets.add(client);
+                    sockets.add(connection);
+                }
+
+                start(() -> forward(client, connection, true));
+                start(() -> forward(connection, client, false));
+            }
+        }
+
+        /** Copies the bytes received on one socket to the other. */
+        private void forward(Socket from, Socket to, boolean chunked)
+        {
+            byte[]      buffer = new byte[64 * 1024];
+
+            try
+            {
+                InputStream     in = from.getInputStream();
+                OutputStream    out = to.getOutputStream();
+
+                while(true)
+                {
+                    int     read = in.read(buffer);
+                    if(read < 0)
+                        break;
+
+                    int     size = chunked ? chunk : read;
+                    for(int offset = 0; offset < read; offset += size)
+                    {
+                        out.write(buffer, offset, Math.min(size, read - offset));
+                        out.flush();
+                        // Gives the event loop a chance to read the chunk on
+                        // its own.
+                        if(chunked)
+                            Thread.sleep(0, 100000);
+                    }
+                }
+            }
+            catch(IOException | InterruptedException e) { }
+            finally
+            {
+                try
+                {
+                    to.close();
+                }
+                catch(IOException e) { }
+            }
+        }
+
+        /** Starts a daemon thread. */
+        private static void start(Runnable task)
+        {
+            Thread      thread = new Thread(task);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package rmi;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+
+import test.*;
+import common.*;
+import storage.*;
+
+/** Tests the binary wire format of the RMI library.
+
+    <p>
+    Items checked are:
+    <ul>
+    <li>Every value type with a compact encoding, stubs, and serialized
+        values are read back equal to the values written.</li>
+    <li>Paths and arrays of paths are encoded more compactly than by Java
+        serialization.</li>
+    <li>Frames are written with their length, and invalid lengths and tags
+        are rejected.</li>
+    <li>A serialized value that cannot be decoded is skipped, so that the
+        values after it can still be read.</li>
+    </ul>
+ */
+public class WireFormatTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking RMI wire format";
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        testValues();
+        testCompactPaths();
+        testFrames();
+        testUndecodableValue();
+    }
+
+    /** Checks that values are read back equal to the values written.
+
+        @throws TestFailed If a value is not read back equal.
+     */
+    private void testValues() throws TestFailed
+    {
+        Storage     stub =
+            Stub.create(Storage.class, new InetSocketAddress("127.0.0.1", 7000));
+
+        Object[]    values =
+            new Object[] {null, true, false, -5, Long.MIN_VALUE,
+                          new byte[] {0, 1, -1}, "caf\u00e9", "",
+                          new String[] {"a", null, ""}, new Path("/a/b"),
+                          new Path[] {new Path("/"), null, new Path("/c")},
+                          stub, new ArrayList<>(Arrays.asList(1, 2)),
+                          new FileNotFoundException("missing")};
+
+        ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+
+        try
+        {
+            DataOutputStream    out = new DataOutputStream(bytes);
+            for(Object value : values)
+                WireFormat.writeValue(out, value);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to write values", e);
+        }
+
+        DataInputStream         in =
+            new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+
+        for(Object value : values)
+        {
+            Object      read;
+
+            try
+            {
+                read = WireFormat.readValue(in);
+            }
+            catch(IOException e)
+            {
+                throw new TestFailed("unable to read value " + value, e);
+            }
+
+            if(!same(value, read))
+                throw new TestFailed("value " + value + " read back as " + read);
+        }
+
+        try
+        {
+            if(in.read() != -1)
+                throw new TestFailed("bytes left after the last value");
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to read past the last value", e);
+        }
+    }
+
+    /** Checks that paths are encoded more compactly than by Java
+        serialization.
+
+        @throws TestFailed If the encoding of a path is not smaller.
+     */
+    private void testCompactPaths() throws TestFailed
+    {
+        Path[]      paths = new Path[100];
+        for(int index = 0; index < paths.length; ++index)
+            paths[index] = new Path("/directory/file" + index);
+
+        ByteArrayOutputStream   compact = new ByteArrayOutputStream();
+        ByteArrayOutputStream   serialized = new ByteArrayOutputStream();
+
+        try
+        {
+            WireFormat.writeValue(new DataOutputStream(compact), paths);
+
+            try(ObjectOutputStream out = new ObjectOutputStream(serialized))
+            {
+                out.writeObject(paths);
+            }
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to encode paths", e);
+        }
+
+        if(compact.size() >= serialized.size())
+        {
+            throw new TestFailed("paths encoded in " + compact.size() +
+                                 " bytes, against " + serialized.size() +
+                                 " bytes serialized");
+        }
+    }
+
+    /** Checks the framing of messages.
+
+        @throws TestFailed If frames are not written or checked correctly.
+     */
+    private void testFrames() throws TestFailed
+    {
+        ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+
+        try
+        {
+            WireFormat.Frame    frame = new WireFormat.Frame(WireFormat.RESULT);
+            frame.writeInt(42);
+            WireFormat.writeValue(frame, "result");
+            frame.writeTo(new DataOutputStream(bytes));
+
+            DataInputStream     in = new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()));
+
+            if(WireFormat.readLength(in) != frame.length() ||
+               bytes.size() != 4 + frame.length())
+            {
+                throw new TestFailed("frame length not written correctly");
+            }
+
+            if(in.readByte() != WireFormat.RESULT || in.readInt() != 42 ||
+               !"result".equals(WireFormat.readValue(in)))
+            {
+                throw new TestFailed("frame contents not written correctly");
+            }
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to write and read a frame", e);
+        }
+
+        rejects(new byte[] {0, 0, 0, 0}, "empty frame", true);
+        rejects(new byte[] {0x7f, 0, 0, 0}, "oversized frame", true);
+        rejects(new byte[] {99}, "unknown value tag", false);
+    }
+
+    /** Checks that a serialized value that cannot be decoded fails alone.
+
+        @throws TestFailed If the failure is not reported, or the stream is
+                           not positioned after the value.
+     */
+    private void testUndecodableValue() throws TestFailed
+    {
+        ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+
+        try
+        {
+            DataOutputStream    out = new DataOutputStream(bytes);
+            // A serialized value whose contents are not a serialization
+            // stream.
+            out.writeByte(11);
+            out.writeInt(3);
+            out.write(new byte[] {1, 2, 3});
+            WireFormat.writeValue(out, "next");
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to write values", e);
+        }
+
+        DataInputStream         in =
+            new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+
+        try
+        {
+            WireFormat.readValue(in);
+            throw new TestFailed("undecodable value read without error");
+        }
+        catch(WireFormat.UndecodableValueException e)
+        {
+            // Expected.
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("undecodable value reported as a damaged " +
+                                 "stream", e);
+        }
+
+        try
+        {
+            if(!"next".equals(WireFormat.readValue(in)))
+                throw new TestFailed("value after undecodable value misread");
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to read value after undecodable value",
+                                 e);
+        }
+    }
+
+    /** Checks that a malformed frame length or value is rejected.
+
+        @param bytes The malformed input.
+        @param what Description of the input.
+        @param length <code>true</code> if the input is a frame length,
+                      <code>false</code> if it is a value.
+        @throws TestFailed If the input is accepted.
+     */
+    private void rejects(byte[] bytes, String what, boolean length)
+        throws TestFailed
+    {
+        DataInputStream         in =
+            new DataInputStream(new ByteArrayInputStream(bytes));
+
+        try
+        {
+            if(length)
+                WireFormat.readLength(in);
+            else
+                WireFormat.readValue(in);
+        }
+        catch(StreamCorruptedException e)
+        {
+            return;
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed(what + " raised the wrong exception", e);
+        }
+
+        throw new TestFailed(what + " accepted");
+    }
+
+    /** Returns <code>true</code> if a value read back matches the value
+        written. Arrays are compared by contents, and exceptions by class and
+        message. */
+    private static boolean same(Object written, Object read)
+    {
+        if(written instanceof Throwable)
+        {
+            return read != null && read.getClass() == written.getClass() &&
+                Objects.equals(((Throwable)read).getMessage(),
+                               ((Throwable)written).getMessage());
+        }
+
+        return Objects.deepEquals(written, read);
+    }
+}
@@ -0,0 +1,298 @@
+package storage;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import test.*;
+import common.*;
+
+/** Tests the data channel of a storage server.
+
+    <p>
+    A data server is started on a temporary directory, and reached with the
+    client side in <code>DataChannel</code>. Items checked are:
+    <ul>
+    <li>Bytes written are read back, into a buffer and into a local
+        file.</li>
+    <li>A write past the end of the file fills the gap with zeros.</li>
+    <li>Reads outside the file, and writes at a negative offset, fail with
+        <code>IndexOutOfBoundsException</code>.</li>
+    <li>Transfers of missing files and of directories fail with
+        <code>FileNotFoundException</code>.</li>
+    <li>Writes made against another version of the file, or while it is
+        fenced, are refused and leave it unchanged.</li>
+    </ul>
+ */
+public class DataServerTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking storage server data channel";
+
+    /** Initial contents of the file. */
+    private static final String CONTENTS = "0123456789";
+
+    /** Directory served. */
+    private TemporaryDirectory  directory;
+    /** Versions and fences of the files served. */
+    private final Fences        fences = new Fences();
+    /** Data server under test. */
+    private DataServer          server;
+    /** Address of the data server. */
+    private InetSocketAddress   address;
+    /** File transferred. */
+    private final Path          file = new Path("/f");
+
+    /** Creates the directory and starts the data server. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+            directory.add(new String[] {"f"}, CONTENTS);
+            directory.add(new String[] {"d", "x"});
+
+            server = new DataServer(directory.root(), new IoStats(), fences);
+            server.start("127.0.0.1");
+            address = server.address();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start data server", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testRoundTrip();
+            testGap();
+            testOutOfBounds();
+            testNotFound();
+            testRefused();
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Stops the data server and removes the directory. */
+    @Override
+    protected void clean()
+    {
+        if(server != null)
+        {
+            server.stop();
+            server = null;
+        }
+
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Checks that bytes written are read back.
+
+        @throws TestFailed If other bytes are read.
+     */
+    private void testRoundTrip() throws Throwable
+    {
+        byte[]      data = "xabcx".getBytes("UTF-8");
+        DataChannel.write(address, file, 2, data, 1, 3, fences.version(file));
+        expectContents("01abc56789");
+
+        // The same bytes, read straight into a local file at their offset.
+        File        local = new File(directory.root(), "local");
+        try(FileChannel target = FileChannel.open(local.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+        {
+            DataChannel.read(address, file, 2, 3, target);
+        }
+
+        byte[]      copied = java.nio.file.Files.readAllBytes(local.toPath());
+        if(!Arrays.equals(copied, "\0\0abc".getBytes("UTF-8")))
+            throw new TestFailed("wrong bytes read into a local file");
+
+        if(server.transfers() != 3)
+        {
+            throw new TestFailed(server.transfers() + " transfers counted " +
+                                 "instead of 3");
+        }
+    }
+
+    /** Checks that a write past the end of the file fills the gap.
+
+        @throws TestFailed If the gap is not filled with zeros.
+     */
+    private void testGap() throws Throwable
+    {
+        DataChannel.write(address, file, 13, "yz".getBytes("UTF-8"), 0, 2,
+                          fences.version(file));
+        expectContents("01abc56789\0\0\0yz");
+    }
+
+    /** Checks that transfers outside the file fail.
+
+        @throws TestFailed If a transfer outside the file succeeds, or fails
+                           with another exception.
+     */
+    private void testOutOfBounds() throws Throwable
+    {
+        byte[]      buffer = new byte[10];
+
+        expectOutOfBounds(() -> DataChannel.read(address, file, 10, buffer, 0,
+                                                 10));
+        expectOutOfBounds(() -> DataChannel.read(address, file, -1, buffer, 0,
+                                                 1));
+        expectOutOfBounds(() -> DataChannel.write(address, file, -1, buffer, 0,
+                                                  1, fences.version(file)));
+        expectContents("01abc56789\0\0\0yz");
+    }
+
+    /** Checks that transfers of missing files and directories fail.
+
+        @throws TestFailed If such a transfer does not fail with
+                           <code>FileNotFoundException</code>.
+     */
+    private void testNotFound() throws Throwable
+    {
+        byte[]      buffer = new byte[1];
+
+        for(Path path : new Path[] {new Path("/missing"), new Path("/d")})
+        {
+            try
+            {
+                DataChannel.read(address, path, 0, buffer, 0, 0);
+                throw new TestFailed("read of " + path + " succeeded");
+            }
+            catch(FileNotFoundException e)
+            {
+                // Expected.
+            }
+
+            try
+            {
+                DataChannel.write(address, path, 0, buffer, 0, 1, -1);
+                throw new TestFailed("write to " + path + " succeeded");
+            }
+            catch(FileNotFoundException e)
+            {
+                // Expected.
+            }
+        }
+    }
+
+    /** Checks that writes against another version, or to a fenced file, are
+        refused.
+
+        @throws TestFailed If such a write succeeds or changes the file.
+     */
+    private void testRefused() throws Throwable
+    {
+        byte[]      data = "!".getBytes("UTF-8");
+        long        version = fences.version(file);
+
+        expectRefused(data, version + 1);
+
+        fences.fence(file);
+        expectRefused(data, version);
+        expectRefused(data, -1);
+        fences.release(file);
+
+        // The release raised the version.
+        expectRefused(data, version);
+
+        DataChannel.write(address, file, 0, data, 0, 1, fences.version(file));
+        expectContents("!1abc56789\0\0\0yz");
+    }
+
+    /** Checks that a write is refused and leaves the file unchanged.
+
+        @throws TestFailed If the write succeeds, fails with another
+                           exception, or changes the file.
+     */
+    private void expectRefused(byte[] data, long version) throws Throwable
+    {
+        byte[]      before = read();
+
+        try
+        {
+            DataChannel.write(address, file, 0, data, 0, data.length,
+                              version);
+            throw new TestFailed("write against version " + version +
+                                 " accepted");
+        }
+        catch(FileNotFoundException | IndexOutOfBoundsException e)
+        {
+            throw new TestFailed("write refused with the wrong exception", e);
+        }
+        catch(IOException e)
+        {
+            // Expected.
+        }
+
+        if(!Arrays.equals(read(), before))
+            throw new TestFailed("refused write changed the file");
+    }
+
+    /** Checks that a transfer fails with
+        <code>IndexOutOfBoundsException</code>.
+
+        @throws TestFailed If the transfer succeeds or fails otherwise.
+     */
+    private void expectOutOfBounds(Transfer transfer) throws Throwable
+    {
+        try
+        {
+            transfer.run();
+            throw new TestFailed("transfer outside the file succeeded");
+        }
+        catch(IndexOutOfBoundsException e)
+        {
+            // Expected.
+        }
+    }
+
+    /** Checks the contents of the file, read over the data channel.
+
+        @throws TestFailed If the file holds other bytes.
+     */
+    private void expectContents(String expected) throws Throwable
+    {
+        String      contents = new String(read(), "UTF-8");
+
+        if(!contents.equals(expected))
+            throw new TestFailed("file holds " + contents);
+    }
+
+    /** Reads the whole file over the data channel. */
+    private byte[] read() throws IOException
+    {
+        File        local = file.toFile(directory.root());
+        byte[]      buffer = new byte[(int)local.length()];
+        DataChannel.read(address, file, 0, buffer, 0, buffer.length);
+        return buffer;
+    }
+
+    /** Transfer expected to fail. */
+    private interface Transfer
+    {
+        void run() throws IOException;
+    }
+}
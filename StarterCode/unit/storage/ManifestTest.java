@@ -0,0 +1,213 @@
+package storage;
+
+import java.io.*;
+import java.util.*;
+
+import test.*;
+import common.*;
+
+/** Tests the manifest of a storage server.
+
+    <p>
+    Items checked are:
+    <ul>
+    <li>A new manifest is marked as new and given a name.</li>
+    <li>The delta holds the latest change of each file since the acknowledged
+        generation, and its generation counts every change.</li>
+    <li>Acknowledging a generation drops the changes up to it, and
+        acknowledging an older one has no effect.</li>
+    <li>Removing a directory removes the files below it only.</li>
+    <li>A manifest loaded from its snapshot and log, whether closed or not,
+        and with an incomplete record at the end of its log, has the name,
+        files and delta of the manifest written.</li>
+    </ul>
+ */
+public class ManifestTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking storage server manifest";
+
+    /** Directory of the manifest files. */
+    private TemporaryDirectory  directory;
+    /** Snapshot file of the manifest. */
+    private File                snapshot;
+
+    /** Creates the manifest directory. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+        }
+        catch(FileNotFoundException e)
+        {
+            throw new TestFailed("unable to create temporary directory", e);
+        }
+
+        snapshot = new File(directory.root(), "manifest");
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testChanges();
+            testReload();
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to use manifest", e);
+        }
+    }
+
+    /** Removes the manifest directory. */
+    @Override
+    protected void clean()
+    {
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Checks the delta of a manifest as it is changed and acknowledged.
+
+        @throws TestFailed If a delta is not as expected.
+     */
+    private void testChanges() throws TestFailed, IOException
+    {
+        Manifest    manifest = new Manifest(snapshot);
+
+        if(!manifest.isNew() || manifest.name() == null)
+            throw new TestFailed("new manifest not marked as new and named");
+
+        manifest.reset(paths("/a", "/b"));
+        expectDelta(manifest, 0, paths(), paths());
+
+        // Only the latest change of each file is kept.
+        manifest.added(new Path("/c"));
+        manifest.removed(new Path("/a"));
+        manifest.added(new Path("/a"));
+        manifest.removed(new Path("/c"));
+        manifest.removed(new Path("/missing"));
+        expectDelta(manifest, 4, paths("/a"), paths("/c"));
+
+        manifest.acknowledge(3);
+        expectDelta(manifest, 4, paths(), paths("/c"));
+
+        manifest.acknowledge(1);
+        expectDelta(manifest, 4, paths(), paths("/c"));
+
+        manifest.added(new Path("/d/x"));
+        manifest.added(new Path("/d/y/z"));
+        manifest.added(new Path("/dd"));
+        manifest.acknowledge(7);
+        manifest.removedUnder(new Path("/d"));
+        expectDelta(manifest, 9, paths(), paths("/d/x", "/d/y/z"));
+
+        expectFiles(manifest, "/a", "/b", "/dd");
+    }
+
+    /** Checks that a manifest is loaded as it was written.
+
+        @throws TestFailed If a loaded manifest differs.
+     */
+    private void testReload() throws TestFailed, IOException
+    {
+        // The manifest of the previous test was not closed, as if the server
+        // had crashed.
+        Manifest    loaded = new Manifest(snapshot);
+        String      name = loaded.name();
+
+        if(loaded.isNew())
+            throw new TestFailed("loaded manifest marked as new");
+
+        expectFiles(loaded, "/a", "/b", "/dd");
+        expectDelta(loaded, 9, paths(), paths("/d/x", "/d/y/z"));
+
+        loaded.added(new Path("/e"));
+        loaded.acknowledge(9);
+
+        // A change cut short: its path is shorter than its length.
+        try(DataOutputStream out = new DataOutputStream(
+                new FileOutputStream(new File(snapshot.getPath() + ".log"),
+                                     true)))
+        {
+            out.writeByte(1);
+            out.writeShort(10);
+            out.writeByte('/');
+        }
+
+        Manifest    torn = new Manifest(snapshot);
+
+        if(!name.equals(torn.name()))
+            throw new TestFailed("name of manifest not kept");
+
+        expectFiles(torn, "/a", "/b", "/dd", "/e");
+        expectDelta(torn, 10, paths("/e"), paths());
+
+        torn.close();
+
+        Manifest    closed = new Manifest(snapshot);
+
+        expectFiles(closed, "/a", "/b", "/dd", "/e");
+        expectDelta(closed, 10, paths("/e"), paths());
+        closed.close();
+    }
+
+    /** Checks the delta of a manifest.
+
+        @throws TestFailed If the delta differs from the one expected.
+     */
+    private static void expectDelta(Manifest manifest, long generation,
+                                    List<Path> added, List<Path> removed)
+        throws TestFailed
+    {
+        Manifest.Delta  delta = manifest.delta();
+
+        if(delta.generation != generation ||
+           !TestUtil.sameElements(delta.added, added.toArray(new Path[0])) ||
+           !TestUtil.sameElements(delta.removed,
+                                  removed.toArray(new Path[0])))
+        {
+            throw new TestFailed("delta of generation " + delta.generation +
+                                 " adds " + Arrays.toString(delta.added) +
+                                 " and removes " +
+                                 Arrays.toString(delta.removed));
+        }
+    }
+
+    /** Checks the files of a manifest.
+
+        @throws TestFailed If the files differ from those expected.
+     */
+    private static void expectFiles(Manifest manifest, String... expected)
+        throws TestFailed
+    {
+        if(!TestUtil.sameElements(manifest.files().toArray(new Path[0]),
+                                  paths(expected).toArray(new Path[0])))
+        {
+            throw new TestFailed("manifest holds " + manifest.files());
+        }
+    }
+
+    /** Returns the paths with the given names. */
+    private static List<Path> paths(String... names)
+    {
+        List<Path>  paths = new ArrayList<>();
+        for(String name : names)
+            paths.add(new Path(name));
+        return paths;
+    }
+}